@@ -0,0 +1,147 @@
+package benchmarks;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.macro.Interpreter;
+import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * JMH benchmarks for the hot paths of ImageChanger on synthetic images.
+ * Throughput is reported per benchmark, allocation rate by the gc profiler.
+ * Run with: mvn -Pbenchmark test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class ImageChangerBenchmark {
+    private static final Color[] CHANNEL_COLORS = {Color.red, Color.green, Color.blue, Color.white};
+
+    /**
+     * Image shape as width x height x channels x slices.
+     */
+    @Param({"4096x4096x3x1", "2048x2048x4x20", "1024x1024x3x200", "512x512x8x50"})
+    public String shape;
+
+    @Param({"8", "16"})
+    public int bitDepth;
+
+    private ImagePlus image;
+    private ImagePlus[] rgbs;
+    private ImagePlus composite;
+    private ImagePlus videoCopy;
+    private Path outFolder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Interpreter.batchMode = true;
+        PluginMethods.quietLogging();
+
+        String[] dimensions = shape.split("x");
+        image = createImage(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]),
+                Integer.parseInt(dimensions[2]), Integer.parseInt(dimensions[3]), bitDepth);
+        rgbs = (ImagePlus[]) PluginMethods.SEPARATE_RGB.invokeExact(image);
+        composite = (ImagePlus) PluginMethods.MERGE_RGB.invokeExact(rgbs, image.getTitle());
+        outFolder = Files.createTempDirectory("wagner-bench");
+    }
+
+    @Setup(Level.Invocation)
+    public void copyVideo() {
+        // save_avi closes its input
+        videoCopy = composite.duplicate();
+        videoCopy.setTitle(composite.getTitle());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(outFolder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Create a deterministic multi-channel image with one colored LUT per channel.
+     */
+    static ImagePlus createImage(int width, int height, int channels, int slices, int bitDepth) {
+        Random random = new Random(42);
+        ImageStack stack = new ImageStack(width, height);
+        for (int i = 0; i < channels * slices; i++) {
+            ImageProcessor processor = bitDepth == 8 ? new ByteProcessor(width, height) : new ShortProcessor(width, height);
+            int maxValue = bitDepth == 8 ? 255 : 4095;
+            for (int p = 0; p < width * height; p++) {
+                processor.set(p, random.nextInt(maxValue + 1));
+            }
+            stack.addSlice(processor);
+        }
+
+        ImagePlus plain = new ImagePlus("synthetic_" + width + "x" + height, stack);
+        plain.setDimensions(channels, slices, 1);
+        CompositeImage image = new CompositeImage(plain, IJ.COMPOSITE);
+        for (int c = 0; c < channels; c++) {
+            LUT lut = LUT.createLutFromColor(CHANNEL_COLORS[c % CHANNEL_COLORS.length]);
+            lut.min = 0;
+            lut.max = bitDepth == 8 ? 255 : 4095;
+            image.setChannelLut(lut, c + 1);
+        }
+        return image;
+    }
+
+    @Benchmark
+    public String whichColor() throws Throwable {
+        return (String) PluginMethods.WHICH_COLOR.invokeExact(rgbs[0]);
+    }
+
+    @Benchmark
+    public ImagePlus[] separateRGB() throws Throwable {
+        ImagePlus[] splits = (ImagePlus[]) PluginMethods.SEPARATE_RGB.invokeExact(image);
+        for (ImagePlus split : splits) {
+            split.close();
+        }
+        return splits;
+    }
+
+    @Benchmark
+    public ImagePlus mergeRGB() throws Throwable {
+        ImagePlus merged = (ImagePlus) PluginMethods.MERGE_RGB.invokeExact(rgbs, image.getTitle());
+        merged.close();
+        return merged;
+    }
+
+    @Benchmark
+    public ImagePlus toGrey() throws Throwable {
+        return (ImagePlus) PluginMethods.TO_GREY.invokeExact(rgbs[0]);
+    }
+
+    @Benchmark
+    public ImagePlus zMaxProjection() {
+        return ZProjector.run(rgbs[0], "max");
+    }
+
+    @Benchmark
+    public void saveTif() throws Throwable {
+        PluginMethods.SAVE_TIF.invokeExact(composite, outFolder, "Merge");
+    }
+
+    @Benchmark
+    public void saveAvi() throws Throwable {
+        PluginMethods.SAVE_AVI.invokeExact(videoCopy, outFolder, "Merge", 5.0);
+    }
+}
@@ -0,0 +1,126 @@
+package benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the scalar and the vectorized pixel kernels on 16-bit data.
+ * The vectorized kernels need a Java 17+ JVM and the jdk17 profile, which adds the incubator module:
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.includes=PixelKernelsBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-Djava.awt.headless=true"})
+public class PixelKernelsBenchmark {
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    /**
+     * Plane size as width x height.
+     */
+    @Param({"2048x2048", "4096x4096"})
+    public String plane;
+
+    private Object implementation;
+    private short[] pixels;
+    private short[] nextPixels;
+    private short[] maximum;
+    private int[] rgb;
+    private int[] sum;
+    private byte[] indices;
+    private long[] counts;
+    private short[] corrected;
+    private float[] dark;
+    private float[] gain;
+    private ImagePlus stack;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        PluginMethods.quietLogging();
+        implementation = kernels.equals("scalar") ?
+                (Object) PluginMethods.SCALAR_KERNELS.invokeExact() : (Object) PluginMethods.VECTORIZED_KERNELS.invokeExact();
+        if (implementation == null) {
+            throw new IllegalStateException("Vectorized kernels need Java 17+ with --add-modules jdk.incubator.vector");
+        }
+
+        String[] dimensions = plane.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        Random random = new Random(42);
+        pixels = new short[width * height];
+        nextPixels = new short[width * height];
+        rgb = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            // 12-bit camera data in 16-bit pixels
+            pixels[i] = (short) random.nextInt(4096);
+            nextPixels[i] = (short) random.nextInt(4096);
+            rgb[i] = random.nextInt(0x1000000);
+        }
+        maximum = pixels.clone();
+        sum = new int[pixels.length];
+        indices = new byte[pixels.length];
+        counts = new long[3];
+        corrected = pixels.clone();
+        dark = new float[pixels.length];
+        gain = new float[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            dark[i] = 100 + random.nextFloat();
+            gain[i] = 0.8f + 0.4f * random.nextFloat();
+        }
+
+        ImageStack planes = new ImageStack(width, height);
+        for (int z = 0; z < 8; z++) {
+            planes.addSlice(new ShortProcessor(width, height, z % 2 == 0 ? pixels : nextPixels, null));
+        }
+        stack = new ImagePlus("C1-stack", planes);
+    }
+
+    @Benchmark
+    public long[] countDominantColors() throws Throwable {
+        PluginMethods.COUNT_DOMINANT_COLORS.invokeExact(implementation, rgb, counts);
+        return counts;
+    }
+
+    @Benchmark
+    public short[] maxInto() throws Throwable {
+        PluginMethods.MAX_INTO.invokeExact(implementation, maximum, nextPixels);
+        return maximum;
+    }
+
+    @Benchmark
+    public byte[] toIndices() throws Throwable {
+        PluginMethods.TO_INDICES.invokeExact(implementation, pixels, 100, 3900, indices);
+        return indices;
+    }
+
+    @Benchmark
+    public int[] addSaturated() throws Throwable {
+        PluginMethods.ADD_SATURATED.invokeExact(implementation, sum, rgb);
+        return sum;
+    }
+
+    /**
+     * Corrects the same plane over and over, so its values drift, but the work per pixel is the same.
+     */
+    @Benchmark
+    public short[] correctFlatField() throws Throwable {
+        PluginMethods.CORRECT_FLAT_FIELD.invokeExact(implementation, corrected, dark, gain);
+        return corrected;
+    }
+
+    /**
+     * Max projection of 8 planes with the default kernels, which depend on the JVM and not on the kernels parameter.
+     */
+    @Benchmark
+    public ImagePlus maxProject() throws Throwable {
+        return (ImagePlus) PluginMethods.MAX_PROJECT.invokeExact(stack);
+    }
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import ij.ImagePlus;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+
+/**
+ * Method handles to the plugin classes. They live in the default package, which JMH benchmarks can not import.
+ */
+final class PluginMethods {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    static final MethodHandle WHICH_COLOR = staticMethod("ImageChanger", "whichColor",
+            MethodType.methodType(String.class, ImagePlus.class));
+    static final MethodHandle SEPARATE_RGB = staticMethod("ImageChanger", "separateRGB",
+            MethodType.methodType(ImagePlus[].class, ImagePlus.class));
+    static final MethodHandle MERGE_RGB = staticMethod("ImageChanger", "mergeRGB",
+            MethodType.methodType(ImagePlus.class, ImagePlus[].class, String.class));
+    static final MethodHandle TO_GREY = staticMethod("ImageChanger", "toGrey",
+            MethodType.methodType(ImagePlus.class, ImagePlus.class));
+    static final MethodHandle SAVE_TIF = staticMethod("ImageChanger", "save_tif",
+            MethodType.methodType(void.class, ImagePlus.class, Path.class, String.class));
+    static final MethodHandle SAVE_AVI = staticMethod("ImageChanger", "save_avi",
+            MethodType.methodType(void.class, ImagePlus.class, Path.class, String.class, double.class));
+    static final MethodHandle MAX_PROJECT = staticMethod("ImageChanger", "maxProject",
+            MethodType.methodType(ImagePlus.class, ImagePlus.class));
+
+    // Pixel kernels, with the kernels instance as Object receiver
+    static final MethodHandle SCALAR_KERNELS = staticMethod("PixelKernels", "scalar",
+            MethodType.methodType(Object.class));
+    static final MethodHandle VECTORIZED_KERNELS = staticMethod("PixelKernels", "vectorized",
+            MethodType.methodType(Object.class));
+    static final MethodHandle COUNT_DOMINANT_COLORS = virtualMethod("PixelKernels", "countDominantColors",
+            MethodType.methodType(void.class, int[].class, long[].class));
+    static final MethodHandle MAX_INTO = virtualMethod("PixelKernels", "maxInto",
+            MethodType.methodType(void.class, short[].class, short[].class));
+    static final MethodHandle TO_INDICES = virtualMethod("PixelKernels", "toIndices",
+            MethodType.methodType(void.class, short[].class, int.class, int.class, byte[].class));
+    static final MethodHandle ADD_SATURATED = virtualMethod("PixelKernels", "addSaturated",
+            MethodType.methodType(void.class, int[].class, int[].class));
+    static final MethodHandle CORRECT_FLAT_FIELD = virtualMethod("PixelKernels", "correctFlatField",
+            MethodType.methodType(void.class, short[].class, float[].class, float[].class));
+
+    private PluginMethods() {
+    }
+
+    /**
+     * Silence informational logging of the plugin, so it does not distort measurements.
+     */
+    static void quietLogging() throws Exception {
+        Class<?> logger = Class.forName("Logger");
+        Class<?> level = Class.forName("Logger$Level");
+        Object warn = level.getField("WARN").get(null);
+        logger.getMethod("setLevel", level).invoke(null, warn);
+    }
+
+    /**
+     * @param type Type of the method. A return type of Object stands for a plugin class.
+     */
+    private static MethodHandle staticMethod(String className, String name, MethodType type) {
+        try {
+            Class<?> pluginClass = Class.forName(className);
+            MethodType pluginType = type.returnType() == Object.class ? type.changeReturnType(pluginClass) : type;
+            return LOOKUP.findStatic(pluginClass, name, pluginType).asType(type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtualMethod(String className, String name, MethodType type) {
+        try {
+            MethodHandle method = LOOKUP.findVirtual(Class.forName(className), name, type);
+            return method.asType(method.type().changeParameterType(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
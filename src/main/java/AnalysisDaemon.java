@@ -0,0 +1,662 @@
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A resident analysis process, so that many small jobs do not each pay for starting and warming up a JVM.
+ * Jobs are read from a spool folder and from a socket on the loopback interface,
+ * run on a shared pool of workers with a shared memory budget, and report their state in status files.
+ *
+ * <p>A job has an input file or folder, an output folder, a file suffix and a recipe,
+ * which is an options string of AnalysisSettings. In the spool folder a job is a properties file:</p>
+ * <pre>
+ * in=/data/plate1
+ * out=/results/plate1
+ * suffix=.nd2
+ * options=roi=0,0,500,500 projection=[Z Project]
+ * </pre>
+ * <p>Write it under another name and rename it to incoming/ID.job, so it is never read half written.
+ * The state of the job is written to status/ID.status. An ID is one name of letters, digits, '.', '_' and '-'.
+ * Finished jobs are only kept in their status files. Creating a file named "stop" in the spool folder
+ * shuts the daemon down after the running jobs.</p>
+ *
+ * <p>On the socket, every request is one line and answered with one line starting with "OK" or "ERROR".
+ * Fields are separated by tabs:</p>
+ * <pre>
+ * SUBMIT	in=/data/plate1	out=/results/plate1	suffix=.nd2	options=roi=0,0,500,500
+ * STATUS	ID
+ * CANCEL	ID
+ * LIST	(queued and running jobs)
+ * SHUTDOWN
+ * </pre>
+ * <p>Files of a job that fail or run over "timeout=" in its options are listed in failures.csv in its output folder,
+ * and the job carries on with the next file. The metrics of a job are written into its output folder when it
+ * finishes.</p>
+ */
+public class AnalysisDaemon implements AutoCloseable {
+    public enum State {QUEUED, RUNNING, DONE, FAILED, CANCELLED}
+
+    private static final long POLL_MILLIS = 200;
+    private static final Pattern JOB_ID = Pattern.compile("[A-Za-z0-9._-]+");
+
+    /**
+     * A submitted job and its state.
+     */
+    public static class Job {
+        public final String id;
+        public final Path input;
+        public final Path output;
+        public final String suffix;
+        public final String options;
+        volatile State state = State.QUEUED;
+        volatile String message = "";
+        final Cancellation cancellation = new Cancellation();
+        final long submitted = System.currentTimeMillis();
+        volatile long started;
+        volatile long finished;
+
+        Job(String id, Path input, Path output, String suffix, String options) {
+            this.id = id;
+            this.input = input;
+            this.output = output;
+            this.suffix = suffix;
+            this.options = options;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return State and timing of the job as ordered key value pairs.
+         */
+        public Map<String, String> describe() {
+            Map<String, String> description = new LinkedHashMap<>();
+            description.put("id", id);
+            description.put("state", state.name());
+            description.put("in", input.toString());
+            description.put("out", output.toString());
+            description.put("suffix", suffix);
+            description.put("options", options);
+            description.put("queued_ms", String.valueOf((started > 0 ? started : System.currentTimeMillis()) - submitted));
+            if (started > 0) {
+                description.put("run_ms", String.valueOf((finished > 0 ? finished : System.currentTimeMillis()) - started));
+            }
+            description.put("message", message);
+            return description;
+        }
+    }
+
+    private final Path spoolFolder;
+    private final Path incomingFolder;
+    private final Path acceptedFolder;
+    private final Path statusFolder;
+    private final MemoryScheduler memoryScheduler;
+    private final int prefetchDepth;
+    private final ExecutorService workers;
+    private final ExecutorService connections;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong socketJobs = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running = false;
+    private boolean shutDown = false;
+    private ServerSocket serverSocket;
+    private Thread spoolThread;
+
+    /**
+     * @param spoolFolder Folder with the incoming jobs and their status files.
+     * @param workerCount Number of jobs that run at the same time.
+     * @param heapFraction Fraction of the max heap that the loaded files of all jobs may occupy together.
+     * @param prefetchDepth Number of files that every job loads ahead of the file being processed.
+     * @throws IOException
+     */
+    public AnalysisDaemon(Path spoolFolder, int workerCount, double heapFraction, int prefetchDepth) throws IOException {
+        this.spoolFolder = spoolFolder;
+        this.incomingFolder = Files.createDirectories(spoolFolder.resolve("incoming"));
+        this.acceptedFolder = Files.createDirectories(spoolFolder.resolve("accepted"));
+        this.statusFolder = Files.createDirectories(spoolFolder.resolve("status"));
+        this.memoryScheduler = new MemoryScheduler(heapFraction);
+        this.prefetchDepth = prefetchDepth;
+        this.workers = Executors.newFixedThreadPool(Math.max(workerCount, 1), daemonThreads("AnalysisDaemon-worker"));
+        this.connections = Executors.newCachedThreadPool(daemonThreads("AnalysisDaemon-connection"));
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicLong count = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Warm up, then start to watch the spool folder and, unless port is negative, to listen on the loopback interface.
+     *
+     * @param port Port to listen on. 0 chooses a free port, which is written to the file "port" in the spool folder.
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        warmUp();
+        running = true;
+
+        if (port >= 0) {
+            serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            Files.write(spoolFolder.resolve("port"), String.valueOf(getPort()).getBytes(StandardCharsets.UTF_8));
+            Thread acceptThread = new Thread(this::acceptConnections, "AnalysisDaemon-accept");
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        spoolThread = new Thread(this::watchSpool, "AnalysisDaemon-spool");
+        spoolThread.setDaemon(true);
+        spoolThread.start();
+
+        Logger.log("Analysis daemon started on " + spoolFolder + (serverSocket != null ? ", port " + getPort() : "") + ".");
+    }
+
+    /**
+     * @return Port of the socket, or -1 if the daemon does not listen.
+     */
+    public int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Run a small synthetic image through the analysis once, so the classes of the pipeline are loaded and compiled
+     * before the first job arrives.
+     */
+    void warmUp() {
+        Path warmUpFolder = null;
+        try (Metrics.Stage stage = Metrics.start("warm up")) {
+            warmUpFolder = Files.createTempDirectory("analysis-daemon-warm-up");
+            // Channels with red, green and blue LUTs and some signal, so the colors are detected
+            ImagePlus image = IJ.createHyperStack("warm-up", 64, 64, 3, 1, 1, 16);
+            for (int c = 1; c <= 3; c++) {
+                image.getStack().getProcessor(c).add(1000 * c);
+            }
+            new Stepwise_Analyzer(AnalysisSettings.headless()).processImage(image, warmUpFolder);
+        } catch (Exception e) {
+            Logger.warn("Warm up failed: " + e);
+        } finally {
+            deleteRecursively(warmUpFolder);
+            Metrics.reset();
+        }
+    }
+
+    //
+    // Jobs
+    //
+
+    /**
+     * Queue a job. The recipe is validated before the job is queued.
+     *
+     * @param id Unique name of the job.
+     * @param recipe Properties "in", "out" and optionally "suffix" (default ".nd2") and "options".
+     * @return The queued job.
+     * @throws IllegalArgumentException If the id is taken or the recipe is invalid.
+     */
+    public Job submit(String id, Properties recipe) {
+        if (!running) {
+            throw new IllegalStateException("Daemon is not running");
+        }
+        checkJobId(id);
+        String in = recipe.getProperty("in");
+        String out = recipe.getProperty("out");
+        if (in == null || out == null) {
+            throw new IllegalArgumentException("Job needs in and out");
+        }
+        String options = recipe.getProperty("options", "");
+        AnalysisSettings.fromOptions(options);
+
+        Job job = new Job(id, Paths.get(in).normalize().toAbsolutePath(), Paths.get(out).normalize().toAbsolutePath(),
+                recipe.getProperty("suffix", ".nd2"), options);
+        if (jobs.putIfAbsent(id, job) != null) {
+            throw new IllegalArgumentException("Job " + id + " already exists");
+        }
+        writeStatus(job);
+        workers.execute(() -> run(job));
+        Logger.log("Queued job " + id + ": " + job.input);
+        return job;
+    }
+
+    /**
+     * @param id Name of a job.
+     * @return Whether the id is a single file name, as it names the status file of the job.
+     */
+    static boolean isJobId(String id) {
+        return id != null && JOB_ID.matcher(id).matches() && !id.equals(".") && !id.equals("..");
+    }
+
+    /**
+     * @param id Name of a job.
+     * @return The id.
+     * @throws IllegalArgumentException If the id could name a file outside the status folder.
+     */
+    static String checkJobId(String id) {
+        if (!isJobId(id)) {
+            throw new IllegalArgumentException("Invalid job id: " + id);
+        }
+        return id;
+    }
+
+    /**
+     * @param id Name of the job.
+     * @return The job if it is queued or running, or null once it finished, see getStatus.
+     */
+    public Job getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * State of a job, also after it finished and was only kept in its status file.
+     *
+     * @param id Name of the job.
+     * @return State and timing of the job as ordered key value pairs.
+     * @throws IllegalArgumentException If there is no such job.
+     */
+    public Map<String, String> getStatus(String id) {
+        checkJobId(id);
+        Job job = jobs.get(id);
+        if (job != null) {
+            return job.describe();
+        }
+        Properties status = new Properties();
+        try (Reader reader = Files.newBufferedReader(statusFolder.resolve(id + ".status"), StandardCharsets.UTF_8)) {
+            status.load(reader);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unknown job");
+        }
+        Map<String, String> description = new LinkedHashMap<>();
+        for (String key : new String[]{"id", "state", "in", "out", "suffix", "options", "queued_ms", "run_ms", "message"}) {
+            if (status.getProperty(key) != null) {
+                description.put(key, status.getProperty(key));
+            }
+        }
+        return description;
+    }
+
+    /**
+     * Cancel a job. A queued job does not start, a running job stops after its current file is aborted.
+     *
+     * @param id Name of the job.
+     * @return The job.
+     * @throws IllegalArgumentException If there is no such job.
+     */
+    public Job cancel(String id) {
+        Job job = jobs.get(checkJobId(id));
+        if (job == null) {
+            throw new IllegalArgumentException("Unknown job");
+        }
+        job.cancellation.cancel("Job " + id + " cancelled");
+        return job;
+    }
+
+    public List<Job> getJobs() {
+        return jobs.values().stream().sorted(Comparator.comparing(job -> job.submitted)).collect(Collectors.toList());
+    }
+
+    private void run(Job job) {
+        if (job.cancellation.isCancelled()) {
+            job.state = State.CANCELLED;
+            writeStatus(job);
+            jobs.remove(job.id, job);
+            return;
+        }
+        job.started = System.currentTimeMillis();
+        job.state = State.RUNNING;
+        writeStatus(job);
+
+        AnalysisSettings settings = AnalysisSettings.fromOptions(job.options);
+        State state;
+        Metrics.Recording recording = Metrics.record();
+        try (StagingCache stagingCache = settings.createStagingCache()) {
+            FileNavigator fileNavigator = new FileNavigator(new Stepwise_Analyzer(settings), memoryScheduler, prefetchDepth);
+            fileNavigator.setFaultTolerance(settings.fileTimeout, settings.retries);
+            fileNavigator.setCancellation(job.cancellation);
+            fileNavigator.setStagingCache(stagingCache);
+            fileNavigator.setFlatFieldCorrection(settings.createFlatFieldCorrection());
+            Files.createDirectories(job.output);
+            List<FileNavigator.Failure> failures;
+            if (Files.isDirectory(job.input)) {
+                failures = fileNavigator.processFolder(job.input, job.output, job.suffix);
+            }
+            else if (Files.isRegularFile(job.input)) {
+                failures = fileNavigator.processFiles(
+                        Collections.singletonList(new FileNavigator.FileIO(job.input, job.output)), fileIO -> {});
+                FileNavigator.writeFailureReport(job.output, "failures", failures);
+            }
+            else {
+                throw new IOException("Input does not exist: " + job.input);
+            }
+            if (!failures.isEmpty()) {
+                job.message = failures.size() + " files failed, see failures.csv";
+            }
+            state = job.cancellation.isCancelled() ? State.CANCELLED : State.DONE;
+        } catch (Exception e) {
+            Logger.error("Job " + job.id + " failed: " + e);
+            job.message = String.valueOf(e);
+            state = State.FAILED;
+        } finally {
+            recording.close();
+            writeMetrics(job, recording.getSamples());
+        }
+        // Only the status file of a finished job is kept, so a long running daemon does not accumulate jobs.
+        // The job is finished once its status file says so, after its metrics are written.
+        jobs.remove(job.id, job);
+        job.finished = System.currentTimeMillis();
+        job.state = state;
+        writeStatus(job);
+        Logger.log("Job " + job.id + " " + job.state.name().toLowerCase() + " after " + (job.finished - job.started) + " ms.");
+    }
+
+    /**
+     * Write the metrics of a job into its output folder. The samples are only kept by the recording of the job,
+     * so they do not accumulate in a long running daemon.
+     */
+    private static void writeMetrics(Job job, List<Metrics.Sample> samples) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        try {
+            Metrics.writeReport(job.output, "metrics_", samples);
+        } catch (IOException e) {
+            Logger.warn("Could not write metrics of job " + job.id + ": " + e.getMessage());
+        }
+    }
+
+    private void writeStatus(Job job) {
+        Properties status = new Properties();
+        status.putAll(job.describe());
+        Path statusFile = statusFolder.resolve(job.id + ".status");
+        Path temporaryFile = statusFolder.resolve(job.id + ".status.tmp");
+        try (Writer writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+            status.store(writer, null);
+        } catch (IOException e) {
+            Logger.warn("Could not write status of job " + job.id + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temporaryFile, statusFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logger.warn("Could not write status of job " + job.id + ": " + e.getMessage());
+        }
+    }
+
+    //
+    // Spool folder
+    //
+
+    private void watchSpool() {
+        while (running) {
+            try {
+                if (Files.exists(spoolFolder.resolve("stop"))) {
+                    Files.delete(spoolFolder.resolve("stop"));
+                    shutdown();
+                    return;
+                }
+                pollSpool();
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Logger.warn("Could not read spool folder: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Claim and queue the job files in the incoming folder, oldest name first.
+     * A job file is claimed by moving it to the accepted folder, so several daemons may share one spool folder.
+     * Once the daemon shuts down, job files are left for the next daemon.
+     */
+    void pollSpool() throws IOException {
+        List<Path> jobFiles = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(incomingFolder, "*.job")) {
+            for (Path entry : entries) {
+                jobFiles.add(entry);
+            }
+        }
+        jobFiles.sort(Comparator.naturalOrder());
+
+        for (Path jobFile : jobFiles) {
+            if (!running) {
+                return;
+            }
+            String fileName = jobFile.getFileName().toString();
+            String id = fileName.substring(0, fileName.length() - ".job".length());
+            if (!isJobId(id)) {
+                Logger.error("Ignored job file with invalid id: " + jobFile);
+                continue;
+            }
+            Path accepted = acceptedFolder.resolve(fileName);
+            try {
+                Files.move(jobFile, accepted, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Claimed by another daemon
+                continue;
+            }
+
+            Properties recipe = new Properties();
+            try (Reader reader = Files.newBufferedReader(accepted, StandardCharsets.UTF_8)) {
+                recipe.load(reader);
+                submit(id, recipe);
+            } catch (IOException | RuntimeException e) {
+                // Also if the daemon shut down after the job file was claimed, so no claimed job is left without status
+                Logger.error("Rejected job " + id + ": " + e.getMessage());
+                Job rejected = new Job(id, Paths.get(recipe.getProperty("in", "")), Paths.get(recipe.getProperty("out", "")),
+                        recipe.getProperty("suffix", ""), recipe.getProperty("options", ""));
+                rejected.state = State.FAILED;
+                rejected.message = String.valueOf(e.getMessage());
+                if (!jobs.containsKey(id)) {
+                    writeStatus(rejected);
+                }
+            }
+        }
+    }
+
+    //
+    // Socket
+    //
+
+    private void acceptConnections() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                // Closed by shutdown
+                return;
+            } catch (IOException e) {
+                Logger.warn("Could not accept connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter writer = new PrintWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String response;
+                try {
+                    response = "OK" + handle(line);
+                } catch (RuntimeException e) {
+                    response = "ERROR\t" + e.getMessage();
+                }
+                writer.print(response + "\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            Logger.debug(() -> "Connection closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handle one request of the socket protocol.
+     *
+     * @param request Command and tab separated fields.
+     * @return Response fields, each starting with a tab.
+     */
+    String handle(String request) {
+        String[] fields = request.split("\t");
+        switch (fields[0].trim().toUpperCase()) {
+            case "SUBMIT":
+                Properties recipe = new Properties();
+                for (int i = 1; i < fields.length; i++) {
+                    int separator = fields[i].indexOf('=');
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("Expected key=value, got " + fields[i]);
+                    }
+                    recipe.setProperty(fields[i].substring(0, separator).trim(), fields[i].substring(separator + 1));
+                }
+                String id = checkJobId(recipe.getProperty("id", "socket-" + socketJobs.incrementAndGet()));
+                return "\t" + submit(id, recipe).id;
+
+            case "STATUS":
+                if (fields.length < 2) {
+                    throw new IllegalArgumentException("Unknown job");
+                }
+                StringBuilder status = new StringBuilder();
+                for (Map.Entry<String, String> entry : getStatus(fields[1].trim()).entrySet()) {
+                    status.append('\t').append(entry.getKey()).append('=').append(entry.getValue().replace('\t', ' '));
+                }
+                return status.toString();
+
+            case "CANCEL":
+                if (fields.length < 2) {
+                    throw new IllegalArgumentException("Unknown job");
+                }
+                return "\t" + cancel(fields[1].trim()).id;
+
+            case "LIST":
+                StringBuilder list = new StringBuilder();
+                for (Job job : getJobs()) {
+                    list.append('\t').append(job.id).append('=').append(job.state);
+                }
+                return list.toString();
+
+            case "SHUTDOWN":
+                new Thread(this::shutdown, "AnalysisDaemon-shutdown").start();
+                return "";
+
+            default:
+                throw new IllegalArgumentException("Unknown command " + fields[0]);
+        }
+    }
+
+    /**
+     * Send one request to a daemon on this machine.
+     *
+     * @param port Port of the daemon.
+     * @param request Request line.
+     * @return Response line.
+     * @throws IOException
+     */
+    public static String request(int port, String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            writer.print(request + "\n");
+            writer.flush();
+            return reader.readLine();
+        }
+    }
+
+    //
+    // Shutdown
+    //
+
+    /**
+     * Stop accepting jobs, finish the queued and running jobs and release the socket.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (shutDown) {
+                return;
+            }
+            shutDown = true;
+            running = false;
+        }
+        Logger.log("Shutting down analysis daemon...");
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not close socket: " + e.getMessage());
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connections.shutdownNow();
+        Logger.log("Analysis daemon stopped.");
+        stopped.countDown();
+    }
+
+    /**
+     * Block until the daemon was shut down by a request, a stop file or shutdown().
+     */
+    public void awaitShutdown() throws InterruptedException {
+        stopped.await();
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private static void deleteRecursively(Path folder) {
+        if (folder == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            Logger.debug(() -> "Could not delete " + folder + ": " + e.getMessage());
+        }
+    }
+}
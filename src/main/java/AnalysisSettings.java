@@ -0,0 +1,441 @@
+import ij.Macro;
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A container class for the parameters of an analysis run.
+ * Interactive runs ask for most of them in dialogs. Non-interactive runs take all of them from here,
+ * so the analysis can run without windows, e.g. in tests or from the command line.
+ */
+public class AnalysisSettings {
+    public static final String[] PROJECTION_TYPES = {"Z Project", "3D Project", "Select Z-level"};
+    /**
+     * Separates the projection types of z-stacks that get several projections, e.g. "Z Project+3D Project".
+     */
+    public static final String PROJECTION_SEPARATOR = "+";
+    public static final String[] OUTPUT_MODES = {"flattened", "native"};
+
+    /**
+     * Whether dialogs and windows are shown to the user.
+     */
+    public boolean interactive = true;
+
+    /**
+     * Region to crop to, or null to keep the whole image.
+     */
+    public Roi roi = null;
+
+    /**
+     * Projection type for z-stacks. One or several of PROJECTION_TYPES joined by PROJECTION_SEPARATOR,
+     * or null to ask the user.
+     */
+    public String projectionType = null;
+
+    /**
+     * Frames per second of saved videos. Non-positive values use the frame rate of the input.
+     */
+    public double fps = 0;
+
+    /**
+     * Percentage of saturated pixels for automatic contrast.
+     */
+    public double saturated = 0.35;
+
+    /**
+     * Width of the scale bar in calibrated units. Non-positive values choose a width automatically.
+     */
+    public double scaleBarWidth = 0;
+
+    /**
+     * Range of z-levels for "Select Z-level", e.g. "3-7".
+     */
+    public String zRange = null;
+
+    /**
+     * Number of z-levels around the sharpest one that "Select Z-level" keeps, instead of zRange. Non-interactive
+     * runs then only read these z-levels of files that are only projected by "Select Z-level". 0 disables it.
+     */
+    public int focusSlices = 0;
+
+    /**
+     * Folder of the checkpoint cache, or null to disable it. Only used by non-interactive runs.
+     */
+    public String checkpointFolder = null;
+
+    /**
+     * Size limit of the checkpoint cache in megabytes.
+     */
+    public double checkpointMegabytes = 10240;
+
+    /**
+     * Single images with more megapixels per plane are processed tile by tile. Only used by non-interactive runs.
+     */
+    public double tiledMegapixels = 256;
+
+    /**
+     * Width and height of the tiles of tiled processing, a multiple of 16.
+     */
+    public int tileSize = 512;
+
+    /**
+     * Frames per chunk of videos, whose chunks are cropped, colored and encoded in parallel, or 0 to process videos
+     * as a whole. Only used by non-interactive runs without checkpoint cache, since checkpoints need whole channels.
+     */
+    public int chunkFrames = 16;
+
+    /**
+     * Seconds to load and process one file of a folder, after which it is aborted and reported as failed.
+     * Non-positive values wait indefinitely.
+     */
+    public double fileTimeout = 0;
+
+    /**
+     * How often files that failed are tried again at the end of a run.
+     */
+    public int retries = 0;
+
+    /**
+     * Folder on a local disk to copy input files to ahead of their analysis, e.g. when they are on network storage,
+     * or null to read them where they are.
+     */
+    public String stagingFolder = null;
+
+    /**
+     * Size limit of the staged copies in megabytes.
+     */
+    public double stagingMegabytes = 20480;
+
+    /**
+     * Flat-field reference for the correction of uneven illumination, or null for no correction.
+     * A path to an image with the channels of the inputs, relative paths resolved against the folder of each input
+     * file, or "estimate" to estimate it from the input files of each folder.
+     */
+    public String flatField = null;
+
+    /**
+     * Dark-frame reference for the flat-field correction, resolved like flatField, or null for none.
+     */
+    public String darkFrame = null;
+
+    /**
+     * How the TIFFs of single channels are saved. One of OUTPUT_MODES: "flattened" saves them as RGB with the
+     * scale bar burnt in, "native" in the bit depth of the input, with display range, LUT and scale bar overlay
+     * in the metadata. The merge is flattened in both modes.
+     */
+    public String outputMode = "flattened";
+
+    /**
+     * Whether the products of each input are written into one uncompressed ZIP named after the input file,
+     * instead of separate files, e.g. to save the metadata round-trips of many small files on network shares.
+     */
+    public boolean outputContainer = false;
+
+    /**
+     * Whether videos are also saved as the temporal maximum, mean and standard deviation of every channel, and a CSV
+     * with the mean intensity of every channel in every frame. They are accumulated while the frames are encoded.
+     */
+    public boolean temporalStatistics = false;
+
+    /**
+     * Width and height of the blocks of pixels that are averaged in the videos, 1 for full resolution.
+     */
+    public int videoBinning = 1;
+
+    /**
+     * Only every videoFrameStep-th frame is saved in the videos, starting with the first, 1 for all frames.
+     */
+    public int videoFrameStep = 1;
+
+    /**
+     * Whether videos are also saved at full resolution with all frames, when they are binned or decimated.
+     * Reduced videos are told apart by their suffix, see videoSuffix.
+     */
+    public boolean videoFullResolution = false;
+
+    /**
+     * CSV with the region and projection of each file, chosen on a pre-flight contact sheet, see Preflight.
+     * Files that are not listed use roi and projectionType.
+     */
+    public String preflightFile = null;
+
+    /**
+     * Settings for a run without dialogs.
+     *
+     * @return Non-interactive default settings.
+     */
+    public static AnalysisSettings headless() {
+        AnalysisSettings settings = new AnalysisSettings();
+        settings.interactive = false;
+        settings.projectionType = "Z Project";
+        return settings;
+    }
+
+    /**
+     * Parse non-interactive settings from an ImageJ options string,
+     * e.g. "roi=0,0,500,500 projection=[Z Project+3D Project] fps=5 saturated=0.35 scalebar=50 zrange=1-3 checkpoints=[/tmp/cache]
+     * tiled=256 tilesize=512 chunkframes=16 timeout=600 retries=1 staging=[/ssd/staging] stagingsize=20480 output=native container=true
+     * statistics=true videobin=2 videostep=5 videofull=true
+     * preflight=[preflight.csv] flatfield=[flat.tif] darkframe=[dark.tif]".
+     * Instead of zrange, e.g. "focus=5" selects the 5 z-levels around the sharpest one.
+     *
+     * @param options Options in the format of ImageJ macro options.
+     * @return Parsed settings.
+     */
+    public static AnalysisSettings fromOptions(String options) {
+        AnalysisSettings settings = headless();
+        options = options == null ? "" : options + " ";
+
+        String roi = Macro.getValue(options, "roi", null);
+        if (roi != null) {
+            String[] bounds = roi.split(",");
+            if (bounds.length != 4) {
+                throw new IllegalArgumentException("roi needs x,y,width,height, got " + roi);
+            }
+            settings.roi = new Roi(Integer.parseInt(bounds[0].trim()), Integer.parseInt(bounds[1].trim()),
+                    Integer.parseInt(bounds[2].trim()), Integer.parseInt(bounds[3].trim()));
+        }
+
+        settings.projectionType = Macro.getValue(options, "projection", settings.projectionType);
+        if (!isProjectionType(settings.projectionType)) {
+            throw new IllegalArgumentException("Unknown projection type: " + settings.projectionType);
+        }
+        settings.fps = Double.parseDouble(Macro.getValue(options, "fps", String.valueOf(settings.fps)));
+        settings.saturated = Double.parseDouble(Macro.getValue(options, "saturated", String.valueOf(settings.saturated)));
+        settings.scaleBarWidth = Double.parseDouble(Macro.getValue(options, "scalebar", String.valueOf(settings.scaleBarWidth)));
+        settings.zRange = Macro.getValue(options, "zrange", settings.zRange);
+        settings.focusSlices = Integer.parseInt(Macro.getValue(options, "focus", String.valueOf(settings.focusSlices)));
+        if (settings.focusSlices < 0) {
+            throw new IllegalArgumentException("focus must not be negative, got " + settings.focusSlices);
+        }
+        if (settings.focusSlices > 0 && settings.zRange != null) {
+            throw new IllegalArgumentException("focus and zrange can not be combined");
+        }
+        settings.checkpointFolder = Macro.getValue(options, "checkpoints", settings.checkpointFolder);
+        settings.checkpointMegabytes = Double.parseDouble(
+                Macro.getValue(options, "checkpointsize", String.valueOf(settings.checkpointMegabytes)));
+        settings.tiledMegapixels = Double.parseDouble(
+                Macro.getValue(options, "tiled", String.valueOf(settings.tiledMegapixels)));
+        settings.tileSize = Integer.parseInt(Macro.getValue(options, "tilesize", String.valueOf(settings.tileSize)));
+        settings.chunkFrames = Integer.parseInt(Macro.getValue(options, "chunkframes", String.valueOf(settings.chunkFrames)));
+        if (settings.chunkFrames < 0) {
+            throw new IllegalArgumentException("chunkframes must not be negative: " + settings.chunkFrames);
+        }
+        if (settings.tileSize <= 0 || settings.tileSize % 16 != 0) {
+            throw new IllegalArgumentException("tilesize must be a positive multiple of 16, got " + settings.tileSize);
+        }
+        settings.fileTimeout = Double.parseDouble(Macro.getValue(options, "timeout", String.valueOf(settings.fileTimeout)));
+        settings.retries = Integer.parseInt(Macro.getValue(options, "retries", String.valueOf(settings.retries)));
+        if (settings.retries < 0) {
+            throw new IllegalArgumentException("retries must not be negative, got " + settings.retries);
+        }
+        settings.stagingFolder = Macro.getValue(options, "staging", settings.stagingFolder);
+        settings.stagingMegabytes = Double.parseDouble(
+                Macro.getValue(options, "stagingsize", String.valueOf(settings.stagingMegabytes)));
+        settings.flatField = Macro.getValue(options, "flatfield", settings.flatField);
+        settings.darkFrame = Macro.getValue(options, "darkframe", settings.darkFrame);
+        if (settings.darkFrame != null && settings.flatField == null) {
+            throw new IllegalArgumentException("darkframe needs a flatfield");
+        }
+        settings.outputMode = Macro.getValue(options, "output", settings.outputMode);
+        if (!isOneOf(settings.outputMode, OUTPUT_MODES)) {
+            throw new IllegalArgumentException("Unknown output mode: " + settings.outputMode);
+        }
+        settings.outputContainer = Boolean.parseBoolean(
+                Macro.getValue(options, "container", String.valueOf(settings.outputContainer)));
+        settings.temporalStatistics = Boolean.parseBoolean(
+                Macro.getValue(options, "statistics", String.valueOf(settings.temporalStatistics)));
+        settings.videoBinning = Integer.parseInt(Macro.getValue(options, "videobin", String.valueOf(settings.videoBinning)));
+        settings.videoFrameStep = Integer.parseInt(Macro.getValue(options, "videostep", String.valueOf(settings.videoFrameStep)));
+        if (settings.videoBinning < 1 || settings.videoFrameStep < 1) {
+            throw new IllegalArgumentException("videobin and videostep must be positive, got "
+                    + settings.videoBinning + " and " + settings.videoFrameStep);
+        }
+        settings.videoFullResolution = Boolean.parseBoolean(
+                Macro.getValue(options, "videofull", String.valueOf(settings.videoFullResolution)));
+        settings.preflightFile = Macro.getValue(options, "preflight", settings.preflightFile);
+
+        return settings;
+    }
+
+    /**
+     * Format the settings as options string, which fromOptions parses back.
+     *
+     * @return Options in the format of ImageJ macro options.
+     */
+    public String toOptions() {
+        StringBuilder options = new StringBuilder();
+        if (roi != null) {
+            Rectangle bounds = roi.getBounds();
+            options.append("roi=").append(bounds.x).append(',').append(bounds.y).append(',')
+                   .append(bounds.width).append(',').append(bounds.height).append(' ');
+        }
+        if (projectionType != null) {
+            options.append("projection=[").append(projectionType).append("] ");
+        }
+        options.append(String.format(Locale.ROOT, "fps=%s saturated=%s scalebar=%s", fps, saturated, scaleBarWidth));
+        if (zRange != null) {
+            options.append(" zrange=").append(zRange);
+        }
+        if (focusSlices > 0) {
+            options.append(" focus=").append(focusSlices);
+        }
+        if (checkpointFolder != null) {
+            options.append(" checkpoints=[").append(checkpointFolder).append(']');
+            options.append(String.format(Locale.ROOT, " checkpointsize=%s", checkpointMegabytes));
+        }
+        options.append(String.format(Locale.ROOT, " tiled=%s tilesize=%d chunkframes=%d", tiledMegapixels, tileSize, chunkFrames));
+        if (fileTimeout > 0 || retries > 0) {
+            options.append(String.format(Locale.ROOT, " timeout=%s retries=%d", fileTimeout, retries));
+        }
+        if (stagingFolder != null) {
+            options.append(" staging=[").append(stagingFolder).append(']');
+            options.append(String.format(Locale.ROOT, " stagingsize=%s", stagingMegabytes));
+        }
+        appendFlatField(options);
+        if (isNativeOutput()) {
+            options.append(" output=").append(outputMode);
+        }
+        if (outputContainer) {
+            options.append(" container=true");
+        }
+        if (temporalStatistics) {
+            options.append(" statistics=true");
+        }
+        if (isVideoReduced()) {
+            options.append(String.format(Locale.ROOT, " videobin=%d videostep=%d", videoBinning, videoFrameStep));
+        }
+        if (videoFullResolution) {
+            options.append(" videofull=true");
+        }
+        if (preflightFile != null) {
+            options.append(" preflight=[").append(preflightFile).append(']');
+        }
+        return options.toString();
+    }
+
+    /**
+     * @return Whether videos are binned or decimated.
+     */
+    public boolean isVideoReduced() {
+        return videoBinning > 1 || videoFrameStep > 1;
+    }
+
+    /**
+     * @return Suffix of the file names of reduced videos, e.g. "_bin2_step5".
+     */
+    public String videoSuffix() {
+        return (videoBinning > 1 ? "_bin" + videoBinning : "") + (videoFrameStep > 1 ? "_step" + videoFrameStep : "");
+    }
+
+    /**
+     * @return Whether single channels are saved in their own bit depth instead of flattened.
+     */
+    public boolean isNativeOutput() {
+        return "native".equals(outputMode);
+    }
+
+    /**
+     * Create the staging cache of these settings.
+     *
+     * @return The staging cache, or null if no staging folder is set.
+     * @throws IOException
+     */
+    public StagingCache createStagingCache() throws IOException {
+        if (stagingFolder == null || stagingFolder.isEmpty()) {
+            return null;
+        }
+        return new StagingCache(Paths.get(stagingFolder), (long) (stagingMegabytes * (1 << 20)));
+    }
+
+    /**
+     * Create the flat-field correction of these settings.
+     *
+     * @return The correction, or null if no flat field is set.
+     */
+    public FlatFieldCorrection createFlatFieldCorrection() {
+        if (flatField == null || flatField.isEmpty()) {
+            return null;
+        }
+        return new FlatFieldCorrection(flatField, darkFrame == null || darkFrame.isEmpty() ? null : darkFrame);
+    }
+
+    private void appendFlatField(StringBuilder options) {
+        if (flatField != null) {
+            options.append(" flatfield=[").append(flatField).append(']');
+            if (darkFrame != null) {
+                options.append(" darkframe=[").append(darkFrame).append(']');
+            }
+        }
+    }
+
+    /**
+     * Format the settings of the steps before the checkpoint, i.e. flat field, contrast, crop and scale bar.
+     * Runs with equal upstream options share their checkpoints.
+     *
+     * @return Options in the format of ImageJ macro options.
+     */
+    public String toUpstreamOptions() {
+        return toUpstreamOptions(roi);
+    }
+
+    /**
+     * Format the settings that change the cached channels, with the region of one file, see Preflight.
+     *
+     * @param roi Region of the file, or null.
+     * @return Options in the format of ImageJ macro options.
+     */
+    public String toUpstreamOptions(Roi roi) {
+        StringBuilder options = new StringBuilder();
+        if (roi != null) {
+            Rectangle bounds = roi.getBounds();
+            options.append("roi=").append(bounds.x).append(',').append(bounds.y).append(',')
+                   .append(bounds.width).append(',').append(bounds.height).append(' ');
+        }
+        options.append(String.format(Locale.ROOT, "saturated=%s scalebar=%s", saturated, scaleBarWidth));
+        appendFlatField(options);
+        return options.toString();
+    }
+
+    /**
+     * @param projectionType One or several of PROJECTION_TYPES joined by PROJECTION_SEPARATOR.
+     * @return The projection types, in the given order.
+     */
+    public static String[] projections(String projectionType) {
+        String[] projections = projectionType.split(Pattern.quote(PROJECTION_SEPARATOR));
+        for (int i = 0; i < projections.length; i++) {
+            projections[i] = projections[i].trim();
+        }
+        return projections;
+    }
+
+    /**
+     * @return Whether the value is one or several different PROJECTION_TYPES joined by PROJECTION_SEPARATOR.
+     */
+    public static boolean isProjectionType(String value) {
+        if (value == null) {
+            return false;
+        }
+        String[] projections = projections(value);
+        for (int i = 0; i < projections.length; i++) {
+            if (!isOneOf(projections[i], PROJECTION_TYPES) || Arrays.asList(projections).indexOf(projections[i]) != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOneOf(String value, String[] values) {
+        for (String allowed : values) {
+            if (allowed.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,289 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A writer of motion JPEG AVIs, which takes frames that were already JPEG encoded, e.g. by parallel workers, and
+ * appends them in order. Unlike AVI_Writer, it does not need the whole stack, so a video is written as its frames
+ * are produced. Like AVI_Writer, files are split into RIFF segments of about 1 GB with OpenDML indices, so they may
+ * exceed the size limit of AVI 1.0. Readers that only know AVI 1.0 see the frames of the first segment.
+ */
+public class AviStreamWriter implements Closeable {
+    private static final long SEGMENT_BYTES = 1L << 30;
+    private static final int MAX_SEGMENTS = 256;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int SUPER_INDEX_BYTES = 24 + 16 * MAX_SEGMENTS;
+    private static final int DMLH_BYTES = 248;
+
+    /**
+     * Bytes from the start of the file to the first frame: RIFF and hdrl with avih, strl with strh, strf and indx,
+     * odml with dmlh, and the header of the movi list.
+     */
+    private static final int HEADER_BYTES = 12 + 12 + 8 + 56 + 12 + 8 + 56 + 8 + 40 + 8 + SUPER_INDEX_BYTES
+            + 12 + 8 + DMLH_BYTES + 12;
+
+    /**
+     * A RIFF of the file with its frames, the first is "AVI " and the following are "AVIX".
+     */
+    private static class Segment {
+        final long start;
+        long[] offsets = new long[64];
+        int[] sizes = new int[64];
+        int frames = 0;
+        long indexOffset;
+        int indexBytes;
+        long moviBytes;
+        long riffBytes;
+
+        Segment(long start) {
+            this.start = start;
+        }
+
+        void add(long offset, int size) {
+            if (frames == offsets.length) {
+                offsets = Arrays.copyOf(offsets, frames * 2);
+                sizes = Arrays.copyOf(sizes, frames * 2);
+            }
+            offsets[frames] = offset;
+            sizes[frames] = size;
+            frames++;
+        }
+    }
+
+    private final Path file;
+    private final Path partFile;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final double fps;
+    private final long segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment segment;
+    private long end;
+    private int frames = 0;
+    private int maxFrameBytes = 0;
+    private boolean finished = false;
+
+    /**
+     * @param file Path of the AVI. The file is written under a temporary name until finish() is called.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @param fps Frame rate.
+     * @throws IOException
+     */
+    public AviStreamWriter(Path file, int width, int height, double fps) throws IOException {
+        this(file, width, height, fps, SEGMENT_BYTES);
+    }
+
+    AviStreamWriter(Path file, int width, int height, double fps, long segmentBytes) throws IOException {
+        this.file = file;
+        this.partFile = file.resolveSibling(file.getFileName() + ".part");
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.segmentBytes = segmentBytes;
+
+        channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        // The header is written by finish(), when the frame counts are known
+        end = HEADER_BYTES;
+        segment = new Segment(0);
+        segments.add(segment);
+    }
+
+    /**
+     * Append a frame.
+     *
+     * @param jpeg JPEG encoded frame with the width and height of the video.
+     * @throws IOException
+     */
+    public synchronized void writeFrame(byte[] jpeg) throws IOException {
+        long frameBytes = 8 + jpeg.length + (jpeg.length & 1);
+        if (segment.frames > 0 && end + frameBytes - segment.start > segmentBytes) {
+            endSegment();
+            if (segments.size() == MAX_SEGMENTS) {
+                throw new IOException(file + " would exceed " + MAX_SEGMENTS + " segments");
+            }
+            segment = new Segment(end);
+            segments.add(segment);
+            ByteBuffer riff = buffer(24);
+            riff.put(fourCC("RIFF")).putInt(0).put(fourCC("AVIX")).put(fourCC("LIST")).putInt(0).put(fourCC("movi"));
+            write(riff);
+        }
+
+        // Chunks are padded to an even size
+        ByteBuffer chunk = buffer((int) frameBytes);
+        chunk.put(fourCC("00dc")).putInt(jpeg.length).put(jpeg);
+        chunk.position((int) frameBytes);
+        segment.add(end + 8, jpeg.length);
+        write(chunk);
+        frames++;
+        maxFrameBytes = Math.max(maxFrameBytes, jpeg.length);
+    }
+
+    /**
+     * @return Number of frames written so far.
+     */
+    public synchronized int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Write the indices and the header, and move the file to its final name.
+     *
+     * @return Size of the written file in bytes.
+     * @throws IOException
+     */
+    public synchronized long finish() throws IOException {
+        if (frames == 0) {
+            throw new IOException("No frames were written to " + file);
+        }
+        endSegment();
+        ByteBuffer header = header();
+        header.flip();
+        writeFully(header, 0);
+        long size = end;
+        channel.close();
+
+        Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+        return size;
+    }
+
+    /**
+     * Close the file. Unless finish() was called, the partial file is deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (!finished) {
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    //
+    // Chunks
+    //
+
+    /**
+     * Write the standard index of the current segment, and for the first segment the AVI 1.0 index,
+     * then fill in the sizes of its movi list and RIFF. The sizes of the first segment are part of the header.
+     */
+    private void endSegment() throws IOException {
+        boolean first = segment.start == 0;
+        long moviStart = first ? HEADER_BYTES - 12 : segment.start + 12;
+
+        // Offsets of the standard index are relative to the start of the segment
+        segment.indexOffset = end;
+        segment.indexBytes = 32 + 8 * segment.frames;
+        ByteBuffer index = buffer(segment.indexBytes);
+        index.put(fourCC("ix00")).putInt(segment.indexBytes - 8)
+             .putShort((short) 2).put((byte) 0).put((byte) 1).putInt(segment.frames)
+             .put(fourCC("00dc")).putLong(segment.start).putInt(0);
+        for (int i = 0; i < segment.frames; i++) {
+            index.putInt((int) (segment.offsets[i] - segment.start)).putInt(segment.sizes[i]);
+        }
+        write(index);
+        long moviEnd = end;
+
+        if (first) {
+            // Offsets of the AVI 1.0 index are relative to the "movi" identifier, and point to the chunk headers
+            ByteBuffer idx1 = buffer(8 + 16 * segment.frames);
+            idx1.put(fourCC("idx1")).putInt(16 * segment.frames);
+            for (int i = 0; i < segment.frames; i++) {
+                idx1.put(fourCC("00dc")).putInt(AVIIF_KEYFRAME)
+                    .putInt((int) (segment.offsets[i] - 8 - (moviStart + 8))).putInt(segment.sizes[i]);
+            }
+            write(idx1);
+        }
+
+        segment.moviBytes = moviEnd - moviStart - 8;
+        segment.riffBytes = end - segment.start - 8;
+        if (!first) {
+            ByteBuffer size = buffer(4);
+            size.putInt((int) segment.moviBytes).flip();
+            writeFully(size, moviStart + 4);
+            size.clear();
+            size.putInt((int) segment.riffBytes).flip();
+            writeFully(size, segment.start + 4);
+        }
+    }
+
+    private ByteBuffer header() {
+        Segment firstSegment = segments.get(0);
+        int microSecondsPerFrame = (int) Math.round(1e6 / fps);
+        int scale = 1000;
+        int rate = (int) Math.round(fps * scale);
+
+        ByteBuffer header = buffer(HEADER_BYTES);
+        header.put(fourCC("RIFF")).putInt((int) firstSegment.riffBytes).put(fourCC("AVI "));
+        header.put(fourCC("LIST")).putInt(HEADER_BYTES - 12 - 20).put(fourCC("hdrl"));
+
+        header.put(fourCC("avih")).putInt(56)
+              .putInt(microSecondsPerFrame).putInt((int) Math.min((long) maxFrameBytes * rate / scale, Integer.MAX_VALUE))
+              .putInt(0).putInt(AVIF_HASINDEX).putInt(firstSegment.frames).putInt(0).putInt(1)
+              .putInt(maxFrameBytes + 8).putInt(width).putInt(height)
+              .putInt(0).putInt(0).putInt(0).putInt(0);
+
+        header.put(fourCC("LIST")).putInt(4 + 8 + 56 + 8 + 40 + 8 + SUPER_INDEX_BYTES).put(fourCC("strl"));
+        header.put(fourCC("strh")).putInt(56)
+              .put(fourCC("vids")).put(fourCC("MJPG")).putInt(0).putShort((short) 0).putShort((short) 0)
+              .putInt(0).putInt(scale).putInt(rate).putInt(0).putInt(frames).putInt(maxFrameBytes + 8)
+              .putInt(-1).putInt(0)
+              .putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+        header.put(fourCC("strf")).putInt(40)
+              .putInt(40).putInt(width).putInt(height).putShort((short) 1).putShort((short) 24)
+              .put(fourCC("MJPG")).putInt(width * height * 3).putInt(0).putInt(0).putInt(0).putInt(0);
+
+        // The super index points to the standard index of every segment
+        header.put(fourCC("indx")).putInt(SUPER_INDEX_BYTES)
+              .putShort((short) 4).put((byte) 0).put((byte) 0).putInt(segments.size())
+              .put(fourCC("00dc")).putInt(0).putInt(0).putInt(0);
+        for (int i = 0; i < MAX_SEGMENTS; i++) {
+            if (i < segments.size()) {
+                Segment s = segments.get(i);
+                header.putLong(s.indexOffset).putInt(s.indexBytes).putInt(s.frames);
+            } else {
+                header.putLong(0).putInt(0).putInt(0);
+            }
+        }
+
+        header.put(fourCC("LIST")).putInt(4 + 8 + DMLH_BYTES).put(fourCC("odml"));
+        header.put(fourCC("dmlh")).putInt(DMLH_BYTES).putInt(frames);
+        header.position(header.position() + DMLH_BYTES - 4);
+
+        header.put(fourCC("LIST")).putInt((int) firstSegment.moviBytes).put(fourCC("movi"));
+        return header;
+    }
+
+    private static ByteBuffer buffer(int bytes) {
+        return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static byte[] fourCC(String code) {
+        return code.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(buffer, end);
+        end += buffer.limit();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
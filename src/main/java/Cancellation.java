@@ -0,0 +1,57 @@
+import ij.IJ;
+
+/**
+ * A token for cancelling a whole run cooperatively. The file navigator checks it between files and while it waits
+ * for a file, and aborts the reads and the processing of the current file when it is cancelled.
+ */
+public class Cancellation {
+    private final boolean escapeKey;
+    private volatile String reason = null;
+
+    public Cancellation() {
+        this(false);
+    }
+
+    /**
+     * @param escapeKey Whether pressing Escape in ImageJ cancels, for interactive runs.
+     */
+    private Cancellation(boolean escapeKey) {
+        this.escapeKey = escapeKey;
+    }
+
+    /**
+     * A token that is cancelled when the user presses Escape in ImageJ.
+     *
+     * @return A token that is not cancelled yet.
+     */
+    public static Cancellation escapeKey() {
+        IJ.resetEscape();
+        return new Cancellation(true);
+    }
+
+    /**
+     * Cancel the run. Only the first reason is kept.
+     *
+     * @param reason Reason for the log and the failure report.
+     */
+    public synchronized void cancel(String reason) {
+        if (this.reason == null) {
+            this.reason = reason;
+            Logger.warn("Cancelling run: " + reason);
+        }
+    }
+
+    public boolean isCancelled() {
+        if (reason == null && escapeKey && IJ.escapePressed()) {
+            cancel("Escape pressed");
+        }
+        return reason != null;
+    }
+
+    /**
+     * @return Reason of the cancellation, or null if the run was not cancelled.
+     */
+    public String getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,388 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An on-disk cache of the channels after the common analysis steps, i.e. after contrast, crop, scale bar and split.
+ * Entries are keyed by the identity of the input file and the settings of these steps,
+ * so a file can be exported again with another projection type or frame rate without decoding it.
+ *
+ * <p>Every entry is one file: a little endian header with dimensions, calibration, LUTs and overlay,
+ * followed by the raw planes of all channels, aligned to 8 bytes, so the planes can be memory-mapped.
+ * The cache is limited in size and evicts the least recently used entries.</p>
+ */
+public class CheckpointCache {
+    private static final int MAGIC = 0x504b4357; // "WCKP"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".ckpt";
+
+    private final Path folder;
+    private final long maxBytes;
+
+    /**
+     * Channels and title of a cached input.
+     */
+    public static class Entry {
+        public final String title;
+        public final ImagePlus[] channels;
+
+        Entry(String title, ImagePlus[] channels) {
+            this.title = title;
+            this.channels = channels;
+        }
+    }
+
+    /**
+     * @param folder Folder of the cache entries. May be shared by several processes.
+     * @param maxBytes Size limit of all entries together.
+     * @throws IOException
+     */
+    public CheckpointCache(Path folder, long maxBytes) throws IOException {
+        this.folder = Files.createDirectories(folder);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Key of an input file and the settings of the steps before the checkpoint.
+     * Changes of the file, e.g. a new modification time, lead to a new key.
+     *
+     * @param inFile Input file.
+     * @param upstreamOptions Settings of the steps before the checkpoint.
+     * @return Hex encoded SHA-256 hash.
+     * @throws IOException
+     */
+    public static String key(Path inFile, String upstreamOptions) throws IOException {
+        String identity = inFile.toAbsolutePath().normalize() + "\n" + Files.getLastModifiedTime(inFile).toMillis()
+                + "\n" + Files.size(inFile) + "\n" + upstreamOptions + "\n" + VERSION;
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path entryPath(Path inFile, String upstreamOptions) throws IOException {
+        return folder.resolve(key(inFile, upstreamOptions) + SUFFIX);
+    }
+
+    public boolean contains(Path inFile, String upstreamOptions) throws IOException {
+        return Files.exists(entryPath(inFile, upstreamOptions));
+    }
+
+    //
+    // Reading
+    //
+
+    /**
+     * Read the cached channels of an input file.
+     *
+     * @param inFile Input file.
+     * @param upstreamOptions Settings of the steps before the checkpoint.
+     * @return The cached entry, or null if there is none.
+     * @throws IOException
+     */
+    public Entry get(Path inFile, String upstreamOptions) throws IOException {
+        Path path = entryPath(inFile, upstreamOptions);
+        try (Metrics.Stage stage = Metrics.start("checkpoint read");
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Entry entry = read(channel);
+            stage.addBytesRead(channel.size());
+
+            // The modification time of an entry is its last use
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            Logger.log("Read checkpoint of " + inFile);
+            return entry;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static Entry read(FileChannel channel) throws IOException {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, 12).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a checkpoint of this version");
+        }
+        int headerBytes = buffer.getInt();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(12);
+
+        String title = readString(buffer);
+        int channelCount = buffer.getInt();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int slices = buffer.getInt();
+        int frames = buffer.getInt();
+        int bitDepth = buffer.getInt();
+
+        Calibration calibration = new Calibration();
+        calibration.pixelWidth = buffer.getDouble();
+        calibration.pixelHeight = buffer.getDouble();
+        calibration.pixelDepth = buffer.getDouble();
+        calibration.frameInterval = buffer.getDouble();
+        calibration.fps = buffer.getDouble();
+        calibration.setUnit(readString(buffer));
+
+        String[] titles = new String[channelCount];
+        LUT[] luts = new LUT[channelCount];
+        for (int c = 0; c < channelCount; c++) {
+            titles[c] = readString(buffer);
+            luts[c] = LUT.createLutFromColor(new Color(buffer.getInt()));
+            luts[c].min = buffer.getDouble();
+            luts[c].max = buffer.getDouble();
+        }
+
+        Overlay overlay = null;
+        int roiCount = buffer.getInt();
+        if (roiCount > 0) {
+            overlay = new Overlay();
+            for (int i = 0; i < roiCount; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                overlay.add(RoiDecoder.openFromByteArray(bytes));
+            }
+        }
+
+        // Planes are mapped one by one, so entries may be larger than 2 GB
+        ImagePlus[] channels = new ImagePlus[channelCount];
+        long planeBytes = align((long) width * height * bitDepth / 8);
+        long offset = headerBytes;
+        for (int c = 0; c < channelCount; c++) {
+            ImageStack stack = new ImageStack(width, height);
+            for (int plane = 0; plane < slices * frames; plane++) {
+                ByteBuffer planeBuffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, planeBytes);
+                stack.addSlice(null, readPlane(planeBuffer.order(ByteOrder.LITTLE_ENDIAN), width, height, bitDepth));
+                offset += planeBytes;
+            }
+            ImagePlus image = new ImagePlus(titles[c], stack);
+            image.setDimensions(1, slices, frames);
+            image.setCalibration(calibration.copy());
+            image.getProcessor().setLut(luts[c]);
+            image.setDisplayRange(luts[c].min, luts[c].max);
+            image.setOverlay(overlay == null ? null : overlay.duplicate());
+            channels[c] = image;
+        }
+        return new Entry(title, channels);
+    }
+
+    private static ImageProcessor readPlane(ByteBuffer buffer, int width, int height, int bitDepth) {
+        switch (bitDepth) {
+            case 8:
+                byte[] bytes = new byte[width * height];
+                buffer.get(bytes);
+                return new ByteProcessor(width, height, bytes);
+            case 16:
+                short[] shorts = new short[width * height];
+                buffer.asShortBuffer().get(shorts);
+                return new ShortProcessor(width, height, shorts, null);
+            default:
+                float[] floats = new float[width * height];
+                buffer.asFloatBuffer().get(floats);
+                return new FloatProcessor(width, height, floats);
+        }
+    }
+
+    //
+    // Writing
+    //
+
+    /**
+     * Write the channels of an input file, then evict the least recently used entries above the size limit.
+     * Channels with a bit depth other than 8, 16 or 32 are not cached.
+     *
+     * @param inFile Input file.
+     * @param upstreamOptions Settings of the steps before the checkpoint.
+     * @param title Title of the input image.
+     * @param channels Channels after the common analysis steps, with equal dimensions.
+     * @throws IOException
+     */
+    public void put(Path inFile, String upstreamOptions, String title, ImagePlus[] channels) throws IOException {
+        int bitDepth = channels[0].getBitDepth();
+        if (bitDepth == 24) {
+            return;
+        }
+
+        Path path = entryPath(inFile, upstreamOptions);
+        Path temporaryPath = Files.createTempFile(folder, "checkpoint", ".tmp");
+        try (Metrics.Stage stage = Metrics.start("checkpoint write");
+             FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+            ByteBuffer header = header(title, channels);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            int planeBytes = channels[0].getWidth() * channels[0].getHeight() * bitDepth / 8;
+            ByteBuffer plane = ByteBuffer.allocateDirect(align(planeBytes)).order(ByteOrder.LITTLE_ENDIAN);
+            for (ImagePlus image : channels) {
+                ImageStack stack = image.getStack();
+                for (int i = 1; i <= stack.getSize(); i++) {
+                    plane.clear();
+                    writePlane(plane, stack.getPixels(i));
+                    plane.position(0).limit(align(planeBytes));
+                    while (plane.hasRemaining()) {
+                        channel.write(plane);
+                    }
+                }
+            }
+            stage.addBytesWritten(channel.size());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporaryPath);
+            throw e;
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Logger.log("Wrote checkpoint of " + inFile);
+
+        evict();
+    }
+
+    private static ByteBuffer header(String title, ImagePlus[] channels) {
+        ImagePlus first = channels[0];
+        List<byte[]> rois = new ArrayList<>();
+        if (first.getOverlay() != null) {
+            for (Roi roi : first.getOverlay().toArray()) {
+                rois.add(RoiEncoder.saveAsByteArray(roi));
+            }
+        }
+
+        int size = 1024 + 4 * title.length();
+        for (ImagePlus image : channels) {
+            size += 64 + 4 * image.getTitle().length();
+        }
+        for (byte[] roi : rois) {
+            size += 4 + roi.length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(align(size)).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Header length is filled in at the end
+        header.putInt(MAGIC).putInt(VERSION).putInt(0);
+        writeString(header, title);
+        header.putInt(channels.length).putInt(first.getWidth()).putInt(first.getHeight())
+              .putInt(first.getNSlices()).putInt(first.getNFrames()).putInt(first.getBitDepth());
+
+        Calibration calibration = first.getCalibration();
+        header.putDouble(calibration.pixelWidth).putDouble(calibration.pixelHeight).putDouble(calibration.pixelDepth)
+              .putDouble(calibration.frameInterval).putDouble(calibration.fps);
+        writeString(header, calibration.getUnit());
+
+        for (ImagePlus image : channels) {
+            writeString(header, image.getTitle());
+            LUT lut = image.getProcessor().getLut();
+            int last = lut.getMapSize() - 1;
+            header.putInt(new Color(lut.getRed(last), lut.getGreen(last), lut.getBlue(last)).getRGB());
+            header.putDouble(image.getDisplayRangeMin()).putDouble(image.getDisplayRangeMax());
+        }
+
+        header.putInt(rois.size());
+        for (byte[] roi : rois) {
+            header.putInt(roi.length).put(roi);
+        }
+
+        int headerBytes = align(header.position());
+        header.putInt(8, headerBytes);
+        header.limit(headerBytes);
+        header.position(0);
+        return header;
+    }
+
+    private static void writePlane(ByteBuffer plane, Object pixels) {
+        if (pixels instanceof byte[]) {
+            plane.put((byte[]) pixels);
+        }
+        else if (pixels instanceof short[]) {
+            plane.asShortBuffer().put((short[]) pixels);
+        }
+        else {
+            plane.asFloatBuffer().put((float[]) pixels);
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until all entries fit into the size limit.
+     */
+    void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + SUFFIX)) {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        }
+
+        long totalBytes = 0;
+        List<long[]> usage = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                long size = Files.size(entries.get(i));
+                usage.add(new long[]{Files.getLastModifiedTime(entries.get(i)).toMillis(), size, i});
+                totalBytes += size;
+            } catch (NoSuchFileException e) {
+                // Evicted by another process
+            }
+        }
+
+        usage.sort(Comparator.comparingLong(entry -> entry[0]));
+        for (long[] entry : usage) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            Path path = entries.get((int) entry[2]);
+            Files.deleteIfExists(path);
+            totalBytes -= entry[1];
+            Logger.debug(() -> "Evicted checkpoint " + path.getFileName());
+        }
+    }
+
+    //
+    // Helpers
+    //
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private static void writeString(ByteBuffer buffer, String string) {
+        byte[] bytes = (string == null ? "" : string).getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
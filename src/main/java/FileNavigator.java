@@ -1,76 +1,220 @@
-import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.FileAlreadyExistsException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * A class for file navigation and scheduling.
+ * Files of a folder are processed in isolation: a file that fails or runs over its deadline is aborted and
+ * recorded in a failure report, and the run carries on with the next file.
  */
 public class FileNavigator {
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Number of files ahead of the current one that are staged, as far as they fit into the staging cache.
+     */
+    private static final int STAGING_AHEAD = 8;
+
     ImageAnalyzer imageAnalyzer;
+    MemoryScheduler memoryScheduler;
+    int prefetchDepth;
+    long fileTimeoutMillis = 0;
+    int retries = 0;
+    Cancellation cancellation = new Cancellation();
+    StagingCache stagingCache = null;
+    FlatFieldCorrection flatFieldCorrection = null;
+    Progress progress = null;
+
+    /**
+     * Files that loaders found are processed without loading them as a whole, so they are not staged.
+     */
+    private final Set<Path> notLoaded = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Series counts of files with several series, found while processing their first series, until the run
+     * schedules their other series.
+     */
+    private final Map<Path, Integer> seriesCounts = new ConcurrentHashMap<>();
 
     FileNavigator(ImageAnalyzer imageAnalyzer) {
+        this(imageAnalyzer, 0.5, 1);
+    }
+
+    /**
+     * @param imageAnalyzer Analyzer that is applied to every image.
+     * @param heapFraction Fraction of the max heap that loaded files may occupy together.
+     * @param prefetchDepth Number of files that are loaded in parallel ahead of the file being processed.
+     */
+    FileNavigator(ImageAnalyzer imageAnalyzer, double heapFraction, int prefetchDepth) {
+        this(imageAnalyzer, new MemoryScheduler(heapFraction), prefetchDepth);
+    }
+
+    /**
+     * @param imageAnalyzer Analyzer that is applied to every image.
+     * @param memoryScheduler Memory budget for loaded files, possibly shared with other navigators.
+     * @param prefetchDepth Number of files that are loaded in parallel ahead of the file being processed.
+     */
+    FileNavigator(ImageAnalyzer imageAnalyzer, MemoryScheduler memoryScheduler, int prefetchDepth) {
         this.imageAnalyzer = imageAnalyzer;
+        this.memoryScheduler = memoryScheduler;
+        this.prefetchDepth = Math.max(prefetchDepth, 0);
+    }
+
+    /**
+     * Limit the time per file and retry failed files.
+     *
+     * @param fileTimeoutSeconds Time to load and process a file, after which it is aborted. Non-positive for none.
+     * @param retries How often failed files are tried again, after all other files.
+     */
+    public void setFaultTolerance(double fileTimeoutSeconds, int retries) {
+        this.fileTimeoutMillis = fileTimeoutSeconds > 0 ? (long) (fileTimeoutSeconds * 1000) : 0;
+        this.retries = Math.max(retries, 0);
+    }
+
+    /**
+     * @param cancellation Token that cancels the run, checked between files and while waiting for a file.
+     */
+    public void setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    public Cancellation getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * Read the files from local copies, which are made in the background ahead of the current file.
+     *
+     * @param stagingCache Cache on a local disk, or null to read the files where they are.
+     */
+    public void setStagingCache(StagingCache stagingCache) {
+        this.stagingCache = stagingCache;
+    }
+
+    /**
+     * Correct the flat field of every plane as the files are read. The reference files themselves are not analyzed.
+     *
+     * @param flatFieldCorrection Reference frames of the input folders, or null for no correction.
+     */
+    public void setFlatFieldCorrection(FlatFieldCorrection flatFieldCorrection) {
+        this.flatFieldCorrection = flatFieldCorrection;
+    }
+
+    /**
+     * @return Progress of the current or last folder run, or null before the first one.
+     */
+    public Progress getProgress() {
+        return progress;
     }
 
     /**
      * A container class for a input path, output folder combination.
      */
-    private class FileIO {
+    static class FileIO {
         public Path inPath;
         public Path outFolder;
+        /** Size of the input file, or of its share for a series, or -1 until it is known. */
+        public long sizeBytes;
+        /**
+         * Series of a file with several series, or -1 for a file that is not split into series (yet).
+         * The item of the file processes its first series, each further series is an item of its own.
+         */
+        public int series = -1;
 
         FileIO(Path inPath, Path outFolder) {
+            this(inPath, outFolder, -1);
+        }
+
+        FileIO(Path inPath, Path outFolder, long sizeBytes) {
             this.inPath = inPath;
             this.outFolder = outFolder;
+            this.sizeBytes = sizeBytes;
+        }
+
+        /**
+         * @param file Item of the file.
+         * @param series Index of a further series of the file.
+         * @param seriesCount Number of series of the file, which share its size.
+         */
+        FileIO(FileIO file, int series, int seriesCount) {
+            this(file.inPath, file.outFolder, file.sizeBytes < 0 ? -1 : file.sizeBytes / seriesCount);
+            this.series = series;
+        }
+
+        @Override
+        public String toString() {
+            return series > 0 ? inPath + ", series " + (series + 1) : inPath.toString();
         }
     }
 
     /**
-     * Collect all valid nested file paths.
+     * Collect all valid nested file paths, sorted by path.
+     * Subfolders that can not be listed are skipped with a warning.
+     * The sizes of the files are read with the listing, so a run does not read them again.
      *
      * @param inFolder Starting folder to scan for files with correct suffix. Subfolders will also be scanned.
-     * @param outFolder Starting output folder. Subfolders will be created to mirror the structure of the input folder.
+     * @param outFolder Starting output folder. The output folders mirror the structure of the input folder,
+     *                  and are created with the first file written to them.
      * @param fileSuffix Only files with this suffix will be selected.
      * @return A List of in-out path combinations.
+     * @throws IOException If the starting folder can not be listed.
      */
-    public List<FileIO> collectFilePaths(Path inFolder, Path outFolder, String fileSuffix) {
+    public List<FileIO> collectFilePaths(Path inFolder, Path outFolder, String fileSuffix) throws IOException {
         List<FileIO> filePaths = new ArrayList<FileIO>();
 
         // function to scan folders/subfolders/files to find files with correct suffix
         try (Stream<Path> entries = Files.list(inFolder)) {
-            for(Path entry : entries.collect(Collectors.toList())) {
-                if( Files.isDirectory(entry) && !entry.equals(outFolder)) {
+            for(Path entry : entries.sorted().collect(Collectors.toList())) {
+                BasicFileAttributes attributes = attributesOf(entry);
+                if( attributes != null && attributes.isDirectory() && !entry.equals(outFolder)) {
                     Logger.log("Checking out folder: " + entry.toString());
                     Path newOutFolder = outFolder.resolve(entry.getFileName());
                     try {
-                        Logger.log("Creating folder " + newOutFolder);
-                        Files.createDirectory( newOutFolder );
+                        filePaths.addAll( collectFilePaths(entry, newOutFolder, fileSuffix) );
                     } catch (IOException e) {
-                        if (e instanceof FileAlreadyExistsException) {
-                            Logger.log("Folder " + newOutFolder + " already exists.");
-                        } else {
-                            throw new RuntimeException(e);
-                        }
+                        Logger.warn("Skipping folder " + entry + ": " + e);
                     }
-
-                    processFolder(entry, newOutFolder, fileSuffix);
                 }
 
+                if( flatFieldCorrection != null && flatFieldCorrection.isReference(entry) ) {
+                    Logger.log("Skipping reference frame " + entry);
+                    continue;
+                }
                 if( entry.getFileName().toString().endsWith(fileSuffix) ) {
-                    filePaths.add( new FileIO(entry, outFolder) );
+                    filePaths.add( new FileIO(entry, outFolder, attributes == null ? -1 : attributes.size()) );
                 }
             }
-        } catch (IOException | InterruptedException e){
-            throw new RuntimeException(e);
         }
 
         return filePaths;
@@ -78,6 +222,8 @@ public class FileNavigator {
 
     /**
      * Process a single file or image if already loaded.
+     * Files with several series, e.g. the stage positions of an ND2 file, are processed series by series, see
+     * analyzeSeries. Runs over several files process each series as an item of its own instead, see processFiles.
      *
      * @param inFile Path to the input file.
      * @param outFolder Output folder for derived files.
@@ -85,54 +231,809 @@ public class FileNavigator {
      * @throws IOException
      */
     public void processFile(Path inFile, Path outFolder, ImagePlus image) throws IOException {
+        processFile(inFile, outFolder, image, true);
+    }
+
+    /**
+     * @param allSeries Whether all series of a file with several series are processed, or only the first one,
+     *                  with the series count left in seriesCounts for the run.
+     */
+    private void processFile(Path inFile, Path outFolder, ImagePlus image, boolean allSeries) throws IOException {
         Logger.log("Processing: " + inFile);
+        try (Metrics.FileScope file = Metrics.startFile(inFile)) {
+            analyzeFile(inFile, outFolder, image, allSeries);
+            file.completed();
+        }
+    }
+
+    /**
+     * Process a further series of a file, loaded by loadSeries.
+     */
+    private void processSeries(FileIO fileIO, ImagePlus image) {
+        Logger.log("Processing: " + fileIO);
+        try (Metrics.FileScope file = Metrics.startFile(fileIO.inPath)) {
+            analyzeImage(image, fileIO.inPath, fileIO.series, fileIO.outFolder);
+            file.completed();
+        }
+    }
+
+    private void analyzeFile(Path inFile, Path outFolder, ImagePlus image, boolean allSeries) throws IOException {
+        // Import, unless the analyzer has cached results of the file, processes it tile by tile or reads a substack
+        if (image == null && (imageAnalyzer.processCached(inFile, outFolder) || imageAnalyzer.processTiled(inFile, outFolder)
+                              || imageAnalyzer.processSubstack(inFile, outFolder))) {
+            return;
+        }
+        Path readPath = stagingCache == null ? inFile : stagingCache.acquire(inFile);
+        try {
+            if (image == null) {
+                image = openImage(readPath, inFile, metadata -> loadsWhole(inFile));
+            }
+            if (image == null) {
+                // Opening the file read the metadata, which may show that it is processed tile by tile or as substack
+                if (!loadsWhole(inFile) && (imageAnalyzer.processTiled(inFile, outFolder)
+                                            || imageAnalyzer.processSubstack(inFile, outFolder))) {
+                    return;
+                }
+                throw new IOException("Could not open " + inFile);
+            }
+            // Opening the first series described all series of the file
+            ReaderPool.Metadata metadata = ReaderPool.getCachedMetadata(readPath);
+            if (metadata == null || metadata.seriesCount <= 1) {
+                analyzeImage(image, inFile, -1, outFolder);
+            }
+            else if (allSeries) {
+                analyzeSeries(readPath, inFile, outFolder, image, metadata.seriesCount);
+            }
+            else {
+                // The other series are processed as items of their own, see processAttempt
+                seriesCounts.put(inFile, metadata.seriesCount);
+                image.setTitle( ReaderPool.seriesTitle(inFile.getFileName().toString(), 0) );
+                analyzeImage(image, inFile, 0, outFolder);
+            }
+        } finally {
+            if (stagingCache != null) {
+                stagingCache.release(inFile);
+            }
+        }
+    }
+
+    /**
+     * @param series Index of the series of a file with several series, or -1.
+     */
+    private void analyzeImage(ImagePlus image, Path inFile, int series, Path outFolder) {
+        ImageStack stack = image.getStack();
+
+        // Scratch files of out-of-core images are deleted after the analysis
+        try (MappedStack.Scope scope = MappedStack.openScope()) {
+            image.show();
+            if (series >= 0) {
+                imageAnalyzer.processSeries(image, inFile, series, outFolder);
+            }
+            else {
+                imageAnalyzer.processImage(image, inFile, outFolder);
+            }
+        } finally {
+            MappedStack.release(stack);
+        }
+    }
+
+    /**
+     * Analyze the series of a single file one after the other, e.g. the stage positions of an ND2 file.
+     * The first series is the image that was loaded for the file. The other series are read from one reader, which
+     * opens the file once more and is then set to one series after the other. Series that fail do not stop the
+     * others, and fail the file when all series are done.
+     *
+     * @param readPath Path that is read, e.g. the staged copy of the input file.
+     * @param inFile Path to the input file.
+     * @param outFolder Output folder for derived files.
+     * @param first Loaded first series.
+     * @param seriesCount Number of series of the file.
+     * @throws IOException If a series could not be read or analyzed.
+     */
+    private void analyzeSeries(Path readPath, Path inFile, Path outFolder, ImagePlus first, int seriesCount)
+            throws IOException {
+        Logger.log("Processing " + seriesCount + " series of " + inFile);
+        first.setTitle( ReaderPool.seriesTitle(inFile.getFileName().toString(), 0) );
+        analyzeImage(first, inFile, 0, outFolder);
+
+        List<String> errors = new ArrayList<>();
+        Throwable firstError = null;
+        try (ReaderPool.SeriesReader seriesReader = ReaderPool.openSeries(readPath)) {
+            for (int s = 1; s < seriesCount; s++) {
+                MemoryScheduler.Admission admission = memoryScheduler.admit( seriesReader.getMetadata(s).estimateBytes() );
+                try {
+                    analyzeImage(readSeries(seriesReader, inFile, s), inFile, s, outFolder);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException | RuntimeException e) {
+                    firstError = firstError == null ? e : firstError;
+                    errors.add("series " + (s + 1) + ": " + e);
+                } finally {
+                    admission.release();
+                }
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            for (String error : errors) {
+                Logger.error("Failed to process " + inFile + ", " + error);
+            }
+            throw new IOException(errors.size() + " of " + seriesCount + " series of " + inFile + " failed, first "
+                    + errors.get(0), firstError);
+        }
+    }
+
+    /**
+     * Read one series of a file and measure it as "open" stage, out of core if it does not fit into the memory budget.
+     */
+    private ImagePlus readSeries(ReaderPool.SeriesReader seriesReader, Path inFile, int series) throws IOException {
+        FlatFieldCorrection.Reference flatField = flatFieldCorrection == null ? null : flatFieldCorrection.forFile(inFile);
+        try (Metrics.Stage stage = Metrics.start("open")) {
+            boolean outOfCore = seriesReader.getMetadata(series).estimateBytes() > memoryScheduler.getBudget();
+            return seriesReader.read(series, outOfCore, flatField);
+        }
+    }
+
+    /**
+     * Open the image of a file and measure it as "open" stage.
+     * Files that would not fit into the memory budget are opened out of core, as virtual stack.
+     *
+     * @param inFile Path to the input file.
+     * @return The opened image or null.
+     * @throws IOException
+     */
+    public ImagePlus openImage(Path inFile) throws IOException {
+        return openImage(inFile, inFile, null);
+    }
+
+    /**
+     * @param readPath Path that is read, e.g. the staged copy of the input file.
+     * @param inFile Path to the input file, whose folder has the flat-field reference.
+     * @param load Whether the planes of a file with the given metadata are read, see ReaderPool.openImage, or null.
+     * @return The opened image, or null if it could not be read or is not loaded.
+     */
+    private ImagePlus openImage(Path readPath, Path inFile, Predicate<ReaderPool.Metadata> load) throws IOException {
+        FlatFieldCorrection.Reference flatField = flatFieldCorrection == null ? null : flatFieldCorrection.forFile(inFile);
+        try (Metrics.Stage stage = Metrics.start("open")) {
+            boolean outOfCore = MemoryScheduler.estimateBytes(readPath) > memoryScheduler.getBudget();
+            if (outOfCore) {
+                Logger.log("Opening " + readPath + " out of core.");
+            }
+            ImagePlus image = ReaderPool.openImage(readPath, outOfCore, flatField, load);
+            if (image != null) {
+                Metrics.describeCurrentFile(image.getDimensions(), null);
+                stage.addBytesRead( Files.size(readPath) );
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Whether a file is loaded as a whole, i.e. the analyzer neither processes it tile by tile nor as substack.
+     * The analyzer decides on the metadata that was cached when the file was opened.
+     */
+    private boolean loadsWhole(Path inFile) {
+        return !imageAnalyzer.isTiled(inFile) && !imageAnalyzer.isSubstack(inFile);
+    }
+
+    /**
+     * Load the image of a file, after it was admitted by the memory scheduler, unless the analyzer processes the file
+     * without loading it as a whole: from cached results, tile by tile or as substack. Whether it does is decided
+     * here, within the deadline of the file, on the metadata that opening the file reads.
+     * With a staging cache, the local copy of a loaded file is read and kept until the file is released.
+     *
+     * @param fileIO File to load.
+     * @param admission Admission of the file. Released if the file can not be loaded.
+     * @return The loaded image, or null if the file is not loaded as a whole.
+     * @throws IOException If the file could not be read.
+     */
+    private ImagePlus loadImage(FileIO fileIO, MemoryScheduler.Admission admission) throws IOException {
+        Logger.log("Loading: " + fileIO.inPath);
+        Metrics.setCurrentFile(fileIO.inPath);
+        ImagePlus image = null;
+        try {
+            // Files whose metadata is cached, e.g. from an earlier attempt, are decided without opening them
+            if (imageAnalyzer.isCached(fileIO.inPath) || !loadsWhole(fileIO.inPath)) {
+                return notLoaded(fileIO, admission);
+            }
+            Path readPath = stagingCache == null ? fileIO.inPath : stagingCache.acquire(fileIO.inPath);
+            try {
+                image = openImage(readPath, fileIO.inPath, metadata -> loadsWhole(fileIO.inPath));
+            } finally {
+                if (image == null && stagingCache != null) {
+                    stagingCache.release(fileIO.inPath);
+                }
+            }
+            if (image == null && loadsWhole(fileIO.inPath)) {
+                throw new IOException("Could not open " + fileIO.inPath);
+            }
+        } catch (IOException | RuntimeException e) {
+            admission.release();
+            throw e;
+        }
 
-        // Import
         if (image == null) {
-            image = IJ.openImage( inFile.toString() );
+            return notLoaded(fileIO, admission);
         }
-        image.show();
+        admission.resize( MemoryScheduler.estimateBytes(image) );
+        return image;
+    }
 
-        imageAnalyzer.processImage(image, outFolder);
+    private ImagePlus notLoaded(FileIO fileIO, MemoryScheduler.Admission admission) {
+        notLoaded.add(fileIO.inPath);
+        // Tiled files only hold a few tiles at a time, other files keep the estimate of the whole file as upper bound
+        if (imageAnalyzer.isTiled(fileIO.inPath)) {
+            admission.resize(0);
+        }
+        return null;
     }
 
+    /**
+     * Load a further series of a file, with the reader that the series of the file share in the run.
+     * A reader that failed, e.g. because its read was aborted, is closed, and the next series opens a new one.
+     *
+     * @param fileIO Series to load.
+     * @param admission Admission of the series. Released if the series can not be loaded.
+     * @param seriesReaders Readers of the files whose series are loaded in the run.
+     * @return The loaded series.
+     * @throws IOException If the series could not be read.
+     */
+    private ImagePlus loadSeries(FileIO fileIO, MemoryScheduler.Admission admission,
+                                 Map<Path, SharedSeriesReader> seriesReaders) throws IOException {
+        Logger.log("Loading: " + fileIO);
+        Metrics.setCurrentFile(fileIO.inPath);
+        SharedSeriesReader shared = seriesReaders.computeIfAbsent(fileIO.inPath, SharedSeriesReader::new);
+        try {
+            ReaderPool.SeriesReader seriesReader = shared.open();
+            admission.resize( seriesReader.getMetadata(fileIO.series).estimateBytes() );
+            ImagePlus image = readSeries(seriesReader, fileIO.inPath, fileIO.series);
+            admission.resize( MemoryScheduler.estimateBytes(image) );
+            return image;
+        } catch (IOException | RuntimeException e) {
+            admission.release();
+            seriesReaders.remove(fileIO.inPath, shared);
+            shared.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The reader of a file whose series are loaded as items of their own. It is opened by the first of their loaders,
+     * and holds the staged copy of the file until it is closed.
+     */
+    private class SharedSeriesReader {
+        private final Path inFile;
+        private final AtomicReference<ReaderPool.SeriesReader> reader = new AtomicReference<>();
+        private volatile boolean closed;
+
+        SharedSeriesReader(Path inFile) {
+            this.inFile = inFile;
+        }
+
+        synchronized ReaderPool.SeriesReader open() throws IOException {
+            if (reader.get() == null && !closed) {
+                ReaderPool.SeriesReader opened = null;
+                Path readPath = stagingCache == null ? inFile : stagingCache.acquire(inFile);
+                try {
+                    opened = ReaderPool.openSeries(readPath);
+                } finally {
+                    if (opened == null && stagingCache != null) {
+                        stagingCache.release(inFile);
+                    }
+                }
+                reader.set(opened);
+                // Closed while it was opened
+                if (closed) {
+                    close();
+                }
+            }
+            ReaderPool.SeriesReader open = reader.get();
+            if (open == null) {
+                throw new IOException("The reader of " + inFile + " was closed");
+            }
+            return open;
+        }
+
+        /**
+         * Close the reader without waiting for a read or an opening, which may hang.
+         */
+        void close() {
+            closed = true;
+            ReaderPool.SeriesReader open = reader.getAndSet(null);
+            if (open == null) {
+                return;
+            }
+            try {
+                open.close();
+            } catch (IOException e) {
+                Logger.warn("Could not close the reader of " + inFile + ": " + e);
+            }
+            if (stagingCache != null) {
+                stagingCache.release(inFile);
+            }
+        }
+    }
 
     /**
      * Function to analyze files in a folder and mirror the results into an output directory.
      *
      * @param inFolder Input folder
      * @param outFolder Output folder
+     * @return Files that failed, which are also listed in failures.csv in the output folder.
+     */
+    public List<Failure> processFolder(Path inFolder, Path outFolder, String fileSuffix)
+            throws InterruptedException, IOException {
+        return processFolder(inFolder, outFolder, fileSuffix, 0, 1);
+    }
+
+    /**
+     * Function to analyze one shard of the files in a folder and mirror the results into an output directory.
+     * Completed files are recorded in the manifest of the shard in the output directory.
+     *
+     * @param inFolder Input folder
+     * @param outFolder Output folder, shared by all shards
+     * @param shardIndex Index of the shard to process, starting at 0
+     * @param shardCount Number of shards the files are split into
+     * @return Files that failed, which are also listed in the failure report of the shard in the output folder.
      */
-    public void processFolder(Path inFolder, Path outFolder, String fileSuffix) throws InterruptedException, IOException {
+    public List<Failure> processFolder(Path inFolder, Path outFolder, String fileSuffix, int shardIndex, int shardCount)
+            throws InterruptedException, IOException {
         List<FileIO> fileIOs = collectFilePaths(inFolder, outFolder, fileSuffix);
-        ImagePlus currentImage;
-        AtomicReference<ImagePlus> nextImage = new AtomicReference<>();
+        Map<String, FileIO> byPath = new LinkedHashMap<>();
+        for (FileIO fileIO : fileIOs) {
+            byPath.put(Sharding.normalize( inFolder.relativize(fileIO.inPath).toString() ), fileIO);
+        }
 
-        for (int i = 1; i < fileIOs.size(); i++) {
-            // Set new current
-            if (nextImage.get() == null) {
-                currentImage = IJ.openImage( fileIOs.get(i - 1).inPath.toString() );
+        // Only the files of this shard are processed, with their sizes from the listing
+        Map<String, Integer> assignment = Sharding.assign(byPath.keySet(), shardCount);
+        List<FileIO> shardFileIOs = new ArrayList<>();
+        List<Path> shardFiles = new ArrayList<>();
+        long shardBytes = 0;
+        for (Map.Entry<String, FileIO> entry : byPath.entrySet()) {
+            if (assignment.get(entry.getKey()) == shardIndex) {
+                FileIO fileIO = entry.getValue();
+                shardFileIOs.add(fileIO);
+                shardFiles.add(fileIO.inPath);
+                shardBytes += Math.max(fileIO.sizeBytes, 0);
             }
-            else {
-                currentImage = nextImage.get();
+        }
+        // The files of this run are counted by the run, only their stages come from the shared metrics
+        Progress progress = new Progress(shardFiles, shardBytes);
+        this.progress = progress;
+        Metrics.addListener(progress);
+        try {
+            return processShard(inFolder, outFolder, shardFileIOs, fileIOs.size(), shardIndex, shardCount, progress);
+        } finally {
+            Metrics.removeListener(progress);
+        }
+    }
+
+    private List<Failure> processShard(Path inFolder, Path outFolder, List<FileIO> shardFileIOs, int fileCount,
+                                       int shardIndex, int shardCount, Progress progress)
+            throws InterruptedException, IOException {
+        List<Failure> failures;
+        if (shardCount == 1) {
+            failures = processFiles(shardFileIOs, fileIO -> {}, progress);
+            writeFailureReport(outFolder, "failures", failures);
+        }
+        else {
+            Logger.log("Processing shard " + shardIndex + " of " + shardCount + ": "
+                    + shardFileIOs.size() + " of " + fileCount + " files.");
+
+            try (Sharding.Manifest manifest = new Sharding.Manifest(outFolder, shardIndex, shardCount, shardFileIOs.size())) {
+                failures = processFiles(shardFileIOs, fileIO -> {
+                    String relativePath = Sharding.normalize( inFolder.relativize(fileIO.inPath).toString() );
+                    manifest.completed(relativePath, fileIO.sizeBytes);
+                }, progress);
+            }
+            writeFailureReport(outFolder, "failures_shard-" + shardIndex + "-of-" + shardCount, failures);
+        }
+
+        if (cancellation.isCancelled()) {
+            Logger.warn("Cancelled processing " + inFolder + ": " + cancellation.getReason());
+        }
+        else {
+            Logger.log("Finished processing " + inFolder + (failures.isEmpty() ? "." : ", " + failures.size() + " files failed."));
+        }
+        return failures;
+    }
+
+    /**
+     * Verify that the manifests of all shards together cover every file in a folder.
+     *
+     * @param inFolder Input folder
+     * @param outFolder Output folder with the manifests of the shards
+     * @param shardCount Number of shards the files were split into
+     * @return Relative paths of files that no shard completed.
+     */
+    public List<String> mergeShards(Path inFolder, Path outFolder, String fileSuffix, int shardCount) throws IOException {
+        List<String> expected = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(inFolder)) {
+            for (Path file : files.sorted().collect(Collectors.toList())) {
+                if (!file.startsWith(outFolder) && file.getFileName().toString().endsWith(fileSuffix)) {
+                    expected.add( Sharding.normalize( inFolder.relativize(file).toString() ) );
+                }
+            }
+        }
+        return Sharding.merge(expected, outFolder, shardCount);
+    }
+
+    /**
+     * A callback for files that were processed successfully.
+     */
+    interface CompletionListener {
+        void completed(FileIO fileIO) throws IOException;
+    }
+
+    /**
+     * Analyze a list of files in order, and then retry the failed ones.
+     * Upcoming files are loaded in parallel, as long as they fit into the memory budget.
+     * Files with cached results in the analyzer and files that it processes tile by tile or as substack are not
+     * loaded as a whole, which the loader of each file finds out within the deadline of the file.
+     * Every file is loaded and processed in threads of its own, so it can be aborted when it runs over its deadline
+     * or the run is cancelled, while the run carries on with the next file. The run itself does not read the files,
+     * it admits them with the sizes from the listing and stages them in the background.
+     * Files with several series, e.g. the stage positions of an ND2 file, are split into items once their first
+     * series is processed: every further series is loaded and processed like a file, with its own deadline, and
+     * only failed series are retried. Their loaders share one reader of the file.
+     *
+     * @param fileIOs Files to process with their output folders.
+     * @param listener Called after each successfully processed file, after all of its series.
+     * @return Files and series that failed in their last attempt. Files that were not attempted because the run was
+     * cancelled are not included.
+     */
+    public List<Failure> processFiles(List<FileIO> fileIOs, CompletionListener listener)
+            throws InterruptedException, IOException {
+        return processFiles(fileIOs, listener, null);
+    }
+
+    /**
+     * @param progress Progress of the run that the files are counted in, or null.
+     */
+    private List<Failure> processFiles(List<FileIO> fileIOs, CompletionListener listener, Progress progress)
+            throws InterruptedException, IOException {
+        Map<Path, SeriesFile> seriesFiles = new HashMap<>();
+        List<Failure> failures = processAttempt(fileIOs, listener, progress, 1, seriesFiles);
+        for (int attempt = 2; attempt <= retries + 1 && !failures.isEmpty() && !cancellation.isCancelled(); attempt++) {
+            Logger.log("Retrying " + failures.size() + " failed files, attempt " + attempt + " of " + (retries + 1) + ".");
+            List<FileIO> failedFileIOs = failures.stream().map(failure -> failure.fileIO).collect(Collectors.toList());
+            failures = processAttempt(failedFileIOs, listener, progress, attempt, seriesFiles);
+        }
+        return failures;
+    }
+
+    /**
+     * @param seriesFiles Files of the run that are split into series, by input file.
+     */
+    private List<Failure> processAttempt(List<FileIO> fileIOs, CompletionListener listener, Progress progress, int attempt,
+                                         Map<Path, SeriesFile> seriesFiles)
+            throws InterruptedException, IOException {
+        // Further series are inserted as they are found
+        List<FileIO> items = new ArrayList<>(fileIOs);
+        List<Failure> failures = new ArrayList<>();
+        Deque<FileTask<ImagePlus>> pendingImages = new ArrayDeque<>();
+        Deque<MemoryScheduler.Admission> admissions = new ArrayDeque<>();
+        Map<Path, SharedSeriesReader> seriesReaders = new ConcurrentHashMap<>();
+        // Threads of aborted files may not react, so new files get new threads instead of waiting for them
+        ExecutorService loader = Executors.newCachedThreadPool( daemonThreads("FileNavigator-loader") );
+        ExecutorService worker = Executors.newCachedThreadPool( daemonThreads("FileNavigator-worker") );
+        ExecutorService stager = Executors.newSingleThreadExecutor( daemonThreads("FileNavigator-stager") );
+
+        try {
+            int next = 0;
+            for (int i = 0; i < items.size(); i++) {
+                if (cancellation.isCancelled()) {
+                    Logger.warn("Run cancelled, " + (items.size() - i) + " files were not processed.");
+                    break;
+                }
+                List<FileIO> staged = new ArrayList<>( items.subList(i, Math.min(i + STAGING_AHEAD, items.size())) );
+                stager.execute(() -> stageUpcoming(staged));
+
+                // Admit the current file and as many upcoming files as the memory budget allows
+                while (next < items.size() && next <= i + prefetchDepth) {
+                    FileIO upcoming = items.get(next);
+                    // Files are admitted with the estimate from their listed size, until the loader knows better
+                    long estimate = MemoryScheduler.estimateFileBytes(upcoming.sizeBytes);
+                    MemoryScheduler.Admission admission = next == i ?
+                            memoryScheduler.admit(estimate) : memoryScheduler.tryAdmit(estimate);
+                    if (admission == null) {
+                        break;
+                    }
+                    admissions.add(admission);
+                    pendingImages.add( new FileTask<>(loader, () -> upcoming.series > 0 ?
+                            loadSeries(upcoming, admission, seriesReaders) : loadImage(upcoming, admission)) );
+                    next++;
+                }
+
+                // Process current image within its deadline
+                FileIO fileIO = items.get(i);
+                MemoryScheduler.Admission admission = admissions.poll();
+                FileTask<ImagePlus> loading = pendingImages.poll();
+                FileTask<Void> processing = null;
+                ImagePlus loaded = null;
+                long start = System.nanoTime();
+                long deadline = fileTimeoutMillis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(fileTimeoutMillis) : Long.MAX_VALUE;
+                boolean processed = false;
+                try {
+                    // Files that are not loaded as a whole are processed without image, see loadImage
+                    ImagePlus currentImage = loaded = await(loading, deadline);
+                    processing = new FileTask<>(worker, () -> {
+                        if (fileIO.series > 0) {
+                            processSeries(fileIO, currentImage);
+                        }
+                        else {
+                            processFile(fileIO.inPath, fileIO.outFolder, currentImage, false);
+                        }
+                        return null;
+                    });
+                    await(processing, deadline);
+                    processed = true;
+                } catch (ExecutionException e) {
+                    failures.add( failed(fileIO, attempt, e.getCause(), start) );
+                } catch (TimeoutException e) {
+                    abort(fileIO, loading, processing);
+                    String message = String.format(Locale.ROOT, "No result after %.1f s", fileTimeoutMillis / 1000.0);
+                    failures.add( failed(fileIO, attempt, new TimeoutException(message), start) );
+                } catch (CancellationException | InterruptedException e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                        cancellation.cancel("Interrupted");
+                    }
+                    abort(fileIO, loading, processing);
+                    Logger.warn("Run cancelled, " + (items.size() - i) + " files were not processed.");
+                    break;
+                } finally {
+                    admission.release();
+                    // The loader keeps the local copy only for the image of a file it returns, series share a reader
+                    if (stagingCache != null && loaded != null && fileIO.series <= 0) {
+                        stagingCache.release(fileIO.inPath);
+                    }
+                }
+
+                // The first series of a file shows how many it has, the others follow as items of their own
+                Integer seriesCount = fileIO.series <= 0 ? seriesCounts.remove(fileIO.inPath) : null;
+                if (seriesCount != null && !seriesFiles.containsKey(fileIO.inPath)) {
+                    fileIO.series = 0;
+                    seriesFiles.put(fileIO.inPath, new SeriesFile(fileIO, seriesCount));
+                    for (int series = seriesCount - 1; series >= 1; series--) {
+                        items.add(next, new FileIO(fileIO, series, seriesCount));
+                    }
+                }
+                if (fileIO.series > 0 && (i + 1 >= items.size() || items.get(i + 1).series <= 0
+                                          || !items.get(i + 1).inPath.equals(fileIO.inPath))) {
+                    SharedSeriesReader seriesReader = seriesReaders.remove(fileIO.inPath);
+                    if (seriesReader != null) {
+                        seriesReader.close();
+                    }
+                }
+
+                // Files are counted once, when they succeed or fail their last attempt, with all their series
+                boolean done = processed || attempt > retries;
+                long wallNanos = System.nanoTime() - start;
+                SeriesFile seriesFile = seriesFiles.get(fileIO.inPath);
+                if (seriesFile == null) {
+                    if (processed) {
+                        listener.completed(fileIO);
+                    }
+                    if (progress != null && done) {
+                        progress.fileDone(fileIO.sizeBytes, wallNanos, processed);
+                    }
+                }
+                else if (done && seriesFile.done(processed, wallNanos)) {
+                    if (!seriesFile.failed) {
+                        listener.completed(seriesFile.fileIO);
+                    }
+                    if (progress != null) {
+                        progress.fileDone(seriesFile.fileIO.sizeBytes, seriesFile.wallNanos, !seriesFile.failed);
+                    }
+                }
+            }
+        } finally {
+            loader.shutdownNow();
+            worker.shutdownNow();
+            stager.shutdownNow();
+            for (FileTask<ImagePlus> loading : pendingImages) {
+                loading.abort();
+            }
+            for (MemoryScheduler.Admission admission : admissions) {
+                admission.release();
+            }
+            for (SharedSeriesReader seriesReader : seriesReaders.values()) {
+                seriesReader.close();
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * A file that is split into series. It is done when all of its series succeeded or failed their last attempt.
+     */
+    private static class SeriesFile {
+        final FileIO fileIO;
+        int remaining;
+        boolean failed = false;
+        long wallNanos = 0;
+
+        SeriesFile(FileIO fileIO, int seriesCount) {
+            this.fileIO = fileIO;
+            this.remaining = seriesCount;
+        }
+
+        /**
+         * Count the final outcome of one series.
+         *
+         * @return Whether it was the last series of the file.
+         */
+        boolean done(boolean processed, long nanos) {
+            failed |= !processed;
+            wallNanos += nanos;
+            return --remaining == 0;
+        }
+    }
+
+    /**
+     * Copy the current and upcoming files to the staging cache in the background, until one does not fit.
+     * Files that a loader found are not loaded as a whole, e.g. in an earlier attempt, are not staged, and further
+     * series are read from the copy of their file. Nothing else is known about a file before its loader reads it.
+     * Runs on the stager thread, since a slow or hanging source must not hold up the run.
+     */
+    private void stageUpcoming(List<FileIO> fileIOs) {
+        if (stagingCache == null) {
+            return;
+        }
+        for (FileIO fileIO : fileIOs) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (fileIO.series > 0 || notLoaded.contains(fileIO.inPath)) {
+                continue;
+            }
+            if (!stagingCache.prefetch(fileIO.inPath)) {
+                break;
             }
+        }
+    }
 
-            // Load next image in parallel
-            FileIO fileIO = fileIOs.get(i);
-            Thread imageThread = new Thread(
-                () -> {
-                    nextImage.set( IJ.openImage( fileIO.inPath.toString() ) );
+    /**
+     * Wait for a task of the current file.
+     *
+     * @param task Loading or processing of the file.
+     * @param deadline Value of System.nanoTime() when the file runs out of time.
+     * @return Result of the task.
+     * @throws CancellationException If the run was cancelled.
+     */
+    private <T> T await(FileTask<T> task, long deadline) throws ExecutionException, TimeoutException, InterruptedException {
+        while (true) {
+            if (cancellation.isCancelled()) {
+                throw new CancellationException(cancellation.getReason());
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            try {
+                return task.future.get(Math.min(remaining, POLL_NANOS), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // Check the cancellation and the deadline again
+            }
+        }
+    }
+
+    private void abort(FileIO fileIO, FileTask<ImagePlus> loading, FileTask<Void> processing) {
+        Logger.warn("Aborting " + fileIO + ".");
+        loading.abort();
+        if (processing != null) {
+            processing.abort();
+        }
+    }
+
+    private static Failure failed(FileIO fileIO, int attempt, Throwable error, long start) {
+        Failure failure = new Failure(fileIO, attempt, error, (System.nanoTime() - start) / 1e9);
+        Logger.error("Failed to process " + fileIO + " (attempt " + attempt + "): " + error);
+        return failure;
+    }
+
+    private static BasicFileAttributes attributesOf(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicLong count = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Loading or processing of one file in a thread of its own, which can be aborted.
+     */
+    private static class FileTask<T> {
+        final Future<T> future;
+        private volatile Thread thread;
+
+        FileTask(ExecutorService executor, Callable<T> callable) {
+            // Keep collecting samples in the recording of the run, e.g. of a job of the daemon
+            Metrics.FileInfo file = Metrics.getCurrentFile();
+            future = executor.submit(() -> {
+                thread = Thread.currentThread();
+                Metrics.setCurrentFile(file);
+                try {
+                    return callable.call();
+                } finally {
+                    thread = null;
                 }
-            );
-            imageThread.start();
+            });
+        }
+
+        /**
+         * Interrupt the thread and close the reader it is reading with, so reads that do not check for interrupts fail.
+         * A thread that does neither is left behind.
+         */
+        void abort() {
+            future.cancel(true);
+            Thread running = thread;
+            if (running != null) {
+                ReaderPool.abort(running);
+            }
+        }
+    }
 
-            // Process current image
-            processFile(fileIO.inPath, fileIO.outFolder, currentImage);
+    //
+    // Failure report
+    //
 
-            // Wait at most 5min for the next image to load
-            imageThread.join(1000 * 60 * 5);
+    /**
+     * A file, or a series of a file that is split into series, that failed to load or process.
+     */
+    public static class Failure {
+        public final FileIO fileIO;
+        public final int attempts;
+        public final Throwable error;
+        public final double seconds;
+
+        Failure(FileIO fileIO, int attempts, Throwable error, double seconds) {
+            this.fileIO = fileIO;
+            this.attempts = attempts;
+            this.error = error;
+            this.seconds = seconds;
         }
+    }
 
-        Logger.log("Finished processing " + inFolder + ".");
+    /**
+     * Write the failed files of a run as CSV into the output folder, or delete the report of an earlier run
+     * if no file failed. Failed series are listed with their number, starting at 1.
+     *
+     * @param outFolder Folder to write the report to.
+     * @param name Name of the report without extension.
+     * @param failures Failed files.
+     * @return Path of the report, or null if no file failed.
+     * @throws IOException
+     */
+    public static Path writeFailureReport(Path outFolder, String name, List<Failure> failures) throws IOException {
+        Path csvPath = outFolder.resolve(name + ".csv");
+        if (failures.isEmpty()) {
+            Files.deleteIfExists(csvPath);
+            return null;
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(csvPath, StandardCharsets.UTF_8)) {
+            writer.write("file,series,attempts,seconds,error,message\n");
+            for (Failure failure : failures) {
+                writer.write(Metrics.csvField(failure.fileIO.inPath.toString()) + ","
+                        + (failure.fileIO.series < 0 ? "" : String.valueOf(failure.fileIO.series + 1)) + ","
+                        + failure.attempts + ","
+                        + String.format(Locale.ROOT, "%.3f", failure.seconds) + ","
+                        + Metrics.csvField(failure.error.getClass().getName()) + ","
+                        + Metrics.csvField(String.valueOf(failure.error.getMessage())) + "\n");
+            }
+        }
+        Logger.warn(failures.size() + " files failed, see " + csvPath);
+        return csvPath;
     }
 }
@@ -0,0 +1,411 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Flat-field and dark-frame correction of input images: (raw - dark) / (flat - dark) * mean(flat - dark).
+ * The readers apply it to every plane right after it is decoded, so the correction needs neither an extra pass over
+ * the stack nor a copy of it. The reference frames are loaded from files or estimated from the input files, once per
+ * folder, and kept in a cache that all runs of the JVM share.
+ */
+public class FlatFieldCorrection {
+    /**
+     * Flat field setting that estimates the flat field from the input files of each folder.
+     */
+    public static final String ESTIMATE = "estimate";
+
+    /**
+     * Number of input files of a folder that an estimated flat field is averaged from.
+     */
+    private static final int ESTIMATE_FILES = 8;
+
+    /**
+     * Reference frames are a float plane per channel, so only the references of a few folders are kept.
+     */
+    private static final int MAX_CACHED_REFERENCES = 4;
+
+    private static final Map<String, Reference> cache = new LinkedHashMap<String, Reference>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Reference> eldest) {
+            return size() > MAX_CACHED_REFERENCES;
+        }
+    };
+
+    private final String flatField;
+    private final String darkFrame;
+
+    /**
+     * @param flatField Flat-field image with the channels of the inputs. Several planes per channel are averaged.
+     *                  Relative paths are resolved against the folder of each input file, so every folder can have
+     *                  its own reference. ESTIMATE averages the input files of each folder instead.
+     * @param darkFrame Dark-frame image, resolved like the flat field, or null for none.
+     */
+    public FlatFieldCorrection(String flatField, String darkFrame) {
+        this.flatField = flatField;
+        this.darkFrame = darkFrame;
+    }
+
+    /**
+     * Reference frames for an input file, loaded or estimated on first use in its folder.
+     *
+     * @param inFile Input file, not a staged copy, so the references of its folder are found.
+     * @return The reference frames, or null if the folder has none.
+     * @throws IOException If a reference exists but can not be read.
+     */
+    public Reference forFile(Path inFile) throws IOException {
+        Path folder = inFile.toAbsolutePath().normalize().getParent();
+        boolean estimate = ESTIMATE.equals(flatField);
+        Path flatFile = estimate ? null : folder.resolve(flatField);
+        Path darkFile = darkFrame == null ? null : folder.resolve(darkFrame);
+        String key = referenceKey(inFile);
+        String version = version(flatFile) + "|" + version(darkFile);
+
+        synchronized (cache) {
+            Reference reference = cache.get(key);
+            if (reference != null && reference.version.equals(version)) {
+                return reference.isEmpty() ? null : reference;
+            }
+
+            try (Metrics.Stage stage = Metrics.start("flat field")) {
+                if (estimate) {
+                    Logger.log("Estimating flat field of " + folder + "...");
+                    List<Path> files = inputFiles(folder, extension(inFile));
+                    files.remove(darkFile);
+                    reference = estimate(files, darkFile, version);
+                }
+                else if (Files.isRegularFile(flatFile)) {
+                    Logger.log("Loading flat field " + flatFile + "...");
+                    reference = new Reference(average(flatFile), darkFile == null ? null : average(darkFile), version);
+                }
+                else {
+                    Logger.warn("No flat field " + flatFile + ", files of " + folder + " are not corrected.");
+                    reference = new Reference(null, null, version);
+                }
+            }
+            cache.put(key, reference);
+            return reference.isEmpty() ? null : reference;
+        }
+    }
+
+    /**
+     * Paths, modification times and sizes of the reference files of an input file, e.g. to key results that were
+     * corrected with them.
+     *
+     * @param inFile Input file, not a staged copy.
+     * @return Text that changes when other or changed reference files are used for the file.
+     * @throws IOException
+     */
+    public String identity(Path inFile) throws IOException {
+        Path folder = inFile.toAbsolutePath().normalize().getParent();
+        Path flatFile = ESTIMATE.equals(flatField) ? null : folder.resolve(flatField);
+        Path darkFile = darkFrame == null ? null : folder.resolve(darkFrame);
+        return referenceKey(inFile) + "|" + version(flatFile) + "|" + version(darkFile);
+    }
+
+    /**
+     * Key of the reference frames of an input file, which are shared by the input files of a folder.
+     */
+    private String referenceKey(Path inFile) {
+        Path folder = inFile.toAbsolutePath().normalize().getParent();
+        Path darkFile = darkFrame == null ? null : folder.resolve(darkFrame);
+        return (ESTIMATE.equals(flatField) ? folder + "/*" + extension(inFile) : folder.resolve(flatField).toString())
+                + "|" + darkFile;
+    }
+
+    /**
+     * @param file A file of an input folder.
+     * @return Whether the file is a reference frame, which is not analyzed itself.
+     */
+    public boolean isReference(Path file) {
+        Path folder = file.toAbsolutePath().normalize().getParent();
+        Path normalized = file.toAbsolutePath().normalize();
+        return (!ESTIMATE.equals(flatField) && normalized.equals(folder.resolve(flatField).normalize()))
+                || (darkFrame != null && normalized.equals(folder.resolve(darkFrame).normalize()));
+    }
+
+    /**
+     * Forget all reference frames, e.g. after they were replaced.
+     */
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    //
+    // Reference frames
+    //
+
+    /**
+     * Dark frame and gain of every channel of one folder.
+     */
+    public static class Reference {
+        public final int width;
+        public final int height;
+        public final int channels;
+        private final float[][] dark;
+        private final float[][] gain;
+        private final String version;
+
+        /**
+         * @param flat Flat-field plane per channel, or null for an empty reference.
+         * @param dark Dark-frame plane per channel, or null for none.
+         */
+        Reference(FloatProcessor[] flat, FloatProcessor[] dark, String version) {
+            this.version = version;
+            if (flat == null) {
+                this.width = 0;
+                this.height = 0;
+                this.channels = 0;
+                this.dark = null;
+                this.gain = null;
+                return;
+            }
+            this.width = flat[0].getWidth();
+            this.height = flat[0].getHeight();
+            this.channels = flat.length;
+            if (dark != null && (dark.length != channels || dark[0].getWidth() != width || dark[0].getHeight() != height)) {
+                throw new IllegalArgumentException("Dark frame and flat field differ in size");
+            }
+
+            this.dark = new float[channels][];
+            this.gain = new float[channels][];
+            for (int c = 0; c < channels; c++) {
+                float[] flatPixels = (float[]) flat[c].getPixels();
+                this.dark[c] = dark == null ? new float[flatPixels.length] : (float[]) dark[c].getPixels();
+                this.gain[c] = new float[flatPixels.length];
+
+                double sum = 0;
+                for (int i = 0; i < flatPixels.length; i++) {
+                    sum += flatPixels[i] - this.dark[c][i];
+                }
+                float mean = (float) (sum / flatPixels.length);
+                for (int i = 0; i < flatPixels.length; i++) {
+                    float signal = flatPixels[i] - this.dark[c][i];
+                    // Dead pixels of the flat field are left as they are
+                    this.gain[c][i] = signal > 0 ? mean / signal : 1;
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return gain == null;
+        }
+
+        /**
+         * @return Whether the reference fits images of the given size and channels.
+         */
+        public boolean matches(int width, int height, int channels) {
+            return this.width == width && this.height == height && this.channels == channels;
+        }
+
+        /**
+         * Correct a whole plane in place.
+         *
+         * @param plane 8-bit, 16-bit or 32-bit plane of the size of the reference.
+         * @param channel Channel of the plane, starting at 0.
+         */
+        public void correct(ImageProcessor plane, int channel) {
+            correct(plane, channel, new Rectangle(0, 0, width, height));
+        }
+
+        /**
+         * Correct a region of a plane in place, e.g. a tile.
+         *
+         * @param region Pixels of the region, an 8-bit, 16-bit or 32-bit processor.
+         * @param channel Channel of the region, starting at 0.
+         * @param bounds Bounds of the region within the plane.
+         */
+        public void correct(ImageProcessor region, int channel, Rectangle bounds) {
+            float[] dark = this.dark[channel];
+            float[] gain = this.gain[channel];
+            if (bounds.width != width || bounds.height != height) {
+                dark = crop(dark, bounds);
+                gain = crop(gain, bounds);
+            }
+
+            if (region instanceof ShortProcessor) {
+                PixelKernels.get().correctFlatField((short[]) region.getPixels(), dark, gain);
+            }
+            else if (region instanceof ByteProcessor) {
+                byte[] pixels = (byte[]) region.getPixels();
+                for (int i = 0; i < pixels.length; i++) {
+                    int value = (int) (((pixels[i] & 0xff) - dark[i]) * gain[i] + 0.5f);
+                    pixels[i] = (byte) Math.min(Math.max(value, 0), 255);
+                }
+            }
+            else if (region instanceof FloatProcessor) {
+                float[] pixels = (float[]) region.getPixels();
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = (pixels[i] - dark[i]) * gain[i];
+                }
+            }
+            else {
+                throw new IllegalArgumentException("Flat-field correction needs gray images, got " + region.getBitDepth() + "-bit");
+            }
+        }
+
+        private float[] crop(float[] plane, Rectangle bounds) {
+            float[] cropped = new float[bounds.width * bounds.height];
+            for (int y = 0; y < bounds.height; y++) {
+                System.arraycopy(plane, (bounds.y + y) * width + bounds.x, cropped, y * bounds.width, bounds.width);
+            }
+            return cropped;
+        }
+
+        /**
+         * Correct the tiles of an image as they are read.
+         *
+         * @param image Tiled image of the size and channels of the reference.
+         * @return Tiled image with corrected tiles, which closes the given image.
+         */
+        public TiledImage correct(TiledImage image) {
+            return new TiledImage(image.title, image.width, image.height, image.calibration, image.luts) {
+                @Override
+                public ImageProcessor readTile(int channel, Rectangle bounds) throws IOException {
+                    ImageProcessor tile = image.readTile(channel, bounds);
+                    correct(tile, channel, bounds);
+                    return tile;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    image.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * Average of all planes of each channel of an image file.
+     */
+    private static FloatProcessor[] average(Path file) throws IOException {
+        ImagePlus image = ReaderPool.openImage(file, true);
+        if (image == null) {
+            throw new IOException("Could not read reference " + file);
+        }
+        try {
+            FloatProcessor[] sums = new FloatProcessor[image.getNChannels()];
+            add(sums, image);
+            return divide(sums, image.getNSlices() * image.getNFrames());
+        } finally {
+            MappedStack.release(image.getStack());
+            image.close();
+        }
+    }
+
+    /**
+     * Estimate the flat field as the average of the middle z-level of some input files, blurred to keep only the
+     * illumination. Only works for folders of many files, in which the samples do not cover the same regions.
+     */
+    private static Reference estimate(List<Path> files, Path darkFile, String version) throws IOException {
+        if (files.isEmpty()) {
+            return new Reference(null, null, version);
+        }
+        FloatProcessor[] sums = null;
+        int count = 0;
+        for (int i = 0; i < ESTIMATE_FILES && i < files.size(); i++) {
+            Path file = files.get((int) ((long) i * files.size() / Math.min(ESTIMATE_FILES, files.size())));
+            ImagePlus image = ReaderPool.openImage(file, true);
+            if (image == null) {
+                continue;
+            }
+            try {
+                if (sums == null) {
+                    sums = new FloatProcessor[image.getNChannels()];
+                }
+                if (sums.length != image.getNChannels() || (sums[0] != null && (sums[0].getWidth() != image.getWidth()
+                        || sums[0].getHeight() != image.getHeight()))) {
+                    Logger.warn("Not estimating the flat field from " + file + ", it differs in size or channels.");
+                    continue;
+                }
+                int z = (image.getNSlices() + 1) / 2;
+                ImageStack stack = image.getStack();
+                for (int c = 0; c < sums.length; c++) {
+                    addPlane(sums, c, stack.getProcessor(image.getStackIndex(c + 1, z, 1)));
+                }
+                count++;
+            } finally {
+                MappedStack.release(image.getStack());
+                image.close();
+            }
+        }
+        if (count == 0) {
+            return new Reference(null, null, version);
+        }
+
+        FloatProcessor[] flat = divide(sums, count);
+        GaussianBlur blur = new GaussianBlur();
+        for (FloatProcessor plane : flat) {
+            double sigma = Math.max(plane.getWidth(), plane.getHeight()) / 16.0;
+            blur.blurGaussian(plane, sigma, sigma, 0.002);
+        }
+        return new Reference(flat, darkFile == null ? null : average(darkFile), version);
+    }
+
+    private static void add(FloatProcessor[] sums, ImagePlus image) {
+        ImageStack stack = image.getStack();
+        for (int n = 1; n <= stack.getSize(); n++) {
+            int channel = image.convertIndexToPosition(n)[0] - 1;
+            addPlane(sums, channel, stack.getProcessor(n));
+        }
+    }
+
+    private static void addPlane(FloatProcessor[] sums, int channel, ImageProcessor plane) {
+        if (sums[channel] == null) {
+            sums[channel] = new FloatProcessor(plane.getWidth(), plane.getHeight());
+        }
+        float[] sum = (float[]) sums[channel].getPixels();
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += plane.getf(i);
+        }
+    }
+
+    private static FloatProcessor[] divide(FloatProcessor[] sums, int count) {
+        for (FloatProcessor sum : sums) {
+            sum.multiply(1.0 / count);
+        }
+        return sums;
+    }
+
+    //
+    // Files
+    //
+
+    private static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot);
+    }
+
+    private static List<Path> inputFiles(Path folder, String extension) throws IOException {
+        try (Stream<Path> entries = Files.list(folder)) {
+            return entries.filter(entry -> entry.getFileName().toString().endsWith(extension) && Files.isRegularFile(entry))
+                          .sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Modification time and size of a reference file, so changed references are loaded again.
+     */
+    private static String version(Path file) throws IOException {
+        if (file == null || !Files.isRegularFile(file)) {
+            return "none";
+        }
+        return Files.getLastModifiedTime(file) + ":" + Files.size(file);
+    }
+}
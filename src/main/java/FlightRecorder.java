@@ -0,0 +1,71 @@
+/**
+ * Java Flight Recorder events of the files and stages of a run, to correlate profiles of production runs with the
+ * analysis. This base class records nothing. The implementation with JFR events is only in the Java 17 part of the
+ * multi-release jar. It is selected automatically, unless the system property wagner.flightRecorder is false.
+ * The events are only committed while a recording is running, e.g. with -XX:StartFlightRecording.
+ */
+public class FlightRecorder {
+    private static final FlightRecorder NONE = new FlightRecorder();
+    private static final FlightRecorder DEFAULT =
+            "false".equals(System.getProperty("wagner.flightRecorder")) ? NONE : load();
+
+    /**
+     * @return The recorder of this JVM, which may record nothing.
+     */
+    public static FlightRecorder get() {
+        return DEFAULT;
+    }
+
+    private static FlightRecorder load() {
+        try {
+            // Only present in META-INF/versions/17
+            return (FlightRecorder) Class.forName("JfrFlightRecorder").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            Logger.debug(() -> "Flight recorder events are not available: " + e);
+            return NONE;
+        }
+    }
+
+    /**
+     * @return Name of the implementation.
+     */
+    public String getName() {
+        return "none";
+    }
+
+    /**
+     * Start the event of a stage on the current thread.
+     *
+     * @return The running event, to be passed to endStage, or null if stages are not recorded.
+     */
+    public Object beginStage() {
+        return null;
+    }
+
+    /**
+     * @param event Event returned by beginStage.
+     * @param stage Name of the stage, e.g. "open".
+     * @param file File the stage was attributed to.
+     * @param bytesRead Bytes read by the stage.
+     * @param bytesWritten Bytes written by the stage.
+     */
+    public void endStage(Object event, String stage, Metrics.FileInfo file, long bytesRead, long bytesWritten) {
+    }
+
+    /**
+     * Start the event of a file on the current thread.
+     *
+     * @return The running event, to be passed to endFile, or null if files are not recorded.
+     */
+    public Object beginFile() {
+        return null;
+    }
+
+    /**
+     * @param event Event returned by beginFile.
+     * @param file The file, with its dimensions and analysis type if they are known.
+     * @param completed Whether the file was processed completely.
+     */
+    public void endFile(Object event, Metrics.FileInfo file, boolean completed) {
+    }
+}
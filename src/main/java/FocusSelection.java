@@ -0,0 +1,147 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Selection of the z-levels in focus of a stack, by the variance of the Laplacian of its planes: sharp planes have
+ * strong edges, so their Laplacian varies most. The z-levels are scored on planes binned to about SCORE_SIZE, first
+ * every few levels and then the levels around the sharpest of those, so a stack of n levels needs about 2 sqrt(n)
+ * planes. This assumes that the sharpness has a single peak, as it has through the depth of field of an objective.
+ */
+public class FocusSelection {
+    /**
+     * Maximum width and height of the binned planes that are scored.
+     */
+    public static final int SCORE_SIZE = 512;
+
+    /**
+     * Score of one z-level, e.g. computed from planes read from a file.
+     */
+    interface Scorer {
+        /**
+         * @param z Index of the z-level, starting at 0.
+         * @return Sharpness of the z-level, larger is sharper.
+         */
+        double score(int z) throws IOException;
+    }
+
+    /**
+     * Variance of the 4-neighbour Laplacian of a plane. RGB planes are scored by their brightness.
+     *
+     * @param plane Plane to score.
+     * @return Sharpness of the plane, larger is sharper.
+     */
+    public static double varianceOfLaplacian(ImageProcessor plane) {
+        if (plane instanceof ColorProcessor) {
+            plane = plane.convertToFloat();
+        }
+        int width = plane.getWidth();
+        int height = plane.getHeight();
+        if (width < 3 || height < 3) {
+            return 0;
+        }
+        double sum = 0;
+        double sumSquares = 0;
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                double laplacian = plane.getf(x - 1, y) + plane.getf(x + 1, y) + plane.getf(x, y - 1)
+                        + plane.getf(x, y + 1) - 4 * plane.getf(x, y);
+                sum += laplacian;
+                sumSquares += laplacian * laplacian;
+            }
+        }
+        double n = (double) (width - 2) * (height - 2);
+        double mean = sum / n;
+        return Math.max(sumSquares / n - mean * mean, 0);
+    }
+
+    /**
+     * Score the z-levels coarse to fine: every stride-th level, and then the levels between the sharpest one of those
+     * and its scored neighbours.
+     *
+     * @param slices Number of z-levels.
+     * @param scorer Score of a z-level.
+     * @return Score of every z-level, NaN for the ones that were not scored.
+     * @throws IOException
+     */
+    static double[] score(int slices, Scorer scorer) throws IOException {
+        double[] scores = new double[slices];
+        Arrays.fill(scores, Double.NaN);
+        int stride = Math.max((int) Math.round(Math.sqrt(slices)), 1);
+        for (int z = stride / 2; z < slices; z += stride) {
+            scores[z] = scorer.score(z);
+        }
+        int sharpest = sharpest(scores);
+        for (int z = Math.max(sharpest - stride + 1, 0); z <= Math.min(sharpest + stride - 1, slices - 1); z++) {
+            if (Double.isNaN(scores[z])) {
+                scores[z] = scorer.score(z);
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * @param scores Score of every z-level, NaN for the ones that were not scored.
+     * @return Index of the sharpest z-level that was scored.
+     */
+    static int sharpest(double[] scores) {
+        int sharpest = 0;
+        for (int z = 0; z < scores.length; z++) {
+            if (!Double.isNaN(scores[z]) && (Double.isNaN(scores[sharpest]) || scores[z] > scores[sharpest])) {
+                sharpest = z;
+            }
+        }
+        return sharpest;
+    }
+
+    /**
+     * @param scores Score of every z-level, NaN for the ones that were not scored.
+     * @param count Number of consecutive z-levels to select.
+     * @return First and last z-level around the sharpest one, starting at 1 like the z-levels of ImageJ.
+     */
+    public static int[] sharpestRange(double[] scores, int count) {
+        int slices = scores.length;
+        count = Math.max(Math.min(count, slices), 1);
+        int first = Math.max(Math.min(sharpest(scores) - (count - 1) / 2, slices - count), 0);
+        return new int[]{first + 1, first + count};
+    }
+
+    /**
+     * Select the z-levels in focus of loaded images, e.g. of the channels of a stack. The first frame of every
+     * channel of the images is scored. Virtual stacks only read the planes that are scored.
+     *
+     * @param images Images with the same z-levels.
+     * @param count Number of consecutive z-levels to select.
+     * @return First and last z-level around the sharpest one, starting at 1.
+     */
+    public static int[] sharpestRange(ImagePlus[] images, int count) {
+        int binning = ReaderPool.thumbnailBinning(images[0].getWidth(), images[0].getHeight(), SCORE_SIZE);
+        try {
+            return sharpestRange(score(images[0].getNSlices(), z -> {
+                double score = 0;
+                for (ImagePlus image : images) {
+                    ImageStack stack = image.getStack();
+                    for (int c = 1; c <= image.getNChannels(); c++) {
+                        ImageProcessor plane = stack.getProcessor(image.getStackIndex(c, z + 1, 1));
+                        score += varianceOfLaplacian(binning > 1 ? plane.bin(binning) : plane);
+                    }
+                }
+                return score;
+            }), count);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param range First and last z-level.
+     * @return Range in the format of AnalysisSettings.zRange, e.g. "3-7".
+     */
+    public static String toZRange(int[] range) {
+        return range[0] + "-" + range[1];
+    }
+}
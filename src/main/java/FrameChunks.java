@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Processing of the frames of a time-lapse in chunks of consecutive frames, like TiledImage.forEachTile processes
+ * the tiles of a plane. Chunks are read in order on the calling thread, processed by workers, and their results are
+ * consumed in order on the calling thread again, e.g. by a video encoder. Only a bounded number of chunks is read
+ * and not yet consumed, so the whole time-lapse is never in memory.
+ */
+public class FrameChunks {
+    public interface ChunkReader<T> {
+        /**
+         * @param first Index of the first frame of the chunk, starting at 0.
+         * @param count Number of frames of the chunk.
+         */
+        T read(int first, int count) throws IOException;
+    }
+
+    public interface ChunkTask<T, R> {
+        R process(T chunk) throws IOException;
+    }
+
+    public interface ChunkConsumer<R> {
+        void accept(R result) throws IOException;
+    }
+
+    /**
+     * Number of chunks in flight, two per worker so workers do not wait for the reader, but only as many as take
+     * a quarter of the heap.
+     *
+     * @param chunkBytes Bytes of a chunk and its result.
+     * @param threads Number of workers.
+     * @return Maximum number of chunks that are read and not yet consumed.
+     */
+    public static int chunksInFlight(long chunkBytes, int threads) {
+        long fit = Runtime.getRuntime().maxMemory() / 4 / Math.max(chunkBytes, 1);
+        return (int) Math.max(Math.min(fit, 2L * Math.max(threads, 1)), 1);
+    }
+
+    /**
+     * Read, process and consume all chunks of frames.
+     *
+     * @param frames Number of frames.
+     * @param chunkFrames Number of frames per chunk. The last chunk may have fewer.
+     * @param threads Number of chunks processed in parallel.
+     * @param maxInFlight Number of chunks that are read and not yet consumed.
+     * @param reader Reads a chunk, called in order on the calling thread.
+     * @param task Processes a chunk, called by the workers.
+     * @param consumer Consumes the results, called in order on the calling thread.
+     * @throws IOException
+     */
+    public static <T, R> void forEachChunk(int frames, int chunkFrames, int threads, int maxInFlight,
+                                           ChunkReader<T> reader, ChunkTask<T, R> task, ChunkConsumer<R> consumer)
+            throws IOException {
+        if (chunkFrames <= 0) {
+            throw new IllegalArgumentException("Frames per chunk must be positive, got " + chunkFrames);
+        }
+        Metrics.FileInfo file = Metrics.getCurrentFile();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        Deque<Future<R>> inFlight = new ArrayDeque<>();
+
+        try {
+            for (int first = 0; first < frames; first += chunkFrames) {
+                if (inFlight.size() >= Math.max(maxInFlight, 1)) {
+                    consumer.accept(inFlight.removeFirst().get());
+                }
+                T chunk = reader.read(first, Math.min(chunkFrames, frames - first));
+                inFlight.addLast(executor.submit(() -> {
+                    Metrics.setCurrentFile(file);
+                    return task.process(chunk);
+                }));
+            }
+            while (!inFlight.isEmpty()) {
+                consumer.accept(inFlight.removeFirst().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing frames", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Failed to process frames", cause);
+        } finally {
+            for (Future<R> future : inFlight) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+}
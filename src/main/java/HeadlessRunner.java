@@ -0,0 +1,203 @@
+import ij.macro.Interpreter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line entry point for processing without dialogs or windows.
+ *
+ * <pre>
+ * java -cp ... HeadlessRunner --in DIR --out DIR [--suffix .nd2] [--shard i/N] [--options "roi=0,0,500,500 ..."]
+ * java -cp ... HeadlessRunner --in DIR --out DIR [--suffix .nd2] --merge N
+ * java -cp ... HeadlessRunner --in DIR --out DIR [--suffix .nd2] [--options OPTIONS] --preflight SIZE
+ * java -cp ... HeadlessRunner --daemon SPOOLDIR [--port N] [--workers N] [--heap 0.5] [--prefetch 1]
+ * java -cp ... HeadlessRunner --extract CONTAINER [--out DIR] [--products NAME,NAME]
+ * </pre>
+ * --shard i/N processes the files whose relative path hashes to shard i, so every shard must be given the same --in,
+ * --suffix and N. The shard of a file does not depend on the other files, and --merge N lists the files of the tree
+ * that no shard completed, e.g. files that were added after the shards listed the tree.
+ * Files that fail or run over "timeout=" in the options are listed in failures.csv and give exit code 1.
+ * Files with several series, e.g. the stage positions of an ND2 file, are processed series by series, each with its
+ * own timeout and retries, and their output files are named after the series, e.g. "plate.nd2_series002".
+ * Failed series are listed in failures.csv with their number.
+ * --extract lists the products of a container written with "container=true", or extracts them into --out.
+ * --preflight writes a contact sheet of previews and the region and projection of every file to --out, which are
+ * used by a later run with "preflight=[DIR/preflight.csv]" in the options, after they were reviewed and edited.
+ * Interrupting the process, e.g. with Ctrl+C, cancels the run after the current file is aborted.
+ */
+public class HeadlessRunner {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = parseArguments(args);
+        if (arguments.containsKey("daemon")) {
+            System.exit(runDaemon(arguments));
+        }
+        if (arguments.containsKey("extract")) {
+            System.exit(runExtract(arguments));
+        }
+        if (!arguments.containsKey("in") || !arguments.containsKey("out")) {
+            System.err.println("Usage: HeadlessRunner --in DIR --out DIR [--suffix .nd2] [--shard i/N] [--options OPTIONS]"
+                    + " | --merge N | --preflight SIZE\n       HeadlessRunner --daemon SPOOLDIR [--port N] [--workers N]"
+                    + "\n       HeadlessRunner --extract CONTAINER [--out DIR] [--products NAME,NAME]");
+            System.exit(2);
+        }
+
+        Path inFolder = Paths.get(arguments.get("in")).normalize().toAbsolutePath();
+        Path outFolder = Paths.get(arguments.get("out")).normalize().toAbsolutePath();
+        String fileSuffix = arguments.getOrDefault("suffix", ".nd2");
+        Files.createDirectories(outFolder);
+
+        Interpreter.batchMode = true;
+        AnalysisSettings settings = AnalysisSettings.fromOptions(arguments.get("options"));
+        FileNavigator fileNavigator = new FileNavigator(new Stepwise_Analyzer(settings));
+        fileNavigator.setFaultTolerance(settings.fileTimeout, settings.retries);
+        fileNavigator.setFlatFieldCorrection(settings.createFlatFieldCorrection());
+
+        int exitCode = 0;
+        if (arguments.containsKey("preflight")) {
+            exitCode = runPreflight(fileNavigator, settings, inFolder, outFolder, fileSuffix,
+                                    Integer.parseInt(arguments.get("preflight")));
+        }
+        else if (arguments.containsKey("merge")) {
+            int shardCount = Integer.parseInt(arguments.get("merge"));
+            List<String> missing = fileNavigator.mergeShards(inFolder, outFolder, fileSuffix, shardCount);
+            for (String path : missing) {
+                Logger.error("Not completed by any shard: " + path);
+            }
+            exitCode = missing.isEmpty() ? 0 : 1;
+        }
+        else {
+            int[] shard = Sharding.parse(arguments.getOrDefault("shard", "0/1"));
+            CountDownLatch finished = cancelOnShutdown(fileNavigator.getCancellation());
+            try (StagingCache stagingCache = settings.createStagingCache()) {
+                fileNavigator.setStagingCache(stagingCache);
+                Metrics.reset();
+                List<FileNavigator.Failure> failures =
+                        fileNavigator.processFolder(inFolder, outFolder, fileSuffix, shard[0], shard[1]);
+                Metrics.writeReport(outFolder, shard[1] > 1 ? "metrics_shard-" + shard[0] + "-of-" + shard[1] + "_" : "metrics_");
+                exitCode = failures.isEmpty() && !fileNavigator.getCancellation().isCancelled() ? 0 : 1;
+            } finally {
+                Logger.flush();
+                finished.countDown();
+            }
+        }
+
+        Logger.flush();
+        System.exit(exitCode);
+    }
+
+    /**
+     * Cancel the run when the JVM is shut down, e.g. by Ctrl+C, and give it some time to write its reports.
+     *
+     * @param cancellation Token of the run.
+     * @return Latch to count down when the run wrote its reports.
+     */
+    static CountDownLatch cancelOnShutdown(Cancellation cancellation) {
+        CountDownLatch finished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (finished.getCount() == 0) {
+                return;
+            }
+            cancellation.cancel("Shutdown");
+            try {
+                finished.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "HeadlessRunner-shutdown"));
+        return finished;
+    }
+
+    /**
+     * Run an analysis daemon until it is shut down.
+     * Without --port it only reads jobs from the spool folder, with --port 0 it listens on a free port.
+     *
+     * @return Exit code.
+     */
+    static int runDaemon(Map<String, String> arguments) throws IOException, InterruptedException {
+        Interpreter.batchMode = true;
+        Path spoolFolder = Paths.get(arguments.get("daemon")).normalize().toAbsolutePath();
+        int workers = Integer.parseInt(arguments.getOrDefault("workers",
+                String.valueOf(Math.max(Runtime.getRuntime().availableProcessors() / 2, 1))));
+        double heapFraction = Double.parseDouble(arguments.getOrDefault("heap", "0.5"));
+        int prefetchDepth = Integer.parseInt(arguments.getOrDefault("prefetch", "1"));
+
+        try (AnalysisDaemon daemon = new AnalysisDaemon(spoolFolder, workers, heapFraction, prefetchDepth)) {
+            daemon.start(Integer.parseInt(arguments.getOrDefault("port", "-1")));
+            daemon.awaitShutdown();
+        }
+        Logger.flush();
+        return 0;
+    }
+
+    /**
+     * Write the contact sheet and the choices of a folder, with the region and projection of the options for every
+     * file that could be read.
+     *
+     * @param maxSize Maximum width and height of the previews.
+     * @return Exit code.
+     */
+    static int runPreflight(FileNavigator fileNavigator, AnalysisSettings settings, Path inFolder, Path outFolder,
+                            String fileSuffix, int maxSize) throws IOException, InterruptedException {
+        List<Path> files = new ArrayList<>();
+        for (FileNavigator.FileIO fileIO : fileNavigator.collectFilePaths(inFolder, outFolder, fileSuffix)) {
+            files.add(fileIO.inPath);
+        }
+        List<Preflight.Thumbnail> thumbnails = Preflight.thumbnails(files, maxSize,
+                Runtime.getRuntime().availableProcessors());
+        Stepwise_Analyzer analyzer = new Stepwise_Analyzer(settings);
+        Map<Path, Preflight.Choice> choices = Preflight.defaults(thumbnails, analyzer.defaultRoi, analyzer.analysisType);
+        int columns = Math.max((int) Math.ceil(Math.sqrt(thumbnails.size())), 1);
+        Path file = Preflight.save(Preflight.contactSheet(thumbnails, columns, 0.35), choices, outFolder);
+        Logger.log("Wrote pre-flight of " + thumbnails.size() + " of " + files.size() + " files to " + file);
+        Logger.flush();
+        return thumbnails.size() == files.size() ? 0 : 1;
+    }
+
+    /**
+     * List the products of a container, or extract them with --out, all or only the ones given by --products.
+     *
+     * @return Exit code.
+     */
+    static int runExtract(Map<String, String> arguments) throws IOException {
+        Path container = Paths.get(arguments.get("extract"));
+        if (!arguments.containsKey("out")) {
+            for (String name : OutputSink.list(container)) {
+                System.out.println(name);
+            }
+            return 0;
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : arguments.getOrDefault("products", "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        for (Path file : OutputSink.extract(container, Paths.get(arguments.get("out")), names)) {
+            Logger.log("Extracted " + file);
+        }
+        Logger.flush();
+        return 0;
+    }
+
+    /**
+     * Parse arguments of the form "--key value".
+     */
+    static Map<String, String> parseArguments(String[] args) {
+        Map<String, String> arguments = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --key value, got " + args[i]);
+            }
+            arguments.put(args[i].substring(2), args[++i]);
+        }
+        return arguments;
+    }
+}
@@ -1,7 +1,92 @@
 import ij.ImagePlus;
 
+import java.io.IOException;
 import java.nio.file.Path;
 
 public interface ImageAnalyzer {
     void processImage(ImagePlus image, Path outFolder);
+
+    /**
+     * Process an image that was loaded from a file. Analyzers that keep results per input file override this.
+     *
+     * @param image Loaded image.
+     * @param inFile File the image was loaded from.
+     * @param outFolder Output folder for derived files.
+     */
+    default void processImage(ImagePlus image, Path inFile, Path outFolder) {
+        processImage(image, outFolder);
+    }
+
+    /**
+     * Process one of several series of a file, e.g. one stage position of an ND2 file. In a run over several files,
+     * every series is processed like a file of its own, with its own deadline and retries, otherwise the series
+     * are processed one after the other. Files with several series should not be cached, tiled or read as substack.
+     *
+     * @param image Loaded series, titled by ReaderPool.seriesTitle.
+     * @param inFile File the series was loaded from.
+     * @param series Index of the series, starting at 0.
+     * @param outFolder Output folder for derived files.
+     */
+    default void processSeries(ImagePlus image, Path inFile, int series, Path outFolder) {
+        processImage(image, inFile, outFolder);
+    }
+
+    /**
+     * Whether a file can be processed from cached intermediate results, so it does not need to be loaded.
+     */
+    default boolean isCached(Path inFile) {
+        return false;
+    }
+
+    /**
+     * Process a file from cached intermediate results, without loading it.
+     *
+     * @param inFile Input file.
+     * @param outFolder Output folder for derived files.
+     * @return Whether cached results were found and processed. If not, the file has to be loaded.
+     */
+    default boolean processCached(Path inFile, Path outFolder) {
+        return false;
+    }
+
+    /**
+     * Whether a file is processed tile by tile, so it is not loaded as a whole. Decided on the metadata of the file
+     * once it is opened, see ReaderPool.getCachedMetadata, as the navigator asks again before it reads the planes.
+     * It should not read the file itself.
+     */
+    default boolean isTiled(Path inFile) {
+        return false;
+    }
+
+    /**
+     * Process a file tile by tile, without loading it as a whole.
+     *
+     * @param inFile Input file.
+     * @param outFolder Output folder for derived files.
+     * @return Whether the file was processed. If not, the file has to be loaded.
+     * @throws IOException
+     */
+    default boolean processTiled(Path inFile, Path outFolder) throws IOException {
+        return false;
+    }
+
+    /**
+     * Whether only a substack of a file is needed, e.g. its z-levels in focus, which the analyzer reads itself.
+     * Decided on cached metadata like isTiled.
+     */
+    default boolean isSubstack(Path inFile) {
+        return false;
+    }
+
+    /**
+     * Process a file from a substack that the analyzer reads, without loading the whole stack.
+     *
+     * @param inFile Input file.
+     * @param outFolder Output folder for derived files.
+     * @return Whether the file was processed. If not, the file has to be loaded.
+     * @throws IOException
+     */
+    default boolean processSubstack(Path inFile, Path outFolder) throws IOException {
+        return false;
+    }
 }
@@ -1,54 +1,297 @@
 import ij.*;
+import ij.gui.Overlay;
 import ij.gui.Roi;
+import ij.gui.TextRoi;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
 import ij.plugin.*;
 import ij.plugin.filter.AVI_Writer;
 import ij.plugin.frame.ContrastAdjuster;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
 
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
 import java.awt.image.PixelGrabber;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 public class ImageChanger {
+    /**
+     * Name of the bar and label of scaleBarOverlay, so they can be told apart from other overlay elements.
+     */
+    public static final String SCALE_BAR = "Scale bar";
+
     public static void setCurrentImage(ImagePlus image) {
-        Logger.log("Setting current image to: " + image.getTitle());
+        Logger.debug(() -> "Setting current image to: " + image.getTitle());
         WindowManager.setTempCurrentImage(image);
         WindowManager.setCurrentWindow(image.getWindow());
     }
 
     public static ImagePlus adjustBrightnessContrast(ImagePlus image) {
-        setCurrentImage(image);
-        Logger.log("Adjusting Brightness & Contrast...");
+        try (Metrics.Stage stage = Metrics.start("contrast")) {
+            setCurrentImage(image);
+            Logger.log("Adjusting Brightness & Contrast...");
 
-        // Adjust Brightness/Contrast
-        ContrastAdjuster contrastAdjuster = new ContrastAdjuster();
-        contrastAdjuster.run("");
-        WindowHelpers.waitUntilClose(contrastAdjuster);
+            // Adjust Brightness/Contrast
+            ContrastAdjuster contrastAdjuster = new ContrastAdjuster();
+            contrastAdjuster.run("");
+            WindowHelpers.waitUntilClose(contrastAdjuster);
 
-        return IJ.getImage();
+            return IJ.getImage();
+        }
     }
 
     public static ImagePlus crop(ImagePlus image, Roi defaultRoi) {
-        setCurrentImage(image);
-        Logger.log("Cropping image...");
+        try (Metrics.Stage stage = Metrics.start("crop")) {
+            setCurrentImage(image);
+            Logger.log("Cropping image...");
 
-        if (defaultRoi != null) { image.setRoi(defaultRoi);}
-        SpecifyROI_Interactively specifyRoiInteractively = new SpecifyROI_Interactively();
-        specifyRoiInteractively.runOnImage(image);
+            if (defaultRoi != null) { image.setRoi(defaultRoi);}
+            SpecifyROI_Interactively specifyRoiInteractively = new SpecifyROI_Interactively();
+            specifyRoiInteractively.runOnImage(image);
 
-        Resizer resizer = new Resizer();
-        resizer.run("crop");
+            Resizer resizer = new Resizer();
+            resizer.run("crop");
 
-        return IJ.getImage();
+            return IJ.getImage();
+        }
     }
 
     public static ImagePlus addScaleBar(ImagePlus image) {
-        setCurrentImage(image);
-        WindowManager.setTempCurrentImage(image);
-        Logger.log("Adding scale bar...");
+        try (Metrics.Stage stage = Metrics.start("scale bar")) {
+            setCurrentImage(image);
+            WindowManager.setTempCurrentImage(image);
+            Logger.log("Adding scale bar...");
 
-        ScaleBar scaleBar = new ScaleBar();
-        scaleBar.run("");
+            ScaleBar scaleBar = new ScaleBar();
+            scaleBar.run("");
 
-        return IJ.getImage();
+            return IJ.getImage();
+        }
+    }
+
+    //
+    // Non-interactive methods
+    //
+
+    public static ImagePlus autoContrast(ImagePlus image, double saturated) {
+        try (Metrics.Stage stage = Metrics.start("contrast")) {
+            Logger.log("Adjusting Brightness & Contrast automatically...");
+
+            ContrastEnhancer contrastEnhancer = new ContrastEnhancer();
+            int currentChannel = image.getC();
+            for (int c = 1; c <= image.getNChannels(); c++) {
+                image.setC(c);
+                ImageProcessor processor = image.getProcessor();
+                contrastEnhancer.stretchHistogram(processor, saturated, processor.getStats());
+                image.setDisplayRange(processor.getMin(), processor.getMax());
+            }
+            image.setC(currentChannel);
+
+            return image;
+        }
+    }
+
+    public static ImagePlus cropTo(ImagePlus image, Roi roi) {
+        try (Metrics.Stage stage = Metrics.start("crop")) {
+            if (roi == null) {
+                return image;
+            }
+            Logger.log("Cropping image to " + roi.getBounds() + "...");
+
+            // Virtual stacks are cropped plane by plane, so they stay off the heap
+            if (image.getStack().isVirtual()) {
+                return MappedStack.crop(image, roi.getBounds());
+            }
+
+            image.setRoi(roi);
+            ImagePlus cropped = new Duplicator().run(image);
+            image.deleteRoi();
+            cropped.deleteRoi();
+            cropped.setTitle(image.getTitle());
+
+            return cropped;
+        }
+    }
+
+    /**
+     * Add a scale bar with label as overlay, in the lower right corner.
+     *
+     * @param image Image with spatial calibration.
+     * @param barWidth Width of the bar in calibrated units. Non-positive values choose about a tenth of the image width.
+     * @return The image with scale bar overlay.
+     */
+    public static ImagePlus addScaleBarOverlay(ImagePlus image, double barWidth) {
+        try (Metrics.Stage stage = Metrics.start("scale bar")) {
+            Logger.log("Adding scale bar overlay...");
+
+            Overlay overlay = image.getOverlay() == null ? new Overlay() : image.getOverlay();
+            for (Roi roi : scaleBarOverlay(image.getWidth(), image.getHeight(), image.getCalibration(), barWidth).toArray()) {
+                overlay.add(roi);
+            }
+            image.setOverlay(overlay);
+
+            return image;
+        }
+    }
+
+    /**
+     * Scale bar with label in the lower right corner of an image, see addScaleBarOverlay.
+     *
+     * @param width Width of the image.
+     * @param height Height of the image.
+     * @param calibration Spatial calibration of the image.
+     * @param barWidth Width of the bar in calibrated units. Non-positive values choose about a tenth of the image width.
+     * @return Overlay with the bar and its label.
+     */
+    public static Overlay scaleBarOverlay(int width, int height, Calibration calibration, double barWidth) {
+        double pixelWidth = calibration.scaled() ? calibration.pixelWidth : 1;
+        if (barWidth <= 0) {
+            // Round a tenth of the image width down to 1, 2 or 5 times a power of ten
+            double target = width * pixelWidth / 10;
+            double magnitude = Math.pow(10, Math.floor(Math.log10(target)));
+            double leading = target / magnitude;
+            barWidth = (leading >= 5 ? 5 : leading >= 2 ? 2 : 1) * magnitude;
+        }
+
+        int barPixels = Math.max((int) Math.round(barWidth / pixelWidth), 1);
+        int barHeight = Math.max(height / 100, 2);
+        int fontSize = Math.max(height / 30, 9);
+        int margin = Math.max(width / 50, 2);
+        int x = width - margin - barPixels;
+        int y = height - margin - barHeight;
+
+        Roi bar = new Roi(x, y, barPixels, barHeight);
+        bar.setName(SCALE_BAR);
+        bar.setFillColor(Color.white);
+        String unit = calibration.scaled() ? calibration.getUnits() : "px";
+        String label = IJ.d2s(barWidth, barWidth == Math.rint(barWidth) ? 0 : 2) + " " + unit;
+        TextRoi text = new TextRoi(label, x, y - fontSize - 2, new Font("SansSerif", Font.BOLD, fontSize));
+        text.setName(SCALE_BAR);
+        text.setStrokeColor(Color.white);
+
+        Overlay overlay = new Overlay();
+        overlay.add(bar);
+        overlay.add(text);
+        return overlay;
+    }
+
+    public static ImagePlus makeSubstack(ImagePlus image, String zRange) {
+        try (Metrics.Stage stage = Metrics.start("substack")) {
+            Logger.log("Making substack of z-levels " + zRange + "...");
+
+            String[] bounds = zRange.split("-");
+            int first = Math.max(Integer.parseInt(bounds[0].trim()), 1);
+            int last = Math.min(Integer.parseInt(bounds[bounds.length - 1].trim()), image.getNSlices());
+            ImagePlus substack = new Duplicator().run(image, 1, image.getNChannels(), first, last, 1, image.getNFrames());
+            substack.setTitle(image.getTitle());
+            if (substack.getOverlay() == null && image.getOverlay() != null) {
+                substack.setOverlay(image.getOverlay().duplicate());
+            }
+
+            return substack;
+        }
+    }
+
+    /**
+     * Brightest point projection of a z-stack rotating around the Y-axis in steps of 10 degrees.
+     * Non-interactive replacement for the "3D Project..." command, which needs a dialog.
+     *
+     * @param image Single channel z-stack.
+     * @return A stack with one projection per angle.
+     */
+    public static ImagePlus projectRotating(ImagePlus image) {
+        try (Metrics.Stage stage = Metrics.start("project")) {
+            Logger.log("3D projecting...");
+
+            ImageStack stack = image.getStack();
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int depth = stack.getSize();
+            Calibration calibration = image.getCalibration();
+            double zScale = calibration.pixelWidth > 0 ? calibration.pixelDepth / calibration.pixelWidth : 1;
+            double centerX = (width - 1) / 2.0;
+            double centerZ = (depth - 1) * zScale / 2.0;
+            int radius = (int) Math.ceil(Math.sqrt(centerX * centerX + centerZ * centerZ));
+
+            ImageStack projections = new ImageStack(2 * radius + 1, height);
+            for (int angle = 0; angle < 360; angle += 10) {
+                double cos = Math.cos(Math.toRadians(angle));
+                double sin = Math.sin(Math.toRadians(angle));
+                ImageProcessor projection = stack.getProcessor(1).createProcessor(2 * radius + 1, height);
+
+                for (int z = 0; z < depth; z++) {
+                    ImageProcessor plane = stack.getProcessor(z + 1);
+                    double dz = z * zScale - centerZ;
+                    for (int x = 0; x < width; x++) {
+                        int u = (int) Math.round((x - centerX) * cos + dz * sin) + radius;
+                        for (int y = 0; y < height; y++) {
+                            float value = plane.getf(x, y);
+                            if (value > projection.getf(u, y)) {
+                                projection.setf(u, y, value);
+                            }
+                        }
+                    }
+                }
+                projections.addSlice(null, projection);
+            }
+
+            ImagePlus projected = new ImagePlus("Projections of " + image.getShortTitle(), projections);
+            projected.setLut(image.getProcessor().getLut());
+            projected.setDisplayRange(image.getDisplayRangeMin(), image.getDisplayRangeMax());
+            return projected;
+        }
+    }
+
+    /**
+     * Maximum intensity projection with the pixel kernels. Gives the same image as ZProjector.run(image, "max"),
+     * which is used for everything but single channel 8-bit and 16-bit stacks.
+     *
+     * @param image Single channel z-stack.
+     * @return Projection titled "MAX_" and the title of the image.
+     */
+    public static ImagePlus maxProject(ImagePlus image) {
+        try (Metrics.Stage stage = Metrics.start("project")) {
+            int bitDepth = image.getBitDepth();
+            if (image.getNChannels() != 1 || image.getNFrames() != 1 || (bitDepth != 8 && bitDepth != 16)) {
+                return ZProjector.run(image, "max");
+            }
+
+            PixelKernels kernels = PixelKernels.get();
+            ImageStack stack = image.getStack();
+            ImageProcessor projection = stack.getProcessor(1).duplicate();
+            Object maximum = projection.getPixels();
+            for (int z = 2; z <= stack.getSize(); z++) {
+                if (bitDepth == 8) {
+                    kernels.maxInto((byte[]) maximum, (byte[]) stack.getPixels(z));
+                } else {
+                    kernels.maxInto((short[]) maximum, (short[]) stack.getPixels(z));
+                }
+            }
+
+            projection.setLut(image.getProcessor().getLut());
+            ImagePlus projected = new ImagePlus("MAX_" + image.getTitle(), projection);
+            projected.setCalibration(image.getCalibration());
+            if (image.getOverlay() != null) {
+                projected.setOverlay(image.getOverlay().duplicate());
+            }
+            projected.resetDisplayRange();
+            return projected;
+        }
     }
 
     public static ImagePlus toRGB(ImagePlus image) {
@@ -60,12 +303,14 @@ public class ImageChanger {
     }
 
     public static ImagePlus toGrey(ImagePlus image) {
-        Logger.log("Converting image to Grey...");
+        try (Metrics.Stage stage = Metrics.start("gray")) {
+            Logger.log("Converting image to Grey...");
 
-        CompositeImage compositeImage = new CompositeImage(image);
-        compositeImage.setDisplayMode(IJ.GRAYSCALE);
+            CompositeImage compositeImage = new CompositeImage(image);
+            compositeImage.setDisplayMode(IJ.GRAYSCALE);
 
-        return compositeImage;
+            return compositeImage;
+        }
     }
 
     public static String whichColor(ImagePlus image) {
@@ -81,22 +326,9 @@ public class ImageChanger {
             e.printStackTrace();
         }
 
-        int[] rgbValues = new int[3];
-        for (int i = 0; i < numPixels; i++) {
-            int pixel = pixels[i];
-            int red = (pixel & 16711680) >> 16;
-            int green = (pixel & '\uff00') >> 8;
-            int blue = pixel & 255;
-
-            if (red > green &&  red > blue) {
-                rgbValues[0] += 1;
-            } else if (green > blue) {
-                rgbValues[1] += 1;
-            } else if (blue > red) {
-                rgbValues[2] += 1;
-            }
-        }
-        Logger.log(rgbValues[0] + " " + rgbValues[1] + " " + rgbValues[2]);
+        long[] rgbValues = new long[3];
+        PixelKernels.get().countDominantColors(pixels, rgbValues);
+        Logger.debug(() -> rgbValues[0] + " " + rgbValues[1] + " " + rgbValues[2]);
         if (rgbValues[0] > rgbValues[1] && rgbValues[0] > rgbValues[2]) {
             return "red";
         } else if (rgbValues[1] > rgbValues[2]) {
@@ -109,73 +341,107 @@ public class ImageChanger {
     }
 
     public static ImagePlus[] separateRGB(ImagePlus image) {
-        Logger.log("Separating Red Green and Blue...");
+        return separateRGB(image, true);
+    }
+
+    /**
+     * @param image Image with red, green and blue channels.
+     * @param show Whether the splits are shown. Splits that are not shown are not known to the WindowManager.
+     * @return Red, green and blue split.
+     */
+    public static ImagePlus[] separateRGB(ImagePlus image, boolean show) {
+        try (Metrics.Stage stage = Metrics.start("split")) {
+            Logger.log("Separating Red Green and Blue...");
 
-        ImagePlus[] splits = ChannelSplitter.split(image);
+            ImagePlus[] splits = image.getStack().isVirtual() ? MappedStack.split(image) : ChannelSplitter.split(image);
 
-        ImagePlus[] rgbSplits = new ImagePlus[3];
-        for (ImagePlus split : splits) {
-            String color = whichColor(split);
-            switch (color) {
-                case "red":
-                    rgbSplits[0] = split;
-                    break;
-                case "green":
-                    rgbSplits[1] = split;
-                    break;
-                case "blue":
-                    rgbSplits[2] = split;
-                    break;
-                default:
-                    Logger.log("Could not determine color for split: " + split.getTitle());
-                    break;
+            ImagePlus[] rgbSplits = new ImagePlus[3];
+            for (ImagePlus split : splits) {
+                String color = whichColor(split);
+                switch (color) {
+                    case "red":
+                        rgbSplits[0] = split;
+                        break;
+                    case "green":
+                        rgbSplits[1] = split;
+                        break;
+                    case "blue":
+                        rgbSplits[2] = split;
+                        break;
+                    default:
+                        Logger.log("Could not determine color for split: " + split.getTitle());
+                        break;
+                }
             }
-        }
 
-        Logger.log("Found red: " + rgbSplits[0].getTitle() + " green: " + rgbSplits[1].getTitle() + " blue: " + rgbSplits[2].getTitle());
+            Logger.log("Found red: " + rgbSplits[0].getTitle() + " green: " + rgbSplits[1].getTitle() + " blue: " + rgbSplits[2].getTitle());
 
-        for (ImagePlus rgbSplit : rgbSplits){
-            Logger.log("Showing split:" + rgbSplit.getTitle());
-            rgbSplit.show();
-        }
+            for (ImagePlus rgbSplit : rgbSplits){
+                if (show) {
+                    Logger.debug(() -> "Showing split:" + rgbSplit.getTitle());
+                    rgbSplit.show();
+                }
+            }
 
-        return rgbSplits;
+            return rgbSplits;
+        }
     }
 
     public static ImagePlus mergeRGB(ImagePlus[] rgb, String title) {
-        Logger.log("Merging RGB Stack...");
-        RGBStackMerge rgbStackMerge = new RGBStackMerge();
-        ImagePlus composite = rgbStackMerge.mergeHyperstacks(rgb, true);
-        composite.setOverlay(rgb[0].getOverlay());
-        composite.setTitle(title + "_composite");
+        return mergeRGB(rgb, title, true);
+    }
 
-        Logger.log("Showing composite: " + composite.getTitle());
-        composite.show();
+    /**
+     * @param rgb Red, green and blue image.
+     * @param title Title of the composite, without the "_composite" suffix.
+     * @param show Whether the composite is shown.
+     * @return Composite of the three images.
+     */
+    public static ImagePlus mergeRGB(ImagePlus[] rgb, String title, boolean show) {
+        try (Metrics.Stage stage = Metrics.start("merge")) {
+            Logger.log("Merging RGB Stack...");
+            boolean virtual = false;
+            for (ImagePlus channel : rgb) {
+                virtual |= channel.getStack().isVirtual();
+            }
+            ImagePlus composite = virtual ? MappedStack.merge(rgb) : new RGBStackMerge().mergeHyperstacks(rgb, true);
+            composite.setOverlay(rgb[0].getOverlay());
+            composite.setTitle(title + "_composite");
+
+            if (show) {
+                Logger.log("Showing composite: " + composite.getTitle());
+                composite.show();
+            }
 
-        return composite;
+            return composite;
+        }
     }
 
     public static ImagePlus makeSubstack(ImagePlus image) {
-        setCurrentImage(image);
-        Logger.log("Making substack...");
+        try (Metrics.Stage stage = Metrics.start("substack")) {
+            setCurrentImage(image);
+            Logger.log("Making substack...");
 
-        SubstackMaker substackMaker = new SubstackMaker();
-        substackMaker.run("");
-        Logger.log("Substack created");
+            SubstackMaker substackMaker = new SubstackMaker();
+            substackMaker.run("");
+            Logger.log("Substack created");
 
-        return IJ.getImage();
+            return IJ.getImage();
+        }
     }
 
     public static ImagePlus project3D(ImagePlus image) {
-        setCurrentImage(image);
-        Logger.log("3D projecting...");
+        try (Metrics.Stage stage = Metrics.start("project")) {
+            setCurrentImage(image);
+            Logger.log("3D projecting...");
 
-        Projector projector = new Projector();
-        Macro.setOptions("projection=[Brightest Point] axis=Y-Axis slice=0.20 initial=0 total=360 rotation=10 lower=1 upper=255 opacity=0 surface=100 interior=50 interpolate");
-        projector.run("");
-        Macro.setOptions(null);
+            Projector projector = new Projector();
+            Macro.setOptions("projection=[Brightest Point] axis=Y-Axis slice=0.20 initial=0 total=360 rotation=10 lower=1 upper=255 opacity=0 surface=100 interior=50 interpolate");
+            projector.run("");
+            Macro.setOptions(null);
 
-        return IJ.getImage();
+            return IJ.getImage();
+        }
     }
 
 
@@ -184,29 +450,780 @@ public class ImageChanger {
     //
 
     public static void save_tif(ImagePlus image, Path outpath, String suffix) {
-        setCurrentImage(image);
-        Logger.log("Saving tif...");
+        save_tif(image, OutputSink.folder(outpath), suffix);
+    }
 
-        image = image.flatten();
+    /**
+     * Save an image flattened to RGB.
+     *
+     * @param image Image, which is closed.
+     * @param sink Output folder or container.
+     * @param suffix Suffix of the file name.
+     */
+    public static void save_tif(ImagePlus image, OutputSink sink, String suffix) {
+        try (Metrics.Stage stage = Metrics.start("save")) {
+            setCurrentImage(image);
+            Logger.log("Saving tif...");
 
-        String fileName = image.getTitle() + "_" + suffix;
-        IJ.saveAs(image, "tif", outpath.resolve(fileName).toString() );
-        image.changes = false;
-        image.close();
+            image = image.flatten();
+
+            String fileName = image.getTitle() + "_" + suffix;
+            Path filePath = create(sink, fileName + ".tif");
+            IJ.saveAs(image, "tif", filePath.toString() );
+            stage.addBytesWritten( commit(sink, filePath) );
+            image.changes = false;
+            image.close();
+        }
+    }
+
+    /**
+     * Save an image in its own bit depth, unlike save_tif. The display range and the LUT are stored in the metadata
+     * and the overlay, e.g. the scale bar, stays an overlay, so 16-bit data keeps its dynamic range and is not
+     * expanded to RGB. The file has the name save_tif gives the image, without the "Flat_" prefix.
+     *
+     * @param image 8-bit, 16-bit or 32-bit image. It is neither modified nor closed.
+     * @param sink Output folder or container.
+     * @param suffix Suffix of the file name.
+     */
+    public static void save_native_tif(ImagePlus image, OutputSink sink, String suffix) {
+        try (Metrics.Stage stage = Metrics.start("save")) {
+            Logger.log("Saving " + image.getBitDepth() + "-bit tif...");
+
+            String title = image.getTitle();
+            Path filePath = create(sink, title + "_" + suffix + ".tif");
+            if (!new FileSaver(image).saveAsTiff(filePath.toString())) {
+                Logger.error("Could not save " + filePath);
+            }
+            // Saving renames shown images after the file
+            image.setTitle(title);
+            stage.addBytesWritten( commit(sink, filePath) );
+        }
+    }
+
+    public static void save_native_tif(ImagePlus image, Path outpath, String suffix) {
+        save_native_tif(image, OutputSink.folder(outpath), suffix);
     }
 
     public static void save_avi(ImagePlus image, Path outpath, String suffix, double frames) {
-        setCurrentImage(image);
-        Logger.log("Saving avi...");
+        save_avi(image, OutputSink.folder(outpath), suffix, frames);
+    }
+
+    /**
+     * Save a stack as JPEG compressed video.
+     *
+     * @param image Stack, which is closed.
+     * @param sink Output folder or container.
+     * @param suffix Suffix of the file name.
+     * @param frames Frame rate.
+     */
+    public static void save_avi(ImagePlus image, OutputSink sink, String suffix, double frames) {
+        try (Metrics.Stage stage = Metrics.start("save")) {
+            setCurrentImage(image);
+            Logger.log("Saving avi...");
+
+            AVI_Writer writer = new AVI_Writer();
+
+            Path filePath = create(sink, image.getTitle() + "_" + suffix + ".avi");
+
+            // The frame rate of the written video is taken from the calibration
+            image.getCalibration().fps = frames;
+            try {
+                writer.writeImage(image, filePath.toString(), AVI_Writer.JPEG_COMPRESSION, FileSaver.getJpegQuality());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            stage.addBytesWritten( commit(sink, filePath) );
+
+            image.close();
+        }
+    }
+
+    //
+    // Tiled methods, for planes that are too large to be loaded as a whole
+    //
+
+    /**
+     * Automatic contrast of every channel of a tiled image, like autoContrast on the whole plane.
+     * The histograms of the tiles are summed, so the result equals the one of ImageJ's ContrastEnhancer.
+     *
+     * @param image Tiled image.
+     * @param saturated Percentage of saturated pixels.
+     * @param tileSize Width and height of the tiles that are read.
+     * @param threads Number of tiles read in parallel.
+     * @return Display range {min, max} of each channel.
+     * @throws IOException
+     */
+    public static double[][] autoContrast(TiledImage image, double saturated, int tileSize, int threads) throws IOException {
+        try (Metrics.Stage stage = Metrics.start("contrast")) {
+            Logger.log("Adjusting Brightness & Contrast of tiles automatically...");
+
+            long[][] histograms = new long[image.channels][];
+            double[][] ranges = new double[image.channels][];
+            for (int c = 0; c < image.channels; c++) {
+                ranges[c] = new double[]{Double.MAX_VALUE, -Double.MAX_VALUE};
+            }
+
+            Rectangle plane = new Rectangle(0, 0, image.width, image.height);
+            TiledImage.forEachTile(plane, tileSize, threads, (column, row, bounds) -> {
+                for (int c = 0; c < image.channels; c++) {
+                    ImageProcessor tile = image.readTile(c, bounds);
+                    if (tile instanceof ByteProcessor || tile instanceof ShortProcessor) {
+                        int[] histogram = tile.getHistogram();
+                        synchronized (histograms) {
+                            if (histograms[c] == null) {
+                                histograms[c] = new long[histogram.length];
+                            }
+                            for (int i = 0; i < histogram.length; i++) {
+                                histograms[c][i] += histogram[i];
+                            }
+                        }
+                    }
+                    else {
+                        // Other types are stretched to their minimum and maximum
+                        tile.resetMinAndMax();
+                        synchronized (histograms) {
+                            ranges[c][0] = Math.min(ranges[c][0], tile.getMin());
+                            ranges[c][1] = Math.max(ranges[c][1], tile.getMax());
+                        }
+                    }
+                }
+            });
+
+            for (int c = 0; c < image.channels; c++) {
+                if (histograms[c] != null) {
+                    ranges[c] = stretchHistogram(histograms[c], saturated);
+                }
+                double[] range = ranges[c];
+                int channel = c + 1;
+                Logger.debug(() -> "Display range of channel " + channel + ": " + range[0] + "-" + range[1]);
+            }
+            return ranges;
+        }
+    }
+
+    /**
+     * Display range of a full 8-bit or 16-bit histogram, computed like ContrastEnhancer.stretchHistogram.
+     */
+    private static double[] stretchHistogram(long[] histogram, double saturated) {
+        long pixelCount = 0;
+        int first = -1;
+        int last = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            pixelCount += histogram[i];
+            if (histogram[i] > 0) {
+                first = first < 0 ? i : first;
+                last = i;
+            }
+        }
+        long threshold = saturated > 0 ? (long) (pixelCount * saturated / 200.0) : 0;
+
+        int hmin = -1;
+        long count = 0;
+        do {
+            hmin++;
+            count += histogram[hmin];
+        } while (count <= threshold && hmin < histogram.length - 1);
+
+        int hmax = histogram.length;
+        count = 0;
+        do {
+            hmax--;
+            count += histogram[hmax];
+        } while (count <= threshold && hmax > 0);
+
+        if (hmax > hmin) {
+            return new double[]{hmin, hmax};
+        }
+        // Like the reset display range of a loaded image
+        return histogram.length == 256 ? new double[]{0, 255} : new double[]{Math.max(first, 0), last};
+    }
+
+    /**
+     * Crop a tiled image, which only restricts the region that is processed.
+     *
+     * @param image Tiled image.
+     * @param roi Region to crop to, or null to keep the whole image.
+     * @return The region within the image.
+     */
+    public static Rectangle cropTo(TiledImage image, Roi roi) {
+        try (Metrics.Stage stage = Metrics.start("crop")) {
+            Rectangle plane = new Rectangle(0, 0, image.width, image.height);
+            if (roi == null) {
+                return plane;
+            }
+            Logger.log("Cropping tiled image to " + roi.getBounds() + "...");
+            return plane.intersection(roi.getBounds());
+        }
+    }
+
+    /**
+     * Find the red, green and blue channel of a tiled image by the colors of their lookup tables.
+     *
+     * @param image Tiled image with red, green and blue channels.
+     * @return Channel index, starting at 0, of red, green and blue.
+     */
+    public static int[] separateRGB(TiledImage image) {
+        return separateRGB(image.luts, image.title);
+    }
+
+    /**
+     * Find the red, green and blue channel of an image by the colors of their lookup tables, without splitting it.
+     *
+     * @param image Image with red, green and blue channels.
+     * @return Channel index, starting at 0, of red, green and blue.
+     */
+    public static int[] findRGB(ImagePlus image) {
+        return separateRGB(image.getLuts(), image.getTitle());
+    }
+
+    private static int[] separateRGB(LUT[] luts, String title) {
+        try (Metrics.Stage stage = Metrics.start("split")) {
+            Logger.log("Separating Red Green and Blue channels...");
+
+            int[] rgbChannels = {-1, -1, -1};
+            for (int c = 0; c < luts.length; c++) {
+                String color = whichColor(luts[c]);
+                int index = color.equals("red") ? 0 : color.equals("green") ? 1 : color.equals("blue") ? 2 : -1;
+                if (index < 0) {
+                    Logger.log("Could not determine color for split: " + splitTitle(title, c));
+                } else {
+                    rgbChannels[index] = c;
+                }
+            }
+            for (int channel : rgbChannels) {
+                if (channel < 0) {
+                    throw new IllegalStateException("No red, green and blue channels in " + title);
+                }
+            }
+
+            Logger.log("Found red: " + splitTitle(title, rgbChannels[0]) + " green: " + splitTitle(title, rgbChannels[1])
+                    + " blue: " + splitTitle(title, rgbChannels[2]));
+            return rgbChannels;
+        }
+    }
+
+    /**
+     * The color of a lookup table, decided by its brightest entry like whichColor decides it by the pixels.
+     */
+    public static String whichColor(LUT lut) {
+        int last = lut.getMapSize() - 1;
+        int red = lut.getRed(last);
+        int green = lut.getGreen(last);
+        int blue = lut.getBlue(last);
+        if (red > green && red > blue) {
+            return "red";
+        } else if (green > blue) {
+            return "green";
+        } else if (blue > red) {
+            return "blue";
+        } else {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Title of a channel split from an image, the way ChannelSplitter names it.
+     *
+     * @param title Title of the image.
+     * @param channel Index of the channel, starting at 0.
+     */
+    public static String splitTitle(String title, int channel) {
+        return "C" + (channel + 1) + "-" + title;
+    }
+
+    /**
+     * Merge, color and gray images of the red, green and blue channel of a region, with a burnt-in overlay.
+     * The tiles are rendered in parallel and streamed into tiled TIFFs with the names that save_tif gives the flattened
+     * merge, splits and gray splits. Only a few tiles are in memory at a time.
+     *
+     * @param image Tiled image.
+     * @param rgbChannels Channel index of red, green and blue, see separateRGB.
+     * @param ranges Display range of each channel, see autoContrast.
+     * @param region Region to save, see cropTo.
+     * @param overlay Overlay relative to the region, e.g. the scale bar, or null.
+     * @param sink Output folder or container.
+     * @param colorNames Suffix of the red, green and blue files.
+     * @param tileSize Width and height of the tiles, a multiple of 16.
+     * @param threads Number of tiles rendered in parallel.
+     * @throws IOException
+     */
+    public static void save_tiled(TiledImage image, int[] rgbChannels, double[][] ranges, Rectangle region,
+                                  Overlay overlay, OutputSink sink, String[] colorNames, int tileSize, int threads)
+            throws IOException {
+        try (Metrics.Stage stage = Metrics.start("save")) {
+            Logger.log("Saving tiled tifs...");
+
+            // Merge, then color and gray of each channel
+            TiledTiffWriter[] writers = new TiledTiffWriter[1 + 2 * rgbChannels.length];
+            Path[] filePaths = new Path[writers.length];
+            filePaths[0] = sink.create("Flat_" + image.title + "_composite_Merge.tif");
+            for (int i = 0; i < rgbChannels.length; i++) {
+                String title = "Flat_" + splitTitle(image.title, rgbChannels[i]) + "_" + colorNames[i];
+                filePaths[1 + 2 * i] = sink.create(title + ".tif");
+                filePaths[2 + 2 * i] = sink.create(title + "_gray.tif");
+            }
+
+            byte[][][] luts = lutBytes(image.luts, rgbChannels);
+
+            try {
+                for (int w = 0; w < writers.length; w++) {
+                    boolean rgb = w == 0 || w % 2 == 1;
+                    writers[w] = new TiledTiffWriter(filePaths[w], region.width, region.height, rgb, tileSize,
+                            image.calibration);
+                }
+
+                TiledImage.forEachTile(region, tileSize, threads, (column, row, bounds) -> {
+                    int pixelCount = bounds.width * bounds.height;
+                    Overlay tileOverlay = null;
+                    if (overlay != null) {
+                        tileOverlay = overlay.duplicate();
+                        tileOverlay.translate(region.x - bounds.x, region.y - bounds.y);
+                    }
+
+                    int[] merge = new int[pixelCount];
+                    for (int i = 0; i < rgbChannels.length; i++) {
+                        int channel = rgbChannels[i];
+                        byte[] indices = toIndices(image.readTile(channel, bounds), ranges[channel]);
+                        int[] color = colorize(indices, luts[i]);
+                        // Composites sum the colors of their channels
+                        PixelKernels.get().addSaturated(merge, color);
+
+                        writeTile(writers[1 + 2 * i], column, row, new ColorProcessor(bounds.width, bounds.height, color), tileOverlay);
+                        writeTile(writers[2 + 2 * i], column, row, new ByteProcessor(bounds.width, bounds.height, indices), tileOverlay);
+                    }
+                    writeTile(writers[0], column, row, new ColorProcessor(bounds.width, bounds.height, merge), tileOverlay);
+                });
+
+                for (int w = 0; w < writers.length; w++) {
+                    writers[w].finish();
+                    stage.addBytesWritten( sink.commit(filePaths[w]) );
+                    Logger.log("Saved " + filePaths[w].getFileName());
+                }
+            } finally {
+                for (TiledTiffWriter writer : writers) {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                }
+            }
+        }
+    }
+
+    //
+    // Reduced methods, for videos that are binned and decimated, e.g. for review
+    //
+
+    /**
+     * Keep only every nth frame of a single channel time-lapse, and bin the kept frames like ImageProcessor.bin.
+     *
+     * @param image Single channel time-lapse, with LUT, display range and overlay.
+     * @param binning Width and height of the blocks of pixels that are averaged.
+     * @param frameStep Only every frameStep-th frame is kept, starting with the first.
+     * @param barWidth Width of a scale bar in the overlay in calibrated units, see scaleBarOverlay.
+     * @return Reduced time-lapse with the title, LUT and display range of the image.
+     */
+    public static ImagePlus reduceVideo(ImagePlus image, int binning, int frameStep, double barWidth) {
+        try (Metrics.Stage stage = Metrics.start("reduce")) {
+            Logger.log("Binning " + binning + "x" + binning + " and keeping every " + frameStep + ". frame...");
+
+            ImageStack stack = image.getStack();
+            ImageStack reduced = new ImageStack(image.getWidth() / binning, image.getHeight() / binning);
+            for (int n = 1; n <= stack.getSize(); n += frameStep) {
+                ImageProcessor plane = stack.getProcessor(n);
+                reduced.addSlice(stack.getSliceLabel(n), binning > 1 ? plane.bin(binning) : plane);
+            }
+
+            ImagePlus result = new ImagePlus(image.getTitle(), reduced);
+            result.getProcessor().setLut(image.getProcessor().getLut());
+            result.setDisplayRange(image.getDisplayRangeMin(), image.getDisplayRangeMax());
+            Calibration calibration = reduceCalibration(image.getCalibration(), binning, frameStep);
+            result.setCalibration(calibration);
+            result.setOverlay(reduceOverlay(image.getOverlay(), result.getWidth(), result.getHeight(), calibration,
+                    binning, barWidth));
+            return result;
+        }
+    }
+
+    /**
+     * Calibration of frames that are binned and decimated.
+     *
+     * @param calibration Calibration of the full frames.
+     * @param binning Width and height of the blocks of pixels that are averaged.
+     * @param frameStep Only every frameStep-th frame is kept.
+     */
+    public static Calibration reduceCalibration(Calibration calibration, int binning, int frameStep) {
+        Calibration reduced = calibration.copy();
+        reduced.pixelWidth *= binning;
+        reduced.pixelHeight *= binning;
+        reduced.xOrigin /= binning;
+        reduced.yOrigin /= binning;
+        reduced.frameInterval *= frameStep;
+        return reduced;
+    }
+
+    /**
+     * Overlay of binned frames. The scale bar, if any, is drawn anew for the binned frames, so its label keeps
+     * a legible size. Other elements are scaled.
+     *
+     * @param overlay Overlay of the full frames, or null.
+     * @param width Width of the binned frames.
+     * @param height Height of the binned frames.
+     * @param calibration Calibration of the binned frames, see reduceCalibration.
+     * @param binning Width and height of the blocks of pixels that are averaged.
+     * @param barWidth Width of the scale bar in calibrated units, see scaleBarOverlay.
+     * @return Overlay of the binned frames, or null without overlay.
+     */
+    public static Overlay reduceOverlay(Overlay overlay, int width, int height, Calibration calibration, int binning,
+                                        double barWidth) {
+        if (overlay == null) {
+            return null;
+        }
+        Overlay reduced = new Overlay();
+        boolean hasScaleBar = false;
+        for (Roi roi : overlay.toArray()) {
+            if (SCALE_BAR.equals(roi.getName())) {
+                hasScaleBar = true;
+            } else {
+                reduced.add(binning > 1 ? RoiScaler.scale(roi, 1.0 / binning, 1.0 / binning, false) : (Roi) roi.clone());
+            }
+        }
+        if (hasScaleBar) {
+            for (Roi roi : scaleBarOverlay(width, height, calibration, barWidth).toArray()) {
+                reduced.add(roi);
+            }
+        }
+        return reduced;
+    }
+
+    //
+    // Chunked methods, for videos whose frames are processed in parallel
+    //
+
+    /**
+     * Display range of every channel of an image, e.g. after autoContrast.
+     *
+     * @param image Image with one or more channels.
+     * @return Display range {min, max} of each channel.
+     */
+    public static double[][] displayRanges(ImagePlus image) {
+        double[][] ranges = new double[image.getNChannels()][];
+        int currentChannel = image.getC();
+        for (int c = 1; c <= ranges.length; c++) {
+            image.setC(c);
+            ranges[c - 1] = new double[]{image.getDisplayRangeMin(), image.getDisplayRangeMax()};
+        }
+        image.setC(currentChannel);
+        return ranges;
+    }
+
+    /**
+     * Merge and color videos of the red, green and blue channel of a region, with a burnt-in overlay.
+     * Chunks of frames are cropped, colored, merged and JPEG encoded by parallel workers, and streamed into AVIs with
+     * the names that save_avi gives the merge and the splits. Only a few chunks are in memory at a time.
+     * Binned outputs are binned before the channels are colored and merged, and frames that no output includes
+     * are not read at all unless statistics are accumulated.
+     *
+     * @param image Time-lapse, e.g. with a virtual stack.
+     * @param rgbChannels Channel index of red, green and blue, see findRGB.
+     * @param ranges Display range of each channel, see displayRanges.
+     * @param region Region to save.
+     * @param outputs Sets of videos to save, e.g. at full resolution and binned.
+     * @param sink Output folder or container.
+     * @param colorNames Suffix of the red, green and blue files.
+     * @param fps Frame rate.
+     * @param chunkFrames Number of frames per chunk.
+     * @param threads Number of chunks processed in parallel.
+     * @param statistics Statistics of the red, green and blue channel of the region, to which the workers add the
+     *                   frames before coloring them, or null.
+     * @throws IOException
+     */
+    public static void save_chunked_avi(ImagePlus image, int[] rgbChannels, double[][] ranges, Rectangle region,
+                                        List<VideoOutput> outputs, OutputSink sink, String[] colorNames, double fps,
+                                        int chunkFrames, int threads, TemporalStatistics statistics)
+            throws IOException {
+        try (Metrics.Stage stage = Metrics.start("save")) {
+            Logger.log("Saving avis in chunks of " + chunkFrames + " frames...");
+
+            // Per output the merge, then color of each channel
+            AviStreamWriter[][] writers = new AviStreamWriter[outputs.size()][1 + rgbChannels.length];
+            Path[][] filePaths = new Path[outputs.size()][1 + rgbChannels.length];
+            for (int o = 0; o < outputs.size(); o++) {
+                String suffix = outputs.get(o).suffix;
+                filePaths[o][0] = sink.create(image.getTitle() + "_composite_Merge" + suffix + ".avi");
+                for (int i = 0; i < rgbChannels.length; i++) {
+                    filePaths[o][1 + i] = sink.create(
+                            splitTitle(image.getTitle(), rgbChannels[i]) + "_" + colorNames[i] + suffix + ".avi");
+                }
+            }
+            byte[][][] luts = lutBytes(image.getLuts(), rgbChannels);
+
+            ImageStack stack = image.getStack();
+            long chunkBytes = (long) chunkFrames * region.width * region.height * 4 * (1 + rgbChannels.length);
+            int chunksInFlight = FrameChunks.chunksInFlight(chunkBytes, threads);
+            Logger.debug(() -> chunksInFlight + " chunks of " + chunkFrames + " frames in flight");
+
+            try {
+                for (int o = 0; o < outputs.size(); o++) {
+                    int binning = outputs.get(o).binning;
+                    for (int w = 0; w < writers[o].length; w++) {
+                        writers[o][w] = new AviStreamWriter(filePaths[o][w], region.width / binning,
+                                region.height / binning, fps);
+                    }
+                }
+
+                FrameChunks.forEachChunk(image.getNFrames(), chunkFrames, threads, chunksInFlight,
+                        (first, count) -> {
+                            // Stacks are read in order on one thread, and only the region is kept
+                            FrameChunk chunk = new FrameChunk(first, new ImageProcessor[count][]);
+                            for (int t = 0; t < count; t++) {
+                                if (statistics == null && !isIncluded(outputs, first + t)) {
+                                    continue;
+                                }
+                                chunk.planes[t] = new ImageProcessor[rgbChannels.length];
+                                for (int i = 0; i < rgbChannels.length; i++) {
+                                    ImageProcessor plane = stack.getProcessor(
+                                            image.getStackIndex(rgbChannels[i] + 1, 1, first + t + 1));
+                                    plane.setRoi(region);
+                                    chunk.planes[t][i] = plane.crop();
+                                }
+                            }
+                            return chunk;
+                        },
+                        chunk -> {
+                            ImageProcessor[][] planes = chunk.planes;
+                            Overlay[] chunkOverlays = new Overlay[outputs.size()];
+                            for (int o = 0; o < outputs.size(); o++) {
+                                Overlay overlay = outputs.get(o).overlay;
+                                chunkOverlays[o] = overlay == null ? null : overlay.duplicate();
+                            }
+                            byte[][][][] frames = new byte[planes.length][outputs.size()][][];
+                            for (int t = 0; t < planes.length; t++) {
+                                if (planes[t] == null) {
+                                    continue;
+                                }
+                                if (statistics != null) {
+                                    statistics.addFrame(chunk.first + t, planes[t]);
+                                }
+                                for (int o = 0; o < outputs.size(); o++) {
+                                    VideoOutput output = outputs.get(o);
+                                    if (output.includes(chunk.first + t)) {
+                                        frames[t][o] = encodeFrames(bin(planes[t], output.binning), rgbChannels,
+                                                ranges, luts, chunkOverlays[o]);
+                                    }
+                                }
+                            }
+                            return frames;
+                        },
+                        frames -> {
+                            for (byte[][][] frame : frames) {
+                                for (int o = 0; o < outputs.size(); o++) {
+                                    if (frame[o] == null) {
+                                        continue;
+                                    }
+                                    for (int w = 0; w < writers[o].length; w++) {
+                                        writers[o][w].writeFrame(frame[o][w]);
+                                    }
+                                }
+                            }
+                        });
+
+                for (int o = 0; o < outputs.size(); o++) {
+                    for (int w = 0; w < writers[o].length; w++) {
+                        writers[o][w].finish();
+                        stage.addBytesWritten( sink.commit(filePaths[o][w]) );
+                        Logger.log("Saved " + filePaths[o][w].getFileName());
+                    }
+                }
+            } finally {
+                for (AviStreamWriter[] outputWriters : writers) {
+                    for (AviStreamWriter writer : outputWriters) {
+                        if (writer != null) {
+                            writer.close();
+                        }
+                    }
+                }
+            }
+        }
+    }
 
-        AVI_Writer writer = new AVI_Writer();
+    private static boolean isIncluded(List<VideoOutput> outputs, int frame) {
+        for (VideoOutput output : outputs) {
+            if (output.includes(frame)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        String filePath = outpath.resolve(image.getTitle() + "_" + suffix + ".avi").toString();
+    /**
+     * Planes binned like ImageProcessor.bin, which averages blocks of pixels.
+     */
+    private static ImageProcessor[] bin(ImageProcessor[] planes, int binning) {
+        if (binning == 1) {
+            return planes;
+        }
+        ImageProcessor[] binned = new ImageProcessor[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            binned[i] = planes[i].bin(binning);
+        }
+        return binned;
+    }
 
-        Macro.setOptions("compression=JPEG frame="+ frames + " save="+ filePath);
-        writer.run(image.getProcessor());
-        Macro.setOptions(null);
+    /**
+     * JPEG encoded merge and colored channels of one frame.
+     */
+    private static byte[][] encodeFrames(ImageProcessor[] planes, int[] rgbChannels, double[][] ranges,
+                                         byte[][][] luts, Overlay overlay) throws IOException {
+        int width = planes[0].getWidth();
+        int height = planes[0].getHeight();
+        byte[][] frames = new byte[1 + planes.length][];
+        int[] merge = new int[width * height];
+        for (int i = 0; i < planes.length; i++) {
+            byte[] indices = toIndices(planes[i], ranges[rgbChannels[i]]);
+            int[] color = colorize(indices, luts[i]);
+            // Composites sum the colors of their channels
+            PixelKernels.get().addSaturated(merge, color);
+            frames[1 + i] = encodeFrame(new ColorProcessor(width, height, color), overlay);
+        }
+        frames[0] = encodeFrame(new ColorProcessor(width, height, merge), overlay);
+        return frames;
+    }
 
-        image.close();
+    /**
+     * Planes of consecutive frames, and the index of the first frame.
+     */
+    private static class FrameChunk {
+        final int first;
+        final ImageProcessor[][] planes;
+
+        FrameChunk(int first, ImageProcessor[][] planes) {
+            this.first = first;
+            this.planes = planes;
+        }
+    }
+
+    /**
+     * Save the temporal maximum, mean and standard deviation of every channel in their native 32-bit values,
+     * and the mean intensity of every frame as CSV.
+     *
+     * @param statistics Statistics after all frames were added.
+     * @param title Title of the video.
+     * @param channelTitles Title of every channel.
+     * @param luts Lookup table of every channel.
+     * @param calibration Calibration of the frames.
+     * @param sink Output folder or container.
+     * @param colorNames Suffix of the files of every channel.
+     */
+    public static void save_statistics(TemporalStatistics statistics, String title, String[] channelTitles, LUT[] luts,
+                                       Calibration calibration, OutputSink sink, String[] colorNames) {
+        Logger.log("Saving temporal statistics...");
+        for (int i = 0; i < channelTitles.length; i++) {
+            ImagePlus[] projections = statistics.project(i, channelTitles[i], luts[i], calibration);
+            for (int j = 0; j < projections.length; j++) {
+                save_native_tif(projections[j], sink, colorNames[i] + "_" + TemporalStatistics.PROJECTIONS[j]);
+            }
+        }
+
+        try (Metrics.Stage stage = Metrics.start("save")) {
+            Path filePath = create(sink, title + "_trace.csv");
+            try {
+                statistics.writeTrace(filePath, Arrays.copyOf(colorNames, channelTitles.length), calibration);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            stage.addBytesWritten( commit(sink, filePath) );
+            Logger.log("Saved " + filePath.getFileName());
+        }
+    }
+
+    /**
+     * JPEG encoded frame with a burnt-in overlay. Like AVI_Writer, the default quality of ImageIO is used, so frames
+     * equal the ones of save_avi. The stream is buffered in memory instead of the cache file of ImageIO.write.
+     */
+    private static byte[] encodeFrame(ColorProcessor frame, Overlay overlay) throws IOException {
+        if (overlay != null) {
+            frame.drawOverlay(overlay);
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(new IIOImage(frame.getBufferedImage(), null, null));
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Red, green and blue entries of the lookup tables of the given channels.
+     */
+    private static byte[][][] lutBytes(LUT[] channelLuts, int[] channels) {
+        byte[][][] luts = new byte[channels.length][3][256];
+        for (int i = 0; i < channels.length; i++) {
+            LUT lut = channelLuts[channels[i]];
+            lut.getReds(luts[i][0]);
+            lut.getGreens(luts[i][1]);
+            lut.getBlues(luts[i][2]);
+        }
+        return luts;
+    }
+
+    /**
+     * RGB pixels of 8-bit display values, colored with a lookup table.
+     */
+    private static int[] colorize(byte[] indices, byte[][] lut) {
+        int[] color = new int[indices.length];
+        for (int p = 0; p < indices.length; p++) {
+            int index = indices[p] & 0xff;
+            color[p] = ((lut[0][index] & 0xff) << 16) | ((lut[1][index] & 0xff) << 8) | (lut[2][index] & 0xff);
+        }
+        return color;
+    }
+
+    /**
+     * 8-bit display values of a tile, scaled to a display range the way ImageJ shows 16-bit and float images.
+     */
+    private static byte[] toIndices(ImageProcessor tile, double[] range) {
+        int pixelCount = tile.getWidth() * tile.getHeight();
+        byte[] indices = new byte[pixelCount];
+        if (tile instanceof ShortProcessor) {
+            PixelKernels.get().toIndices((short[]) tile.getPixels(), (int) range[0], (int) range[1], indices);
+            return indices;
+        }
+        double min = range[0];
+        double max = range[1];
+        boolean integer = tile instanceof ByteProcessor || tile instanceof ShortProcessor;
+        double scale = integer ? 256.0 / (max - min + 1) : max > min ? 255.0 / (max - min) : 1;
+        for (int p = 0; p < pixelCount; p++) {
+            double value = tile.getf(p) - min;
+            int index = value < 0 ? 0 : (int) (value * scale + 0.5);
+            indices[p] = (byte) Math.min(index, 255);
+        }
+        return indices;
+    }
+
+    private static void writeTile(TiledTiffWriter writer, int column, int row, ImageProcessor tile, Overlay overlay)
+            throws IOException {
+        if (overlay != null) {
+            tile.drawOverlay(overlay);
+        }
+        writer.writeTile(column, row, tile);
+    }
+
+    private static Path create(OutputSink sink, String fileName) {
+        try {
+            return sink.create(fileName);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long commit(OutputSink sink, Path filePath) {
+        try {
+            return sink.commit(filePath);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
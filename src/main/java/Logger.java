@@ -1,8 +1,220 @@
 import ij.IJ;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * A leveled, non-blocking logger.
+ * Messages are put into a lock-free ring buffer and written in batches by a single background thread
+ * to stdout, the ImageJ log window and optionally a file.
+ */
 public class Logger {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    // Bounded multi-producer single-consumer ring buffer. A slot is free for position p if its sequence equals p
+    // and filled for position p if its sequence equals p + 1. Only the drainer thread moves the tail.
+    private static final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long tail = 0;
+    private static volatile long written = 0;
+
+    private static volatile int threshold = Level.INFO.ordinal();
+    private static volatile Writer fileWriter = null;
+    private static volatile Thread drainer = null;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+    }
+
     protected static void log(String message) {
-        System.out.println(message);
-        IJ.log(message);
+        log(Level.INFO, message);
+    }
+
+    protected static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Log a debug message that is only built if debug logging is enabled.
+     *
+     * @param message Supplier of the message.
+     */
+    protected static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message.get());
+        }
+    }
+
+    protected static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    protected static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Queue a message for logging. Never blocks for debug and info messages: if the buffer is full, they are dropped
+     * and counted. Warnings and errors wait for free space instead.
+     *
+     * @param level Level of the message.
+     * @param message Message to log.
+     */
+    protected static void log(Level level, String message) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+        ensureDrainer();
+
+        String line = level == Level.INFO ? message : level + ": " + message;
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & MASK);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    slots.set(index, line);
+                    sequences.lazySet(index, position + 1);
+                    return;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                if (level.ordinal() < Level.WARN.ordinal()) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(drainer);
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                position = head.get();
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Additionally append all messages to a file.
+     *
+     * @param logFile File to append to, or null to stop writing to a file.
+     * @throws IOException
+     */
+    public static synchronized void setLogFile(Path logFile) throws IOException {
+        flush();
+        Writer previous = fileWriter;
+        fileWriter = logFile == null ? null : Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Block until all messages queued so far are written.
+     */
+    public static void flush() {
+        long target = head.get();
+        Thread current = drainer;
+        while (current != null && current.isAlive() && written < target) {
+            LockSupport.unpark(current);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    //
+    // Background writing
+    //
+
+    private static void ensureDrainer() {
+        if (drainer == null) {
+            synchronized (Logger.class) {
+                if (drainer == null) {
+                    Thread thread = new Thread(Logger::drain, "Logger");
+                    thread.setDaemon(true);
+                    thread.start();
+                    drainer = thread;
+                    Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush));
+                }
+            }
+        }
+    }
+
+    private static void drain() {
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            batch.setLength(0);
+            int count = 0;
+            while (count < MAX_BATCH) {
+                int index = (int) (tail & MASK);
+                if (sequences.get(index) != tail + 1) {
+                    break;
+                }
+                if (count > 0) {
+                    batch.append('\n');
+                }
+                batch.append(slots.get(index));
+                slots.set(index, null);
+                sequences.lazySet(index, tail + CAPACITY);
+                tail++;
+                count++;
+            }
+
+            long droppedMessages = dropped.getAndSet(0);
+            if (droppedMessages > 0) {
+                batch.append(batch.length() > 0 ? "\n" : "")
+                     .append("WARN: ").append(droppedMessages).append(" log messages dropped");
+            }
+
+            if (batch.length() > 0) {
+                write(batch.toString());
+                written = tail;
+            } else {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private static void write(String lines) {
+        System.out.println(lines);
+        if (IJ.getInstance() != null) {
+            IJ.log(lines);
+        }
+
+        Writer writer = fileWriter;
+        if (writer != null) {
+            try {
+                writer.write(lines);
+                writer.write(System.lineSeparator());
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Could not write to log file: " + e.getMessage());
+            }
+        }
     }
 }
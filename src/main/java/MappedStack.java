@@ -0,0 +1,474 @@
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A virtual stack for stacks that do not fit on the heap.
+ * Added planes are written to a scratch file and read back when they are used, so only the planes in use
+ * are on the heap. Despite the name, the scratch file is not memory-mapped, see Storage. A stack may also refer to planes of other stacks, which makes splitting and merging channels
+ * free of copies.
+ *
+ * <p>Scratch files are deleted when their scope or the image is released, see openScope() and release().
+ * The scratch folder is the temporary folder, or the folder given by -Dwagner.scratchFolder.</p>
+ */
+public class MappedStack extends VirtualStack {
+    private final List<ImageStack> sources = new ArrayList<>();
+    private final List<Integer> indices = new ArrayList<>();
+    private final List<String> labels = new ArrayList<>();
+    private Storage storage;
+
+    private static final ThreadLocal<Scope> currentScope = new ThreadLocal<>();
+
+    /**
+     * @param width Width of the planes.
+     * @param height Height of the planes.
+     * @param bitDepth Bit depth of the planes, or 0 to take it from the first added plane.
+     */
+    public MappedStack(int width, int height, int bitDepth) {
+        super(width, height);
+        setBitDepth(bitDepth);
+    }
+
+    //
+    // Storage
+    //
+
+    /**
+     * Planes of equal size in a scratch file, in native byte order. Planes are read with positional reads instead of
+     * mapping them, as mappings stay until they are garbage collected: they pile up when many planes are read, and
+     * keep the file from being deleted on Windows. Reads do not lock, so threads may read planes at the same time,
+     * e.g. to compute several projections.
+     */
+    static class Storage implements Closeable {
+        private final Path path;
+        private final FileChannel channel;
+        private final int width, height, bitDepth;
+        private final long planeBytes;
+        private int planeCount = 0;
+        private ByteBuffer writeBuffer;
+
+        Storage(int width, int height, int bitDepth) throws IOException {
+            this.width = width;
+            this.height = height;
+            this.bitDepth = bitDepth;
+            this.planeBytes = (long) width * height * (bitDepth == 24 ? 4 : bitDepth / 8);
+
+            Path folder = Paths.get(System.getProperty("wagner.scratchFolder", System.getProperty("java.io.tmpdir")));
+            path = Files.createTempFile(Files.createDirectories(folder), "stack", ".raw");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            path.toFile().deleteOnExit();
+
+            Scope scope = currentScope.get();
+            if (scope != null) {
+                scope.storages.add(this);
+            }
+        }
+
+        synchronized int append(Object pixels) throws IOException {
+            write(planeCount, pixels);
+            return planeCount++;
+        }
+
+        synchronized void write(int index, Object pixels) throws IOException {
+            if (writeBuffer == null) {
+                writeBuffer = ByteBuffer.allocateDirect((int) planeBytes).order(ByteOrder.nativeOrder());
+            }
+            ByteBuffer buffer = writeBuffer;
+            buffer.clear();
+            if (pixels instanceof byte[]) {
+                buffer.put((byte[]) pixels);
+            }
+            else if (pixels instanceof short[]) {
+                buffer.asShortBuffer().put((short[]) pixels);
+            }
+            else if (pixels instanceof float[]) {
+                buffer.asFloatBuffer().put((float[]) pixels);
+            }
+            else {
+                buffer.asIntBuffer().put((int[]) pixels);
+            }
+            // Putting bytes moves the position, views of the buffer do not
+            buffer.rewind();
+            long position = index * planeBytes;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        ImageProcessor read(int index) throws IOException {
+            // 8-bit planes are read into their pixels, other planes through a buffer of the call
+            byte[] bytes = bitDepth == 8 ? new byte[width * height] : null;
+            ByteBuffer buffer = bytes != null ? ByteBuffer.wrap(bytes)
+                    : ByteBuffer.allocate((int) planeBytes).order(ByteOrder.nativeOrder());
+            long position = index * planeBytes;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Plane " + index + " is missing in scratch file " + path);
+                }
+                position += read;
+            }
+            buffer.flip();
+            switch (bitDepth) {
+                case 8:
+                    return new ByteProcessor(width, height, bytes);
+                case 16:
+                    short[] shorts = new short[width * height];
+                    buffer.asShortBuffer().get(shorts);
+                    return new ShortProcessor(width, height, shorts, null);
+                case 24:
+                    int[] ints = new int[width * height];
+                    buffer.asIntBuffer().get(ints);
+                    return new ColorProcessor(width, height, ints);
+                default:
+                    float[] floats = new float[width * height];
+                    buffer.asFloatBuffer().get(floats);
+                    return new FloatProcessor(width, height, floats);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Scratch files created by the current thread while the scope is open. Closing the scope deletes them.
+     */
+    public static class Scope implements AutoCloseable {
+        private final List<Storage> storages = new ArrayList<>();
+        private final Scope parent;
+
+        private Scope(Scope parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void close() {
+            for (Storage storage : storages) {
+                try {
+                    storage.close();
+                } catch (IOException e) {
+                    Logger.warn("Could not delete scratch file " + storage.path + ": " + e.getMessage());
+                }
+            }
+            currentScope.set(parent);
+        }
+    }
+
+    /**
+     * Open a scope for the scratch files of the current thread.
+     *
+     * @return The scope, to be closed when its images are not used anymore.
+     */
+    public static Scope openScope() {
+        Scope scope = new Scope(currentScope.get());
+        currentScope.set(scope);
+        return scope;
+    }
+
+    /**
+     * Delete the scratch file of a stack that was created outside a scope, e.g. by a loader thread.
+     *
+     * @param imageStack Any stack.
+     */
+    public static void release(ImageStack imageStack) {
+        if (imageStack instanceof MappedStack) {
+            MappedStack stack = (MappedStack) imageStack;
+            if (stack.storage != null) {
+                try {
+                    stack.storage.close();
+                } catch (IOException e) {
+                    Logger.warn("Could not delete scratch file " + stack.storage.path + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    //
+    // Stack methods
+    //
+
+    @Override
+    public void addSlice(String sliceLabel, ImageProcessor ip) {
+        if (getBitDepth() == 0) {
+            setBitDepth(ip.getBitDepth());
+        }
+        try {
+            if (storage == null) {
+                storage = new Storage(getWidth(), getHeight(), getBitDepth());
+            }
+            indices.add(storage.append(ip.getPixels()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sources.add(null);
+        labels.add(sliceLabel);
+    }
+
+    @Override
+    public void addSlice(String sliceLabel, Object pixels) {
+        addSlice(sliceLabel, processor(pixels));
+    }
+
+    @Override
+    public void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+        addSlice(sliceLabel, ip);
+        moveLast(n);
+    }
+
+    /**
+     * Add a plane of another stack without copying it.
+     *
+     * @param source Stack with planes of the same size and bit depth.
+     * @param n Index of the plane in the source, starting at 1.
+     */
+    public void addView(ImageStack source, int n) {
+        if (getBitDepth() == 0) {
+            setBitDepth(source.getBitDepth());
+        }
+        if (source instanceof MappedStack) {
+            // Refer to the original plane, so views of views stay flat
+            MappedStack mapped = (MappedStack) source;
+            sources.add(mapped.sources.get(n - 1) == null ? mapped : mapped.sources.get(n - 1));
+            indices.add(mapped.sources.get(n - 1) == null ? n : mapped.indices.get(n - 1));
+        }
+        else {
+            sources.add(source);
+            indices.add(n);
+        }
+        labels.add(source.getSliceLabel(n));
+    }
+
+    private void moveLast(int n) {
+        int last = sources.size() - 1;
+        sources.add(n, sources.remove(last));
+        indices.add(n, indices.remove(last));
+        labels.add(n, labels.remove(last));
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        sources.remove(n - 1);
+        indices.remove(n - 1);
+        labels.remove(n - 1);
+    }
+
+    @Override
+    public void deleteLastSlice() {
+        if (getSize() > 0) {
+            deleteSlice(getSize());
+        }
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        ImageStack source = sources.get(n - 1);
+        int index = indices.get(n - 1);
+        if (source == null) {
+            try {
+                return storage.read(index);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return source.getProcessor(index);
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public void setPixels(Object pixels, int n) {
+        ImageStack source = sources.get(n - 1);
+        int index = indices.get(n - 1);
+        if (source != null) {
+            source.setPixels(pixels, index);
+            return;
+        }
+        try {
+            storage.write(index, pixels);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int saveChanges(int n) {
+        return -1;
+    }
+
+    @Override
+    public int getSize() {
+        return sources.size();
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return labels.get(n - 1);
+    }
+
+    @Override
+    public void setSliceLabel(String label, int n) {
+        labels.set(n - 1, label);
+    }
+
+    @Override
+    public Object[] getImageArray() {
+        return null;
+    }
+
+    @Override
+    public String getDirectory() {
+        return null;
+    }
+
+    @Override
+    public String getFileName(int n) {
+        return null;
+    }
+
+    private ImageProcessor processor(Object pixels) {
+        if (pixels instanceof byte[]) {
+            return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels);
+        }
+        if (pixels instanceof short[]) {
+            return new ShortProcessor(getWidth(), getHeight(), (short[]) pixels, null);
+        }
+        if (pixels instanceof float[]) {
+            return new FloatProcessor(getWidth(), getHeight(), (float[]) pixels);
+        }
+        return new ColorProcessor(getWidth(), getHeight(), (int[]) pixels);
+    }
+
+    //
+    // Plane-wise analysis steps
+    //
+
+    /**
+     * Crop every plane of a virtual image into a new mapped stack.
+     *
+     * @param image Image with a virtual stack.
+     * @param bounds Rectangle to crop to.
+     * @return Cropped image with the title, calibration and LUTs of the input.
+     */
+    public static ImagePlus crop(ImagePlus image, Rectangle bounds) {
+        bounds = bounds.intersection(new Rectangle(image.getWidth(), image.getHeight()));
+        ImageStack stack = image.getStack();
+        MappedStack cropped = new MappedStack(bounds.width, bounds.height, image.getBitDepth());
+        for (int n = 1; n <= stack.getSize(); n++) {
+            ImageProcessor processor = stack.getProcessor(n);
+            processor.setRoi(bounds);
+            cropped.addSlice(stack.getSliceLabel(n), processor.crop());
+        }
+
+        ImagePlus result = withLayout(image.getTitle(), cropped, image, image.getNChannels(), image.getNSlices(), image.getNFrames());
+        result.getCalibration().xOrigin -= bounds.x;
+        result.getCalibration().yOrigin -= bounds.y;
+        return copyLuts(image, result);
+    }
+
+    /**
+     * Split the channels of a virtual image into views of its planes.
+     *
+     * @param image Image with a virtual stack.
+     * @return One image per channel, titled "C{n}-title" like ChannelSplitter does.
+     */
+    public static ImagePlus[] split(ImagePlus image) {
+        int channels = image.getNChannels();
+        ImagePlus[] splits = new ImagePlus[channels];
+        for (int c = 1; c <= channels; c++) {
+            MappedStack view = new MappedStack(image.getWidth(), image.getHeight(), image.getBitDepth());
+            for (int t = 1; t <= image.getNFrames(); t++) {
+                for (int z = 1; z <= image.getNSlices(); z++) {
+                    view.addView(image.getStack(), image.getStackIndex(c, z, t));
+                }
+            }
+
+            ImagePlus split = withLayout("C" + c + "-" + image.getTitle(), view, image, 1, image.getNSlices(), image.getNFrames());
+            LUT lut = image.isComposite() ? ((CompositeImage) image).getChannelLut(c) : image.getProcessor().getLut();
+            split.getProcessor().setLut(lut);
+            split.setDisplayRange(lut.min, lut.max);
+            if (image.getOverlay() != null) {
+                split.setOverlay(image.getOverlay().duplicate());
+            }
+            splits[c - 1] = split;
+        }
+        return splits;
+    }
+
+    /**
+     * Merge single channel images into a composite whose planes are views of the channels.
+     *
+     * @param channels Images of equal dimensions.
+     * @return Composite with one channel per image.
+     */
+    public static ImagePlus merge(ImagePlus[] channels) {
+        ImagePlus first = channels[0];
+        MappedStack view = new MappedStack(first.getWidth(), first.getHeight(), first.getBitDepth());
+        for (int t = 1; t <= first.getNFrames(); t++) {
+            for (int z = 1; z <= first.getNSlices(); z++) {
+                for (ImagePlus channel : channels) {
+                    view.addView(channel.getStack(), channel.getStackIndex(1, z, t));
+                }
+            }
+        }
+
+        ImagePlus merged = withLayout("Composite", view, first, channels.length, first.getNSlices(), first.getNFrames());
+        CompositeImage composite = new CompositeImage(merged, IJ.COMPOSITE);
+        for (int c = 0; c < channels.length; c++) {
+            LUT lut = channels[c].getProcessor().getLut();
+            lut.min = channels[c].getDisplayRangeMin();
+            lut.max = channels[c].getDisplayRangeMax();
+            composite.setChannelLut(lut, c + 1);
+        }
+        return composite;
+    }
+
+    private static ImagePlus withLayout(String title, ImageStack stack, ImagePlus template, int channels, int slices, int frames) {
+        ImagePlus image = new ImagePlus(title, stack);
+        image.setDimensions(channels, slices, frames);
+        image.setOpenAsHyperStack(channels * slices * frames > 1);
+        image.setCalibration(template.getCalibration().copy());
+        return image;
+    }
+
+    private static ImagePlus copyLuts(ImagePlus from, ImagePlus to) {
+        if (!from.isComposite()) {
+            to.getProcessor().setLut(from.getProcessor().getLut());
+            to.setDisplayRange(from.getDisplayRangeMin(), from.getDisplayRangeMax());
+            return to;
+        }
+        CompositeImage composite = new CompositeImage(to, ((CompositeImage) from).getMode());
+        for (int c = 1; c <= from.getNChannels(); c++) {
+            composite.setChannelLut(((CompositeImage) from).getChannelLut(c), c);
+        }
+        return composite;
+    }
+}
@@ -0,0 +1,169 @@
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A class for memory-aware admission of files that are loaded concurrently.
+ * New loads are only admitted while the estimated bytes of all admitted files stay below a fraction of the max heap.
+ */
+public class MemoryScheduler {
+    /**
+     * Number of additional copies of the pixel data that exist during analysis (crop, split, merge and flatten).
+     */
+    public static final double INTERMEDIATE_COPIES = 3.0;
+
+    private final long budget;
+    private long admittedBytes = 0;
+    private int admittedFiles = 0;
+
+    /**
+     * A single admitted file. Its bytes are accounted for until it is released.
+     */
+    public class Admission {
+        private long bytes;
+        private boolean released = false;
+
+        private Admission(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Replace the estimate with a better one, e.g. once the dimensions of the loaded image are known.
+         *
+         * @param newBytes New estimate of the bytes needed by the file.
+         */
+        public void resize(long newBytes) {
+            synchronized (MemoryScheduler.this) {
+                if (!released) {
+                    admittedBytes += newBytes - bytes;
+                    bytes = newBytes;
+                }
+            }
+        }
+
+        /**
+         * Release the bytes of this file, e.g. after it was processed or failed to load.
+         */
+        public void release() {
+            synchronized (MemoryScheduler.this) {
+                if (!released) {
+                    released = true;
+                    admittedBytes -= bytes;
+                    admittedFiles--;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param heapFraction Fraction of the max heap that admitted files may occupy together.
+     */
+    MemoryScheduler(double heapFraction) {
+        this(heapFraction, Runtime.getRuntime().maxMemory());
+    }
+
+    /**
+     * @param heapFraction Fraction of maxHeap that admitted files may occupy together.
+     * @param maxHeap Maximum heap size in bytes.
+     */
+    MemoryScheduler(double heapFraction, long maxHeap) {
+        if (heapFraction <= 0 || heapFraction > 1) {
+            throw new IllegalArgumentException("Heap fraction must be in (0, 1], got " + heapFraction);
+        }
+        this.budget = (long) (maxHeap * heapFraction);
+    }
+
+    /**
+     * Admit a file regardless of the budget. Used for the file that is needed next, so processing always progresses.
+     *
+     * @param bytes Estimated bytes of the file.
+     * @return The admission of the file.
+     */
+    public synchronized Admission admit(long bytes) {
+        admittedBytes += bytes;
+        admittedFiles++;
+        return new Admission(bytes);
+    }
+
+    /**
+     * Admit a file if it fits into the remaining budget. A file is always admitted if no other file is admitted.
+     *
+     * @param bytes Estimated bytes of the file.
+     * @return The admission of the file or null, if it does not fit.
+     */
+    public synchronized Admission tryAdmit(long bytes) {
+        if (admittedFiles > 0 && admittedBytes + bytes > budget) {
+            return null;
+        }
+        return admit(bytes);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getAdmittedBytes() {
+        return admittedBytes;
+    }
+
+    //
+    // Estimation methods
+    //
+
+    /**
+     * Estimate the bytes needed to analyze an image with the given dimensions, including intermediate copies.
+     *
+     * @return Estimated bytes.
+     */
+    public static long estimateBytes(int width, int height, int channels, int slices, int frames, int bytesPerPixel) {
+        long rawBytes = (long) width * height * channels * slices * frames * bytesPerPixel;
+        return (long) (rawBytes * (1 + INTERMEDIATE_COPIES));
+    }
+
+    /**
+     * Estimate the bytes needed to analyze a loaded image, including intermediate copies.
+     * For virtual stacks, only one plane per channel is counted.
+     *
+     * @param image Loaded image.
+     * @return Estimated bytes.
+     */
+    public static long estimateBytes(ImagePlus image) {
+        // dimensions = [width, height, channels, slices, frames]
+        int[] dimensions = image.getDimensions();
+        if (image.getStack().isVirtual()) {
+            // Only the planes in use are on the heap
+            return estimateBytes(dimensions[0], dimensions[1], dimensions[2], 1, 1, image.getBytesPerPixel());
+        }
+        return estimateBytes(dimensions[0], dimensions[1], dimensions[2], dimensions[3], dimensions[4],
+                image.getBytesPerPixel());
+    }
+
+    /**
+     * Estimate the bytes needed to analyze a file before it is loaded.
+     * Uses the dimensions of the file if its metadata is cached, otherwise the file size as an approximation
+     * of the uncompressed pixel data.
+     *
+     * @param file Path to the input file.
+     * @return Estimated bytes.
+     * @throws IOException
+     */
+    public static long estimateBytes(Path file) throws IOException {
+        ReaderPool.Metadata metadata = ReaderPool.getCachedMetadata(file);
+        if (metadata != null) {
+            return metadata.estimateBytes();
+        }
+        return estimateFileBytes(Files.size(file));
+    }
+
+    /**
+     * Estimate the memory for a file from its size alone, e.g. from listing its folder, without reading the file.
+     *
+     * @param fileBytes Size of the file, or -1 if unknown.
+     * @return Estimated bytes, 0 if the size is unknown.
+     */
+    public static long estimateFileBytes(long fileBytes) {
+        return (long) (Math.max(fileBytes, 0) * (1 + INTERMEDIATE_COPIES));
+    }
+}
@@ -0,0 +1,454 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A class for timing the stages of the analysis and exporting them as a report per run.
+ * Finished stages and files are also passed to the flight recorder and to listeners, e.g. a progress display.
+ * Samples are collected in a global recording, unless a thread started its own recording, see record.
+ */
+public class Metrics {
+    private static final Recording globalRecording = new Recording(null);
+    private static final ThreadLocal<FileInfo> currentFile =
+            ThreadLocal.withInitial(() -> new FileInfo("", -1, globalRecording));
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Receives finished stages and files, on the thread that finished them.
+     */
+    public interface Listener {
+        void stageFinished(Sample sample);
+
+        /**
+         * @param file The file, with its dimensions and analysis type if they are known.
+         * @param wallNanos Time from the start of the file to its end.
+         * @param completed Whether the file was processed completely.
+         */
+        void fileFinished(FileInfo file, long wallNanos, boolean completed);
+    }
+
+    /**
+     * The file that stages on a thread are attributed to. Dimensions and analysis type are added once they are known.
+     * It also carries the recording that the samples of the file are collected in, to the threads it is passed to.
+     */
+    public static class FileInfo {
+        public final String file;
+        public final long sizeBytes;
+        private final Recording recording;
+        private volatile String dimensions = "";
+        private volatile String analysisType = "";
+
+        FileInfo(String file, long sizeBytes, Recording recording) {
+            this.file = file;
+            this.sizeBytes = sizeBytes;
+            this.recording = recording;
+        }
+
+        /**
+         * @return Width x height x channels x slices x frames, or "" if unknown.
+         */
+        public String getDimensions() {
+            return dimensions;
+        }
+
+        /**
+         * @return Analysis type, e.g. "video", or "" if unknown.
+         */
+        public String getAnalysisType() {
+            return analysisType;
+        }
+    }
+
+    /**
+     * Samples of the stages that finished on the threads of one recording, e.g. one job of a resident process.
+     * Closing it returns the current thread to the recording it was started in.
+     */
+    public static class Recording implements AutoCloseable {
+        private final ConcurrentLinkedQueue<Sample> samples = new ConcurrentLinkedQueue<>();
+        private final Recording previous;
+
+        private Recording(Recording previous) {
+            this.previous = previous;
+        }
+
+        public List<Sample> getSamples() {
+            return new ArrayList<>(samples);
+        }
+
+        @Override
+        public void close() {
+            currentFile.set(new FileInfo("", -1, previous == null ? globalRecording : previous));
+        }
+    }
+
+    /**
+     * A finished measurement of one stage on one file.
+     */
+    public static class Sample {
+        public final String file;
+        public final String stage;
+        public final String thread;
+        public final long startMillis;
+        public final long wallNanos;
+        public final long bytesRead;
+        public final long bytesWritten;
+        public final long allocatedBytes;
+
+        Sample(String file, String stage, String thread, long startMillis, long wallNanos,
+               long bytesRead, long bytesWritten, long allocatedBytes) {
+            this.file = file;
+            this.stage = stage;
+            this.thread = thread;
+            this.startMillis = startMillis;
+            this.wallNanos = wallNanos;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    /**
+     * A running measurement of one stage. Closing it records a sample.
+     */
+    public static class Stage implements AutoCloseable {
+        private final String name;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final long startAllocated = allocatedBytes();
+        private final Object event = FlightRecorder.get().beginStage();
+        private long bytesRead = 0;
+        private long bytesWritten = 0;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public void addBytesRead(long bytes) {
+            bytesRead += bytes;
+        }
+
+        public void addBytesWritten(long bytes) {
+            bytesWritten += bytes;
+        }
+
+        @Override
+        public void close() {
+            long allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+            FileInfo file = currentFile.get();
+            Sample sample = new Sample(file.file, name, Thread.currentThread().getName(), startMillis,
+                    System.nanoTime() - startNanos, bytesRead, bytesWritten, allocated);
+            file.recording.samples.add(sample);
+            FlightRecorder.get().endStage(event, name, file, bytesRead, bytesWritten);
+            for (Listener listener : listeners) {
+                listener.stageFinished(sample);
+            }
+        }
+    }
+
+    /**
+     * The processing of one file on the current thread. Closing it passes the file to the flight recorder and the
+     * listeners.
+     */
+    public static class FileScope implements AutoCloseable {
+        private final FileInfo file;
+        private final long startNanos = System.nanoTime();
+        private final Object event = FlightRecorder.get().beginFile();
+        private boolean completed = false;
+
+        private FileScope(FileInfo file) {
+            this.file = file;
+        }
+
+        /**
+         * Mark the file as processed completely, before the scope is closed.
+         */
+        public void completed() {
+            completed = true;
+        }
+
+        @Override
+        public void close() {
+            FlightRecorder.get().endFile(event, file, completed);
+            long wallNanos = System.nanoTime() - startNanos;
+            for (Listener listener : listeners) {
+                listener.fileFinished(file, wallNanos, completed);
+            }
+        }
+    }
+
+    /**
+     * Collect the samples of the current thread in a new recording instead of the global one, until it is closed.
+     * Threads that the current file is passed to, see getCurrentFile, collect their samples in it as well.
+     *
+     * @return The recording, to be closed when it is done.
+     */
+    public static Recording record() {
+        Recording recording = new Recording(currentFile.get().recording);
+        currentFile.set(new FileInfo("", -1, recording));
+        return recording;
+    }
+
+    /**
+     * Start measuring a stage on the current thread.
+     *
+     * @param name Name of the stage, e.g. "open" or "save".
+     * @return The running stage, to be closed when the stage is done.
+     */
+    public static Stage start(String name) {
+        return new Stage(name);
+    }
+
+    /**
+     * Set the file that stages on the current thread are attributed to, in the recording of the current thread.
+     *
+     * @param file Input file that is processed.
+     */
+    public static void setCurrentFile(Path file) {
+        long sizeBytes = -1;
+        if (file != null) {
+            try {
+                sizeBytes = Files.size(file);
+            } catch (IOException e) {
+                Logger.debug(() -> "Could not get size of " + file + ": " + e);
+            }
+        }
+        currentFile.set(new FileInfo(file == null ? "" : file.toString(), sizeBytes, currentFile.get().recording));
+    }
+
+    /**
+     * @return The file that stages on the current thread are attributed to, e.g. to pass it to worker threads.
+     */
+    public static FileInfo getCurrentFile() {
+        return currentFile.get();
+    }
+
+    /**
+     * Attribute the stages on the current thread to a file of another thread.
+     *
+     * @param file File returned by getCurrentFile.
+     */
+    public static void setCurrentFile(FileInfo file) {
+        currentFile.set(file);
+    }
+
+    /**
+     * Start processing a file on the current thread, which stages on the thread are attributed to.
+     *
+     * @param file Input file that is processed.
+     * @return The running file, to be marked completed and closed when the file is done.
+     */
+    public static FileScope startFile(Path file) {
+        setCurrentFile(file);
+        return new FileScope(currentFile.get());
+    }
+
+    /**
+     * Add what is known about the current file of the thread, for the stages and the file that end after it.
+     *
+     * @param dimensions Width, height, channels, slices and frames, like ImagePlus.getDimensions.
+     * @param analysisType Analysis type, e.g. "video", or null to keep it.
+     */
+    public static void describeCurrentFile(int[] dimensions, String analysisType) {
+        FileInfo file = currentFile.get();
+        if (dimensions != null) {
+            StringBuilder text = new StringBuilder();
+            for (int dimension : dimensions) {
+                text.append(text.length() == 0 ? "" : "x").append(dimension);
+            }
+            file.dimensions = text.toString();
+        }
+        if (analysisType != null) {
+            file.analysisType = analysisType;
+        }
+    }
+
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return Samples of the global recording.
+     */
+    public static List<Sample> getSamples() {
+        return globalRecording.getSamples();
+    }
+
+    /**
+     * Discard the samples of the global recording.
+     */
+    public static void reset() {
+        globalRecording.samples.clear();
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or -1 if the JVM does not support it.
+     */
+    private static long allocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    //
+    // Report methods
+    //
+
+    /**
+     * Write all samples as CSV and a per-stage and per-file summary as JSON into the output folder.
+     *
+     * @param outFolder Folder to write metrics_<timestamp>.csv and metrics_<timestamp>.json to.
+     * @return Path of the JSON summary.
+     * @throws IOException
+     */
+    public static Path writeReport(Path outFolder) throws IOException {
+        return writeReport(outFolder, "metrics_");
+    }
+
+    /**
+     * Write all samples as CSV and a per-stage and per-file summary as JSON into the output folder.
+     *
+     * @param outFolder Folder to write the report to.
+     * @param prefix Prefix of the file names, e.g. to tell apart reports of concurrent processes.
+     * @return Path of the JSON summary.
+     * @throws IOException
+     */
+    public static Path writeReport(Path outFolder, String prefix) throws IOException {
+        return writeReport(outFolder, prefix, getSamples());
+    }
+
+    /**
+     * Write samples as CSV and a per-stage and per-file summary as JSON into the output folder.
+     *
+     * @param outFolder Folder to write the report to.
+     * @param prefix Prefix of the file names.
+     * @param snapshot Samples to write, e.g. of one recording.
+     * @return Path of the JSON summary.
+     * @throws IOException
+     */
+    public static Path writeReport(Path outFolder, String prefix, List<Sample> snapshot) throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+
+        Path csvPath = outFolder.resolve(prefix + timestamp + ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(csvPath, StandardCharsets.UTF_8)) {
+            writer.write("file,stage,thread,start_ms,wall_ms,bytes_read,bytes_written,allocated_bytes\n");
+            for (Sample sample : snapshot) {
+                writer.write(csvField(sample.file) + "," + csvField(sample.stage) + "," + csvField(sample.thread) + ","
+                        + sample.startMillis + "," + millis(sample.wallNanos) + "," + sample.bytesRead + ","
+                        + sample.bytesWritten + "," + sample.allocatedBytes + "\n");
+            }
+        }
+
+        Path jsonPath = outFolder.resolve(prefix + timestamp + ".json");
+        try (BufferedWriter writer = Files.newBufferedWriter(jsonPath, StandardCharsets.UTF_8)) {
+            writer.write(summaryJson(snapshot));
+        }
+
+        Logger.log("Wrote metrics to " + jsonPath);
+        return jsonPath;
+    }
+
+    /**
+     * Summarize samples per stage (wall time percentiles, bytes and throughput) and per file.
+     *
+     * @param samples Samples to summarize.
+     * @return Summary as JSON text.
+     */
+    public static String summaryJson(List<Sample> samples) {
+        Map<String, List<Sample>> byStage = new LinkedHashMap<>();
+        Map<String, List<Sample>> byFile = new LinkedHashMap<>();
+        for (Sample sample : samples) {
+            byStage.computeIfAbsent(sample.stage, k -> new ArrayList<>()).add(sample);
+            byFile.computeIfAbsent(sample.file, k -> new ArrayList<>()).add(sample);
+        }
+
+        StringBuilder json = new StringBuilder("{\n  \"stages\": {");
+        String separator = "\n";
+        for (Map.Entry<String, List<Sample>> entry : byStage.entrySet()) {
+            List<Sample> stageSamples = entry.getValue();
+            long[] wallNanos = new long[stageSamples.size()];
+            for (int i = 0; i < wallNanos.length; i++) {
+                wallNanos[i] = stageSamples.get(i).wallNanos;
+            }
+            Arrays.sort(wallNanos);
+
+            json.append(separator).append("    ").append(jsonString(entry.getKey())).append(": {")
+                .append("\"count\": ").append(wallNanos.length)
+                .append(", \"p50_ms\": ").append(millis(percentile(wallNanos, 0.50)))
+                .append(", \"p90_ms\": ").append(millis(percentile(wallNanos, 0.90)))
+                .append(", \"p99_ms\": ").append(millis(percentile(wallNanos, 0.99)))
+                .append(", \"max_ms\": ").append(millis(wallNanos[wallNanos.length - 1]))
+                .append(", ").append(totalsJson(stageSamples)).append("}");
+            separator = ",\n";
+        }
+
+        json.append("\n  },\n  \"files\": {");
+        separator = "\n";
+        for (Map.Entry<String, List<Sample>> entry : byFile.entrySet()) {
+            json.append(separator).append("    ").append(jsonString(entry.getKey())).append(": {")
+                .append(totalsJson(entry.getValue())).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+
+        return json.toString();
+    }
+
+    private static String totalsJson(List<Sample> samples) {
+        long wallNanos = 0, bytesRead = 0, bytesWritten = 0, allocated = 0;
+        for (Sample sample : samples) {
+            wallNanos += sample.wallNanos;
+            bytesRead += sample.bytesRead;
+            bytesWritten += sample.bytesWritten;
+            allocated += Math.max(sample.allocatedBytes, 0);
+        }
+        double seconds = wallNanos / 1e9;
+        double megabytesPerSecond = seconds > 0 ? (bytesRead + bytesWritten) / 1e6 / seconds : 0;
+
+        return "\"total_ms\": " + millis(wallNanos) + ", \"bytes_read\": " + bytesRead
+                + ", \"bytes_written\": " + bytesWritten + ", \"allocated_bytes\": " + allocated
+                + ", \"mb_per_s\": " + String.format(Locale.ROOT, "%.3f", megabytesPerSecond);
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values.
+     */
+    static long percentile(long[] sortedValues, double fraction) {
+        int rank = (int) Math.ceil(fraction * sortedValues.length);
+        return sortedValues[Math.min(Math.max(rank - 1, 0), sortedValues.length - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    static String csvField(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    private static String jsonString(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
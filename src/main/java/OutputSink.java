@@ -0,0 +1,243 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Destination of the files derived from one input. A writer asks for the path of a product, writes it there, e.g. with
+ * an ImageJ writer, and commits it. finish() completes the products of the input, and closing a sink that was not
+ * finished discards the products of a container.
+ *
+ * Products go either into the output folder, which is only created with the first product, or into a container:
+ * one uncompressed ZIP per input, written sequentially through one channel. The central directory of the ZIP is the
+ * index of the products. On network shares, this saves the metadata round-trips of many small files.
+ */
+public abstract class OutputSink implements Closeable {
+    /**
+     * Suffix of containers, after the file name of the input.
+     */
+    public static final String CONTAINER_SUFFIX = ".zip";
+
+    private static final int COPY_BYTES = 8 << 20;
+
+    /**
+     * @param outFolder Output folder, created with the first product.
+     * @return Sink that writes every product as file into the folder.
+     */
+    public static OutputSink folder(Path outFolder) {
+        return new FolderSink(outFolder);
+    }
+
+    /**
+     * @param container Path of the ZIP. It is written under a temporary name until finish() is called.
+     * @return Sink that writes all products into the container.
+     * @throws IOException
+     */
+    public static OutputSink container(Path container) throws IOException {
+        return new ContainerSink(container);
+    }
+
+    /**
+     * @param fileName File name of a product.
+     * @return Path to write the product to, before commit() is called.
+     * @throws IOException
+     */
+    public abstract Path create(String fileName) throws IOException;
+
+    /**
+     * Complete a product, which is not written to anymore.
+     *
+     * @param file Path from create().
+     * @return Bytes of the product.
+     * @throws IOException
+     */
+    public abstract long commit(Path file) throws IOException;
+
+    /**
+     * Complete the products of the input.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    private static class FolderSink extends OutputSink {
+        private final Path outFolder;
+
+        FolderSink(Path outFolder) {
+            this.outFolder = outFolder;
+        }
+
+        @Override
+        public Path create(String fileName) throws IOException {
+            return Files.createDirectories(outFolder).resolve(fileName);
+        }
+
+        @Override
+        public long commit(Path file) throws IOException {
+            return Files.size(file);
+        }
+    }
+
+    /**
+     * Products are written to scratch files on the local disk, and appended to the ZIP when they are committed.
+     * Entries are stored, since the pixels barely compress and extracting them then only copies bytes.
+     */
+    private static class ContainerSink extends OutputSink {
+        private final Path container;
+        private final Path partFile;
+        private final Path scratchFolder;
+        private final ZipOutputStream zip;
+        private boolean finished = false;
+
+        ContainerSink(Path container) throws IOException {
+            this.container = container;
+            this.partFile = container.resolveSibling(container.getFileName() + ".part");
+            Files.createDirectories(container.toAbsolutePath().getParent());
+            this.scratchFolder = Files.createTempDirectory("container-");
+            FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.zip = new ZipOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), COPY_BYTES));
+            zip.setMethod(ZipOutputStream.STORED);
+        }
+
+        @Override
+        public Path create(String fileName) {
+            return scratchFolder.resolve(fileName);
+        }
+
+        @Override
+        public synchronized long commit(Path file) throws IOException {
+            // Stored entries need their size and checksum ahead of the data
+            CRC32 crc = new CRC32();
+            long bytes = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BYTES);
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    crc.update(buffer.array(), 0, buffer.limit());
+                    bytes += buffer.limit();
+                    buffer.clear();
+                }
+            }
+
+            ZipEntry entry = new ZipEntry(file.getFileName().toString());
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(bytes);
+            entry.setCompressedSize(bytes);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            Files.copy(file, zip);
+            zip.closeEntry();
+            Files.delete(file);
+            return bytes;
+        }
+
+        @Override
+        public synchronized void finish() throws IOException {
+            zip.close();
+            Files.move(partFile, container, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                if (!finished) {
+                    try {
+                        zip.close();
+                    } catch (IOException e) {
+                        // An entry was cut off, which does not matter for a discarded container
+                        Logger.debug(() -> "Could not close " + partFile + ": " + e);
+                    }
+                    Files.deleteIfExists(partFile);
+                }
+            } finally {
+                deleteFolder(scratchFolder);
+            }
+        }
+    }
+
+    //
+    // Reading containers
+    //
+
+    /**
+     * @param container ZIP written by a container sink.
+     * @return Names of the products in the container, in the order they were written.
+     * @throws IOException
+     */
+    public static List<String> list(Path container) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(container.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Extract products of a container as files.
+     *
+     * @param container ZIP written by a container sink.
+     * @param outFolder Folder to extract to.
+     * @param names Names of the products, or empty for all products.
+     * @return Paths of the extracted files.
+     * @throws IOException If a product is not in the container.
+     */
+    public static List<Path> extract(Path container, Path outFolder, List<String> names) throws IOException {
+        List<Path> extracted = new ArrayList<>();
+        Files.createDirectories(outFolder);
+        try (ZipFile zip = new ZipFile(container.toFile())) {
+            List<String> selected = names.isEmpty() ?
+                    zip.stream().map(ZipEntry::getName).collect(Collectors.toList()) : names;
+            for (String name : selected) {
+                ZipEntry entry = zip.getEntry(name);
+                if (entry == null) {
+                    throw new IOException(container + " has no product " + name);
+                }
+                // Products are flat, so names with folders are not written outside of the output folder
+                Path target = outFolder.resolve(Paths.get(name).getFileName().toString());
+                try (InputStream in = zip.getInputStream(entry)) {
+                    Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                extracted.add(target);
+            }
+        }
+        return extracted;
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(folder)) {
+            files = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
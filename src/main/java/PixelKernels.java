@@ -0,0 +1,100 @@
+/**
+ * The per-pixel loops of the analysis: color classification, maximum projection, display scaling, merging and
+ * flat-field correction.
+ * There are two implementations with identical results. The scalar one runs everywhere. The vectorized one uses the
+ * incubating Vector API and is only in the Java 17 part of the multi-release jar. It is selected automatically if
+ * the JVM runs with --add-modules jdk.incubator.vector, unless the system property wagner.vectorKernels is false.
+ */
+public abstract class PixelKernels {
+    private static final PixelKernels SCALAR = new ScalarKernels();
+    private static final PixelKernels VECTORIZED = loadVectorized();
+    private static final PixelKernels DEFAULT =
+            VECTORIZED != null && !"false".equals(System.getProperty("wagner.vectorKernels")) ? VECTORIZED : SCALAR;
+
+    /**
+     * @return The fastest implementation available in this JVM.
+     */
+    public static PixelKernels get() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return The scalar implementation, e.g. for comparisons.
+     */
+    public static PixelKernels scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * @return The vectorized implementation, or null if this JVM can not run it.
+     */
+    public static PixelKernels vectorized() {
+        return VECTORIZED;
+    }
+
+    private static PixelKernels loadVectorized() {
+        try {
+            // Only present in META-INF/versions/17 and only linkable with the incubator module
+            return (PixelKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            Logger.debug(() -> "Vectorized pixel kernels are not available: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return Name of the implementation.
+     */
+    public abstract String getName();
+
+    /**
+     * Count the RGB pixels in which red, green or blue is the largest component, with the rules of whichColor.
+     *
+     * @param pixels RGB pixels.
+     * @param counts Counts of red, green and blue dominated pixels, which are increased.
+     */
+    public abstract void countDominantColors(int[] pixels, long[] counts);
+
+    /**
+     * Unsigned maximum of two 16-bit planes.
+     *
+     * @param accumulator Maximum so far, which is updated.
+     * @param plane Next plane.
+     */
+    public abstract void maxInto(short[] accumulator, short[] plane);
+
+    /**
+     * Unsigned maximum of two 8-bit planes.
+     *
+     * @param accumulator Maximum so far, which is updated.
+     * @param plane Next plane.
+     */
+    public abstract void maxInto(byte[] accumulator, byte[] plane);
+
+    /**
+     * Scale 16-bit pixels to 8-bit display values like ImageJ shows them with a display range.
+     *
+     * @param pixels 16-bit pixels.
+     * @param min Lower end of the display range.
+     * @param max Upper end of the display range.
+     * @param indices Display values, at least as long as pixels.
+     */
+    public abstract void toIndices(short[] pixels, int min, int max, byte[] indices);
+
+    /**
+     * Add RGB pixels component-wise, saturating at 255, like composite images sum their channels.
+     *
+     * @param sum RGB pixels so far, which are updated.
+     * @param rgb RGB pixels to add.
+     */
+    public abstract void addSaturated(int[] sum, int[] rgb);
+
+    /**
+     * Flat-field correction of 16-bit pixels: (pixel - dark) * gain, rounded and clamped to the 16-bit range.
+     *
+     * @param pixels 16-bit pixels, which are corrected in place.
+     * @param dark Dark frame, at least as long as pixels.
+     * @param gain Inverse of the normalized flat field, at least as long as pixels.
+     */
+    public abstract void correctFlatField(short[] pixels, float[] dark, float[] gain);
+}
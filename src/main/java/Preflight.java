@@ -0,0 +1,475 @@
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.NonBlockingGenericDialog;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.gui.TextRoi;
+import ij.io.FileSaver;
+import ij.process.ColorProcessor;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pre-flight of a folder before a batch: previews of all files on one contact sheet, on which the operator sets or
+ * approves the region and projection of each file. The previews are read in parallel from a few binned planes,
+ * see ReaderPool.openThumbnail, so no file is loaded as a whole. The choices are saved as CSV, which a batch
+ * applies per file with "preflight=[preflight.csv]".
+ */
+public class Preflight {
+    public static final String CHOICES_FILE = "preflight.csv";
+    public static final String SHEET_FILE = "preflight.png";
+
+    private static final int MARGIN = 4;
+    private static final int FONT_SIZE = 11;
+    private static final int LABEL_HEIGHT = 2 * (FONT_SIZE + 2);
+    private static final Color CHOICE_COLOR = Color.yellow;
+
+    /**
+     * Region and projection of one file.
+     */
+    public static class Choice {
+        /**
+         * Region in pixels of the file, or null for the whole plane.
+         */
+        public final Roi roi;
+
+        /**
+         * One or several of AnalysisSettings.PROJECTION_TYPES, see AnalysisSettings.isProjectionType, or null for the
+         * projection of the run.
+         */
+        public final String projection;
+
+        public Choice(Roi roi, String projection) {
+            this.roi = roi;
+            this.projection = projection;
+        }
+    }
+
+    /**
+     * Preview of one file, with the dimensions of the file.
+     */
+    public static class Thumbnail {
+        public final Path file;
+        public final ImagePlus image;
+        public final int width;
+        public final int height;
+        public final int slices;
+        public final int frames;
+
+        Thumbnail(Path file, ImagePlus image, ReaderPool.Metadata metadata) {
+            this.file = file;
+            this.image = image;
+            this.width = metadata.width;
+            this.height = metadata.height;
+            this.slices = metadata.slices;
+            this.frames = metadata.frames;
+        }
+
+        /**
+         * @return Pixels of the file per pixel of the preview.
+         */
+        public double scale() {
+            return (double) width / image.getWidth();
+        }
+    }
+
+    /**
+     * Read the previews of files in parallel. Files that can not be read are left out.
+     *
+     * @param files Input files.
+     * @param maxSize Maximum width and height of the previews.
+     * @param threads Number of files read in parallel.
+     * @return Previews in the order of the files.
+     * @throws InterruptedException
+     */
+    public static List<Thumbnail> thumbnails(List<Path> files, int maxSize, int threads) throws InterruptedException {
+        try (Metrics.Stage stage = Metrics.start("preflight")) {
+            Logger.log("Reading previews of " + files.size() + " files...");
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+            List<Future<Thumbnail>> futures = new ArrayList<>();
+            try {
+                for (Path file : files) {
+                    futures.add(executor.submit(() -> new Thumbnail(file, ReaderPool.openThumbnail(file, maxSize),
+                            ReaderPool.getMetadata(file))));
+                }
+                List<Thumbnail> thumbnails = new ArrayList<>();
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        thumbnails.add(futures.get(i).get());
+                    } catch (ExecutionException e) {
+                        Logger.warn("Could not read preview of " + files.get(i) + ": " + e.getCause());
+                    }
+                }
+                return thumbnails;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Default choice of every file: the region of the run, and its projection for z-stacks.
+     *
+     * @param thumbnails Previews of the files.
+     * @param roi Region of the run, or null.
+     * @param projection Projection of the run, or null.
+     * @return Choice by absolute path of the file.
+     */
+    public static Map<Path, Choice> defaults(List<Thumbnail> thumbnails, Roi roi, String projection) {
+        Map<Path, Choice> choices = new LinkedHashMap<>();
+        for (Thumbnail thumbnail : thumbnails) {
+            choices.put(key(thumbnail.file), new Choice(roi, thumbnail.slices > 1 ? projection : null));
+        }
+        return choices;
+    }
+
+    /**
+     * @return Key of a file in the choices.
+     */
+    public static Path key(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    //
+    // Contact sheet
+    //
+
+    /**
+     * Previews of files in a grid, each labeled with its file name and dimensions.
+     */
+    public static class ContactSheet {
+        public final ImagePlus image;
+        public final List<Thumbnail> thumbnails;
+        private final int columns;
+        private final int cellWidth;
+        private final int cellHeight;
+
+        private ContactSheet(ImagePlus image, List<Thumbnail> thumbnails, int columns, int cellWidth, int cellHeight) {
+            this.image = image;
+            this.thumbnails = thumbnails;
+            this.columns = columns;
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+        }
+
+        /**
+         * @param index Index of a preview.
+         * @return Bounds of the preview on the sheet.
+         */
+        public Rectangle bounds(int index) {
+            ImagePlus preview = thumbnails.get(index).image;
+            return new Rectangle(MARGIN + index % columns * cellWidth, MARGIN + index / columns * cellHeight,
+                    preview.getWidth(), preview.getHeight());
+        }
+
+        /**
+         * @return Index of the preview that contains a point of the sheet, or -1.
+         */
+        public int indexAt(int x, int y) {
+            for (int i = 0; i < thumbnails.size(); i++) {
+                if (bounds(i).contains(x, y)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Region of a file from a selection on its preview.
+         *
+         * @param index Index of the preview.
+         * @param selection Selection on the sheet.
+         * @return Region in pixels of the file, within its plane.
+         */
+        public Roi toFile(int index, Rectangle selection) {
+            Thumbnail thumbnail = thumbnails.get(index);
+            Rectangle preview = bounds(index);
+            Rectangle region = selection.intersection(preview);
+            double scale = thumbnail.scale();
+            Rectangle bounds = new Rectangle((int) Math.round((region.x - preview.x) * scale),
+                    (int) Math.round((region.y - preview.y) * scale),
+                    (int) Math.round(region.width * scale), (int) Math.round(region.height * scale));
+            return new Roi(bounds.intersection(new Rectangle(thumbnail.width, thumbnail.height)));
+        }
+
+        /**
+         * Show the regions and projections of the files as overlay of the sheet.
+         *
+         * @param choices Choice by absolute path of the file.
+         */
+        public void showChoices(Map<Path, Choice> choices) {
+            Overlay overlay = new Overlay();
+            Font font = new Font("SansSerif", Font.PLAIN, FONT_SIZE);
+            for (int i = 0; i < thumbnails.size(); i++) {
+                Choice choice = choices.get(key(thumbnails.get(i).file));
+                if (choice == null) {
+                    continue;
+                }
+                Rectangle preview = bounds(i);
+                if (choice.roi != null) {
+                    double scale = thumbnails.get(i).scale();
+                    Rectangle region = choice.roi.getBounds();
+                    Roi outline = new Roi(preview.x + region.x / scale, preview.y + region.y / scale,
+                            region.width / scale, region.height / scale);
+                    outline.setStrokeColor(CHOICE_COLOR);
+                    overlay.add(outline);
+                }
+                if (choice.projection != null) {
+                    TextRoi text = new TextRoi(choice.projection, preview.x + 2, preview.y + 2, font);
+                    text.setStrokeColor(CHOICE_COLOR);
+                    overlay.add(text);
+                }
+            }
+            image.setOverlay(overlay);
+        }
+    }
+
+    /**
+     * Arrange previews on a contact sheet. Every preview is contrast stretched and flattened to RGB.
+     *
+     * @param thumbnails Previews of the files.
+     * @param columns Number of previews per row.
+     * @param saturated Percentage of saturated pixels of the contrast.
+     * @return The sheet.
+     */
+    public static ContactSheet contactSheet(List<Thumbnail> thumbnails, int columns, double saturated) {
+        try (Metrics.Stage stage = Metrics.start("preflight")) {
+            int cellWidth = 1;
+            int cellHeight = 1;
+            for (Thumbnail thumbnail : thumbnails) {
+                cellWidth = Math.max(cellWidth, thumbnail.image.getWidth() + MARGIN);
+                cellHeight = Math.max(cellHeight, thumbnail.image.getHeight() + LABEL_HEIGHT + MARGIN);
+            }
+            columns = Math.max(Math.min(columns, thumbnails.size()), 1);
+            int rows = Math.max((thumbnails.size() + columns - 1) / columns, 1);
+
+            ColorProcessor sheet = new ColorProcessor(MARGIN + columns * cellWidth, MARGIN + rows * cellHeight);
+            sheet.setFont(new Font("SansSerif", Font.PLAIN, FONT_SIZE));
+            sheet.setColor(Color.white);
+            sheet.setAntialiasedText(true);
+            ContactSheet contactSheet = new ContactSheet(new ImagePlus("Pre-flight", sheet), thumbnails, columns,
+                    cellWidth, cellHeight);
+            for (int i = 0; i < thumbnails.size(); i++) {
+                Thumbnail thumbnail = thumbnails.get(i);
+                ImagePlus preview = ImageChanger.autoContrast(thumbnail.image, saturated).flatten();
+                Rectangle bounds = contactSheet.bounds(i);
+                sheet.insert(preview.getProcessor(), bounds.x, bounds.y);
+
+                String dimensions = thumbnail.width + "x" + thumbnail.height
+                        + (thumbnail.slices > 1 ? ", " + thumbnail.slices + " z" : "")
+                        + (thumbnail.frames > 1 ? ", " + thumbnail.frames + " t" : "");
+                int baseline = bounds.y + bounds.height + FONT_SIZE + 1;
+                sheet.drawString(thumbnail.file.getFileName().toString(), bounds.x, baseline);
+                sheet.drawString(dimensions, bounds.x, baseline + FONT_SIZE + 2);
+            }
+            return contactSheet;
+        }
+    }
+
+    /**
+     * Let the operator set the region of files by drawing rectangles on their previews, and choose the projection
+     * of z-stacks. Files the operator does not change keep their choice, so confirming approves them.
+     *
+     * @param sheet Contact sheet, which is shown.
+     * @param choices Choice by absolute path of the file, which are updated.
+     * @return Whether the operator approved the choices, false if the pre-flight was canceled.
+     */
+    public static boolean review(ContactSheet sheet, Map<Path, Choice> choices) {
+        sheet.showChoices(choices);
+        sheet.image.show();
+        try {
+            while (true) {
+                NonBlockingGenericDialog dialog = new NonBlockingGenericDialog("Pre-flight");
+                dialog.addMessage("Draw a rectangle on a preview and press \"Set region\" to use it for its file.\n"
+                        + "Press \"Approve\" when the regions of all files are as shown.");
+                dialog.enableYesNoCancel("Set region", "Approve");
+                dialog.showDialog();
+                if (dialog.wasCanceled()) {
+                    return false;
+                }
+                if (!dialog.wasOKed()) {
+                    break;
+                }
+
+                Roi selection = sheet.image.getRoi();
+                Rectangle bounds = selection == null ? null : selection.getBounds();
+                int index = bounds == null ? -1 : sheet.indexAt((int) bounds.getCenterX(), (int) bounds.getCenterY());
+                if (index < 0) {
+                    Logger.warn("Draw the region on a preview first.");
+                    continue;
+                }
+                Path key = key(sheet.thumbnails.get(index).file);
+                Choice choice = choices.get(key);
+                choices.put(key, new Choice(sheet.toFile(index, bounds), choice == null ? null : choice.projection));
+                sheet.image.deleteRoi();
+                sheet.showChoices(choices);
+            }
+
+            List<Thumbnail> zStacks = new ArrayList<>();
+            for (Thumbnail thumbnail : sheet.thumbnails) {
+                if (thumbnail.slices > 1) {
+                    zStacks.add(thumbnail);
+                }
+            }
+            if (zStacks.isEmpty()) {
+                return true;
+            }
+            GenericDialog dialog = new GenericDialog("Pre-flight projections");
+            for (Thumbnail thumbnail : zStacks) {
+                Choice choice = choices.get(key(thumbnail.file));
+                String projection = choice == null || choice.projection == null ? "Z Project" : choice.projection;
+                List<String> projections = new ArrayList<>(Arrays.asList(AnalysisSettings.PROJECTION_TYPES));
+                if (!projections.contains(projection)) {
+                    projections.add(projection);
+                }
+                dialog.addChoice(thumbnail.file.getFileName().toString(), projections.toArray(new String[0]), projection);
+            }
+            dialog.showDialog();
+            if (dialog.wasCanceled()) {
+                return false;
+            }
+            for (Thumbnail thumbnail : zStacks) {
+                Path key = key(thumbnail.file);
+                Choice choice = choices.get(key);
+                choices.put(key, new Choice(choice == null ? null : choice.roi, dialog.getNextChoice()));
+            }
+            return true;
+        } finally {
+            sheet.image.changes = false;
+            sheet.image.close();
+        }
+    }
+
+    /**
+     * Save the contact sheet with the choices burnt in, and the choices, e.g. for an operator to review and edit.
+     *
+     * @param sheet Contact sheet.
+     * @param choices Choice by absolute path of the file.
+     * @param outFolder Folder of SHEET_FILE and CHOICES_FILE.
+     * @return Path of the choices.
+     * @throws IOException
+     */
+    public static Path save(ContactSheet sheet, Map<Path, Choice> choices, Path outFolder) throws IOException {
+        try (Metrics.Stage stage = Metrics.start("save")) {
+            Files.createDirectories(outFolder);
+            sheet.showChoices(choices);
+            Path sheetFile = outFolder.resolve(SHEET_FILE);
+            Path partFile = sheetFile.resolveSibling(SHEET_FILE + ".part");
+            if (!new FileSaver(sheet.image.flatten()).saveAsPng(partFile.toString())) {
+                throw new IOException("Could not save " + sheetFile);
+            }
+            Files.move(partFile, sheetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Path choicesFile = outFolder.resolve(CHOICES_FILE);
+            writeChoices(choicesFile, choices);
+            stage.addBytesWritten( Files.size(sheetFile) + Files.size(choicesFile) );
+            Logger.log("Saved " + sheetFile + " and " + choicesFile);
+            return choicesFile;
+        }
+    }
+
+    //
+    // Choices file
+    //
+
+    /**
+     * Write the choices as CSV with the columns file, x, y, width, height and projection.
+     * Empty region columns stand for the whole plane, an empty projection for the one of the run.
+     *
+     * @param file Path of the CSV.
+     * @param choices Choice by absolute path of the file.
+     * @throws IOException
+     */
+    public static void writeChoices(Path file, Map<Path, Choice> choices) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("file,x,y,width,height,projection\n");
+            for (Map.Entry<Path, Choice> entry : choices.entrySet()) {
+                Choice choice = entry.getValue();
+                Rectangle bounds = choice.roi == null ? null : choice.roi.getBounds();
+                writer.write(Metrics.csvField(entry.getKey().toString()) + ","
+                        + (bounds == null ? ",,," : bounds.x + "," + bounds.y + "," + bounds.width + "," + bounds.height)
+                        + "," + (choice.projection == null ? "" : Metrics.csvField(choice.projection)) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Read choices written by writeChoices, e.g. after an operator edited them.
+     *
+     * @param file Path of the CSV.
+     * @return Choice by absolute path of the file.
+     * @throws IOException
+     */
+    public static Map<Path, Choice> readChoices(Path file) throws IOException {
+        Map<Path, Choice> choices = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int n = 1; n < lines.size(); n++) {
+            if (lines.get(n).trim().isEmpty()) {
+                continue;
+            }
+            List<String> fields = parseCsvLine(lines.get(n));
+            if (fields.size() != 6) {
+                throw new IOException(file + ":" + (n + 1) + ": expected 6 columns, got " + fields.size());
+            }
+            Roi roi = null;
+            if (!fields.get(1).trim().isEmpty()) {
+                roi = new Roi(Integer.parseInt(fields.get(1).trim()), Integer.parseInt(fields.get(2).trim()),
+                        Integer.parseInt(fields.get(3).trim()), Integer.parseInt(fields.get(4).trim()));
+            }
+            String projection = fields.get(5).trim().isEmpty() ? null : fields.get(5).trim();
+            if (projection != null && !AnalysisSettings.isProjectionType(projection)) {
+                throw new IOException(file + ":" + (n + 1) + ": unknown projection type " + projection);
+            }
+            choices.put(key(Paths.get(fields.get(0))), new Choice(roi, projection));
+        }
+        return choices;
+    }
+
+    /**
+     * Fields of a CSV line, with fields quoted like Metrics.csvField.
+     */
+    private static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,177 @@
+import ij.IJ;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Files done, throughput and estimated time left of a run. The run reports every file once, when it succeeded or
+ * failed its last attempt, and the stages of its files are taken from Metrics, which other runs may share.
+ * The time of a file is modeled as a fixed cost plus a cost per byte, fitted to the files done so far, so a few
+ * large files left are not estimated like many small ones. The modeled time is scaled by the observed wall time,
+ * which includes the overlap of loading and processing.
+ * Progress is shown in the status and progress bar of ImageJ, or logged every LOG_INTERVAL_SECONDS without it.
+ */
+public class Progress implements Metrics.Listener {
+    public static final int LOG_INTERVAL_SECONDS = 10;
+
+    private final Set<String> files;
+    private final int totalFiles;
+    private final long totalBytes;
+    private final long startNanos;
+    private int completedFiles = 0;
+    private int failedFiles = 0;
+    private long completedBytes = 0;
+    private long failedBytes = 0;
+    private String lastStage = "";
+    private long lastLogged;
+
+    // Sums of the least squares fit of the wall time of a file against its size
+    private double sumSize = 0;
+    private double sumTime = 0;
+    private double sumSizeTime = 0;
+    private double sumSizeSquared = 0;
+
+    /**
+     * Progress of the run at one time.
+     */
+    public static class Estimate {
+        public final int completedFiles;
+        public final int failedFiles;
+        public final int totalFiles;
+        public final double bytesPerSecond;
+        /**
+         * Estimated time left, or NaN before the first file is done.
+         */
+        public final double secondsLeft;
+
+        Estimate(int completedFiles, int failedFiles, int totalFiles, double bytesPerSecond, double secondsLeft) {
+            this.completedFiles = completedFiles;
+            this.failedFiles = failedFiles;
+            this.totalFiles = totalFiles;
+            this.bytesPerSecond = bytesPerSecond;
+            this.secondsLeft = secondsLeft;
+        }
+
+        @Override
+        public String toString() {
+            String text = String.format(Locale.ROOT, "%d/%d files, %.1f MB/s", completedFiles, totalFiles,
+                    bytesPerSecond / 1e6);
+            if (failedFiles > 0) {
+                text += ", " + failedFiles + " failed";
+            }
+            if (!Double.isNaN(secondsLeft)) {
+                long seconds = Math.round(secondsLeft);
+                text += seconds >= 60 ? String.format(Locale.ROOT, ", ETA %d min %02d s", seconds / 60, seconds % 60)
+                        : ", ETA " + seconds + " s";
+            }
+            return text;
+        }
+    }
+
+    /**
+     * @param files Files of the run.
+     * @param totalBytes Size of the files of the run.
+     */
+    public Progress(List<Path> files, long totalBytes) {
+        this(files, totalBytes, System.nanoTime());
+    }
+
+    /**
+     * @param startNanos Start of the run, from System.nanoTime.
+     */
+    Progress(List<Path> files, long totalBytes, long startNanos) {
+        this.files = files.stream().map(Path::toString).collect(Collectors.toSet());
+        this.totalFiles = files.size();
+        this.totalBytes = totalBytes;
+        this.startNanos = startNanos;
+        this.lastLogged = startNanos;
+    }
+
+    @Override
+    public synchronized void stageFinished(Metrics.Sample sample) {
+        if (!files.contains(sample.file)) {
+            return;
+        }
+        lastStage = sample.stage;
+        if (IJ.getInstance() != null) {
+            IJ.showStatus(estimate(System.nanoTime()) + " (" + lastStage + ")");
+        }
+    }
+
+    /**
+     * Files are counted by fileDone instead, since a file may be attempted several times, and a file that can not
+     * be loaded never starts.
+     */
+    @Override
+    public void fileFinished(Metrics.FileInfo file, long wallNanos, boolean completed) {
+    }
+
+    /**
+     * Count a file of the run on its final outcome.
+     *
+     * @param sizeBytes Size of the file, or -1 if unknown.
+     * @param wallNanos Time from the start of the last attempt to its end.
+     * @param completed Whether the file was processed completely, or failed its last attempt.
+     */
+    public synchronized void fileDone(long sizeBytes, long wallNanos, boolean completed) {
+        long size = Math.max(sizeBytes, 0);
+        if (!completed) {
+            failedFiles++;
+            failedBytes += size;
+        }
+        else {
+            completedFiles++;
+            completedBytes += size;
+            double seconds = wallNanos / 1e9;
+            sumSize += size;
+            sumTime += seconds;
+            sumSizeTime += size * seconds;
+            sumSizeSquared += (double) size * size;
+        }
+        show(estimate(System.nanoTime()));
+    }
+
+    /**
+     * @param nowNanos Time of the estimate, from System.nanoTime.
+     * @return Files done, input bytes of the files done per second of the run, and the time left.
+     */
+    public synchronized Estimate estimate(long nowNanos) {
+        double elapsed = Math.max(nowNanos - startNanos, 1) / 1e9;
+        double secondsLeft = Double.NaN;
+        int remainingFiles = Math.max(totalFiles - completedFiles - failedFiles, 0);
+        if (remainingFiles == 0) {
+            secondsLeft = 0;
+        }
+        else if (completedFiles > 0) {
+            long remainingBytes = Math.max(totalBytes - completedBytes - failedBytes, 0);
+            double n = completedFiles;
+            double variance = n * sumSizeSquared - sumSize * sumSize;
+            // Without different sizes to fit a cost per byte to, every file is modeled by the mean time
+            double perByte = variance > 1e-9 * sumSizeSquared * n ? (n * sumSizeTime - sumSize * sumTime) / variance : 0;
+            perByte = Math.max(perByte, 0);
+            double perFile = Math.max((sumTime - perByte * sumSize) / n, 0);
+            double modeled = perFile * remainingFiles + perByte * remainingBytes;
+            // Files overlap with loading ahead and with each other, so the model is scaled to the observed wall time
+            secondsLeft = sumTime > 0 ? modeled * elapsed / sumTime : elapsed / n * remainingFiles;
+        }
+        return new Estimate(completedFiles, failedFiles, totalFiles, completedBytes / elapsed, secondsLeft);
+    }
+
+    private void show(Estimate estimate) {
+        if (IJ.getInstance() != null) {
+            IJ.showStatus(estimate.toString());
+            IJ.showProgress(estimate.completedFiles + estimate.failedFiles, Math.max(estimate.totalFiles, 1));
+            return;
+        }
+        long now = System.nanoTime();
+        boolean done = estimate.completedFiles + estimate.failedFiles >= estimate.totalFiles;
+        if (done || now - lastLogged >= TimeUnit.SECONDS.toNanos(LOG_INTERVAL_SECONDS)) {
+            lastLogged = now;
+            Logger.log("Progress: " + estimate);
+        }
+    }
+}
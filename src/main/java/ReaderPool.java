@@ -0,0 +1,1294 @@
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import ij.measure.Calibration;
+import ij.plugin.Duplicator;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.NIOFileHandle;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.meta.DummyMetadata;
+import loci.formats.meta.IMetadata;
+import loci.formats.in.DefaultMetadataOptions;
+import loci.formats.in.MetadataLevel;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * A class for opening images with Bio-Formats readers that are reused instead of built per file.
+ * Every thread keeps one initialized reader, which holds one instance per format, so consecutive files of the same
+ * format reuse the same format reader. The metadata of opened files is cached by path, modification time and size.
+ * Re-opening a cached file skips building the OME metadata, and pre-scans of cached files do not touch the file.
+ */
+public class ReaderPool {
+    private static final int MAX_CACHED_FILES = 10000;
+
+    /**
+     * Native files with larger planes are described by Bio-Formats, since ImageJ reads the first plane to open them.
+     */
+    private static final long MAX_NATIVE_PLANE_PIXELS = 64L << 20;
+
+    /**
+     * Channel colors that CompositeImage uses for channels without color.
+     */
+    private static final Color[] DEFAULT_COLORS = {
+            Color.red, Color.green, Color.blue, Color.white, Color.cyan, Color.magenta, Color.yellow};
+
+    /**
+     * Size of the read-ahead buffer of the file handles of the pooled readers. Larger than the default of
+     * Bio-Formats, so sequential plane reads from network storage, with its high latency per request, need fewer
+     * requests.
+     */
+    private static final int READ_AHEAD_BYTES = 4 << 20;
+
+    /**
+     * Pixels of a band of rows that is read at once for a thumbnail.
+     */
+    private static final long THUMBNAIL_BAND_PIXELS = 16L << 20;
+
+    /**
+     * Names of microns and seconds in ome.units.UNITS of Bio-Formats 5 and later, current name first.
+     */
+    private static final String[] MICROMETER = {"MICROMETER", "MICROM"};
+    private static final String[] SECOND = {"SECOND", "S"};
+
+    private static final ThreadLocal<PooledReader> readers = new ThreadLocal<>();
+
+    /**
+     * Readers that are reading a file right now, by thread, so the reads can be aborted.
+     */
+    private static final Map<Thread, PooledReader> activeReaders = new ConcurrentHashMap<>();
+
+    /**
+     * Locks of the file names that are mapped to handles of the pooled readers, by hash of the name.
+     */
+    private static final Object[] mappingLocks = new Object[64];
+
+    static {
+        for (int i = 0; i < mappingLocks.length; i++) {
+            mappingLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Source files of staged copies, so a copy is described by the cached metadata of its source.
+     */
+    private static final Map<Path, Path> stagedSources = new ConcurrentHashMap<>();
+
+    private static final Map<Path, Metadata> metadataCache = new LinkedHashMap<Path, Metadata>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Metadata> eldest) {
+            return size() > MAX_CACHED_FILES;
+        }
+    };
+
+    /**
+     * Dimensions, pixel size and channel colors of the first series of a file, and of its other series.
+     */
+    public static class Metadata {
+        public long lastModified;
+        public long size;
+        public String format;
+        public int width, height, channels, slices, frames;
+        public int bytesPerPixel;
+        public int seriesCount = 1;
+        public double pixelWidth = 1, pixelHeight = 1, pixelDepth = 1;
+        public String unit = null;
+        public double frameInterval = 0;
+        public Color[] channelColors;
+        /**
+         * Metadata of every series, e.g. of the stage positions of an ND2 file, or null if there is only one.
+         */
+        public Metadata[] series = null;
+
+        /**
+         * @return Estimated bytes needed to analyze the file, including intermediate copies.
+         */
+        public long estimateBytes() {
+            return MemoryScheduler.estimateBytes(width, height, channels, slices, frames, bytesPerPixel);
+        }
+
+        /**
+         * @param index Index of a series, starting at 0.
+         * @return Metadata of the series.
+         */
+        public Metadata forSeries(int index) {
+            if (index == 0 || series == null) {
+                return this;
+            }
+            return series[index];
+        }
+    }
+
+    /**
+     * A reader of one thread with the metadata store it fills.
+     */
+    private static class PooledReader {
+        final ImageProcessorReader reader;
+        final IMetadata store;
+        /**
+         * Handle of the file the reader is set to, or null if Bio-Formats opened the file itself.
+         */
+        IRandomAccess handle;
+        volatile boolean aborted = false;
+
+        PooledReader() throws IOException {
+            try {
+                store = new ServiceFactory().getInstance(OMEXMLService.class).createOMEXMLMetadata();
+            } catch (DependencyException | ServiceException e) {
+                throw new IOException("Could not create OME metadata", e);
+            }
+            reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader()));
+        }
+
+        /**
+         * Close the file of the reader and its handle. The reader can be set to another file afterwards.
+         */
+        synchronized void close() throws IOException {
+            try {
+                reader.close();
+            } finally {
+                if (handle != null) {
+                    handle.close();
+                    handle = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the first series of a file as image. Formats that ImageJ reads natively, e.g. TIFFs written by ImageJ,
+     * are opened by ImageJ. Everything else is read by the pooled reader of the current thread.
+     * Falls back to IJ.openImage if Bio-Formats can not read the file.
+     *
+     * @param file Path to the file.
+     * @return The opened image or null.
+     * @throws IOException
+     */
+    public static ImagePlus openImage(Path file) throws IOException {
+        return openImage(file, false);
+    }
+
+    /**
+     * Open the first series of a file as image, see openImage(Path).
+     *
+     * @param file Path to the file.
+     * @param outOfCore Whether the planes are kept off the heap, in a virtual stack.
+     * @return The opened image or null.
+     * @throws IOException
+     */
+    public static ImagePlus openImage(Path file, boolean outOfCore) throws IOException {
+        return openImage(file, outOfCore, null);
+    }
+
+    /**
+     * Open the first series of a file as image, see openImage(Path), with flat-field correction.
+     * Every plane is corrected right after it is decoded, before it is added to the stack.
+     *
+     * @param file Path to the file.
+     * @param outOfCore Whether the planes are kept off the heap, in a virtual stack.
+     * @param flatField Reference frames for the file, or null for no correction.
+     * @return The opened image or null.
+     * @throws IOException
+     */
+    public static ImagePlus openImage(Path file, boolean outOfCore, FlatFieldCorrection.Reference flatField)
+            throws IOException {
+        return openImage(file, outOfCore, flatField, null);
+    }
+
+    /**
+     * Open the first series of a file as image, see openImage(Path), unless its metadata shows that it is not loaded
+     * as a whole, e.g. because it is processed tile by tile. The metadata is read by the same initialization of
+     * the reader that reads the planes, and cached before it is tested, so the file is parsed once either way.
+     *
+     * @param file Path to the file.
+     * @param outOfCore Whether the planes are kept off the heap, in a virtual stack.
+     * @param flatField Reference frames for the file, or null for no correction.
+     * @param load Whether the planes of a file with the given metadata of its first series are read, or null to read
+     *             them in any case.
+     * @return The opened image, or null if the file could not be read or is not loaded.
+     * @throws IOException
+     */
+    public static ImagePlus openImage(Path file, boolean outOfCore, FlatFieldCorrection.Reference flatField,
+                                      Predicate<Metadata> load) throws IOException {
+        ImagePlus image = null;
+        if (isNativeFormat(file)) {
+            // ImageJ reads the planes of native files, so only their header is read for the metadata
+            if (load != null && !load.test(getMetadata(file))) {
+                return null;
+            }
+            image = flatField != null ? readNative(file, outOfCore, flatField) :
+                    outOfCore ? IJ.openVirtual(file.toString()) : IJ.openImage(file.toString());
+        }
+        else {
+            try {
+                image = readImage(file, outOfCore, flatField, load);
+                if (image == null) {
+                    return null;
+                }
+            } catch (FormatException | IOException | LinkageError e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Reading " + file + " was aborted");
+                }
+                warnFallback(file, e);
+                image = IJ.openImage(file.toString());
+                if (image != null && flatField != null) {
+                    correct(image, flatField);
+                }
+            }
+        }
+
+        if (image != null && getCachedMetadata(file) == null) {
+            cacheMetadata(file, describe(file, image));
+        }
+        return image;
+    }
+
+    /**
+     * Open the first series of a file for reading tile by tile, e.g. because its plane is too large for ImageJ.
+     * Each thread that reads a tile at the same time uses its own reader, and the readers are closed with the image.
+     * Falls back to an image loaded by ImageJ if Bio-Formats can not read the file.
+     *
+     * @param file Path to the file.
+     * @return The tiled image.
+     * @throws IOException
+     */
+    public static TiledImage openTiled(Path file) throws IOException {
+        return openTiled(file, null);
+    }
+
+    /**
+     * Open the first series of a file for reading tile by tile, see openTiled(Path), with flat-field correction
+     * of every tile as it is read.
+     *
+     * @param file Path to the file.
+     * @param flatField Reference frames for the file, or null for no correction.
+     * @return The tiled image.
+     * @throws IOException
+     */
+    public static TiledImage openTiled(Path file, FlatFieldCorrection.Reference flatField) throws IOException {
+        TiledImage image = openTiledImage(file);
+        if (flatField == null) {
+            return image;
+        }
+        if (!flatField.matches(image.width, image.height, image.channels)) {
+            Logger.warn("Flat field does not match " + file + ", it is not corrected.");
+            return image;
+        }
+        return flatField.correct(image);
+    }
+
+    private static TiledImage openTiledImage(Path file) throws IOException {
+        PooledReader pooled = null;
+        try {
+            pooled = new PooledReader();
+            Metadata metadata = getCachedMetadata(file);
+            initialize(pooled, file, metadata);
+            if (metadata == null) {
+                metadata = describe(file, pooled);
+                cacheMetadata(file, metadata);
+            }
+            return new TiledReader(file, metadata, pooled);
+        } catch (FormatException | IOException | LinkageError e) {
+            if (pooled != null) {
+                pooled.close();
+            }
+            warnFallback(file, e);
+            ImagePlus image = IJ.openImage(file.toString());
+            if (image == null) {
+                throw new IOException("Could not read " + file);
+            }
+            return TiledImage.of(image);
+        }
+    }
+
+    /**
+     * Metadata of a file, read from the cache or from the file.
+     *
+     * @param file Path to the file.
+     * @return Metadata of the first series.
+     * @throws IOException
+     */
+    public static Metadata getMetadata(Path file) throws IOException {
+        Metadata metadata = getCachedMetadata(file);
+        if (metadata != null) {
+            return metadata;
+        }
+
+        if (isNativeFormat(file) && !hasLargePlanes(file)) {
+            // Virtual, so only the header and the first plane are read
+            ImagePlus image = IJ.openVirtual(file.toString());
+            if (image == null) {
+                throw new IOException("Could not read " + file);
+            }
+            metadata = describe(file, image);
+            image.close();
+        }
+        else {
+            PooledReader pooled = getReader();
+            try {
+                initialize(pooled, file, null);
+                metadata = describe(file, pooled);
+            } catch (FormatException e) {
+                throw new IOException("Could not read " + file, e);
+            } finally {
+                pooled.close();
+            }
+        }
+        cacheMetadata(file, metadata);
+        return metadata;
+    }
+
+    /**
+     * Title of the image of a series, from which the names of its output files are derived.
+     *
+     * @param fileName Name of the file.
+     * @param series Index of the series, starting at 0.
+     * @return e.g. "plate.nd2_series003" for the third series.
+     */
+    public static String seriesTitle(String fileName, int series) {
+        return String.format("%s_series%03d", fileName, series + 1);
+    }
+
+    /**
+     * @param file Path to the file.
+     * @return Cached metadata of the file, or null if it is not cached or the file changed since.
+     * @throws IOException
+     */
+    public static Metadata getCachedMetadata(Path file) throws IOException {
+        Path key = cacheKey(file);
+        Metadata metadata;
+        synchronized (metadataCache) {
+            metadata = metadataCache.get(key);
+        }
+        if (metadata == null || !Files.exists(file)) {
+            return null;
+        }
+        if (metadata.lastModified != Files.getLastModifiedTime(file).toMillis() || metadata.size != Files.size(file)) {
+            synchronized (metadataCache) {
+                metadataCache.remove(key);
+            }
+            return null;
+        }
+        return metadata;
+    }
+
+    static void cacheMetadata(Path file, Metadata metadata) {
+        synchronized (metadataCache) {
+            metadataCache.put(cacheKey(file), metadata);
+        }
+    }
+
+    /**
+     * Describe a staged copy by the cached metadata of its source, and cache the metadata read from the copy for
+     * the source. The copy has the size and modification time of its source, which validate the cached metadata.
+     *
+     * @param staged Local copy of a file.
+     * @param source File on the network storage.
+     */
+    static void addStagedCopy(Path staged, Path source) {
+        stagedSources.put(staged.toAbsolutePath().normalize(), source.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @param staged Local copy of a file that was deleted.
+     */
+    static void removeStagedCopy(Path staged) {
+        stagedSources.remove(staged.toAbsolutePath().normalize());
+    }
+
+    private static Path cacheKey(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        return stagedSources.getOrDefault(key, key);
+    }
+
+    /**
+     * Forget all cached metadata.
+     */
+    public static void clearMetadata() {
+        synchronized (metadataCache) {
+            metadataCache.clear();
+        }
+    }
+
+    /**
+     * Whether ImageJ opens the file without Bio-Formats.
+     */
+    static boolean isNativeFormat(Path file) {
+        int fileType = new Opener().getFileType(file.toString());
+        return fileType != Opener.UNKNOWN && fileType != Opener.JAVA_OR_TEXT && fileType != Opener.TEXT;
+    }
+
+    /**
+     * Whether a native file is a TIFF with planes that are too large to read just for its metadata.
+     */
+    private static boolean hasLargePlanes(Path file) {
+        FileInfo[] info = Opener.getTiffFileInfo(file.toString());
+        return info != null && info.length > 0 && (long) info[0].width * info[0].height > MAX_NATIVE_PLANE_PIXELS;
+    }
+
+    //
+    // Reading
+    //
+
+    private static PooledReader getReader() throws IOException {
+        PooledReader pooled = readers.get();
+        if (pooled == null || pooled.aborted) {
+            pooled = new PooledReader();
+            readers.set(pooled);
+        }
+        return pooled;
+    }
+
+    /**
+     * Initialize the pooled reader on a file. With cached metadata, only the minimal metadata is parsed.
+     */
+    private static void initialize(PooledReader pooled, Path file, Metadata cached) throws FormatException, IOException {
+        if (cached != null) {
+            pooled.reader.setMetadataOptions(new DefaultMetadataOptions(MetadataLevel.MINIMUM));
+            pooled.reader.setMetadataStore(new DummyMetadata());
+        }
+        else {
+            pooled.reader.setMetadataOptions(new DefaultMetadataOptions(MetadataLevel.ALL));
+            pooled.store.createRoot();
+            pooled.reader.setMetadataStore(pooled.store);
+        }
+        setId(pooled, file);
+        pooled.reader.setSeries(0);
+    }
+
+    /**
+     * Set the reader to a file through a handle with a read-ahead buffer of READ_AHEAD_BYTES. The handle is mapped to
+     * the file name only while the reader opens the file, so other users of Bio-Formats keep its default buffer size.
+     * The handle is closed with the reader, also if the file can not be read.
+     */
+    private static void setId(PooledReader pooled, Path file) throws FormatException, IOException {
+        pooled.close();
+        String id = file.toString();
+        try {
+            pooled.handle = new NIOFileHandle(file.toFile(), "r", READ_AHEAD_BYTES);
+        } catch (IOException | LinkageError e) {
+            Logger.debug(() -> "Reading " + file + " with the default buffer of Bio-Formats: " + e);
+            pooled.reader.setId(id);
+            return;
+        }
+        synchronized (mappingLocks[Math.floorMod(id.hashCode(), mappingLocks.length)]) {
+            Location.mapFile(id, pooled.handle);
+            try {
+                pooled.reader.setId(id);
+            } finally {
+                Location.mapFile(id, null);
+            }
+        }
+    }
+
+    /**
+     * Abort the read of a thread by closing its reader, e.g. because its file ran over its deadline.
+     * Reads that are blocked in the file system fail, as far as it lets files be closed under them.
+     * The thread gets a new reader for its next file.
+     *
+     * @param thread Thread that may be reading a file.
+     */
+    public static void abort(Thread thread) {
+        PooledReader pooled = activeReaders.remove(thread);
+        if (pooled == null) {
+            return;
+        }
+        pooled.aborted = true;
+        try {
+            pooled.close();
+        } catch (IOException e) {
+            Logger.debug(() -> "Could not close aborted reader: " + e);
+        }
+    }
+
+    /**
+     * @param load Whether the planes are read, tested on the metadata of the file, or null to read them in any case.
+     * @return The image, or null if it is not loaded.
+     */
+    private static ImagePlus readImage(Path file, boolean outOfCore, FlatFieldCorrection.Reference flatField,
+                                       Predicate<Metadata> load) throws FormatException, IOException {
+        PooledReader pooled = getReader();
+        Metadata metadata = getCachedMetadata(file);
+        activeReaders.put(Thread.currentThread(), pooled);
+        try {
+            initialize(pooled, file, metadata);
+            if (metadata == null) {
+                metadata = describe(file, pooled);
+                cacheMetadata(file, metadata);
+            }
+            if (load != null && !load.test(metadata)) {
+                return null;
+            }
+            return readSeries(pooled, file, file.getFileName().toString(), metadata, outOfCore, flatField);
+        } finally {
+            activeReaders.remove(Thread.currentThread(), pooled);
+            pooled.close();
+        }
+    }
+
+    /**
+     * Read all planes of the series the reader is set to.
+     *
+     * @param metadata Metadata of the series.
+     */
+    private static ImagePlus readSeries(PooledReader pooled, Path file, String title, Metadata metadata, boolean outOfCore,
+                                        FlatFieldCorrection.Reference flatField) throws FormatException, IOException {
+        if (flatField != null && !flatField.matches(metadata.width, metadata.height, metadata.channels)) {
+            Logger.warn("Flat field does not match " + file + ", it is not corrected.");
+            flatField = null;
+        }
+
+        // ImageJ order: channels, then slices, then frames
+        ImageStack stack = outOfCore ?
+                new MappedStack(metadata.width, metadata.height, 0) : new ImageStack(metadata.width, metadata.height);
+        for (int t = 0; t < metadata.frames; t++) {
+            for (int z = 0; z < metadata.slices; z++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Reading " + file + " was aborted");
+                }
+                for (int c = 0; c < metadata.channels; c++) {
+                    ImageProcessor[] processors = pooled.reader.openProcessors(pooled.reader.getIndex(z, c, t));
+                    if (flatField != null) {
+                        flatField.correct(processors[0], c);
+                    }
+                    stack.addSlice(null, processors[0]);
+                }
+            }
+        }
+        return toImage(title, stack, metadata);
+    }
+
+    /**
+     * Open a file for reading its series one after the other, e.g. the stage positions of an ND2 file.
+     * The file is initialized once, with the cached metadata of all series if there is one.
+     *
+     * @param file Path to the file.
+     * @return Reader of the series, to be closed when all series are read.
+     * @throws IOException If Bio-Formats can not read the file.
+     */
+    public static SeriesReader openSeries(Path file) throws IOException {
+        PooledReader pooled = null;
+        try {
+            pooled = new PooledReader();
+            Metadata metadata = getCachedMetadata(file);
+            initialize(pooled, file, metadata);
+            if (metadata == null) {
+                metadata = describe(file, pooled);
+                cacheMetadata(file, metadata);
+            }
+            return new SeriesReader(file, pooled, metadata);
+        } catch (FormatException | IOException | LinkageError e) {
+            if (pooled != null) {
+                pooled.close();
+            }
+            throw new IOException("Could not read the series of " + file, e);
+        }
+    }
+
+    /**
+     * A reader that is set to one series of a file after the other, instead of opening the file again for each.
+     * One series is read at a time, by whichever thread calls read, and the read can be aborted like the reads of
+     * the pooled readers, by ReaderPool.abort of that thread.
+     */
+    public static class SeriesReader implements AutoCloseable {
+        private final Path file;
+        private final PooledReader pooled;
+        private final Metadata metadata;
+
+        private SeriesReader(Path file, PooledReader pooled, Metadata metadata) {
+            this.file = file;
+            this.pooled = pooled;
+            this.metadata = metadata;
+        }
+
+        public int getSeriesCount() {
+            return metadata.seriesCount;
+        }
+
+        /**
+         * @param series Index of the series, starting at 0.
+         * @return Metadata of the series.
+         */
+        public Metadata getMetadata(int series) {
+            return metadata.forSeries(series);
+        }
+
+        /**
+         * Read one series as image, titled by seriesTitle, with flat-field correction.
+         *
+         * @param series Index of the series, starting at 0.
+         * @param outOfCore Whether the planes are kept off the heap, in a virtual stack.
+         * @param flatField Reference frames for the file, or null for no correction.
+         * @return The series.
+         * @throws IOException
+         */
+        public synchronized ImagePlus read(int series, boolean outOfCore, FlatFieldCorrection.Reference flatField)
+                throws IOException {
+            if (series < 0 || series >= metadata.seriesCount) {
+                throw new IOException(file + " has no series " + (series + 1));
+            }
+            if (pooled.aborted) {
+                throw new InterruptedIOException("Reading " + file + " was aborted");
+            }
+            activeReaders.put(Thread.currentThread(), pooled);
+            try {
+                pooled.reader.setSeries(series);
+                String title = seriesTitle(file.getFileName().toString(), series);
+                return readSeries(pooled, file, title, metadata.forSeries(series), outOfCore, flatField);
+            } catch (FormatException | LinkageError e) {
+                throw new IOException("Could not read series " + (series + 1) + " of " + file, e);
+            } finally {
+                activeReaders.remove(Thread.currentThread(), pooled);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            pooled.close();
+        }
+    }
+
+    /**
+     * Read a file that ImageJ reads natively plane by plane, and correct every plane as it is decoded.
+     * Formats that ImageJ does not read as virtual stack are loaded as a whole and corrected in place.
+     */
+    private static ImagePlus readNative(Path file, boolean outOfCore, FlatFieldCorrection.Reference flatField)
+            throws IOException {
+        ImagePlus image = IJ.openVirtual(file.toString());
+        if (image == null || !image.getStack().isVirtual()) {
+            image = IJ.openImage(file.toString());
+            if (image != null) {
+                correct(image, flatField);
+            }
+            return image;
+        }
+
+        ImageStack planes = image.getStack();
+        ImageStack stack = outOfCore ?
+                new MappedStack(image.getWidth(), image.getHeight(), 0) : new ImageStack(image.getWidth(), image.getHeight());
+        if (!matches(flatField, image)) {
+            flatField = null;
+        }
+        for (int n = 1; n <= planes.getSize(); n++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Reading " + file + " was aborted");
+            }
+            ImageProcessor plane = planes.getProcessor(n);
+            if (flatField != null) {
+                flatField.correct(plane, image.convertIndexToPosition(n)[0] - 1);
+            }
+            stack.addSlice(planes.getSliceLabel(n), plane);
+        }
+        image.setStack(stack);
+        return image;
+    }
+
+    /**
+     * Correct the planes of an image that is already loaded, in place.
+     */
+    private static void correct(ImagePlus image, FlatFieldCorrection.Reference flatField) {
+        if (!matches(flatField, image)) {
+            return;
+        }
+        ImageStack stack = image.getStack();
+        for (int n = 1; n <= stack.getSize(); n++) {
+            flatField.correct(stack.getProcessor(n), image.convertIndexToPosition(n)[0] - 1);
+        }
+    }
+
+    private static boolean matches(FlatFieldCorrection.Reference flatField, ImagePlus image) {
+        if (image.getBitDepth() == 24 || !flatField.matches(image.getWidth(), image.getHeight(), image.getNChannels())) {
+            Logger.warn("Flat field does not match " + image.getTitle() + ", it is not corrected.");
+            return false;
+        }
+        return true;
+    }
+
+    private static ImagePlus toImage(String title, ImageStack stack, Metadata metadata) {
+        ImagePlus image = new ImagePlus(title, stack);
+        image.setDimensions(metadata.channels, metadata.slices, metadata.frames);
+        image.setOpenAsHyperStack(true);
+        image.setCalibration(toCalibration(metadata));
+
+        if (metadata.channels == 1) {
+            image.resetDisplayRange();
+            return image;
+        }
+        CompositeImage composite = new CompositeImage(image, IJ.COMPOSITE);
+        for (int c = 0; c < metadata.channels; c++) {
+            Color color = metadata.channelColors[c];
+            if (color != null) {
+                composite.setChannelLut(LUT.createLutFromColor(color), c + 1);
+            }
+        }
+        composite.resetDisplayRanges();
+        return composite;
+    }
+
+    private static Calibration toCalibration(Metadata metadata) {
+        Calibration calibration = new Calibration();
+        calibration.pixelWidth = metadata.pixelWidth;
+        calibration.pixelHeight = metadata.pixelHeight;
+        calibration.pixelDepth = metadata.pixelDepth;
+        if (metadata.unit != null) {
+            calibration.setUnit(metadata.unit);
+        }
+        if (metadata.frameInterval > 0) {
+            calibration.frameInterval = metadata.frameInterval;
+            calibration.fps = 1 / metadata.frameInterval;
+        }
+        return calibration;
+    }
+
+    /**
+     * Tiles of the first z-level and frame of a file, read by a set of readers on the file.
+     */
+    private static class TiledReader extends TiledImage {
+        private final Path file;
+        private final Metadata metadata;
+        private final Deque<PooledReader> idleReaders = new ArrayDeque<>();
+        private final List<PooledReader> readers = new ArrayList<>();
+
+        TiledReader(Path file, Metadata metadata, PooledReader pooled) {
+            super(file.getFileName().toString(), metadata.width, metadata.height, toCalibration(metadata),
+                    toLuts(metadata));
+            this.file = file;
+            this.metadata = metadata;
+            idleReaders.add(pooled);
+            readers.add(pooled);
+        }
+
+        private static LUT[] toLuts(Metadata metadata) {
+            LUT[] luts = new LUT[metadata.channels];
+            for (int c = 0; c < luts.length; c++) {
+                Color color = metadata.channelColors[c];
+                if (color == null) {
+                    color = metadata.channels == 1 ? Color.white : DEFAULT_COLORS[c % DEFAULT_COLORS.length];
+                }
+                luts[c] = LUT.createLutFromColor(color);
+            }
+            return luts;
+        }
+
+        @Override
+        public ImageProcessor readTile(int channel, Rectangle bounds) throws IOException {
+            PooledReader pooled;
+            synchronized (idleReaders) {
+                pooled = idleReaders.poll();
+            }
+            try {
+                if (pooled == null) {
+                    // Only initialized readers are returned to the idle ones
+                    PooledReader created = new PooledReader();
+                    synchronized (idleReaders) {
+                        readers.add(created);
+                    }
+                    initialize(created, file, metadata);
+                    pooled = created;
+                }
+                int index = pooled.reader.getIndex(0, channel, 0);
+                return pooled.reader.openProcessors(index, bounds.x, bounds.y, bounds.width, bounds.height)[0];
+            } catch (FormatException e) {
+                throw new IOException("Could not read tile " + bounds + " of " + file, e);
+            } finally {
+                if (pooled != null) {
+                    synchronized (idleReaders) {
+                        idleReaders.push(pooled);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (idleReaders) {
+                for (PooledReader pooled : readers) {
+                    pooled.close();
+                }
+                readers.clear();
+                idleReaders.clear();
+            }
+        }
+    }
+
+    //
+    // Thumbnails
+    //
+
+    /**
+     * Open a downsampled preview of the first series of a file: every channel of the middle z-level of the first
+     * frame, binned to fit into a square. Only these planes are read, in bands of rows, so a plane is never loaded
+     * as a whole. Of multi-resolution files, the smallest resolution that still covers the square is read.
+     * Falls back to a preview of the image loaded by ImageJ if Bio-Formats can not read the file.
+     *
+     * @param file Path to the file.
+     * @param maxSize Maximum width and height of the preview.
+     * @return Preview with the channel colors of the file, with the spatial calibration of its binned pixels.
+     * @throws IOException
+     */
+    public static ImagePlus openThumbnail(Path file, int maxSize) throws IOException {
+        if (isNativeFormat(file)) {
+            // Virtual stacks read only the planes of the preview
+            ImagePlus image = IJ.openVirtual(file.toString());
+            if (image == null) {
+                throw new IOException("Could not read " + file);
+            }
+            if (getCachedMetadata(file) == null) {
+                cacheMetadata(file, describe(file, image));
+            }
+            return thumbnail(image, maxSize);
+        }
+        try {
+            return readThumbnail(file, maxSize);
+        } catch (FormatException | IOException | LinkageError e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Reading " + file + " was aborted");
+            }
+            warnFallback(file, e);
+            ImagePlus image = IJ.openImage(file.toString());
+            if (image == null) {
+                throw new IOException("Could not read " + file);
+            }
+            return thumbnail(image, maxSize);
+        }
+    }
+
+    /**
+     * Binning that fits a plane into a square.
+     *
+     * @param width Width of the plane.
+     * @param height Height of the plane.
+     * @param maxSize Maximum width and height of the binned plane.
+     * @return Width and height of the blocks of pixels that are averaged.
+     */
+    public static int thumbnailBinning(int width, int height, int maxSize) {
+        return Math.max((Math.max(width, height) + maxSize - 1) / Math.max(maxSize, 1), 1);
+    }
+
+    private static ImagePlus thumbnail(ImagePlus image, int maxSize) {
+        int binning = thumbnailBinning(image.getWidth(), image.getHeight(), maxSize);
+        int slice = (image.getNSlices() + 1) / 2;
+        ImageStack stack = new ImageStack(image.getWidth() / binning, image.getHeight() / binning);
+        for (int c = 1; c <= image.getNChannels(); c++) {
+            ImageProcessor plane = image.getStack().getProcessor(image.getStackIndex(c, slice, 1));
+            stack.addSlice(null, binning > 1 ? plane.bin(binning) : plane.duplicate());
+        }
+
+        ImagePlus thumbnail = new ImagePlus(image.getTitle(), stack);
+        thumbnail.setDimensions(image.getNChannels(), 1, 1);
+        thumbnail.setCalibration(ImageChanger.reduceCalibration(image.getCalibration(), binning, 1));
+        if (image.getNChannels() == 1) {
+            thumbnail.getProcessor().setLut(image.getProcessor().getLut());
+            thumbnail.resetDisplayRange();
+            return thumbnail;
+        }
+        CompositeImage composite = new CompositeImage(thumbnail, IJ.COMPOSITE);
+        LUT[] luts = image.getLuts();
+        for (int c = 0; c < luts.length && c < image.getNChannels(); c++) {
+            composite.setChannelLut(luts[c], c + 1);
+        }
+        composite.resetDisplayRanges();
+        return composite;
+    }
+
+    private static ImagePlus readThumbnail(Path file, int maxSize) throws FormatException, IOException {
+        PooledReader pooled = getReader();
+        Metadata metadata = getCachedMetadata(file);
+        activeReaders.put(Thread.currentThread(), pooled);
+        try {
+            initialize(pooled, file, metadata);
+            if (metadata == null) {
+                metadata = describe(file, pooled);
+                cacheMetadata(file, metadata);
+            }
+
+            // Resolutions are ordered from the largest to the smallest
+            ImageProcessorReader reader = pooled.reader;
+            for (int resolution = reader.getResolutionCount() - 1; resolution >= 0; resolution--) {
+                reader.setResolution(resolution);
+                if (resolution == 0 || Math.max(reader.getSizeX(), reader.getSizeY()) >= maxSize) {
+                    break;
+                }
+            }
+            int width = reader.getSizeX();
+            int height = reader.getSizeY();
+            int binning = thumbnailBinning(width, height, maxSize);
+
+            ImageStack stack = new ImageStack(width / binning, height / binning);
+            for (int c = 0; c < metadata.channels; c++) {
+                stack.addSlice(null, readBinned(file, reader, reader.getIndex(metadata.slices / 2, c, 0), binning));
+            }
+
+            Metadata binned = new Metadata();
+            binned.channels = metadata.channels;
+            binned.slices = 1;
+            binned.frames = 1;
+            binned.pixelWidth = metadata.pixelWidth * metadata.width / stack.getWidth();
+            binned.pixelHeight = metadata.pixelHeight * metadata.height / stack.getHeight();
+            binned.pixelDepth = metadata.pixelDepth;
+            binned.unit = metadata.unit;
+            binned.channelColors = metadata.channelColors;
+            return toImage(file.getFileName().toString(), stack, binned);
+        } finally {
+            activeReaders.remove(Thread.currentThread(), pooled);
+            pooled.close();
+        }
+    }
+
+    /**
+     * Read a plane binned, in bands of whole blocks of rows of about THUMBNAIL_BAND_PIXELS, so it is never loaded
+     * as a whole.
+     *
+     * @param index Index of the plane in the current series and resolution of the reader.
+     * @param binning Width and height of the blocks of pixels that are averaged.
+     */
+    private static ImageProcessor readBinned(Path file, ImageProcessorReader reader, int index, int binning)
+            throws FormatException, IOException {
+        int width = reader.getSizeX();
+        int height = reader.getSizeY();
+        int bandRows = binning * (int) Math.max(THUMBNAIL_BAND_PIXELS / ((long) width * binning), 1);
+        ImageProcessor binned = null;
+        for (int y = 0; y + binning <= height; y += bandRows) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Reading " + file + " was aborted");
+            }
+            int rows = Math.min(bandRows, height - y) / binning * binning;
+            ImageProcessor band = reader.openProcessors(index, 0, y, width, rows)[0];
+            if (binning > 1) {
+                band = band.bin(binning);
+            }
+            if (binned == null) {
+                binned = band.createProcessor(width / binning, height / binning);
+            }
+            binned.insert(band, 0, y / binning);
+        }
+        return binned;
+    }
+
+    //
+    // Focus
+    //
+
+    /**
+     * Open the z-levels in focus of the first series of a file: a number of consecutive z-levels around the sharpest
+     * one, of every channel and frame, see FocusSelection. The z-levels are scored on binned planes of the first
+     * frame, and only the selected ones are read at full resolution, so a stack is never loaded as a whole.
+     * Falls back to the image loaded by ImageJ if Bio-Formats can not read the file.
+     *
+     * @param file Path to the file.
+     * @param count Number of z-levels to read.
+     * @param flatField Reference frames for the file, or null for no correction.
+     * @return The selected z-levels, with the channel colors and calibration of the file.
+     * @throws IOException
+     */
+    public static ImagePlus openFocused(Path file, int count, FlatFieldCorrection.Reference flatField)
+            throws IOException {
+        if (isNativeFormat(file)) {
+            // Virtual stacks read only the planes that are scored and selected
+            ImagePlus image = IJ.openVirtual(file.toString());
+            if (image == null) {
+                throw new IOException("Could not read " + file);
+            }
+            if (getCachedMetadata(file) == null) {
+                cacheMetadata(file, describe(file, image));
+            }
+            return focusedSubstack(image, count, flatField);
+        }
+        try {
+            return readFocused(file, count, flatField);
+        } catch (FormatException | IOException | LinkageError e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Reading " + file + " was aborted");
+            }
+            warnFallback(file, e);
+            ImagePlus image = IJ.openImage(file.toString());
+            if (image == null) {
+                throw new IOException("Could not read " + file);
+            }
+            return focusedSubstack(image, count, flatField);
+        }
+    }
+
+    private static ImagePlus focusedSubstack(ImagePlus image, int count, FlatFieldCorrection.Reference flatField) {
+        int[] range = FocusSelection.sharpestRange(new ImagePlus[]{image}, count);
+        Logger.log("Z-levels in focus of " + image.getTitle() + ": " + FocusSelection.toZRange(range));
+        ImagePlus substack = new Duplicator().run(image, 1, image.getNChannels(), range[0], range[1], 1, image.getNFrames());
+        substack.setTitle(image.getTitle());
+        if (flatField != null) {
+            correct(substack, flatField);
+        }
+        return substack;
+    }
+
+    private static ImagePlus readFocused(Path file, int count, FlatFieldCorrection.Reference flatField)
+            throws FormatException, IOException {
+        PooledReader pooled = getReader();
+        Metadata metadata = getCachedMetadata(file);
+        activeReaders.put(Thread.currentThread(), pooled);
+        try {
+            initialize(pooled, file, metadata);
+            if (metadata == null) {
+                metadata = describe(file, pooled);
+                cacheMetadata(file, metadata);
+            }
+            ImageProcessorReader reader = pooled.reader;
+            int channels = metadata.channels;
+            int binning = thumbnailBinning(metadata.width, metadata.height, FocusSelection.SCORE_SIZE);
+            double[] scores = FocusSelection.score(metadata.slices, z -> {
+                double score = 0;
+                for (int c = 0; c < channels; c++) {
+                    try {
+                        score += FocusSelection.varianceOfLaplacian(readBinned(file, reader, reader.getIndex(z, c, 0), binning));
+                    } catch (FormatException e) {
+                        throw new IOException("Could not read z-level " + (z + 1) + " of " + file, e);
+                    }
+                }
+                return score;
+            });
+            int[] range = FocusSelection.sharpestRange(scores, count);
+            Logger.log("Z-levels in focus of " + file + ": " + FocusSelection.toZRange(range));
+
+            if (flatField != null && !flatField.matches(metadata.width, metadata.height, metadata.channels)) {
+                Logger.warn("Flat field does not match " + file + ", it is not corrected.");
+                flatField = null;
+            }
+            ImageStack stack = new ImageStack(metadata.width, metadata.height);
+            for (int t = 0; t < metadata.frames; t++) {
+                for (int z = range[0] - 1; z < range[1]; z++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Reading " + file + " was aborted");
+                    }
+                    for (int c = 0; c < metadata.channels; c++) {
+                        ImageProcessor plane = reader.openProcessors(reader.getIndex(z, c, t))[0];
+                        if (flatField != null) {
+                            flatField.correct(plane, c);
+                        }
+                        stack.addSlice(null, plane);
+                    }
+                }
+            }
+
+            Metadata substack = new Metadata();
+            substack.channels = metadata.channels;
+            substack.slices = range[1] - range[0] + 1;
+            substack.frames = metadata.frames;
+            substack.pixelWidth = metadata.pixelWidth;
+            substack.pixelHeight = metadata.pixelHeight;
+            substack.pixelDepth = metadata.pixelDepth;
+            substack.unit = metadata.unit;
+            substack.frameInterval = metadata.frameInterval;
+            substack.channelColors = metadata.channelColors;
+            return toImage(file.getFileName().toString(), stack, substack);
+        } finally {
+            activeReaders.remove(Thread.currentThread(), pooled);
+            pooled.close();
+        }
+    }
+
+    //
+    // Metadata
+    //
+
+    private static Metadata newMetadata(Path file) throws IOException {
+        Metadata metadata = new Metadata();
+        metadata.lastModified = Files.getLastModifiedTime(file).toMillis();
+        metadata.size = Files.size(file);
+        return metadata;
+    }
+
+    /**
+     * Describe the file the reader is set to. The other series are described too, and the reader is left on the first.
+     */
+    private static Metadata describe(Path file, PooledReader pooled) throws IOException {
+        Metadata metadata = describe(file, pooled, 0);
+        metadata.seriesCount = pooled.reader.getSeriesCount();
+        if (metadata.seriesCount > 1) {
+            metadata.series = new Metadata[metadata.seriesCount];
+            metadata.series[0] = metadata;
+            for (int s = 1; s < metadata.seriesCount; s++) {
+                pooled.reader.setSeries(s);
+                metadata.series[s] = describe(file, pooled, s);
+                metadata.series[s].seriesCount = metadata.seriesCount;
+            }
+            pooled.reader.setSeries(0);
+        }
+        return metadata;
+    }
+
+    /**
+     * @param series Series the reader is set to, which is also the index of its image in the metadata store.
+     */
+    private static Metadata describe(Path file, PooledReader pooled, int series) throws IOException {
+        ImageProcessorReader reader = pooled.reader;
+        Metadata metadata = newMetadata(file);
+        metadata.format = reader.getFormat();
+        metadata.width = reader.getSizeX();
+        metadata.height = reader.getSizeY();
+        metadata.channels = reader.getSizeC();
+        metadata.slices = reader.getSizeZ();
+        metadata.frames = reader.getSizeT();
+        metadata.bytesPerPixel = FormatTools.getBytesPerPixel(reader.getPixelType());
+
+        IMetadata store = pooled.store;
+        double pixelWidth = quantity(store, "getPixelsPhysicalSizeX", series, MICROMETER);
+        if (!Double.isNaN(pixelWidth)) {
+            metadata.pixelWidth = pixelWidth;
+            metadata.unit = "micron";
+        }
+        metadata.pixelHeight = valueOr(quantity(store, "getPixelsPhysicalSizeY", series, MICROMETER), 1);
+        metadata.pixelDepth = valueOr(quantity(store, "getPixelsPhysicalSizeZ", series, MICROMETER), 1);
+        metadata.frameInterval = valueOr(quantity(store, "getPixelsTimeIncrement", series, SECOND), 0);
+
+        metadata.channelColors = new Color[metadata.channels];
+        for (int c = 0; c < metadata.channels && c < store.getChannelCount(series); c++) {
+            ome.xml.model.primitives.Color color = store.getChannelColor(series, c);
+            if (color != null) {
+                metadata.channelColors[c] = new Color(color.getRed(), color.getGreen(), color.getBlue());
+            }
+        }
+        return metadata;
+    }
+
+    private static Metadata describe(Path file, ImagePlus image) throws IOException {
+        Metadata metadata = newMetadata(file);
+        // dimensions = [width, height, channels, slices, frames]
+        int[] dimensions = image.getDimensions();
+        metadata.format = "ImageJ";
+        metadata.width = dimensions[0];
+        metadata.height = dimensions[1];
+        metadata.channels = dimensions[2];
+        metadata.slices = dimensions[3];
+        metadata.frames = dimensions[4];
+        metadata.bytesPerPixel = image.getBytesPerPixel();
+
+        Calibration calibration = image.getCalibration();
+        metadata.pixelWidth = calibration.pixelWidth;
+        metadata.pixelHeight = calibration.pixelHeight;
+        metadata.pixelDepth = calibration.pixelDepth;
+        metadata.unit = calibration.getUnit();
+        metadata.frameInterval = calibration.frameInterval;
+
+        metadata.channelColors = new Color[metadata.channels];
+        if (image.isComposite()) {
+            for (int c = 0; c < metadata.channels; c++) {
+                LUT lut = ((CompositeImage) image).getChannelLut(c + 1);
+                int last = lut.getMapSize() - 1;
+                metadata.channelColors[c] = new Color(lut.getRed(last), lut.getGreen(last), lut.getBlue(last));
+            }
+        }
+        return metadata;
+    }
+
+    //
+    // Bio-Formats versions
+    //
+
+    /**
+     * Read a size or time of an image from the metadata store, whichever Bio-Formats is on the class path.
+     * The getters are called by name, since their return types changed: this is compiled against 4.4, which returns
+     * PositiveFloat and Double in microns and seconds, while Fiji ships Bio-Formats 5 or later, which returns Length
+     * and Time in the unit of the file. Linking the 4.4 getters fails there for every file.
+     *
+     * @param store Metadata store.
+     * @param getter Name of the getter, e.g. "getPixelsPhysicalSizeX".
+     * @param series Index of the image.
+     * @param unit Names of the unit to convert Length and Time to.
+     * @return The value, or NaN if the store has none.
+     */
+    static double quantity(IMetadata store, String getter, int series, String[] unit) {
+        try {
+            return quantityValue(store.getClass().getMethod(getter, int.class).invoke(store, series), unit);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Logger.warn("Could not read " + getter + " from Bio-Formats: " + e);
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @param value PositiveFloat or Number of Bio-Formats 4, Length or Time of later versions, or null.
+     * @param unit Names of the unit in ome.units.UNITS to convert Length and Time to.
+     * @return The value, or NaN if there is none.
+     */
+    static double quantityValue(Object value, String[] unit) throws ReflectiveOperationException {
+        if (value == null) {
+            return Double.NaN;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        Method convert = quantityConversion(value.getClass());
+        Object number = convert != null ? convert.invoke(value, unitField(unit))
+                : value.getClass().getMethod("getValue").invoke(value);
+        return number == null ? Double.NaN : ((Number) number).doubleValue();
+    }
+
+    /**
+     * @return Quantity.value(Unit) of Bio-Formats 5 and later, or null for the primitives of Bio-Formats 4.
+     */
+    private static Method quantityConversion(Class<?> type) {
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals("value") && method.getParameterCount() == 1) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static Object unitField(String[] names) throws ReflectiveOperationException {
+        Class<?> units = Class.forName("ome.units.UNITS");
+        for (String name : names) {
+            try {
+                return units.getField(name).get(null);
+            } catch (NoSuchFieldException e) {
+                // Renamed between versions
+            }
+        }
+        throw new NoSuchFieldException("ome.units.UNITS." + names[0]);
+    }
+
+    private static double valueOr(double value, double defaultValue) {
+        return Double.isNaN(value) ? defaultValue : value;
+    }
+
+    /**
+     * Warn that a file is read by ImageJ instead of Bio-Formats. A LinkageError is not about the file: the
+     * Bio-Formats on the class path lacks an API used here, so every file of the format falls back.
+     */
+    private static void warnFallback(Path file, Throwable e) {
+        if (e instanceof LinkageError) {
+            Logger.warn("Bio-Formats on the class path is not compatible, reading " + file + " with ImageJ: " + e);
+        }
+        else {
+            Logger.warn("Bio-Formats could not read " + file + ", trying ImageJ: " + e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Scalar pixel kernels, which run on every JVM. The ranged methods also process the tails of vectorized loops.
+ */
+class ScalarKernels extends PixelKernels {
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    @Override
+    public void countDominantColors(int[] pixels, long[] counts) {
+        countDominantColors(pixels, 0, pixels.length, counts);
+    }
+
+    static void countDominantColors(int[] pixels, int from, int to, long[] counts) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int i = from; i < to; i++) {
+            int pixel = pixels[i];
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            if (r > g && r > b) {
+                red++;
+            } else if (g > b) {
+                green++;
+            } else if (b > r) {
+                blue++;
+            }
+        }
+        counts[0] += red;
+        counts[1] += green;
+        counts[2] += blue;
+    }
+
+    @Override
+    public void maxInto(short[] accumulator, short[] plane) {
+        maxInto(accumulator, plane, 0, accumulator.length);
+    }
+
+    static void maxInto(short[] accumulator, short[] plane, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if ((plane[i] & 0xffff) > (accumulator[i] & 0xffff)) {
+                accumulator[i] = plane[i];
+            }
+        }
+    }
+
+    @Override
+    public void maxInto(byte[] accumulator, byte[] plane) {
+        maxInto(accumulator, plane, 0, accumulator.length);
+    }
+
+    static void maxInto(byte[] accumulator, byte[] plane, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if ((plane[i] & 0xff) > (accumulator[i] & 0xff)) {
+                accumulator[i] = plane[i];
+            }
+        }
+    }
+
+    @Override
+    public void toIndices(short[] pixels, int min, int max, byte[] indices) {
+        toIndices(pixels, min, max, indices, 0, pixels.length);
+    }
+
+    /**
+     * The arithmetic of ShortProcessor.create8BitImage, so the values equal what ImageJ shows.
+     * Like ImageJ, large arrays go through a table of all 16-bit values, which beats computing every pixel,
+     * also with vectors.
+     */
+    static void toIndices(short[] pixels, int min, int max, byte[] indices, int from, int to) {
+        double scale = 256.0 / (max - min + 1);
+        if (to - from < TABLE_SIZE) {
+            for (int i = from; i < to; i++) {
+                indices[i] = toIndex(pixels[i] & 0xffff, min, scale);
+            }
+            return;
+        }
+
+        byte[] table = new byte[TABLE_SIZE];
+        for (int value = 0; value < TABLE_SIZE; value++) {
+            table[value] = toIndex(value, min, scale);
+        }
+        for (int i = from; i < to; i++) {
+            indices[i] = table[pixels[i] & 0xffff];
+        }
+    }
+
+    private static final int TABLE_SIZE = 65536;
+
+    private static byte toIndex(int pixel, int min, double scale) {
+        int value = Math.max(pixel - min, 0);
+        value = (int) (value * scale + 0.5);
+        return (byte) Math.min(value, 255);
+    }
+
+    @Override
+    public void addSaturated(int[] sum, int[] rgb) {
+        addSaturated(sum, rgb, 0, sum.length);
+    }
+
+    static void addSaturated(int[] sum, int[] rgb, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int a = sum[i];
+            int b = rgb[i];
+            int red = Math.min(((a >> 16) & 0xff) + ((b >> 16) & 0xff), 255);
+            int green = Math.min(((a >> 8) & 0xff) + ((b >> 8) & 0xff), 255);
+            int blue = Math.min((a & 0xff) + (b & 0xff), 255);
+            sum[i] = (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    @Override
+    public void correctFlatField(short[] pixels, float[] dark, float[] gain) {
+        correctFlatField(pixels, dark, gain, 0, pixels.length);
+    }
+
+    static void correctFlatField(short[] pixels, float[] dark, float[] gain, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int value = (int) (((pixels[i] & 0xffff) - dark[i]) * gain[i] + 0.5f);
+            pixels[i] = (short) Math.min(Math.max(value, 0), 65535);
+        }
+    }
+}
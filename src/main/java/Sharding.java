@@ -0,0 +1,231 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A class for splitting one file tree across several processes or machines without a coordinator.
+ * Every shard computes the same partition from the relative paths of the files,
+ * records the files it completed in its own manifest, and a merge step verifies that the manifests cover the tree.
+ */
+public class Sharding {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Stable 64 bit FNV-1a hash of a relative path. Independent of platform, JVM and path separator.
+     *
+     * @param relativePath Path relative to the root of the tree.
+     * @return Hash of the path.
+     */
+    public static long stableHash(String relativePath) {
+        long hash = FNV_OFFSET;
+        for (byte b : normalize(relativePath).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Relative path with "/" as separator.
+     */
+    public static String normalize(String relativePath) {
+        return relativePath.replace('\\', '/');
+    }
+
+    /**
+     * Assign every file to a shard by rendezvous hashing: a file goes to the shard with the highest hash of its
+     * relative path and the shard index. The shard of a file only depends on its own path and the number of shards,
+     * so adding, removing or resizing one file moves no other file, and every shard computes the same assignment
+     * even if it lists the tree at another time. Shards get about the same number of files and, as the sizes are
+     * independent of the hashes, about the same bytes; the larger the tree, the closer. Sizes are not needed, so a
+     * shard does not read the sizes of the files of other shards, and a file that is still being written does not
+     * move between shards that list it at different times.
+     *
+     * @param relativePaths Paths relative to the root of the tree.
+     * @param shardCount Number of shards.
+     * @return Shard index per relative path.
+     */
+    public static Map<String, Integer> assign(Collection<String> relativePaths, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive, got " + shardCount);
+        }
+
+        Map<String, Integer> assignment = new LinkedHashMap<>();
+        for (String path : relativePaths) {
+            assignment.put(normalize(path), shardOf(path, shardCount));
+        }
+        return assignment;
+    }
+
+    /**
+     * @param relativePath Path relative to the root of the tree.
+     * @param shardCount Number of shards.
+     * @return Index of the shard of the file, see assign.
+     */
+    public static int shardOf(String relativePath, int shardCount) {
+        long pathHash = stableHash(relativePath);
+        int shard = 0;
+        long highest = 0;
+        for (int candidate = 0; candidate < shardCount; candidate++) {
+            long score = mix(pathHash + (candidate + 1) * GOLDEN_GAMMA);
+            if (candidate == 0 || Long.compareUnsigned(score, highest) > 0) {
+                shard = candidate;
+                highest = score;
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Finalizer of SplitMix64, so the scores of one path are independent for every shard.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    //
+    // Manifests
+    //
+
+    public static Path manifestPath(Path outFolder, int shardIndex, int shardCount) {
+        return outFolder.resolve("shard-" + shardIndex + "-of-" + shardCount + ".manifest");
+    }
+
+    /**
+     * The manifest of one shard. Completed files are appended one line at a time, so it survives a crash.
+     */
+    public static class Manifest implements AutoCloseable {
+        private final BufferedWriter writer;
+
+        /**
+         * @param outFolder Root output folder, shared by all shards.
+         * @param shardIndex Index of this shard, starting at 0.
+         * @param shardCount Number of shards.
+         * @param fileCount Number of files assigned to this shard.
+         * @throws IOException
+         */
+        Manifest(Path outFolder, int shardIndex, int shardCount, int fileCount) throws IOException {
+            writer = Files.newBufferedWriter(manifestPath(outFolder, shardIndex, shardCount), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            writer.write("# shard " + shardIndex + " of " + shardCount + ", " + fileCount + " files\n");
+            writer.flush();
+        }
+
+        /**
+         * Record a completed file.
+         *
+         * @param relativePath Path of the input file relative to the root input folder.
+         * @param size Size of the input file in bytes.
+         * @throws IOException
+         */
+        public synchronized void completed(String relativePath, long size) throws IOException {
+            writer.write(normalize(relativePath) + "\t" + size + "\n");
+            writer.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Read the completed files of a manifest.
+     *
+     * @param manifest Path of the manifest.
+     * @return Completed relative paths.
+     * @throws IOException
+     */
+    public static List<String> readManifest(Path manifest) throws IOException {
+        List<String> completed = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            completed.add(line.split("\t")[0]);
+        }
+        return completed;
+    }
+
+    /**
+     * Merge the manifests of all shards and verify that their union covers the expected files.
+     * Writes the union to shards-merged.manifest and the result to shards-merged.report in the output folder.
+     *
+     * @param expected Relative paths of all files in the tree.
+     * @param outFolder Root output folder with the shard manifests.
+     * @param shardCount Number of shards.
+     * @return Relative paths that no shard completed. Empty if the tree is covered.
+     * @throws IOException
+     */
+    public static List<String> merge(List<String> expected, Path outFolder, int shardCount) throws IOException {
+        Map<String, List<Integer>> completedBy = new TreeMap<>();
+        List<Integer> missingManifests = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            Path manifest = manifestPath(outFolder, shard, shardCount);
+            if (!Files.exists(manifest)) {
+                missingManifests.add(shard);
+                continue;
+            }
+            for (String path : readManifest(manifest)) {
+                completedBy.computeIfAbsent(path, k -> new ArrayList<>()).add(shard);
+            }
+        }
+
+        TreeSet<String> missing = new TreeSet<>();
+        for (String path : expected) {
+            if (!completedBy.containsKey(normalize(path))) {
+                missing.add(normalize(path));
+            }
+        }
+
+        List<String> report = new ArrayList<>();
+        report.add("shards: " + shardCount + ", missing manifests: " + missingManifests);
+        report.add("expected: " + expected.size() + ", completed: " + completedBy.size() + ", missing: " + missing.size());
+        for (String path : missing) {
+            report.add("missing\t" + path);
+        }
+        for (Map.Entry<String, List<Integer>> entry : completedBy.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                report.add("duplicate\t" + entry.getKey() + "\t" + entry.getValue());
+            }
+        }
+
+        Files.write(outFolder.resolve("shards-merged.manifest"), completedBy.keySet(), StandardCharsets.UTF_8);
+        Files.write(outFolder.resolve("shards-merged.report"), report, StandardCharsets.UTF_8);
+        Logger.log(String.join("\n", report.subList(0, 2)));
+
+        return new ArrayList<>(missing);
+    }
+
+    /**
+     * Parse a shard specification "i/N", e.g. "0/4" for the first of four shards.
+     *
+     * @return Shard index and number of shards.
+     */
+    public static int[] parse(String shard) {
+        String[] parts = shard.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Shard must be given as index/count, got " + shard);
+        }
+        int[] parsed = {Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())};
+        if (parsed[1] < 1 || parsed[0] < 0 || parsed[0] >= parsed[1]) {
+            throw new IllegalArgumentException("Invalid shard " + Arrays.toString(parsed));
+        }
+        return parsed;
+    }
+}
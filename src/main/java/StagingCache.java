@@ -0,0 +1,316 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A cache of input files on a local disk, for inputs on network storage with high latency per read.
+ * Upcoming files are copied in the background, with few large reads, while the current file is analyzed,
+ * and the readers then open the local copies. Copies that were used are evicted, least recently used first,
+ * when the cache would exceed its size.
+ */
+public class StagingCache implements Closeable {
+    /**
+     * Size of the reads from the source. Reads start at multiples of it, so they stay aligned to the blocks of the
+     * network file system.
+     */
+    static final int READ_BYTES = 8 << 20;
+
+    /**
+     * Opens the source files, e.g. with a simulated latency in tests.
+     */
+    interface ChannelOpener {
+        SeekableByteChannel open(Path file) throws IOException;
+    }
+
+    /**
+     * A staged copy of one source file.
+     */
+    private static class Entry {
+        final Path staged;
+        final long bytes;
+        final FileTime lastModified;
+        Future<?> copy;
+        int users = 0;
+        boolean used = false;
+
+        Entry(Path staged, long bytes, FileTime lastModified) {
+            this.staged = staged;
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final Path folder;
+    private final long maxBytes;
+    private final ChannelOpener opener;
+    private final ExecutorService copier;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long stagedBytes = 0;
+    private long nextId = 0;
+
+    /**
+     * @param folder Folder on a local disk. The copies are kept in its subfolder "staged-inputs",
+     *               and copies left there by an earlier run are deleted.
+     * @param maxBytes Size limit of the staged copies.
+     * @throws IOException
+     */
+    public StagingCache(Path folder, long maxBytes) throws IOException {
+        this(folder, maxBytes, file -> FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    StagingCache(Path folder, long maxBytes, ChannelOpener opener) throws IOException {
+        this.folder = Files.createDirectories(folder.resolve("staged-inputs"));
+        this.maxBytes = maxBytes;
+        this.opener = opener;
+        deleteContents(this.folder);
+        this.copier = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "StagingCache-copy");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start copying a file in the background, unless it is staged already or does not fit.
+     * Only copies that were used are evicted to make room, so upcoming files do not evict each other.
+     *
+     * @param source File on the network storage.
+     * @return Whether the file is or will be staged.
+     */
+    public boolean prefetch(Path source) {
+        return stage(source, false) != null;
+    }
+
+    /**
+     * Get the local copy of a file and keep it until release() is called. Waits for a copy in progress,
+     * and starts one if the file was not prefetched.
+     *
+     * @param source File on the network storage.
+     * @return Path of the local copy, or the source itself if it could not be staged.
+     * @throws IOException If interrupted while waiting.
+     */
+    public Path acquire(Path source) throws IOException {
+        Entry entry = stage(source, true);
+        synchronized (this) {
+            // The copy may have been evicted since it was staged
+            if (entry == null || entries.get(source.toAbsolutePath().normalize()) != entry) {
+                return source;
+            }
+            entry.users++;
+            entry.used = true;
+        }
+
+        try {
+            entry.copy.get();
+            if (Files.getLastModifiedTime(source).equals(entry.lastModified) && Files.size(source) == entry.bytes) {
+                return entry.staged;
+            }
+            Logger.warn(source + " changed while it was staged, reading it directly.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release(source);
+            throw new InterruptedIOException("Interrupted while staging " + source);
+        } catch (ExecutionException e) {
+            Logger.warn("Could not stage " + source + ", reading it directly: " + e.getCause());
+        }
+        release(source);
+        synchronized (this) {
+            remove(source);
+        }
+        return source;
+    }
+
+    /**
+     * Allow the local copy of a file to be evicted, e.g. after it was analyzed.
+     *
+     * @param source File on the network storage.
+     */
+    public synchronized void release(Path source) {
+        Entry entry = entries.get(source.toAbsolutePath().normalize());
+        if (entry != null && entry.users > 0) {
+            entry.users--;
+        }
+    }
+
+    /**
+     * @return Bytes of the staged copies, including copies in progress.
+     */
+    public synchronized long getStagedBytes() {
+        return stagedBytes;
+    }
+
+    /**
+     * Stop copying and delete all copies.
+     */
+    @Override
+    public void close() throws IOException {
+        copier.shutdownNow();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                ReaderPool.removeStagedCopy(entry.staged);
+            }
+            entries.clear();
+            stagedBytes = 0;
+        }
+        deleteContents(folder);
+    }
+
+    //
+    // Staging
+    //
+
+    /**
+     * Start copying a file, unless it is staged already or does not fit. The source is read outside the lock,
+     * so a slow source does not hold up the users of other copies.
+     */
+    private Entry stage(Path source, boolean evictUnused) {
+        Path key = source.toAbsolutePath().normalize();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        long bytes;
+        FileTime lastModified;
+        try {
+            bytes = Files.size(source);
+            lastModified = Files.getLastModifiedTime(source);
+        } catch (IOException e) {
+            return null;
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+            if (!evict(maxBytes - bytes, evictUnused)) {
+                Logger.debug(() -> "Staging cache is full, not staging " + source);
+                return null;
+            }
+
+            // Keep the file name, since readers tell formats apart by extension
+            Path staged = folder.resolve(String.valueOf(nextId++)).resolve(source.getFileName());
+            Entry created = new Entry(staged, bytes, lastModified);
+            entries.put(key, created);
+            stagedBytes += bytes;
+            Metrics.FileInfo file = Metrics.getCurrentFile();
+            created.copy = copier.submit(() -> {
+                Metrics.setCurrentFile(file);
+                copy(source, staged, lastModified);
+                return null;
+            });
+            return created;
+        }
+    }
+
+    /**
+     * Evict idle copies, least recently used first, until at most the given bytes are staged.
+     *
+     * @return Whether enough was evicted.
+     */
+    private boolean evict(long targetBytes, boolean evictUnused) {
+        if (targetBytes < 0) {
+            return false;
+        }
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (stagedBytes > targetBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.users == 0 && entry.copy.isDone() && (entry.used || evictUnused)) {
+                iterator.remove();
+                stagedBytes -= entry.bytes;
+                delete(entry.staged);
+            }
+        }
+        return stagedBytes <= targetBytes;
+    }
+
+    private void remove(Path source) {
+        Entry entry = entries.remove(source.toAbsolutePath().normalize());
+        if (entry != null) {
+            stagedBytes -= entry.bytes;
+            delete(entry.staged);
+        }
+    }
+
+    /**
+     * Copy a file with large aligned reads, to a temporary name first.
+     */
+    private void copy(Path source, Path staged, FileTime lastModified) throws IOException {
+        Metrics.setCurrentFile(source);
+        try (Metrics.Stage stage = Metrics.start("stage")) {
+            Files.createDirectories(staged.getParent());
+            Path partFile = staged.resolveSibling(staged.getFileName() + ".part");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BYTES);
+            long position = 0;
+            try (SeekableByteChannel in = opener.open(source);
+                 FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (true) {
+                    buffer.clear();
+                    while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedIOException("Staging of " + source + " was cancelled");
+                        }
+                    }
+                    buffer.flip();
+                    if (!buffer.hasRemaining()) {
+                        break;
+                    }
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                }
+            }
+            Files.move(partFile, staged, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.setLastModifiedTime(staged, lastModified);
+            ReaderPool.addStagedCopy(staged, source);
+            stage.addBytesRead(position);
+            stage.addBytesWritten(position);
+        }
+        Logger.debug(() -> "Staged " + source + " to " + staged);
+    }
+
+    private static void delete(Path staged) {
+        ReaderPool.removeStagedCopy(staged);
+        try {
+            Files.deleteIfExists(staged.resolveSibling(staged.getFileName() + ".part"));
+            Files.deleteIfExists(staged);
+            Files.deleteIfExists(staged.getParent());
+        } catch (IOException e) {
+            Logger.debug(() -> "Could not delete " + staged + ": " + e);
+        }
+    }
+
+    private static void deleteContents(Path folder) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(folder)) {
+            files = walk.filter(file -> !file.equals(folder))
+                        .sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -1,18 +1,55 @@
 import ij.*;
 import ij.gui.GenericDialog;
+import ij.gui.Overlay;
 import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.*;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
 
 import net.imagej.ImageJ;
 
+import java.awt.Rectangle;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Stepwise_Analyzer implements PlugIn, ImageAnalyzer {
 
     Roi defaultRoi;
     String analysisType;
+    AnalysisSettings settings;
+    CheckpointCache checkpointCache;
+    FlatFieldCorrection flatFieldCorrection;
+    Map<Path, Preflight.Choice> preflightChoices;
+    Path inputFile;
+    int inputSeries = -1;
+    boolean focusedSubstack = false;
+
+    public Stepwise_Analyzer() {
+        this(new AnalysisSettings());
+    }
+
+    /**
+     * @param settings Parameters of the analysis. For non-interactive settings, all dialogs are skipped.
+     */
+    public Stepwise_Analyzer(AnalysisSettings settings) {
+        this.settings = settings;
+        this.defaultRoi = settings.roi;
+        this.analysisType = settings.projectionType;
+        this.checkpointCache = createCheckpointCache(settings);
+        this.flatFieldCorrection = settings.createFlatFieldCorrection();
+        this.preflightChoices = readPreflightChoices(settings);
+    }
 
     public void processImage(ImagePlus image, Path outFolder) {
         int[] dimensions = image.getDimensions();
@@ -21,164 +58,759 @@ public class Stepwise_Analyzer implements PlugIn, ImageAnalyzer {
         int slices = dimensions[3];
         int frames = dimensions[4];
 
-        if (frames == 1 && slices == 1) {
-            Logger.log("Detected image");
-            analysisType = imageAnalysis(image, outFolder, true);
-        }
-        else if (slices == 1){
-            Logger.log("Detected video");
-            analysisType = videoAnalysis(image, outFolder);
+        String name = inputFile == null ? image.getTitle() : inputSeries < 0 ? inputFile.getFileName().toString() :
+                ReaderPool.seriesTitle(inputFile.getFileName().toString(), inputSeries);
+        try (OutputSink sink = openSink(name, outFolder)) {
+            // Only the projection type of z-stacks is remembered for the following files
+            if (frames == 1 && slices == 1) {
+                Logger.log("Detected image");
+                Metrics.describeCurrentFile(dimensions, "image");
+                imageAnalysis(image, sink, true);
+            }
+            else if (slices == 1){
+                Logger.log("Detected video");
+                Metrics.describeCurrentFile(dimensions, "video");
+                videoAnalysis(image, sink);
+            }
+            else {
+                Logger.log("Detected z-stack");
+                Metrics.describeCurrentFile(dimensions, "z-stack");
+                analysisType = zStackAnalysis(image, sink);
+                Metrics.describeCurrentFile(null, "z-stack, " + analysisType);
+            }
+            sink.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        else {
-            Logger.log("Detected z-stack");
-            analysisType = zStackAnalysis(image, outFolder);
+
+        if (!settings.interactive) {
+            // Intermediate images were never shown. Only close the input, so concurrent analyses keep their images
+            image.changes = false;
+            image.close();
+            WindowManager.setTempCurrentImage(null);
+            return;
         }
 
         String[] imageTitles = WindowManager.getImageTitles();
         for(String title : imageTitles) {
             image  = WindowManager.getImage(title);
+            if (image == null) {
+                continue;
+            }
             image.changes = false;
             image.close();
         }
     }
 
+    @Override
+    public void processImage(ImagePlus image, Path inFile, Path outFolder) {
+        inputFile = inFile;
+        try (ChoiceScope scope = applyChoice(inFile)) {
+            processImage(image, outFolder);
+        } finally {
+            inputFile = null;
+        }
+    }
+
+    @Override
+    public void processSeries(ImagePlus image, Path inFile, int series, Path outFolder) {
+        inputSeries = series;
+        try {
+            processImage(image, inFile, outFolder);
+        } finally {
+            inputSeries = -1;
+        }
+    }
+
+    //
+    // Pre-flight choices
+    //
+
+    private static Map<Path, Preflight.Choice> readPreflightChoices(AnalysisSettings settings) {
+        if (settings.preflightFile == null) {
+            return new HashMap<>();
+        }
+        try {
+            return Preflight.readChoices(Paths.get(settings.preflightFile));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read pre-flight choices " + settings.preflightFile, e);
+        }
+    }
+
+    /**
+     * Use the regions and projections chosen on a pre-flight contact sheet for the following files.
+     *
+     * @param choices Choice by absolute path of the file, see Preflight.key.
+     */
+    public void setPreflightChoices(Map<Path, Preflight.Choice> choices) {
+        this.preflightChoices = choices;
+    }
+
+    /**
+     * @return Region of a file, chosen in the pre-flight or the one of the run.
+     */
+    private Roi roiFor(Path inFile) {
+        Preflight.Choice choice = preflightChoices.get(Preflight.key(inFile));
+        return choice != null ? choice.roi : defaultRoi;
+    }
+
+    /**
+     * Region and projection of the run, which are restored when the choice of a file is no longer used.
+     */
+    private class ChoiceScope implements AutoCloseable {
+        private final boolean chosen;
+        private final Roi roi = defaultRoi;
+        private final String projection = analysisType;
+
+        ChoiceScope(boolean chosen) {
+            this.chosen = chosen;
+        }
+
+        @Override
+        public void close() {
+            // Without a choice, projections chosen in a dialog carry over to the following files as before
+            if (chosen) {
+                defaultRoi = roi;
+                analysisType = projection;
+            }
+        }
+    }
+
+    /**
+     * Use the region and projection chosen for a file in the pre-flight, until the returned scope is closed.
+     */
+    private ChoiceScope applyChoice(Path inFile) {
+        Preflight.Choice choice = preflightChoices.get(Preflight.key(inFile));
+        ChoiceScope scope = new ChoiceScope(choice != null);
+        if (choice != null) {
+            defaultRoi = choice.roi;
+            if (choice.projection != null) {
+                analysisType = choice.projection;
+            }
+        }
+        return scope;
+    }
+
+    //
+    // Tiled processing
+    //
+
+    /**
+     * Single images whose plane has more pixels than settings.tiledMegapixels are processed tile by tile.
+     * Decided on the metadata that was cached when the file was opened, so the file is not parsed for it.
+     */
+    @Override
+    public boolean isTiled(Path inFile) {
+        if (settings.interactive) {
+            return false;
+        }
+        try {
+            // Files with several series are loaded series by series
+            ReaderPool.Metadata metadata = ReaderPool.getCachedMetadata(inFile);
+            return metadata != null && metadata.seriesCount == 1 && metadata.slices == 1 && metadata.frames == 1
+                    && (double) metadata.width * metadata.height > settings.tiledMegapixels * 1e6;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean processTiled(Path inFile, Path outFolder) throws IOException {
+        if (!isTiled(inFile)) {
+            return false;
+        }
+        FlatFieldCorrection.Reference flatField = flatFieldCorrection == null ? null : flatFieldCorrection.forFile(inFile);
+        try (ChoiceScope scope = applyChoice(inFile);
+             TiledImage image = ReaderPool.openTiled(inFile, flatField);
+             OutputSink sink = openSink(inFile.getFileName().toString(), outFolder)) {
+            Logger.log("Detected tiled image");
+            Metrics.describeCurrentFile(new int[]{image.width, image.height, image.channels, 1, 1}, "tiled image");
+            tiledImageAnalysis(image, sink);
+            sink.finish();
+        }
+        return true;
+    }
+
+    /**
+     * Single image analysis tile by tile, with the same steps and output files as imageAnalysis.
+     * Only tiles of the image are in memory, so the plane may be larger than what ImageJ can hold.
+     */
+    public String tiledImageAnalysis(TiledImage image, OutputSink sink) throws IOException {
+        Logger.log("Starting tiled image analysis...");
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        double[][] ranges = ImageChanger.autoContrast(image, settings.saturated, settings.tileSize, threads);
+        Rectangle region = ImageChanger.cropTo(image, defaultRoi);
+        Overlay scaleBar;
+        try (Metrics.Stage stage = Metrics.start("scale bar")) {
+            scaleBar = ImageChanger.scaleBarOverlay(region.width, region.height, image.calibration, settings.scaleBarWidth);
+        }
+        int[] rgbChannels = ImageChanger.separateRGB(image);
+
+        String[] colorNamesImage = {"RR", "AF", "DAPI"};
+        ImageChanger.save_tiled(image, rgbChannels, ranges, region, scaleBar, sink, colorNamesImage,
+                settings.tileSize, threads);
+
+        return "image";
+    }
+
+    //
+    // Focus
+    //
+
+    /**
+     * Z-stacks that are only projected by "Select Z-level" with settings.focusSlices are read as substack of their
+     * z-levels in focus. Decided on cached metadata like isTiled.
+     */
+    @Override
+    public boolean isSubstack(Path inFile) {
+        if (settings.interactive || settings.focusSlices <= 0) {
+            return false;
+        }
+        Preflight.Choice choice = preflightChoices.get(Preflight.key(inFile));
+        String projectionType = choice != null && choice.projection != null ? choice.projection : analysisType;
+        if (!"Select Z-level".equals(projectionType)) {
+            return false;
+        }
+        try {
+            ReaderPool.Metadata metadata = ReaderPool.getCachedMetadata(inFile);
+            return metadata != null && metadata.seriesCount == 1 && metadata.slices > settings.focusSlices;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean processSubstack(Path inFile, Path outFolder) throws IOException {
+        if (!isSubstack(inFile)) {
+            return false;
+        }
+        FlatFieldCorrection.Reference flatField = flatFieldCorrection == null ? null : flatFieldCorrection.forFile(inFile);
+        ImagePlus image;
+        try (Metrics.Stage stage = Metrics.start("open")) {
+            image = ReaderPool.openFocused(inFile, settings.focusSlices, flatField);
+        }
+        // The substack is not checkpointed, as the other projections need the whole stack
+        focusedSubstack = true;
+        try {
+            processImage(image, inFile, outFolder);
+        } finally {
+            focusedSubstack = false;
+        }
+        return true;
+    }
+
+    //
+    // Checkpoints
+    //
+
+    private static CheckpointCache createCheckpointCache(AnalysisSettings settings) {
+        if (settings.interactive || settings.checkpointFolder == null) {
+            return null;
+        }
+        try {
+            return new CheckpointCache(Paths.get(settings.checkpointFolder),
+                    (long) (settings.checkpointMegabytes * 1024 * 1024));
+        } catch (IOException e) {
+            Logger.warn("Could not create checkpoint folder " + settings.checkpointFolder + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Settings of the steps before the checkpoint for a file, with the reference files of its flat-field correction,
+     * so replaced references miss the cache.
+     */
+    private String upstreamOptions(Path inFile, Roi roi) throws IOException {
+        String options = settings.toUpstreamOptions(roi);
+        return flatFieldCorrection == null ? options : options + " references=[" + flatFieldCorrection.identity(inFile) + "]";
+    }
+
+    @Override
+    public boolean isCached(Path inFile) {
+        try {
+            return checkpointCache != null && checkpointCache.contains(inFile, upstreamOptions(inFile, roiFor(inFile)));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Export a file from the channels cached after the common analysis steps.
+     * Only the steps after the checkpoint, e.g. the projection, are run.
+     */
+    @Override
+    public boolean processCached(Path inFile, Path outFolder) {
+        if (checkpointCache == null) {
+            return false;
+        }
+        CheckpointCache.Entry entry;
+        try {
+            entry = checkpointCache.get(inFile, upstreamOptions(inFile, roiFor(inFile)));
+        } catch (IOException e) {
+            Logger.warn("Could not read checkpoint of " + inFile + ": " + e.getMessage());
+            return false;
+        }
+        if (entry == null) {
+            return false;
+        }
+
+        ImagePlus[] rgbs = entry.channels;
+        int slices = rgbs[0].getNSlices();
+        int frames = rgbs[0].getNFrames();
+        try (ChoiceScope scope = applyChoice(inFile);
+             OutputSink sink = openSink(inFile.getFileName().toString(), outFolder)) {
+            int[] dimensions = {rgbs[0].getWidth(), rgbs[0].getHeight(), rgbs.length, slices, frames};
+            if (frames == 1 && slices == 1) {
+                Logger.log("Detected image");
+                Metrics.describeCurrentFile(dimensions, "cached image");
+                saveImage(rgbs, entry.title, sink);
+            }
+            else if (slices == 1) {
+                Logger.log("Detected video");
+                Metrics.describeCurrentFile(dimensions, "cached video");
+                saveVideo(rgbs, entry.title, videoFps(rgbs[0]), sink);
+            }
+            else {
+                Logger.log("Detected z-stack");
+                Metrics.describeCurrentFile(dimensions, "cached z-stack, " + analysisType);
+                saveZStack(rgbs, entry.title, analysisType, sink);
+            }
+            sink.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        WindowManager.setTempCurrentImage(null);
+        return true;
+    }
+
+    private void checkpoint(String title, ImagePlus[] rgbs) {
+        // Checkpoints are kept per file, so the series of a file are not checkpointed
+        if (checkpointCache == null || inputFile == null || inputSeries >= 0 || focusedSubstack) {
+            return;
+        }
+        try {
+            checkpointCache.put(inputFile, upstreamOptions(inputFile, defaultRoi), title, rgbs);
+        } catch (IOException e) {
+            Logger.warn("Could not write checkpoint of " + inputFile + ": " + e.getMessage());
+        }
+    }
+
+    //
+    // Output
+    //
+
+    /**
+     * Open the destination of the products of one input: the output folder, or with settings.outputContainer
+     * a container named after the input in the output folder.
+     *
+     * @param name File name of the input, or the image title if there is no file.
+     * @param outFolder Output folder.
+     */
+    private OutputSink openSink(String name, Path outFolder) throws IOException {
+        if (!settings.outputContainer) {
+            return OutputSink.folder(outFolder);
+        }
+        return OutputSink.container(outFolder.resolve(name + OutputSink.CONTAINER_SUFFIX));
+    }
+
     /*
     Analysis steps
      */
 
-    public String imageAnalysis(ImagePlus image, Path outFolder, boolean withCommon) {
+    public String imageAnalysis(ImagePlus image, OutputSink sink, boolean withCommon) {
         Logger.log("Starting single image analysis...");
 
-        ImagePlus[] rgbs = withCommon ?  commonAnalysisSteps(image) : ImageChanger.separateRGB(image);
+        ImagePlus[] rgbs = withCommon ?  commonAnalysisSteps(image) : ImageChanger.separateRGB(image, settings.interactive);
+        saveImage(rgbs, image.getTitle(), sink);
+
+        return "image";
+    }
 
+    private void saveImage(ImagePlus[] rgbs, String title, OutputSink sink) {
+        saveImage(rgbs, title, sink, "");
+    }
+
+    /**
+     * @param mergeSuffix Suffix of the merge after "Merge", e.g. to tell it apart from the one of a projection.
+     */
+    private void saveImage(ImagePlus[] rgbs, String title, OutputSink sink, String mergeSuffix) {
         // Save merge
-        ImagePlus composite = ImageChanger.mergeRGB(rgbs, image.getTitle());
-        ImageChanger.save_tif(composite, outFolder, "Merge");
+        ImagePlus composite = ImageChanger.mergeRGB(rgbs, title, settings.interactive);
+        ImageChanger.save_tif(composite, sink, "Merge" + mergeSuffix);
 
         // Save single files
         String[] colorNamesImage = {"RR", "AF", "DAPI", "Ph2"};
 
         for (int i = 0; i < rgbs.length; i++) {
             ImagePlus rgbImage = rgbs[i];
-            ImageChanger.save_tif(rgbImage, outFolder, colorNamesImage[i]);
+            saveChannel(rgbImage, sink, colorNamesImage[i]);
 
-            ImagePlus greyImage = ImageChanger.toGrey(rgbImage);
-            ImageChanger.save_tif(greyImage, outFolder, colorNamesImage[i] + "_gray");
+            // Gray is only another LUT of a native file, so it is saved separately for flattened output only
+            if (!settings.isNativeOutput()) {
+                ImagePlus greyImage = ImageChanger.toGrey(rgbImage);
+                ImageChanger.save_tif(greyImage, sink, colorNamesImage[i] + "_gray");
+            }
         }
-
-        return "image";
     }
 
-    public String videoAnalysis(ImagePlus image, Path outFolder) {
+    public String videoAnalysis(ImagePlus image, OutputSink sink) throws IOException {
+        if (isChunked()) {
+            chunkedVideoAnalysis(image, sink);
+            return "video";
+        }
         Logger.log("Starting video analysis...");
 
         // function for video analysis
         ImagePlus[] rgbs = commonAnalysisSteps(image);
+        saveVideo(rgbs, image.getTitle(), videoFps(image), sink);
 
-        GenericDialog frameDialog = new GenericDialog("Frame rate");
+        return "video";
+    }
+
+    /**
+     * Videos are processed in chunks of frames by non-interactive runs. A checkpoint needs the whole channels,
+     * so with a checkpoint cache videos are processed as a whole.
+     */
+    private boolean isChunked() {
+        return !settings.interactive && checkpointCache == null && settings.chunkFrames > 0;
+    }
+
+    /**
+     * Video analysis chunk by chunk of frames, with the same steps and output files as videoAnalysis.
+     * The contrast is taken from the current frame, like commonAnalysisSteps does, and applied to all frames.
+     */
+    public String chunkedVideoAnalysis(ImagePlus image, OutputSink sink) throws IOException {
+        Logger.log("Starting chunked video analysis...");
+        int threads = Runtime.getRuntime().availableProcessors();
+        double fps = videoFps(image);
+
+        double[][] ranges = ImageChanger.displayRanges(ImageChanger.autoContrast(image, settings.saturated));
+        Rectangle region = new Rectangle(image.getWidth(), image.getHeight());
+        if (defaultRoi != null) {
+            region = region.intersection(defaultRoi.getBounds());
+        }
+        Overlay overlay;
+        try (Metrics.Stage stage = Metrics.start("scale bar")) {
+            overlay = image.getOverlay() == null ? new Overlay() : image.getOverlay().duplicate();
+            overlay.translate(-region.x, -region.y);
+            for (Roi roi : ImageChanger.scaleBarOverlay(region.width, region.height, image.getCalibration(),
+                    settings.scaleBarWidth).toArray()) {
+                overlay.add(roi);
+            }
+        }
+        int[] rgbChannels = ImageChanger.findRGB(image);
+
+        String[] colorNamesVideo = {"TMR", "GFP", "Hoechst"};
+        TemporalStatistics statistics = settings.temporalStatistics
+                ? new TemporalStatistics(rgbChannels.length, region.width, region.height, image.getNFrames()) : null;
+        List<VideoOutput> outputs = videoOutputs(region, image.getCalibration(), overlay);
+        ImageChanger.save_chunked_avi(image, rgbChannels, ranges, region, outputs, sink, colorNamesVideo, fps,
+                settings.chunkFrames, threads, statistics);
+
+        if (statistics != null) {
+            String[] channelTitles = new String[rgbChannels.length];
+            LUT[] luts = new LUT[rgbChannels.length];
+            for (int i = 0; i < rgbChannels.length; i++) {
+                channelTitles[i] = ImageChanger.splitTitle(image.getTitle(), rgbChannels[i]);
+                luts[i] = image.getLuts()[rgbChannels[i]];
+            }
+            ImageChanger.save_statistics(statistics, image.getTitle(), channelTitles, luts, image.getCalibration(),
+                    sink, colorNamesVideo);
+        }
+
+        return "video";
+    }
+
+    /**
+     * Videos at full resolution, and binned and decimated ones with settings.videoBinning or settings.videoFrameStep.
+     */
+    private List<VideoOutput> videoOutputs(Rectangle region, Calibration calibration, Overlay overlay) {
+        List<VideoOutput> outputs = new ArrayList<>();
+        if (!settings.isVideoReduced() || settings.videoFullResolution) {
+            outputs.add(VideoOutput.full(overlay));
+        }
+        if (settings.isVideoReduced()) {
+            int binning = settings.videoBinning;
+            Calibration reduced = ImageChanger.reduceCalibration(calibration, binning, settings.videoFrameStep);
+            outputs.add(new VideoOutput(binning, settings.videoFrameStep, settings.videoSuffix(),
+                    ImageChanger.reduceOverlay(overlay, region.width / binning, region.height / binning, reduced, binning,
+                            settings.scaleBarWidth)));
+        }
+        return outputs;
+    }
+
+    private double videoFps(ImagePlus image) {
         double fps = image.getCalibration().fps;
         if (fps==0.0) fps = Animator.getFrameRate();
         if (fps<=0.5) fps = 0.5;
-        frameDialog.addNumericField("Frames per second", fps, 0, 3, "fps");
-        frameDialog.showDialog();
-        fps = frameDialog.getNextNumber();
-        frameDialog.dispose();
+        if (settings.interactive) {
+            GenericDialog frameDialog = new GenericDialog("Frame rate");
+            frameDialog.addNumericField("Frames per second", fps, 0, 3, "fps");
+            frameDialog.showDialog();
+            fps = frameDialog.getNextNumber();
+            frameDialog.dispose();
+        }
+        else if (settings.fps > 0) {
+            fps = settings.fps;
+        }
+        return fps;
+    }
 
+    private void saveVideo(ImagePlus[] rgbs, String title, double fps, OutputSink sink) {
+        String[] colorNamesVideo = {"TMR", "GFP", "Hoechst", "Ph2"};
+        if (settings.temporalStatistics) {
+            saveStatistics(rgbs, title, sink, colorNamesVideo);
+        }
+
+        // Reduced videos are binned and decimated before the channels are merged
+        ImagePlus[] reduced = null;
+        if (settings.isVideoReduced()) {
+            reduced = new ImagePlus[rgbs.length];
+            for (int i = 0; i < rgbs.length; i++) {
+                reduced[i] = ImageChanger.reduceVideo(rgbs[i], settings.videoBinning, settings.videoFrameStep,
+                        settings.scaleBarWidth);
+            }
+        }
+
+        if (reduced == null || settings.videoFullResolution) {
+            saveVideos(rgbs, title, fps, sink, colorNamesVideo, "");
+        }
+        if (reduced != null) {
+            saveVideos(reduced, title, fps, sink, colorNamesVideo, settings.videoSuffix());
+        }
+    }
+
+    private void saveVideos(ImagePlus[] rgbs, String title, double fps, OutputSink sink, String[] colorNames,
+                            String suffix) {
         // Save merge
-        ImagePlus composite = ImageChanger.mergeRGB(rgbs, image.getTitle());
-        ImageChanger.save_avi(composite, outFolder, "Merge", fps);
+        ImagePlus composite = ImageChanger.mergeRGB(rgbs, title, settings.interactive);
+        ImageChanger.save_avi(composite, sink, "Merge" + suffix, fps);
 
         // Save single files
-        String[] colorNamesVideo = {"TMR", "GFP", "Hoechst", "Ph2"};
         for (int i = 0; i < rgbs.length; i++) {
-            ImageChanger.save_avi(rgbs[i], outFolder, colorNamesVideo[i], fps);
+            ImageChanger.save_avi(rgbs[i], sink, colorNames[i] + suffix, fps);
         }
+    }
 
-        return "video";
+    /**
+     * Temporal statistics of the channels, from the frames in memory before they are encoded, so the saved
+     * videos are not read again.
+     */
+    private void saveStatistics(ImagePlus[] rgbs, String title, OutputSink sink, String[] colorNames) {
+        int frames = rgbs[0].getStackSize();
+        TemporalStatistics statistics = new TemporalStatistics(rgbs.length, rgbs[0].getWidth(), rgbs[0].getHeight(), frames);
+        try (Metrics.Stage stage = Metrics.start("statistics")) {
+            ImageStack[] stacks = new ImageStack[rgbs.length];
+            for (int i = 0; i < rgbs.length; i++) {
+                stacks[i] = rgbs[i].getStack();
+            }
+            for (int t = 0; t < frames; t++) {
+                ImageProcessor[] planes = new ImageProcessor[rgbs.length];
+                for (int i = 0; i < rgbs.length; i++) {
+                    planes[i] = stacks[i].getProcessor(t + 1);
+                }
+                statistics.addFrame(t, planes);
+            }
+        }
+
+        String[] channelTitles = new String[rgbs.length];
+        LUT[] luts = new LUT[rgbs.length];
+        for (int i = 0; i < rgbs.length; i++) {
+            channelTitles[i] = rgbs[i].getTitle();
+            luts[i] = rgbs[i].getProcessor().getLut();
+        }
+        ImageChanger.save_statistics(statistics, title, channelTitles, luts, rgbs[0].getCalibration(), sink, colorNames);
     }
 
-    public String zStackAnalysis(ImagePlus image, Path outFolder) {
+    public String zStackAnalysis(ImagePlus image, OutputSink sink) {
         Logger.log("Starting z-stack analysis...");
 
-        String[] projectionTypes = {"Z Project", "3D Project", "Select Z-level"};
-
         boolean saveType = true;
         String projectionType = analysisType;
+        if(projectionType == null && !settings.interactive) {
+            projectionType = "Z Project";
+        }
         if(projectionType == null) {
+            String[] types = AnalysisSettings.PROJECTION_TYPES;
             GenericDialog stackDialog = new GenericDialog("How should the stack be projected ?");
-            stackDialog.addChoice("Projection Type:", projectionTypes, "Z Project");
+            stackDialog.addCheckboxGroup(1, types.length, types, new boolean[]{true, false, false},
+                    new String[]{"Projection Types (any combination):"});
             stackDialog.addCheckbox("Save choice?", true);
             stackDialog.showDialog();
-            projectionType = stackDialog.getNextChoice();
+            List<String> selected = new ArrayList<>();
+            for (String type : types) {
+                if (stackDialog.getNextBoolean()) {
+                    selected.add(type);
+                }
+            }
+            projectionType = selected.isEmpty() ? "Z Project" : String.join(AnalysisSettings.PROJECTION_SEPARATOR, selected);
             saveType = stackDialog.getNextBoolean();
             stackDialog.dispose();
             Logger.log("Selected projection type: " + projectionType);
         }
-        if (projectionType.equals("Select Z-level")) {
-            image = ImageChanger.adjustBrightnessContrast(image);
-            image = ImageChanger.crop(image, defaultRoi);
+        if (projectionType.equals("Select Z-level") && settings.interactive) {
+            image = adjustContrast(image);
+            image = crop(image);
             image = ImageChanger.makeSubstack(image);
-            image = ImageChanger.addScaleBar(image);
+            image = addScaleBar(image);
 
-            imageAnalysis(image, outFolder, false);
+            imageAnalysis(image, sink, false);
         }
         else {
             // function for z-stack analysis
             ImagePlus[] rgbs = commonAnalysisSteps(image);
+            saveZStack(rgbs, image.getTitle(), projectionType, sink);
+        }
 
-            for (int i = 0; i < rgbs.length; i++) {
-                ImagePlus rgbImage = rgbs[i];
-                ImageChanger.setCurrentImage(rgbImage);
+        if (saveType) {
+            return projectionType;
+        }
+        else {
+            return null;
+        }
+    }
 
-                if (projectionType.equals("Z Project")) {
-                    rgbs[i] = ZProjector.run(rgbImage, "max");
-                }
-                else if (projectionType.equals("3D Project")) {
-                    rgbs[i] = ImageChanger.project3D(rgbImage);
-                }
+    /**
+     * Save one or several projections of the split channels of a z-stack. Several projections share the channels,
+     * which they do not change, and are computed and saved concurrently by non-interactive runs.
+     *
+     * @param projectionType One or several of PROJECTION_TYPES, see AnalysisSettings.isProjectionType.
+     */
+    private void saveZStack(ImagePlus[] channels, String title, String projectionType, OutputSink sink) {
+        String[] projections = AnalysisSettings.projections(projectionType == null ? "Z Project" : projectionType);
+        // Substacks are saved like images, whose merge has the name of the one of the maximum projection
+        String mergeSuffix = Arrays.asList(projections).contains("Z Project") && projections.length > 1 ? "_z" : "";
+        if (projections.length == 1 || settings.interactive) {
+            for (String projection : projections) {
+                saveProjection(channels, title, projection, sink, mergeSuffix);
             }
+            return;
+        }
 
-            // Save merge & individual colors
-            ImagePlus composite = ImageChanger.mergeRGB(rgbs, image.getTitle());
-            String[] colorNames = {"TMR", "GFP", "Hoechst", "Ph2"};
-            if (projectionType.equals("Z Project")) {
-                ImageChanger.save_tif(composite, outFolder, "Merge");
+        Metrics.FileInfo file = Metrics.getCurrentFile();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(projections.length, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String projection : projections) {
+                futures.add(executor.submit(() -> {
+                    Metrics.setCurrentFile(file);
+                    saveProjection(channels, title, projection, sink, mergeSuffix);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ?
+                    (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                for (int i = 0; i < rgbs.length; i++) {
-                    ImageChanger.save_tif(rgbs[i], outFolder, colorNames[i]);
-                }
+    /**
+     * @param channels Split channels, which are neither changed nor closed.
+     * @param projectionType One of PROJECTION_TYPES.
+     * @param mergeSuffix Suffix of the merge of substacks.
+     */
+    private void saveProjection(ImagePlus[] channels, String title, String projectionType, OutputSink sink,
+                                String mergeSuffix) {
+        ImagePlus[] rgbs = channels.clone();
+        if (projectionType.equals("Select Z-level")) {
+            String zRange = settings.zRange != null ? settings.zRange : "1-" + rgbs[0].getNSlices();
+            if (settings.focusSlices > 0 && settings.focusSlices < rgbs[0].getNSlices()) {
+                zRange = FocusSelection.toZRange( FocusSelection.sharpestRange(rgbs, settings.focusSlices) );
+                Logger.log("Z-levels in focus of " + title + ": " + zRange);
+            }
+            for (int i = 0; i < rgbs.length; i++) {
+                rgbs[i] = ImageChanger.makeSubstack(rgbs[i], zRange);
+            }
+            saveImage(rgbs, title, sink, mergeSuffix);
+            return;
+        }
+
+        for (int i = 0; i < rgbs.length; i++) {
+            ImagePlus rgbImage = rgbs[i];
+            ImageChanger.setCurrentImage(rgbImage);
+
+            if (projectionType.equals("Z Project")) {
+                rgbs[i] = ImageChanger.maxProject(rgbImage);
             }
             else if (projectionType.equals("3D Project")) {
+                rgbs[i] = settings.interactive ?
+                        ImageChanger.project3D(rgbImage) : ImageChanger.projectRotating(rgbImage);
+            }
+        }
+
+        // Save merge & individual colors
+        ImagePlus composite = ImageChanger.mergeRGB(rgbs, title, settings.interactive);
+        String[] colorNames = {"TMR", "GFP", "Hoechst", "Ph2"};
+        if (projectionType.equals("Z Project")) {
+            ImageChanger.save_tif(composite, sink, "Merge");
+
+            for (int i = 0; i < rgbs.length; i++) {
+                saveChannel(rgbs[i], sink, colorNames[i]);
+            }
+        }
+        else if (projectionType.equals("3D Project")) {
+            double fps = settings.fps > 0 ? settings.fps : 5;
+            if (settings.interactive) {
                 GenericDialog frameDialog = new GenericDialog("Frame rate");
-                frameDialog.addNumericField("Frames per second:", 5, 0);
+                frameDialog.addNumericField("Frames per second:", fps, 0);
                 frameDialog.showDialog();
-                double fps = frameDialog.getNextNumber();
+                fps = frameDialog.getNextNumber();
                 frameDialog.dispose();
+            }
 
 
-                for (int i = 0; i < rgbs.length; i++) {
-                    ImageChanger.save_avi(rgbs[i], outFolder, colorNames[i], fps);
-                }
-
-                ImageChanger.save_avi(composite, outFolder, "Merge", fps);
+            for (int i = 0; i < rgbs.length; i++) {
+                ImageChanger.save_avi(rgbs[i], sink, colorNames[i], fps);
             }
-        }
 
-        if (saveType) {
-            return projectionType;
+            ImageChanger.save_avi(composite, sink, "Merge", fps);
         }
-        else {
-            return null;
+    }
+
+    private void saveChannel(ImagePlus channel, OutputSink sink, String suffix) {
+        if (settings.isNativeOutput()) {
+            ImageChanger.save_native_tif(channel, sink, suffix);
+        } else {
+            ImageChanger.save_tif(channel, sink, suffix);
         }
     }
 
+    /**
+     * Contrast, crop, scale bar and split. With a checkpoint cache, the split channels are cached for the input file.
+     */
     public ImagePlus[] commonAnalysisSteps(ImagePlus image) {
         Logger.log("Starting common analysis steps...");
 
-        image = ImageChanger.adjustBrightnessContrast(image);
-        image = ImageChanger.crop(image, defaultRoi);
-        image = ImageChanger.addScaleBar(image);
-        return ImageChanger.separateRGB(image);
+        String title = image.getTitle();
+        image = adjustContrast(image);
+        image = crop(image);
+        image = addScaleBar(image);
+        ImagePlus[] rgbs = ImageChanger.separateRGB(image, settings.interactive);
+        checkpoint(title, rgbs);
+        return rgbs;
+    }
+
+    private ImagePlus adjustContrast(ImagePlus image) {
+        return settings.interactive ?
+                ImageChanger.adjustBrightnessContrast(image) : ImageChanger.autoContrast(image, settings.saturated);
+    }
+
+    private ImagePlus crop(ImagePlus image) {
+        return settings.interactive ? ImageChanger.crop(image, defaultRoi) : ImageChanger.cropTo(image, defaultRoi);
+    }
+
+    private ImagePlus addScaleBar(ImagePlus image) {
+        return settings.interactive ?
+                ImageChanger.addScaleBar(image) : ImageChanger.addScaleBarOverlay(image, settings.scaleBarWidth);
     }
 
     //
@@ -206,22 +838,102 @@ public class Stepwise_Analyzer implements PlugIn, ImageAnalyzer {
         );
     }
 
+    /**
+     * Show previews of all files of a folder on a contact sheet, on which the operator sets or approves the region
+     * and projection of every file. The choices are saved to the output folder and used by the analyzer.
+     *
+     * @param maxSize Maximum width and height of the previews.
+     * @return Whether the operator approved the choices.
+     */
+    private static boolean preflight(Stepwise_Analyzer analyzer, FileNavigator fileNavigator, Path inFolder,
+                                     Path outFolder, String fileSuffix, int maxSize) {
+        try {
+            List<Path> files = new ArrayList<>();
+            for (FileNavigator.FileIO fileIO : fileNavigator.collectFilePaths(inFolder, outFolder, fileSuffix)) {
+                files.add(fileIO.inPath);
+            }
+            List<Preflight.Thumbnail> thumbnails = Preflight.thumbnails(files, maxSize,
+                    Runtime.getRuntime().availableProcessors());
+            if (thumbnails.isEmpty()) {
+                return true;
+            }
+            int columns = (int) Math.ceil(Math.sqrt(thumbnails.size()));
+            Preflight.ContactSheet sheet = Preflight.contactSheet(thumbnails, columns, 0.35);
+            Map<Path, Preflight.Choice> choices = Preflight.defaults(thumbnails, analyzer.defaultRoi, analyzer.analysisType);
+            if (!Preflight.review(sheet, choices)) {
+                return false;
+            }
+            Preflight.save(sheet, choices, outFolder);
+            analyzer.setPreflightChoices(choices);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            Logger.error("Pre-flight of " + inFolder + " failed: " + e);
+            return false;
+        }
+    }
+
     public void run(String arg){
         Logger.log("Starting run.");
+        Metrics.reset();
         GenericDialog dialog = new GenericDialog("Single file or folder processing");
         dialog.addChoice("Processing type:", new String[]{"Single file", "Folder"}, "Folder");
+        dialog.addNumericField("Max. heap fraction for loaded files:", 0.5, 2);
+        dialog.addNumericField("Files to load ahead:", 1, 0);
+        dialog.addStringField("Shard of folder (index/count):", "0/1");
+        dialog.addNumericField("Time limit per file (minutes, 0 = none):", 0, 1);
+        dialog.addNumericField("Retries of failed files:", 0, 0);
+        dialog.addStringField("Local staging folder (empty = none):", "", 20);
+        dialog.addNumericField("Staging size (MB):", 20480, 0);
+        dialog.addStringField("Flat-field reference (empty = none, estimate):", "", 20);
+        dialog.addStringField("Dark-frame reference (empty = none):", "", 20);
+        dialog.addCheckbox("Save channels in native bit depth (merge stays RGB)", false);
+        dialog.addCheckbox("One container per input (zip)", false);
+        dialog.addCheckbox("Temporal max, mean, SD and intensity trace of videos", false);
+        dialog.addNumericField("Video binning (1 = full resolution):", 1, 0);
+        dialog.addNumericField("Video frame step (1 = all frames):", 1, 0);
+        dialog.addCheckbox("Also save full-resolution videos", false);
+        dialog.addNumericField("Pre-flight thumbnail size (0 = none):", 0, 0);
         dialog.showDialog();
         String processingType = dialog.getNextChoice();
+        double heapFraction = dialog.getNextNumber();
+        int prefetchDepth = (int) dialog.getNextNumber();
+        int[] shard = Sharding.parse( dialog.getNextString() );
+        double fileTimeoutMinutes = dialog.getNextNumber();
+        int retries = (int) dialog.getNextNumber();
+        String stagingFolder = dialog.getNextString().trim();
+        double stagingMegabytes = dialog.getNextNumber();
+        String flatField = dialog.getNextString().trim();
+        String darkFrame = dialog.getNextString().trim();
+        boolean nativeOutput = dialog.getNextBoolean();
+        boolean outputContainer = dialog.getNextBoolean();
+        boolean temporalStatistics = dialog.getNextBoolean();
+        int videoBinning = Math.max((int) dialog.getNextNumber(), 1);
+        int videoFrameStep = Math.max((int) dialog.getNextNumber(), 1);
+        boolean videoFullResolution = dialog.getNextBoolean();
+        int preflightSize = (int) dialog.getNextNumber();
 
         // Define Analyzer and Navigator
         Stepwise_Analyzer stepwiseAnalyzer = new Stepwise_Analyzer();
+        stepwiseAnalyzer.settings.outputMode = nativeOutput ? "native" : "flattened";
+        stepwiseAnalyzer.settings.outputContainer = outputContainer;
+        stepwiseAnalyzer.settings.temporalStatistics = temporalStatistics;
+        stepwiseAnalyzer.settings.videoBinning = videoBinning;
+        stepwiseAnalyzer.settings.videoFrameStep = videoFrameStep;
+        stepwiseAnalyzer.settings.videoFullResolution = videoFullResolution;
         stepwiseAnalyzer.defineDefaultRoi();
 
-        FileNavigator fileNavigator = new FileNavigator(stepwiseAnalyzer);
+        FileNavigator fileNavigator = new FileNavigator(stepwiseAnalyzer, heapFraction, prefetchDepth);
+        fileNavigator.setFaultTolerance(fileTimeoutMinutes * 60, retries);
+        if (!flatField.isEmpty()) {
+            fileNavigator.setFlatFieldCorrection(new FlatFieldCorrection(flatField, darkFrame.isEmpty() ? null : darkFrame));
+        }
 
         // Collect input
         Path inputPath;
-        Path outputDirectory;
+        Path outputDirectory = null;
         String fileSuffix = null;
         switch (processingType) {
             case "Single file":
@@ -231,7 +943,7 @@ public class Stepwise_Analyzer implements PlugIn, ImageAnalyzer {
                 try {
                     fileNavigator.processFile(inputPath, outputDirectory, null);
                 } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    Logger.error("Could not process " + inputPath + ": " + e);
                 }
                 break;
 
@@ -240,13 +952,34 @@ public class Stepwise_Analyzer implements PlugIn, ImageAnalyzer {
                 outputDirectory = Paths.get( IJ.getDirectory("Choose output directory") ).normalize().toAbsolutePath();
                 fileSuffix = IJ.getString("File suffix", ".nd2");
 
-                try {
-                    fileNavigator.processFolder(inputPath, outputDirectory, fileSuffix);
-                } catch (InterruptedException | IOException e) {
-                    throw new RuntimeException(e);
+                if (preflightSize > 0 && !preflight(stepwiseAnalyzer, fileNavigator, inputPath, outputDirectory,
+                                                    fileSuffix, preflightSize)) {
+                    Logger.log("Pre-flight canceled.");
+                    break;
+                }
+
+                // Escape cancels the folder after the current file is aborted
+                fileNavigator.setCancellation(Cancellation.escapeKey());
+                try (StagingCache stagingCache = stagingFolder.isEmpty() ?
+                        null : new StagingCache(Paths.get(stagingFolder), (long) (stagingMegabytes * (1 << 20)))) {
+                    fileNavigator.setStagingCache(stagingCache);
+                    fileNavigator.processFolder(inputPath, outputDirectory, fileSuffix, shard[0], shard[1]);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Logger.warn("Processing of " + inputPath + " was interrupted.");
+                } catch (IOException e) {
+                    Logger.error("Could not process " + inputPath + ": " + e);
                 }
                 break;
         }
+
+        if (outputDirectory != null) {
+            try {
+                Metrics.writeReport(outputDirectory);
+            } catch (IOException e) {
+                Logger.log("Could not write metrics: " + e.getMessage());
+            }
+        }
         Logger.log("Run complete.");
     }
 }
@@ -0,0 +1,188 @@
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Temporal maximum, mean and standard deviation of every channel of a time-lapse, and the mean intensity of every
+ * frame, accumulated while the frames pass by, e.g. on their way to the video encoder. Frames may be added by
+ * several threads in any order. Each thread adds to its own sums, which are only combined at the end.
+ */
+public class TemporalStatistics {
+    /**
+     * Names of the images returned by project, e.g. as suffix of their files.
+     */
+    public static final String[] PROJECTIONS = {"max", "mean", "std"};
+
+    /**
+     * Maximum, sum and sum of squares of every pixel, of the frames added by one thread at a time.
+     */
+    private static class Accumulator {
+        final float[][] max;
+        final double[][] sum;
+        final double[][] sumOfSquares;
+
+        Accumulator(int channels, int pixelCount) {
+            max = new float[channels][pixelCount];
+            sum = new double[channels][pixelCount];
+            sumOfSquares = new double[channels][pixelCount];
+            for (float[] channelMax : max) {
+                Arrays.fill(channelMax, Float.NEGATIVE_INFINITY);
+            }
+        }
+
+        /**
+         * @return Mean of the plane.
+         */
+        double add(int channel, ImageProcessor plane) {
+            float[] channelMax = max[channel];
+            double[] channelSum = sum[channel];
+            double[] channelSquares = sumOfSquares[channel];
+            Object pixels = plane.getPixels();
+            double planeSum = 0;
+            for (int p = 0; p < channelSum.length; p++) {
+                float value = pixels instanceof short[] ? ((short[]) pixels)[p] & 0xffff
+                        : pixels instanceof byte[] ? ((byte[]) pixels)[p] & 0xff : plane.getf(p);
+                if (value > channelMax[p]) {
+                    channelMax[p] = value;
+                }
+                channelSum[p] += value;
+                channelSquares[p] += (double) value * value;
+                planeSum += value;
+            }
+            return planeSum / channelSum.length;
+        }
+    }
+
+    private final int channels;
+    private final int width;
+    private final int height;
+    private final double[][] trace;
+    private final ConcurrentLinkedQueue<Accumulator> idle = new ConcurrentLinkedQueue<>();
+    private final List<Accumulator> accumulators = new ArrayList<>();
+
+    /**
+     * @param channels Number of channels.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @param frames Number of frames.
+     */
+    public TemporalStatistics(int channels, int width, int height, int frames) {
+        this.channels = channels;
+        this.width = width;
+        this.height = height;
+        this.trace = new double[frames][channels];
+    }
+
+    /**
+     * Add the planes of one frame, from any thread.
+     *
+     * @param frame Index of the frame, starting at 0.
+     * @param planes One plane per channel, of the width and height of the frames.
+     */
+    public void addFrame(int frame, ImageProcessor[] planes) {
+        Accumulator accumulator = idle.poll();
+        if (accumulator == null) {
+            accumulator = new Accumulator(channels, width * height);
+            synchronized (accumulators) {
+                accumulators.add(accumulator);
+            }
+        }
+        try {
+            for (int c = 0; c < channels; c++) {
+                trace[frame][c] = accumulator.add(c, planes[c]);
+            }
+        } finally {
+            idle.add(accumulator);
+        }
+    }
+
+    /**
+     * Maximum, mean and standard deviation over time of a channel, like ZProjector's "max", "avg" and "sd" over all
+     * frames. Call it after all frames were added.
+     *
+     * @param channel Index of the channel, starting at 0.
+     * @param title Title of the images, e.g. of the channel.
+     * @param lut Lookup table of the channel.
+     * @param calibration Spatial calibration of the frames.
+     * @return Maximum, mean and standard deviation as 32-bit images, in the order of PROJECTIONS.
+     */
+    public ImagePlus[] project(int channel, String title, LUT lut, Calibration calibration) {
+        int pixelCount = width * height;
+        int frames = trace.length;
+        float[] max = new float[pixelCount];
+        double[] sum = new double[pixelCount];
+        double[] sumOfSquares = new double[pixelCount];
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        synchronized (accumulators) {
+            for (Accumulator accumulator : accumulators) {
+                for (int p = 0; p < pixelCount; p++) {
+                    max[p] = Math.max(max[p], accumulator.max[channel][p]);
+                    sum[p] += accumulator.sum[channel][p];
+                    sumOfSquares[p] += accumulator.sumOfSquares[channel][p];
+                }
+            }
+        }
+
+        float[] mean = new float[pixelCount];
+        float[] standardDeviation = new float[pixelCount];
+        for (int p = 0; p < pixelCount; p++) {
+            mean[p] = (float) (sum[p] / frames);
+            if (frames > 1) {
+                double variance = (sumOfSquares[p] - sum[p] * sum[p] / frames) / (frames - 1);
+                standardDeviation[p] = (float) Math.sqrt(Math.max(variance, 0));
+            }
+        }
+
+        float[][] projections = {max, mean, standardDeviation};
+        ImagePlus[] images = new ImagePlus[projections.length];
+        for (int i = 0; i < projections.length; i++) {
+            FloatProcessor processor = new FloatProcessor(width, height, projections[i]);
+            processor.setLut(lut);
+            processor.resetMinAndMax();
+            images[i] = new ImagePlus(title, processor);
+            images[i].setCalibration(calibration.copy());
+        }
+        return images;
+    }
+
+    /**
+     * Write the mean intensity of every channel in every frame as CSV.
+     *
+     * @param file Path of the CSV.
+     * @param names Column name of every channel.
+     * @param calibration Calibration with the time between frames, which is 0 if unknown.
+     * @throws IOException
+     */
+    public void writeTrace(Path file, String[] names, Calibration calibration) throws IOException {
+        double frameInterval = calibration.frameInterval;
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            StringBuilder header = new StringBuilder("frame,");
+            header.append(Metrics.csvField("time [" + calibration.getTimeUnit() + "]"));
+            for (String name : names) {
+                header.append(',').append(Metrics.csvField(name));
+            }
+            writer.write(header.append('\n').toString());
+            for (int t = 0; t < trace.length; t++) {
+                StringBuilder row = new StringBuilder();
+                row.append(t + 1).append(',').append(String.format(Locale.ROOT, "%.4f", t * frameInterval));
+                for (int c = 0; c < channels; c++) {
+                    row.append(',').append(String.format(Locale.ROOT, "%.4f", trace[t][c]));
+                }
+                writer.write(row.append('\n').toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.Blitter;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A single plane with several channels, which is read tile by tile instead of as a whole.
+ * Used for stitched images whose planes are too large for one ImageJ pixel array.
+ */
+public abstract class TiledImage implements Closeable {
+    public final String title;
+    public final int width;
+    public final int height;
+    public final int channels;
+    public final Calibration calibration;
+    public final LUT[] luts;
+
+    /**
+     * @param title Title of the image, usually the file name.
+     * @param width Width of the plane, which may exceed what fits into one pixel array.
+     * @param height Height of the plane.
+     * @param calibration Spatial calibration.
+     * @param luts Lookup table of each channel.
+     */
+    protected TiledImage(String title, int width, int height, Calibration calibration, LUT[] luts) {
+        this.title = title;
+        this.width = width;
+        this.height = height;
+        this.channels = luts.length;
+        this.calibration = calibration;
+        this.luts = luts;
+    }
+
+    /**
+     * Read a region of one channel. Safe to call from several threads.
+     *
+     * @param channel Channel, starting at 0.
+     * @param bounds Region within the plane.
+     * @return Pixels of the region.
+     * @throws IOException
+     */
+    public abstract ImageProcessor readTile(int channel, Rectangle bounds) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Wrap an image that is already loaded, e.g. of a format that only ImageJ reads.
+     *
+     * @param image Image with a single z-level and frame.
+     * @return Tiles of the image.
+     */
+    public static TiledImage of(ImagePlus image) {
+        LUT[] luts = new LUT[image.getNChannels()];
+        for (int c = 0; c < luts.length; c++) {
+            luts[c] = image.isComposite() ?
+                    ((CompositeImage) image).getChannelLut(c + 1) : image.getProcessor().getLut();
+        }
+        ImageStack stack = image.getStack();
+
+        return new TiledImage(image.getTitle(), image.getWidth(), image.getHeight(), image.getCalibration(), luts) {
+            @Override
+            public ImageProcessor readTile(int channel, Rectangle bounds) {
+                ImageProcessor plane = stack.getProcessor(channel + 1);
+                ImageProcessor tile = plane.createProcessor(bounds.width, bounds.height);
+                tile.copyBits(plane, -bounds.x, -bounds.y, Blitter.COPY);
+                return tile;
+            }
+
+            @Override
+            public void close() {
+                image.changes = false;
+                image.close();
+            }
+        };
+    }
+
+    //
+    // Tiling
+    //
+
+    /**
+     * A task on one tile of a region.
+     */
+    public interface TileTask {
+        /**
+         * @param column Column of the tile, starting at 0.
+         * @param row Row of the tile, starting at 0.
+         * @param bounds Bounds of the tile in plane coordinates. Tiles at the right and bottom border may be smaller.
+         */
+        void run(int column, int row, Rectangle bounds) throws Exception;
+    }
+
+    /**
+     * Split a region into tiles in row order.
+     *
+     * @param region Region of the plane.
+     * @param tileSize Width and height of the tiles.
+     * @return Bounds of the tiles in plane coordinates.
+     */
+    public static List<Rectangle> tiles(Rectangle region, int tileSize) {
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = 0; y < region.height; y += tileSize) {
+            for (int x = 0; x < region.width; x += tileSize) {
+                tiles.add(new Rectangle(region.x + x, region.y + y,
+                        Math.min(tileSize, region.width - x), Math.min(tileSize, region.height - y)));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Run a task on every tile of a region in parallel. At most twice as many tiles as threads are in flight,
+     * so the memory used stays bounded by the tile size, not by the size of the region.
+     *
+     * @param region Region of the plane.
+     * @param tileSize Width and height of the tiles.
+     * @param threads Number of tiles processed at the same time.
+     * @param task Task to run on each tile.
+     * @throws IOException If a task failed. The remaining tiles are cancelled.
+     */
+    public static void forEachTile(Rectangle region, int tileSize, int threads, TileTask task) throws IOException {
+        List<Rectangle> tiles = tiles(region, tileSize);
+        int columns = (region.width + tileSize - 1) / tileSize;
+        Metrics.FileInfo file = Metrics.getCurrentFile();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> futures = new ArrayList<>();
+
+        try {
+            int submitted = 0;
+            int completed = 0;
+            while (completed < tiles.size()) {
+                while (submitted < tiles.size() && submitted - completed < 2 * Math.max(threads, 1)) {
+                    int index = submitted++;
+                    futures.add(completion.submit(() -> {
+                        Metrics.setCurrentFile(file);
+                        task.run(index % columns, index / columns, tiles.get(index));
+                        return null;
+                    }));
+                }
+                completion.take().get();
+                completed++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing tiles", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Failed to process a tile", cause);
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+}
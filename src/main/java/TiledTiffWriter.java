@@ -0,0 +1,300 @@
+import ij.IJ;
+import ij.measure.Calibration;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A writer of uncompressed tiled TIFFs, which takes the tiles in any order, e.g. as they are finished by parallel
+ * workers. Tiles are appended to the file as they arrive and the directory is written at the end.
+ * Files that would exceed 4 GB are written as BigTIFF.
+ * Only 8-bit gray and RGB are supported, which is what flattened images are.
+ */
+public class TiledTiffWriter implements Closeable {
+    private static final long CLASSIC_LIMIT = 0xFFFFFFFFL - (64 << 20);
+
+    private final Path file;
+    private final Path partFile;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int samplesPerPixel;
+    private final int tileSize;
+    private final int columns;
+    private final boolean bigTiff;
+    private final long[] tileOffsets;
+    private final long[] tileByteCounts;
+    private final Calibration calibration;
+    private long end;
+    private boolean finished = false;
+
+    /**
+     * @param file Path of the TIFF. The file is written under a temporary name until finish() is called.
+     * @param width Width of the image.
+     * @param height Height of the image.
+     * @param rgb Whether the tiles are RGB, otherwise 8-bit gray.
+     * @param tileSize Width and height of the tiles, a multiple of 16.
+     * @param calibration Spatial calibration, written like ImageJ does.
+     * @throws IOException
+     */
+    public TiledTiffWriter(Path file, int width, int height, boolean rgb, int tileSize, Calibration calibration)
+            throws IOException {
+        if (tileSize <= 0 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException("Tile size must be a positive multiple of 16, got " + tileSize);
+        }
+        this.file = file;
+        this.partFile = file.resolveSibling(file.getFileName() + ".part");
+        this.width = width;
+        this.height = height;
+        this.samplesPerPixel = rgb ? 3 : 1;
+        this.tileSize = tileSize;
+        this.columns = (width + tileSize - 1) / tileSize;
+        int rows = (height + tileSize - 1) / tileSize;
+        this.tileOffsets = new long[columns * rows];
+        this.tileByteCounts = new long[columns * rows];
+        this.calibration = calibration;
+
+        long imageBytes = (long) columns * rows * tileSize * tileSize * samplesPerPixel;
+        this.bigTiff = imageBytes > CLASSIC_LIMIT;
+
+        channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = bigTiff ? 16 : 8;
+    }
+
+    /**
+     * Append a tile. Tiles at the right and bottom border may be smaller than the tile size and are padded.
+     *
+     * @param column Column of the tile, starting at 0.
+     * @param row Row of the tile, starting at 0.
+     * @param tile A ColorProcessor for RGB files, else a processor with 8-bit pixels.
+     * @throws IOException
+     */
+    public void writeTile(int column, int row, ImageProcessor tile) throws IOException {
+        // Encode outside of the lock, so only the append is serialized
+        ByteBuffer buffer = ByteBuffer.allocate(tileSize * tileSize * samplesPerPixel);
+        int tileWidth = Math.min(tile.getWidth(), tileSize);
+        int tileHeight = Math.min(tile.getHeight(), tileSize);
+        if (samplesPerPixel == 3) {
+            int[] pixels = (int[]) ((ColorProcessor) tile).getPixels();
+            for (int y = 0; y < tileHeight; y++) {
+                buffer.position(y * tileSize * 3);
+                for (int x = 0; x < tileWidth; x++) {
+                    int pixel = pixels[y * tile.getWidth() + x];
+                    buffer.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+                }
+            }
+        }
+        else {
+            byte[] pixels = (byte[]) tile.convertToByte(false).getPixels();
+            for (int y = 0; y < tileHeight; y++) {
+                buffer.position(y * tileSize);
+                buffer.put(pixels, y * tile.getWidth(), tileWidth);
+            }
+        }
+        buffer.clear();
+
+        int index = row * columns + column;
+        long offset;
+        synchronized (this) {
+            offset = end;
+            end += buffer.capacity();
+        }
+        writeFully(buffer, offset);
+        synchronized (this) {
+            tileOffsets[index] = offset;
+            tileByteCounts[index] = buffer.capacity();
+        }
+    }
+
+    /**
+     * Write the header and the directory, and move the file to its final name.
+     *
+     * @return Size of the written file in bytes.
+     * @throws IOException
+     */
+    public synchronized long finish() throws IOException {
+        for (int i = 0; i < tileOffsets.length; i++) {
+            if (tileByteCounts[i] == 0) {
+                throw new IOException("Tile " + i + " of " + file + " was not written");
+            }
+        }
+
+        String description = "ImageJ=" + IJ.getVersion() + "\n"
+                + (calibration.scaled() ? "unit=" + calibration.getUnit() + "\n" : "") + "\0";
+        byte[] descriptionBytes = description.getBytes(StandardCharsets.ISO_8859_1);
+        boolean resolution = calibration.scaled();
+
+        // The directory starts at the next word boundary, followed by the values that do not fit into entries
+        long ifdOffset = (end + 7) & ~7L;
+        int entryCount = resolution ? 15 : 12;
+        int entrySize = bigTiff ? 20 : 12;
+        int inlineSize = bigTiff ? 8 : 4;
+        long valuesOffset = ifdOffset + (bigTiff ? 8 : 2) + (long) entryCount * entrySize + (bigTiff ? 8 : 4);
+
+        ByteBuffer values = ByteBuffer.allocate(descriptionBytes.length + 16 + 6 + tileOffsets.length * 16 + 16)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer ifd = ByteBuffer.allocate((int) (valuesOffset - ifdOffset)).order(ByteOrder.LITTLE_ENDIAN);
+        if (bigTiff) {
+            ifd.putLong(entryCount);
+        } else {
+            ifd.putShort((short) entryCount);
+        }
+
+        ByteBuffer bits = ByteBuffer.allocate(samplesPerPixel * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int sample = 0; sample < samplesPerPixel; sample++) {
+            bits.putShort((short) 8);
+        }
+
+        putEntry(ifd, 256, LONG, 1, width);
+        putEntry(ifd, 257, LONG, 1, height);
+        putEntry(ifd, 258, SHORT, samplesPerPixel, bits.array(), values, valuesOffset, inlineSize);
+        putEntry(ifd, 259, SHORT, 1, 1);
+        putEntry(ifd, 262, SHORT, 1, samplesPerPixel == 3 ? 2 : 1);
+        putEntry(ifd, 270, ASCII, descriptionBytes.length, descriptionBytes, values, valuesOffset, inlineSize);
+        putEntry(ifd, 277, SHORT, 1, samplesPerPixel);
+        if (resolution) {
+            putEntry(ifd, 282, RATIONAL, 1, rational(1 / calibration.pixelWidth), values, valuesOffset, inlineSize);
+            putEntry(ifd, 283, RATIONAL, 1, rational(1 / calibration.pixelHeight), values, valuesOffset, inlineSize);
+        }
+        putEntry(ifd, 284, SHORT, 1, 1);
+        if (resolution) {
+            putEntry(ifd, 296, SHORT, 1, 1);
+        }
+        putEntry(ifd, 322, LONG, 1, tileSize);
+        putEntry(ifd, 323, LONG, 1, tileSize);
+        putEntry(ifd, 324, bigTiff ? LONG8 : LONG, tileOffsets.length, toBytes(tileOffsets), values, valuesOffset, inlineSize);
+        putEntry(ifd, 325, bigTiff ? LONG8 : LONG, tileByteCounts.length, toBytes(tileByteCounts), values, valuesOffset, inlineSize);
+        if (bigTiff) {
+            ifd.putLong(0);
+        } else {
+            ifd.putInt(0);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(bigTiff ? 16 : 8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I');
+        if (bigTiff) {
+            header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(ifdOffset);
+        } else {
+            header.putShort((short) 42).putInt((int) ifdOffset);
+        }
+
+        ifd.flip();
+        values.flip();
+        header.flip();
+        writeFully(ifd, ifdOffset);
+        writeFully(values, valuesOffset);
+        writeFully(header, 0);
+        long size = valuesOffset + values.limit();
+        channel.close();
+
+        Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+        return size;
+    }
+
+    /**
+     * Close the file. Unless finish() was called, the partial file is deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (!finished) {
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    //
+    // Directory entries
+    //
+
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int ASCII = 2;
+    private static final int RATIONAL = 5;
+    private static final int LONG8 = 16;
+
+    private void putEntry(ByteBuffer ifd, int tag, int type, long count, long value) {
+        ifd.putShort((short) tag).putShort((short) type);
+        if (bigTiff) {
+            ifd.putLong(count);
+            ifd.putLong(value);
+        } else {
+            ifd.putInt((int) count);
+            if (type == SHORT) {
+                ifd.putShort((short) value).putShort((short) 0);
+            } else {
+                ifd.putInt((int) value);
+            }
+        }
+    }
+
+    /**
+     * Put an entry whose values are stored inline if they fit, else after the directory.
+     */
+    private void putEntry(ByteBuffer ifd, int tag, int type, long count, byte[] data,
+                          ByteBuffer values, long valuesOffset, int inlineSize) {
+        ifd.putShort((short) tag).putShort((short) type);
+        if (bigTiff) {
+            ifd.putLong(count);
+        } else {
+            ifd.putInt((int) count);
+        }
+        if (data.length <= inlineSize) {
+            ifd.put(data);
+            for (int i = data.length; i < inlineSize; i++) {
+                ifd.put((byte) 0);
+            }
+            return;
+        }
+
+        // Values start at word boundaries
+        while (values.position() % 2 != 0) {
+            values.put((byte) 0);
+        }
+        long offset = valuesOffset + values.position();
+        if (bigTiff) {
+            ifd.putLong(offset);
+        } else {
+            ifd.putInt((int) offset);
+        }
+        values.put(data);
+    }
+
+    private byte[] toBytes(long[] array) {
+        ByteBuffer buffer = ByteBuffer.allocate(array.length * (bigTiff ? 8 : 4)).order(ByteOrder.LITTLE_ENDIAN);
+        for (long value : array) {
+            if (bigTiff) {
+                buffer.putLong(value);
+            } else {
+                buffer.putInt((int) value);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Pixels per unit as rational, with the precision ImageJ's TiffEncoder uses.
+     */
+    private static byte[] rational(double pixelsPerUnit) {
+        double scale = pixelsPerUnit > 1000 ? 1000 : 1000000;
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt((int) (pixelsPerUnit * scale)).putInt((int) scale).array();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import ij.gui.Overlay;
+
+/**
+ * One set of videos of a time-lapse, the merge and the colored channels, either at full resolution or binned and
+ * with only every nth frame, e.g. for review. ImageChanger.save_chunked_avi writes several sets in one pass.
+ */
+public class VideoOutput {
+    final int binning;
+    final int frameStep;
+    final String suffix;
+    final Overlay overlay;
+
+    /**
+     * @param binning Width and height of the blocks of pixels that are averaged, 1 for full resolution.
+     * @param frameStep Only every frameStep-th frame is saved, starting with the first.
+     * @param suffix Suffix of the file names, before the extension, e.g. "" for full resolution.
+     * @param overlay Overlay relative to the binned frames, e.g. the scale bar, or null.
+     */
+    public VideoOutput(int binning, int frameStep, String suffix, Overlay overlay) {
+        if (binning < 1 || frameStep < 1) {
+            throw new IllegalArgumentException("Binning and frame step must be positive, got " + binning + " and " + frameStep);
+        }
+        this.binning = binning;
+        this.frameStep = frameStep;
+        this.suffix = suffix;
+        this.overlay = overlay;
+    }
+
+    /**
+     * Videos at full resolution with all frames.
+     *
+     * @param overlay Overlay relative to the frames, or null.
+     */
+    public static VideoOutput full(Overlay overlay) {
+        return new VideoOutput(1, 1, "", overlay);
+    }
+
+    /**
+     * @param frame Index of the frame, starting at 0.
+     * @return Whether the frame is part of the videos.
+     */
+    public boolean includes(int frame) {
+        return frame % frameStep == 0;
+    }
+}
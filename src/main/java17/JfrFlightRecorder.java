@@ -0,0 +1,127 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder events with JFR, in the Java 17 part of the multi-release jar.
+ * The fields of an event are only filled in if a recording takes it, so disabled events cost one allocation.
+ */
+final class JfrFlightRecorder extends FlightRecorder {
+    @Name("wagner.File")
+    @Label("File")
+    @Category({"Wagner", "Analysis"})
+    @Description("Processing of one input file, after it was opened")
+    static final class FileEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("File Size")
+        @DataAmount
+        long fileSize;
+
+        @Label("Dimensions")
+        @Description("Width x height x channels x slices x frames")
+        String dimensions;
+
+        @Label("Analysis Type")
+        String analysisType;
+
+        @Label("Completed")
+        boolean completed;
+    }
+
+    @Name("wagner.Stage")
+    @Label("Stage")
+    @Category({"Wagner", "Analysis"})
+    @Description("One stage of the analysis of a file, as measured by Metrics")
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("File")
+        String file;
+
+        @Label("File Size")
+        @DataAmount
+        long fileSize;
+
+        @Label("Dimensions")
+        @Description("Width x height x channels x slices x frames")
+        String dimensions;
+
+        @Label("Analysis Type")
+        String analysisType;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    }
+
+    @Override
+    public String getName() {
+        return "jfr";
+    }
+
+    @Override
+    public Object beginStage() {
+        StageEvent event = new StageEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endStage(Object running, String stage, Metrics.FileInfo file, long bytesRead, long bytesWritten) {
+        if (running == null) {
+            return;
+        }
+        StageEvent event = (StageEvent) running;
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = stage;
+            event.file = file.file;
+            event.fileSize = file.sizeBytes;
+            event.dimensions = file.getDimensions();
+            event.analysisType = file.getAnalysisType();
+            event.bytesRead = bytesRead;
+            event.bytesWritten = bytesWritten;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginFile() {
+        FileEvent event = new FileEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endFile(Object running, Metrics.FileInfo file, boolean completed) {
+        if (running == null) {
+            return;
+        }
+        FileEvent event = (FileEvent) running;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file.file;
+            event.fileSize = file.sizeBytes;
+            event.dimensions = file.getDimensions();
+            event.analysisType = file.getAnalysisType();
+            event.completed = completed;
+            event.commit();
+        }
+    }
+}
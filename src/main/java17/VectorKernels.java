@@ -0,0 +1,90 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Pixel kernels with the Vector API, in the Java 17 part of the multi-release jar.
+ * Every kernel gives the same results as ScalarKernels, which also processes the tails of the loops.
+ * Display scaling is inherited, because its table lookup is faster than converting shorts to doubles and back.
+ * Flat-field correction is inherited too: it is bound by memory bandwidth, and converting shorts to floats and back
+ * lane by lane measured slower than the scalar loop that the JIT compiles.
+ */
+final class VectorKernels extends ScalarKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+    @Override
+    public String getName() {
+        return "vector " + INTS.vectorBitSize() + "-bit";
+    }
+
+    @Override
+    public void countDominantColors(int[] pixels, long[] counts) {
+        int bound = INTS.loopBound(pixels.length);
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int i = 0; i < bound; i += INTS.length()) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, i);
+            IntVector r = pixel.lanewise(VectorOperators.ASHR, 16).and(0xff);
+            IntVector g = pixel.lanewise(VectorOperators.ASHR, 8).and(0xff);
+            IntVector b = pixel.and(0xff);
+
+            VectorMask<Integer> isRed = r.compare(VectorOperators.GT, g).and(r.compare(VectorOperators.GT, b));
+            VectorMask<Integer> isGreen = g.compare(VectorOperators.GT, b).andNot(isRed);
+            VectorMask<Integer> isBlue = b.compare(VectorOperators.GT, r).andNot(isRed).andNot(isGreen);
+            red += isRed.trueCount();
+            green += isGreen.trueCount();
+            blue += isBlue.trueCount();
+        }
+        counts[0] += red;
+        counts[1] += green;
+        counts[2] += blue;
+        countDominantColors(pixels, bound, pixels.length, counts);
+    }
+
+    @Override
+    public void maxInto(short[] accumulator, short[] plane) {
+        // Flipping the sign bit maps unsigned order onto signed order
+        int bound = SHORTS.loopBound(accumulator.length);
+        for (int i = 0; i < bound; i += SHORTS.length()) {
+            ShortVector a = ShortVector.fromArray(SHORTS, accumulator, i).lanewise(VectorOperators.XOR, (short) 0x8000);
+            ShortVector b = ShortVector.fromArray(SHORTS, plane, i).lanewise(VectorOperators.XOR, (short) 0x8000);
+            a.max(b).lanewise(VectorOperators.XOR, (short) 0x8000).intoArray(accumulator, i);
+        }
+        maxInto(accumulator, plane, bound, accumulator.length);
+    }
+
+    @Override
+    public void maxInto(byte[] accumulator, byte[] plane) {
+        int bound = BYTES.loopBound(accumulator.length);
+        for (int i = 0; i < bound; i += BYTES.length()) {
+            ByteVector a = ByteVector.fromArray(BYTES, accumulator, i).lanewise(VectorOperators.XOR, (byte) 0x80);
+            ByteVector b = ByteVector.fromArray(BYTES, plane, i).lanewise(VectorOperators.XOR, (byte) 0x80);
+            a.max(b).lanewise(VectorOperators.XOR, (byte) 0x80).intoArray(accumulator, i);
+        }
+        maxInto(accumulator, plane, bound, accumulator.length);
+    }
+
+    @Override
+    public void addSaturated(int[] sum, int[] rgb) {
+        int bound = INTS.loopBound(sum.length);
+        for (int i = 0; i < bound; i += INTS.length()) {
+            IntVector a = IntVector.fromArray(INTS, sum, i);
+            IntVector b = IntVector.fromArray(INTS, rgb, i);
+            IntVector red = component(a, 16).add(component(b, 16)).min(255);
+            IntVector green = component(a, 8).add(component(b, 8)).min(255);
+            IntVector blue = component(a, 0).add(component(b, 0)).min(255);
+            red.lanewise(VectorOperators.LSHL, 16).or(green.lanewise(VectorOperators.LSHL, 8)).or(blue).intoArray(sum, i);
+        }
+        addSaturated(sum, rgb, bound, sum.length);
+    }
+
+    private static IntVector component(IntVector pixels, int shift) {
+        return pixels.lanewise(VectorOperators.LSHR, shift).and(0xff);
+    }
+}
@@ -0,0 +1,163 @@
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of jobs submitted to a running AnalysisDaemon through the spool folder and the socket.
+ */
+public class AnalysisDaemonTests {
+    private static final String OPTIONS = "roi=16,16,96,64 projection=[Z Project]";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    @Test
+    public void testConcurrentJobsFromSpoolAndSocket() throws Exception {
+        Path spoolFolder = temporaryFolder.newFolder("spool").toPath();
+        Path inA = temporaryFolder.newFolder("inA").toPath();
+        Path inB = temporaryFolder.newFolder("inB").toPath();
+        Path outA = temporaryFolder.getRoot().toPath().resolve("outA");
+        Path outB = temporaryFolder.getRoot().toPath().resolve("outB");
+        new SyntheticDataset(1).generate(inA, 2, 0, 1);
+        new SyntheticDataset(2).generate(inB, 2, 1, 0);
+
+        try (AnalysisDaemon daemon = new AnalysisDaemon(spoolFolder, 2, 0.5, 1)) {
+            daemon.start(0);
+
+            Path jobFile = spoolFolder.resolve("a.tmp");
+            Files.write(jobFile, Arrays.asList("in=" + inA, "out=" + outA, "suffix=.tif", "options=" + OPTIONS),
+                    StandardCharsets.UTF_8);
+            Files.move(jobFile, spoolFolder.resolve("incoming/a.job"));
+
+            String response = AnalysisDaemon.request(daemon.getPort(),
+                    "SUBMIT\tin=" + inB + "\tout=" + outB + "\tsuffix=.tif\toptions=" + OPTIONS);
+            assertTrue(response, response.startsWith("OK\t"));
+            String socketId = response.split("\t")[1];
+
+            awaitJob(daemon, "a");
+            awaitJob(daemon, socketId);
+            assertEquals("DONE", daemon.getStatus("a").get("state"));
+            assertEquals("DONE", daemon.getStatus(socketId).get("state"));
+            assertNull("Finished jobs are only kept in their status files", daemon.getJob("a"));
+
+            String status = AnalysisDaemon.request(daemon.getPort(), "STATUS\t" + socketId);
+            assertTrue(status, status.contains("state=DONE"));
+            assertTrue(Files.readAllLines(spoolFolder.resolve("status/a.status")).contains("state=DONE"));
+        }
+
+        assertTrue(Files.isRegularFile(outA.resolve("images/Flat_img_001.tif_composite_Merge.tif")));
+        assertTrue(Files.isRegularFile(outA.resolve("stacks/Flat_stack_000.tif_composite_Merge.tif")));
+        assertTrue(Files.isRegularFile(outB.resolve("images/Flat_img_001.tif_composite_Merge.tif")));
+        assertTrue(Files.isRegularFile(outB.resolve("videos/vid_000.tif_composite_Merge.avi")));
+
+        // The metrics of every job are written into its own output folder and not kept by the daemon
+        String metricsA = readMetrics(outA);
+        String metricsB = readMetrics(outB);
+        assertTrue(metricsA, metricsA.contains(inA.toString()));
+        assertFalse(metricsA, metricsA.contains(inB.toString()));
+        assertTrue(metricsB, metricsB.contains(inB.toString()));
+        assertFalse(metricsB, metricsB.contains(inA.toString()));
+        assertTrue(Metrics.getSamples().stream().noneMatch(sample -> sample.file.startsWith(inA.toString())
+                                                                     || sample.file.startsWith(inB.toString())));
+    }
+
+    @Test
+    public void testJobsAreNotLostDuringShutdown() throws Exception {
+        Path spoolFolder = temporaryFolder.newFolder("spool").toPath();
+        Path in = temporaryFolder.newFolder("in").toPath();
+        List<String> recipe = Arrays.asList("in=" + in, "out=" + in.resolve("out"));
+        // Submitting fails like it does once the daemon shut down
+        try (AnalysisDaemon daemon = new AnalysisDaemon(spoolFolder, 1, 0.5, 0) {
+            @Override
+            public Job submit(String id, Properties ignored) {
+                throw new IllegalStateException("Daemon is not running");
+            }
+        }) {
+            daemon.start(-1);
+            Files.write(spoolFolder.resolve("incoming/first.job"), recipe, StandardCharsets.UTF_8);
+            awaitJob(daemon, "first");
+            Files.write(spoolFolder.resolve("incoming/second.job"), recipe, StandardCharsets.UTF_8);
+            awaitJob(daemon, "second");
+            assertEquals("FAILED", daemon.getStatus("first").get("state"));
+            assertEquals("FAILED", daemon.getStatus("second").get("state"));
+
+            daemon.shutdown();
+            Files.write(spoolFolder.resolve("incoming/third.job"), recipe, StandardCharsets.UTF_8);
+            daemon.pollSpool();
+            assertTrue("Left for the next daemon", Files.exists(spoolFolder.resolve("incoming/third.job")));
+        }
+    }
+
+    @Test
+    public void testInvalidRecipeIsRejected() throws Exception {
+        Path spoolFolder = temporaryFolder.newFolder("spool").toPath();
+        try (AnalysisDaemon daemon = new AnalysisDaemon(spoolFolder, 1, 0.5, 0)) {
+            daemon.start(0);
+            String response = AnalysisDaemon.request(daemon.getPort(),
+                    "SUBMIT\tin=/nowhere\tout=/nowhere\toptions=projection=[Unknown]");
+            assertTrue(response, response.startsWith("ERROR"));
+        }
+    }
+
+    @Test
+    public void testJobIdsAreSingleFileNames() throws Exception {
+        Path spoolFolder = temporaryFolder.newFolder("spool").toPath();
+        Path in = temporaryFolder.newFolder("in").toPath();
+        try (AnalysisDaemon daemon = new AnalysisDaemon(spoolFolder, 1, 0.5, 0)) {
+            daemon.start(0);
+            for (String id : new String[]{"../../x", "..", "a/b", "a\\b", ""}) {
+                String response = AnalysisDaemon.request(daemon.getPort(),
+                        "SUBMIT\tid=" + id + "\tin=" + in + "\tout=" + in.resolve("out") + "\tsuffix=.tif");
+                assertTrue(id + ": " + response, response.startsWith("ERROR"));
+                response = AnalysisDaemon.request(daemon.getPort(), "STATUS\t" + id);
+                assertTrue(id + ": " + response, response.startsWith("ERROR"));
+            }
+        }
+        assertFalse(Files.exists(temporaryFolder.getRoot().toPath().resolve("x.status")));
+        assertTrue(AnalysisDaemon.isJobId("plate-1_v2.0"));
+    }
+
+    private static String readMetrics(Path outFolder) throws IOException {
+        try (Stream<Path> files = Files.list(outFolder)) {
+            Path report = files.filter(file -> file.getFileName().toString().matches("metrics_.*\\.csv"))
+                    .findFirst().orElseThrow(() -> new AssertionError("No metrics in " + outFolder));
+            return new String(Files.readAllBytes(report), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void awaitJob(AnalysisDaemon daemon, String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                String state = daemon.getStatus(id).get("state");
+                if (state.equals("DONE") || state.equals("FAILED")) {
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                // Not submitted yet
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Job " + id + " did not finish");
+    }
+}
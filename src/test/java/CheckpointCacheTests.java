@@ -0,0 +1,142 @@
+import ij.IJ;
+import ij.ImagePlus;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointCacheTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    private static boolean hasStage(String name) {
+        return Metrics.getSamples().stream().anyMatch(sample -> sample.stage.equals(name));
+    }
+
+    @Test
+    public void testReExportSkipsDecodingAndUpstreamSteps() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path checkpoints = temporaryFolder.getRoot().toPath().resolve("checkpoints");
+        SyntheticDataset dataset = new SyntheticDataset(5);
+        dataset.generate(inFolder, 0, 0, 1);
+        Path inFile = dataset.getEntries().get(0).path;
+        String name = inFile.getFileName().toString();
+        String options = "roi=16,16,96,64 checkpoints=[" + checkpoints + "] ";
+
+        Path maxFolder = temporaryFolder.newFolder("max").toPath();
+        Metrics.reset();
+        new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions(options + "projection=[Z Project]")))
+                .processFolder(inFolder, maxFolder, ".tif");
+        assertTrue(hasStage("open"));
+        assertTrue(hasStage("checkpoint write"));
+        assertTrue(Files.isRegularFile(maxFolder.resolve("stacks/Flat_" + name + "_composite_Merge.tif")));
+
+        // Other projections only read the checkpoint
+        Path rotatingFolder = temporaryFolder.newFolder("rotating").toPath();
+        Metrics.reset();
+        Stepwise_Analyzer rotating = new Stepwise_Analyzer(AnalysisSettings.fromOptions(options + "projection=[3D Project]"));
+        assertTrue(rotating.isCached(inFile));
+        new FileNavigator(rotating).processFolder(inFolder, rotatingFolder, ".tif");
+        assertFalse(hasStage("open"));
+        assertFalse(hasStage("contrast"));
+        assertTrue(hasStage("checkpoint read"));
+        ImagePlus video = IJ.openImage(rotatingFolder.resolve("stacks/" + name + "_composite_Merge.avi").toString());
+        assertEquals(36, video.getStackSize());
+        assertEquals(64, video.getHeight());
+
+        Path substackFolder = temporaryFolder.newFolder("substack").toPath();
+        new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions(options + "projection=[Select Z-level] zrange=3-3")))
+                .processFile(inFile, substackFolder, null);
+        assertTrue(Files.isRegularFile(substackFolder.resolve("Flat_" + name + "_composite_Merge.tif")));
+
+        // Other upstream settings or a changed file miss the cache
+        assertFalse(new Stepwise_Analyzer(AnalysisSettings.fromOptions(options + "saturated=1")).isCached(inFile));
+        Files.setLastModifiedTime(inFile, FileTime.fromMillis(Files.getLastModifiedTime(inFile).toMillis() + 2000));
+        assertFalse(rotating.isCached(inFile));
+    }
+
+    @Test
+    public void testChangedFlatFieldReferencesMissTheCache() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path references = temporaryFolder.newFolder("references").toPath();
+        Path checkpoints = temporaryFolder.getRoot().toPath().resolve("checkpoints");
+        SyntheticDataset dataset = new SyntheticDataset(6);
+        dataset.generate(inFolder, 0, 0, 1);
+        Path inFile = dataset.getEntries().get(0).path;
+        Path flatFile = references.resolve("flat.tif");
+        Path darkFile = references.resolve("dark.tif");
+        Files.copy(inFile, flatFile);
+        Files.copy(inFile, darkFile);
+        String options = "roi=16,16,96,64 checkpoints=[" + checkpoints + "] flatfield=[" + flatFile + "] darkframe=["
+                + darkFile + "] projection=[Z Project]";
+
+        Stepwise_Analyzer analyzer = new Stepwise_Analyzer(AnalysisSettings.fromOptions(options));
+        FileNavigator navigator = new FileNavigator(analyzer);
+        navigator.setFlatFieldCorrection(new FlatFieldCorrection(flatFile.toString(), darkFile.toString()));
+        navigator.processFolder(inFolder, temporaryFolder.newFolder("out").toPath(), ".tif");
+        assertTrue(analyzer.isCached(inFile));
+
+        FileTime modified = Files.getLastModifiedTime(flatFile);
+        Files.setLastModifiedTime(flatFile, FileTime.fromMillis(modified.toMillis() + 2000));
+        assertFalse("Replaced flat field", analyzer.isCached(inFile));
+        Files.setLastModifiedTime(flatFile, modified);
+        assertTrue(analyzer.isCached(inFile));
+        assertFalse("Other flat field", new Stepwise_Analyzer(AnalysisSettings.fromOptions(
+                options.replace("flat.tif", "dark.tif"))).isCached(inFile));
+
+        Files.write(darkFile, new byte[]{0}, StandardOpenOption.APPEND);
+        assertFalse("Replaced dark frame", analyzer.isCached(inFile));
+    }
+
+    @Test
+    public void testRoundTripAndEviction() throws Exception {
+        Path folder = temporaryFolder.newFolder("cache").toPath();
+        ImagePlus[] channels = ImageChanger.separateRGB(SyntheticDataset.create("stack.tif", 64, 48, 5, 1, 3), false);
+        long entryBytes = 3L * 5 * 64 * 48 * 2;
+        CheckpointCache cache = new CheckpointCache(folder, (long) (entryBytes * 3.5));
+
+        Path[] inFiles = new Path[3];
+        for (int i = 0; i < inFiles.length; i++) {
+            inFiles[i] = temporaryFolder.newFile("input" + i).toPath();
+            cache.put(inFiles[i], "", "stack.tif", channels);
+            Files.setLastModifiedTime(folder.resolve(CheckpointCache.key(inFiles[i], "") + ".ckpt"), FileTime.fromMillis(1000L * (i + 1)));
+        }
+        // Using the first entry makes the second one the least recently used
+        CheckpointCache.Entry entry = cache.get(inFiles[0], "");
+        cache.put(temporaryFolder.newFile("input3").toPath(), "", "stack.tif", channels);
+
+        assertNull(cache.get(inFiles[1], ""));
+        assertNotNull(cache.get(inFiles[2], ""));
+        try (Stream<Path> entries = Files.list(folder)) {
+            assertEquals(3, entries.count());
+        }
+
+        assertEquals("stack.tif", entry.title);
+        for (int c = 0; c < channels.length; c++) {
+            assertEquals(channels[c].getTitle(), entry.channels[c].getTitle());
+            assertEquals(ImageChanger.whichColor(channels[c]), ImageChanger.whichColor(entry.channels[c]));
+            assertEquals(5, entry.channels[c].getNSlices());
+            for (int z = 1; z <= 5; z++) {
+                assertArrayEquals((short[]) channels[c].getStack().getPixels(z), (short[]) entry.channels[c].getStack().getPixels(z));
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of videos processed in chunks of frames, against videos processed as a whole.
+ */
+public class ChunkedVideoTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    /**
+     * Mean absolute difference of the red, green and blue values of two frames.
+     */
+    private static double meanDifference(ImageStack a, ImageStack b, int n) {
+        int[] pixelsA = (int[]) a.getProcessor(n).convertToRGB().getPixels();
+        int[] pixelsB = (int[]) b.getProcessor(n).convertToRGB().getPixels();
+        long sum = 0;
+        for (int p = 0; p < pixelsA.length; p++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                sum += Math.abs(((pixelsA[p] >> shift) & 0xff) - ((pixelsB[p] >> shift) & 0xff));
+            }
+        }
+        return sum / (3.0 * pixelsA.length);
+    }
+
+    @Test
+    public void testChunkedVideoMatchesWholeVideo() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        IJ.saveAsTiff(SyntheticDataset.create("v", 96, 64, 1, 21, 3), inFolder.resolve("v.tif").toString());
+
+        Path wholeFolder = temporaryFolder.newFolder("whole").toPath();
+        Path chunkedFolder = temporaryFolder.newFolder("chunked").toPath();
+        String options = "roi=8,4,80,56 fps=5 ";
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions(options + "chunkframes=0")))
+                .processFolder(inFolder, wholeFolder, ".tif").isEmpty());
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions(options + "chunkframes=4")))
+                .processFolder(inFolder, chunkedFolder, ".tif").isEmpty());
+
+        List<String> names = TestSupport.fileNames(wholeFolder, ".avi");
+        assertEquals(4, names.size());
+        assertEquals(names, TestSupport.fileNames(chunkedFolder, ".avi"));
+        for (String name : names) {
+            ImagePlus whole = IJ.openImage(wholeFolder.resolve(name).toString());
+            ImagePlus chunked = IJ.openImage(chunkedFolder.resolve(name).toString());
+            assertNotNull(name, chunked);
+            assertEquals(name, whole.getStackSize(), chunked.getStackSize());
+            assertEquals(name, 80, chunked.getWidth());
+            assertEquals(name, 56, chunked.getHeight());
+            for (int n = 1; n <= whole.getStackSize(); n++) {
+                double difference = meanDifference(whole.getStack(), chunked.getStack(), n);
+                assertEquals(name + " frame " + n, 0, difference, 0);
+            }
+        }
+    }
+
+    @Test
+    public void testReducedVideosAreBinnedAndDecimated() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        IJ.saveAsTiff(SyntheticDataset.create("v", 96, 64, 1, 11, 4), inFolder.resolve("v.tif").toString());
+
+        Path wholeFolder = temporaryFolder.newFolder("whole").toPath();
+        Path chunkedFolder = temporaryFolder.newFolder("chunked").toPath();
+        String options = "roi=8,4,80,56 fps=5 videobin=2 videostep=3 ";
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions(options + "chunkframes=0")))
+                .processFolder(inFolder, wholeFolder, ".tif").isEmpty());
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions(options + "chunkframes=4 videofull=true")))
+                .processFolder(inFolder, chunkedFolder, ".tif").isEmpty());
+
+        // Only reduced videos, unless full resolution is asked for as well
+        List<String> names = TestSupport.fileNames(wholeFolder, ".avi");
+        assertEquals(4, names.size());
+        for (String name : names) {
+            assertTrue(name, name.endsWith("_bin2_step3.avi"));
+        }
+        List<String> chunkedNames = TestSupport.fileNames(chunkedFolder, ".avi");
+        assertEquals(8, chunkedNames.size());
+        assertTrue(chunkedNames.containsAll(names));
+
+        for (String name : names) {
+            ImagePlus whole = IJ.openImage(wholeFolder.resolve(name).toString());
+            ImagePlus chunked = IJ.openImage(chunkedFolder.resolve(name).toString());
+            assertNotNull(name, chunked);
+            assertEquals(name, 4, chunked.getStackSize());
+            assertEquals(name, 40, chunked.getWidth());
+            assertEquals(name, 28, chunked.getHeight());
+            for (int n = 1; n <= whole.getStackSize(); n++) {
+                assertEquals(name + " frame " + n, 0, meanDifference(whole.getStack(), chunked.getStack(), n), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testChunksAreConsumedInOrderAndBounded() throws Exception {
+        int frames = 103;
+        int chunkFrames = 8;
+        int maxInFlight = 3;
+        AtomicInteger read = new AtomicInteger();
+        List<Integer> consumed = new ArrayList<>();
+        Random random = new Random(1);
+
+        FrameChunks.forEachChunk(frames, chunkFrames, 4, maxInFlight,
+                (first, count) -> {
+                    assertEquals(read.getAndIncrement() * chunkFrames, first);
+                    assertEquals(Math.min(chunkFrames, frames - first), count);
+                    assertTrue(read.get() - consumed.size() <= maxInFlight);
+                    return new int[]{first, random.nextInt(5)};
+                },
+                chunk -> {
+                    try {
+                        Thread.sleep(chunk[1]);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return chunk[0];
+                },
+                consumed::add);
+
+        assertEquals(13, consumed.size());
+        for (int i = 0; i < consumed.size(); i++) {
+            assertEquals(i * chunkFrames, (int) consumed.get(i));
+        }
+    }
+
+    @Test
+    public void testSegmentedAviIsReadCompletely() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("segments.avi");
+        Color[] colors = new Color[9];
+        try (AviStreamWriter writer = new AviStreamWriter(file, 64, 48, 10, 4096)) {
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = new Color(20 * i, 200 - 20 * i, 100);
+                ColorProcessor frame = new ColorProcessor(64, 48);
+                frame.setColor(colors[i]);
+                frame.fill();
+                ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+                ImageIO.write(frame.getBufferedImage(), "jpeg", jpeg);
+                writer.writeFrame(jpeg.toByteArray());
+            }
+            writer.finish();
+        }
+
+        String riffs = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertTrue("Several segments", riffs.contains("AVIX"));
+
+        ImagePlus video = IJ.openImage(file.toString());
+        assertEquals(colors.length, video.getStackSize());
+        for (int i = 0; i < colors.length; i++) {
+            int[] rgb = video.getStack().getProcessor(i + 1).getPixel(32, 24, null);
+            assertEquals(colors[i].getRed(), rgb[0], 3);
+            assertEquals(colors[i].getGreen(), rgb[1], 3);
+        }
+    }
+}
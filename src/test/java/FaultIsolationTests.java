@@ -0,0 +1,184 @@
+import ij.IJ;
+import ij.ImagePlus;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of deadlines, retries and cancellation in folder runs, with an analyzer that misbehaves on some files.
+ */
+public class FaultIsolationTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    /**
+     * Records the processed files. Hangs on files named "hang", throws on files named "fail" and cancels the run
+     * on files named "cancel".
+     */
+    private static class MisbehavingAnalyzer implements ImageAnalyzer {
+        final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger failuresLeft;
+        final CountDownLatch never = new CountDownLatch(1);
+        FileNavigator navigator;
+
+        MisbehavingAnalyzer(int failures) {
+            this.failuresLeft = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void processImage(ImagePlus image, Path outFolder) {
+            String title = image.getTitle();
+            try {
+                if (title.contains("hang")) {
+                    never.await();
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Aborted");
+            }
+            if (title.contains("fail") && failuresLeft.getAndDecrement() > 0) {
+                throw new IllegalStateException("Broken file");
+            }
+            if (title.contains("cancel")) {
+                navigator.getCancellation().cancel("Test");
+            }
+            processed.add(title);
+            image.close();
+        }
+    }
+
+    private Path createFolder(String... names) throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        for (String name : names) {
+            Path file = inFolder.resolve(name + ".tif");
+            if (name.contains("corrupt")) {
+                Files.write(file, "II*\0 not really a tiff".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            else {
+                IJ.saveAsTiff(SyntheticDataset.create(name, 32, 32, 2, 1, name.hashCode()), file.toString());
+            }
+        }
+        return inFolder;
+    }
+
+    @Test
+    public void testBadFilesDoNotStopTheRun() throws Exception {
+        Path inFolder = createFolder("a", "b_hang", "c_fail", "d_corrupt", "e");
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        MisbehavingAnalyzer analyzer = new MisbehavingAnalyzer(Integer.MAX_VALUE);
+        FileNavigator navigator = new FileNavigator(analyzer);
+        navigator.setFaultTolerance(2, 1);
+
+        long start = System.nanoTime();
+        List<FileNavigator.Failure> failures = navigator.processFolder(inFolder, outFolder, ".tif");
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(Collections.singletonList("a.tif"), analyzer.processed.subList(0, 1));
+        assertTrue(analyzer.processed.contains("e.tif"));
+        assertEquals(3, failures.size());
+        for (FileNavigator.Failure failure : failures) {
+            assertEquals(2, failure.attempts);
+            if (failure.fileIO.inPath.endsWith("b_hang.tif")) {
+                assertTrue(failure.error instanceof TimeoutException);
+            }
+        }
+        // Two attempts of the hanging file, each aborted at its deadline
+        assertTrue("Took " + seconds + " s", seconds < 10);
+
+        List<String> report = Files.readAllLines(outFolder.resolve("failures.csv"), StandardCharsets.UTF_8);
+        assertEquals(4, report.size());
+        assertTrue(report.get(1).contains("b_hang.tif"));
+        assertTrue(report.get(2).contains("c_fail.tif"));
+        assertTrue(report.get(3).contains("d_corrupt.tif"));
+    }
+
+    @Test
+    public void testFailingPreScanDoesNotStopTheRun() throws Exception {
+        Path inFolder = createFolder("a", "b_hang", "c_fail", "d");
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        // Deciding how to load a file hangs or throws, instead of processing it
+        MisbehavingAnalyzer analyzer = new MisbehavingAnalyzer(0) {
+            @Override
+            public boolean isTiled(Path inFile) {
+                String name = inFile.getFileName().toString();
+                try {
+                    if (name.contains("hang")) {
+                        never.await();
+                    }
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("Aborted");
+                }
+                if (name.contains("fail")) {
+                    throw new IllegalStateException("Broken metadata");
+                }
+                return false;
+            }
+        };
+        FileNavigator navigator = new FileNavigator(analyzer);
+        navigator.setFaultTolerance(1, 0);
+
+        long start = System.nanoTime();
+        List<FileNavigator.Failure> failures = navigator.processFolder(inFolder, outFolder, ".tif");
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(Arrays.asList("a.tif", "d.tif"), analyzer.processed);
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(0).fileIO.inPath.endsWith("b_hang.tif"));
+        assertTrue(failures.get(0).error instanceof TimeoutException);
+        assertTrue(failures.get(1).fileIO.inPath.endsWith("c_fail.tif"));
+        assertTrue(failures.get(1).error instanceof IllegalStateException);
+        assertTrue("Took " + seconds + " s", seconds < 10);
+    }
+
+    @Test
+    public void testRetriesRecoverTransientFailures() throws Exception {
+        Path inFolder = createFolder("a_fail", "b");
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        Files.write(outFolder.resolve("failures.csv"), "stale\n".getBytes(StandardCharsets.UTF_8));
+        MisbehavingAnalyzer analyzer = new MisbehavingAnalyzer(1);
+        FileNavigator navigator = new FileNavigator(analyzer);
+        navigator.setFaultTolerance(0, 1);
+
+        List<FileNavigator.Failure> failures = navigator.processFolder(inFolder, outFolder, ".tif");
+
+        assertTrue(failures.isEmpty());
+        assertEquals(2, analyzer.processed.size());
+        assertEquals("b.tif", analyzer.processed.get(0));
+        assertFalse(Files.exists(outFolder.resolve("failures.csv")));
+    }
+
+    @Test
+    public void testCancellationStopsTheRun() throws Exception {
+        Path inFolder = createFolder("a", "b_cancel", "c", "d");
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        MisbehavingAnalyzer analyzer = new MisbehavingAnalyzer(0);
+        FileNavigator navigator = new FileNavigator(analyzer);
+        analyzer.navigator = navigator;
+
+        List<FileNavigator.Failure> failures = navigator.processFolder(inFolder, outFolder, ".tif");
+
+        assertTrue(navigator.getCancellation().isCancelled());
+        assertTrue(failures.isEmpty());
+        assertEquals(2, analyzer.processed.size());
+    }
+}
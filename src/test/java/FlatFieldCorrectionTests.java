@@ -0,0 +1,187 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Rectangle;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the flat-field correction on images with synthetic vignetting.
+ */
+public class FlatFieldCorrectionTests {
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 64;
+    private static final int CHANNELS = 3;
+    private static final int DARK = 100;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    @After
+    public void clearCache() {
+        FlatFieldCorrection.clearCache();
+    }
+
+    /**
+     * Illumination that falls off to half of its maximum in the corners, dimmer in later channels.
+     */
+    private static double illumination(int x, int y, int channel) {
+        double dx = (x - WIDTH / 2.0) / (WIDTH / 2.0);
+        double dy = (y - HEIGHT / 2.0) / (HEIGHT / 2.0);
+        return (1 - 0.25 * (dx * dx + dy * dy)) / (channel + 1);
+    }
+
+    /**
+     * Image of a sample under the synthetic illumination, with camera offset and some noise.
+     *
+     * @param sample Brightness of the sample at a pixel, or a constant for a flat-field image.
+     */
+    private static ImagePlus illuminated(String title, int slices, long seed, SampleFunction sample) {
+        Random random = new Random(seed);
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int z = 0; z < slices; z++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                ShortProcessor plane = new ShortProcessor(WIDTH, HEIGHT);
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        double signal = sample.at(x, y, c) * illumination(x, y, c);
+                        plane.set(x, y, (int) Math.round(DARK + signal + random.nextGaussian() * 2));
+                    }
+                }
+                stack.addSlice(null, plane);
+            }
+        }
+        ImagePlus image = new ImagePlus(title, stack);
+        image.setDimensions(CHANNELS, slices, 1);
+        image.setOpenAsHyperStack(true);
+        return image;
+    }
+
+    private interface SampleFunction {
+        double at(int x, int y, int channel);
+    }
+
+    private static void save(ImagePlus image, Path file) {
+        IJ.saveAsTiff(image, file.toString());
+    }
+
+    /**
+     * Ratio of the mean of the corners to the mean of the center of a plane, after subtracting the offset.
+     */
+    private static double cornerToCenter(ImageProcessor plane, double offset) {
+        double corners = 0;
+        double center = 0;
+        int size = 8;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                corners += plane.getf(x, y) + plane.getf(WIDTH - 1 - x, y)
+                        + plane.getf(x, HEIGHT - 1 - y) + plane.getf(WIDTH - 1 - x, HEIGHT - 1 - y) - 4 * offset;
+                center += 4 * (plane.getf(WIDTH / 2 - size / 2 + x, HEIGHT / 2 - size / 2 + y) - offset);
+            }
+        }
+        return corners / center;
+    }
+
+    private static class RecordingAnalyzer implements ImageAnalyzer {
+        final List<ImagePlus> images = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void processImage(ImagePlus image, Path outFolder) {
+            images.add(image.duplicate());
+            image.close();
+        }
+    }
+
+    @Test
+    public void testReferenceFramesFlattenTheIllumination() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        save(illuminated("flat", 4, 1, (x, y, c) -> 3000), inFolder.resolve("flat.tif"));
+        save(illuminated("dark", 2, 2, (x, y, c) -> 0), inFolder.resolve("dark.tif"));
+        save(illuminated("a", 2, 3, (x, y, c) -> 2000), inFolder.resolve("a.tif"));
+
+        ImagePlus raw = IJ.openImage(inFolder.resolve("a.tif").toString());
+        assertTrue(cornerToCenter(raw.getStack().getProcessor(1), DARK) < 0.6);
+
+        // In memory and out of core, where the planes go into a scratch file as they are corrected
+        for (double heapFraction : new double[]{0.5, 1e-9}) {
+            RecordingAnalyzer analyzer = new RecordingAnalyzer();
+            FileNavigator navigator = new FileNavigator(analyzer, heapFraction, 1);
+            navigator.setFlatFieldCorrection(new FlatFieldCorrection("flat.tif", "dark.tif"));
+            assertTrue(navigator.processFolder(inFolder, temporaryFolder.newFolder().toPath(), ".tif").isEmpty());
+
+            // The references are not analyzed themselves
+            assertEquals(1, analyzer.images.size());
+            ImagePlus corrected = analyzer.images.get(0);
+            assertEquals(16, corrected.getBitDepth());
+            assertEquals(CHANNELS * 2, corrected.getStackSize());
+            for (int n = 1; n <= corrected.getStackSize(); n++) {
+                ImageProcessor plane = corrected.getStack().getProcessor(n);
+                assertEquals("Plane " + n, 1, cornerToCenter(plane, 0), 0.02);
+            }
+        }
+    }
+
+    @Test
+    public void testEstimatedFlatFieldFromFolder() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        for (int i = 0; i < 10; i++) {
+            // Sparse bright cells at random positions on a dim background
+            Random cells = new Random(i);
+            int cellX = cells.nextInt(WIDTH);
+            int cellY = cells.nextInt(HEIGHT);
+            save(illuminated("f" + i, 1, i, (x, y, c) -> Math.hypot(x - cellX, y - cellY) < 5 ? 3000 : 500),
+                    inFolder.resolve("f" + i + ".tif"));
+        }
+
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        FileNavigator navigator = new FileNavigator(analyzer);
+        navigator.setFlatFieldCorrection(new FlatFieldCorrection(FlatFieldCorrection.ESTIMATE, null));
+        assertTrue(navigator.processFolder(inFolder, temporaryFolder.newFolder().toPath(), ".tif").isEmpty());
+
+        assertEquals(10, analyzer.images.size());
+        ImagePlus raw = IJ.openImage(inFolder.resolve("f0.tif").toString());
+        double rawRatio = cornerToCenter(raw.getStack().getProcessor(1), 0);
+        double correctedRatio = cornerToCenter(analyzer.images.get(0).getStack().getProcessor(1), 0);
+        assertTrue("Raw " + rawRatio + ", corrected " + correctedRatio,
+                Math.abs(1 - correctedRatio) < Math.abs(1 - rawRatio) / 3);
+    }
+
+    @Test
+    public void testTilesAreCorrectedLikeWholePlanes() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        save(illuminated("flat", 1, 1, (x, y, c) -> 3000), inFolder.resolve("flat.tif"));
+        Path file = inFolder.resolve("a.tif");
+        save(illuminated("a", 1, 3, (x, y, c) -> (x * 31 + y * 17) % 2000), file);
+
+        FlatFieldCorrection.Reference reference = new FlatFieldCorrection("flat.tif", null).forFile(file);
+        ImagePlus whole = ReaderPool.openImage(file, false, reference);
+        Rectangle bounds = new Rectangle(40, 16, 32, 32);
+        try (TiledImage tiled = ReaderPool.openTiled(file, reference)) {
+            for (int c = 0; c < CHANNELS; c++) {
+                ImageProcessor plane = whole.getStack().getProcessor(c + 1);
+                plane.setRoi(bounds);
+                assertArrayEquals((short[]) plane.crop().getPixels(), (short[]) tiled.readTile(c, bounds).getPixels());
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the selection of the z-levels in focus, and of reading only these z-levels.
+ */
+public class FocusTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    /**
+     * A z-stack whose z-levels are blurred more, the further they are from the sharp one.
+     */
+    private static ImagePlus blurredStack(String title, int slices, int sharp) {
+        ImagePlus image = SyntheticDataset.create(title, 96, 64, slices, 1, 5);
+        ImageStack stack = image.getStack();
+        for (int z = 1; z <= slices; z++) {
+            for (int c = 1; c <= image.getNChannels(); c++) {
+                if (z != sharp) {
+                    stack.getProcessor(image.getStackIndex(c, z, 1)).blurGaussian(1.5 * Math.abs(z - sharp));
+                }
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void testSharpestLevelsAreFoundCoarseToFine() throws Exception {
+        for (int peak : new int[]{0, 7, 24}) {
+            List<Integer> scored = new ArrayList<>();
+            double[] scores = FocusSelection.score(25, z -> {
+                scored.add(z);
+                return 1.0 / (1 + Math.abs(z - peak));
+            });
+            assertEquals(peak, FocusSelection.sharpest(scores));
+            assertTrue("Scored " + scored, scored.size() <= 25 / 5 + 2 * (5 - 1));
+            assertEquals("No level is scored twice", scored.size(), scored.stream().distinct().count());
+        }
+
+        double[] scores = {1, 5, 2, 1, 0.5};
+        assertArrayEquals(new int[]{1, 3}, FocusSelection.sharpestRange(scores, 3));
+        assertArrayEquals(new int[]{2, 2}, FocusSelection.sharpestRange(scores, 1));
+        assertArrayEquals(new int[]{1, 5}, FocusSelection.sharpestRange(scores, 9));
+        assertArrayEquals(new int[]{3, 5}, FocusSelection.sharpestRange(new double[]{0, 1, 2, 3, 4}, 3));
+
+        ImagePlus image = blurredStack("b.tif", 5, 2);
+        ImageProcessor sharp = image.getStack().getProcessor(image.getStackIndex(1, 2, 1));
+        ImageProcessor blurred = image.getStack().getProcessor(image.getStackIndex(1, 3, 1));
+        assertTrue(FocusSelection.varianceOfLaplacian(sharp) > FocusSelection.varianceOfLaplacian(blurred));
+        assertTrue(FocusSelection.varianceOfLaplacian(sharp.convertToRGB()) > FocusSelection.varianceOfLaplacian(blurred.convertToRGB()));
+    }
+
+    @Test
+    public void testOnlyLevelsInFocusAreRead() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        ImagePlus original = blurredStack("z.tif", 15, 11);
+        IJ.saveAsTiff(original, inFolder.resolve("z.tif").toString());
+
+        ImagePlus focused = ReaderPool.openFocused(inFolder.resolve("z.tif"), 3, null);
+        assertEquals(3, focused.getNSlices());
+        assertEquals(original.getNChannels(), focused.getNChannels());
+        assertEquals("z.tif", focused.getTitle());
+        assertEquals(original.getCalibration().pixelDepth, focused.getCalibration().pixelDepth, 1e-9);
+        for (int c = 1; c <= original.getNChannels(); c++) {
+            assertArrayEquals((short[]) original.getStack().getPixels(original.getStackIndex(c, 10, 1)),
+                    (short[]) focused.getStack().getPixels(focused.getStackIndex(c, 1, 1)));
+            assertArrayEquals((short[]) original.getStack().getPixels(original.getStackIndex(c, 12, 1)),
+                    (short[]) focused.getStack().getPixels(focused.getStackIndex(c, 3, 1)));
+        }
+
+        // The run reads the substack instead of the file, and saves it like the same range chosen by hand
+        AnalysisSettings settings = AnalysisSettings.fromOptions("projection=[Select Z-level] focus=3");
+        Stepwise_Analyzer analyzer = new Stepwise_Analyzer(settings);
+        assertTrue(analyzer.isSubstack(inFolder.resolve("z.tif")));
+        Path outFolder = temporaryFolder.newFolder("focus").toPath();
+        assertTrue(new FileNavigator(analyzer).processFolder(inFolder, outFolder, ".tif").isEmpty());
+
+        Path rangeFolder = temporaryFolder.newFolder("range").toPath();
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions("projection=[Select Z-level] zrange=10-12")))
+                .processFolder(inFolder, rangeFolder, ".tif").isEmpty());
+        assertFalse(TestSupport.outputNames(outFolder).isEmpty());
+        assertEquals(TestSupport.outputNames(rangeFolder), TestSupport.outputNames(outFolder));
+        for (String name : TestSupport.outputNames(outFolder)) {
+            if (name.endsWith(".tif")) {
+                assertArrayEquals(name, IJ.openImage(rangeFolder.resolve(name).toString()).getDimensions(),
+                        IJ.openImage(outFolder.resolve(name).toString()).getDimensions());
+            }
+        }
+
+        // Other projections need the whole stack
+        assertFalse(new Stepwise_Analyzer(AnalysisSettings.fromOptions("projection=[Select Z-level+Z Project] focus=3"))
+                .isSubstack(inFolder.resolve("z.tif")));
+        assertFalse(new Stepwise_Analyzer(AnalysisSettings.fromOptions("projection=[Select Z-level] focus=15"))
+                .isSubstack(inFolder.resolve("z.tif")));
+    }
+
+    @Test
+    public void testFocusIsValidated() {
+        assertEquals(5, AnalysisSettings.fromOptions("focus=5").focusSlices);
+        assertEquals(5, AnalysisSettings.fromOptions(AnalysisSettings.fromOptions("focus=5").toOptions()).focusSlices);
+        for (String options : new String[]{"focus=-1", "focus=3 zrange=1-3"}) {
+            try {
+                AnalysisSettings.fromOptions(options);
+                throw new AssertionError("Accepted " + options);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("focus"));
+            }
+        }
+    }
+}
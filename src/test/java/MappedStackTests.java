@@ -0,0 +1,178 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Rectangle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedStackTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    private static ImagePlus toMapped(ImagePlus image) {
+        MappedStack mapped = new MappedStack(image.getWidth(), image.getHeight(), 0);
+        ImageStack stack = image.getStack();
+        for (int n = 1; n <= stack.getSize(); n++) {
+            mapped.addSlice(null, stack.getProcessor(n));
+        }
+        ImagePlus result = image.duplicate();
+        result.setTitle(image.getTitle());
+        result.setStack(mapped, image.getNChannels(), image.getNSlices(), image.getNFrames());
+        return result;
+    }
+
+    private static void assertSamePixels(ImagePlus expected, ImagePlus actual) {
+        assertEquals(expected.getStackSize(), actual.getStackSize());
+        for (int n = 1; n <= expected.getStackSize(); n++) {
+            assertArrayEquals((short[]) expected.getStack().getPixels(n), (short[]) actual.getStack().getPixels(n));
+        }
+    }
+
+    @Test
+    public void testPlaneWiseStepsMatchHeapSteps() throws Exception {
+        System.setProperty("wagner.scratchFolder", temporaryFolder.getRoot().toString());
+        ImagePlus heap = SyntheticDataset.create("video.tif", 96, 64, 1, 8, 4);
+        Rectangle bounds = new Rectangle(10, 5, 50, 40);
+
+        try (MappedStack.Scope scope = MappedStack.openScope()) {
+            ImagePlus mapped = toMapped(heap);
+            assertTrue(mapped.getStack().isVirtual());
+
+            ImagePlus[] heapChannels = ImageChanger.separateRGB(ImageChanger.cropTo(heap, new ij.gui.Roi(bounds)), false);
+            ImagePlus[] mappedChannels = ImageChanger.separateRGB(ImageChanger.cropTo(mapped, new ij.gui.Roi(bounds)), false);
+            for (int c = 0; c < 3; c++) {
+                assertTrue(mappedChannels[c].getStack().isVirtual());
+                assertEquals(heapChannels[c].getTitle(), mappedChannels[c].getTitle());
+                assertEquals(ImageChanger.whichColor(heapChannels[c]), ImageChanger.whichColor(mappedChannels[c]));
+                assertSamePixels(heapChannels[c], mappedChannels[c]);
+            }
+
+            ImagePlus merged = ImageChanger.mergeRGB(mappedChannels, "video.tif", false);
+            assertEquals(3, merged.getNChannels());
+            assertEquals(8, merged.getNFrames());
+            assertSamePixels(ImageChanger.mergeRGB(heapChannels, "video.tif", false), merged);
+        }
+        try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+            assertEquals("Scratch files are deleted with their scope", 0, files.count());
+        }
+    }
+
+    @Test
+    public void testFilesAboveBudgetAreProcessedOutOfCore() throws Exception {
+        Path scratch = temporaryFolder.newFolder("scratch").toPath();
+        System.setProperty("wagner.scratchFolder", scratch.toString());
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        SyntheticDataset dataset = new SyntheticDataset(9);
+        dataset.generate(inFolder, 0, 1, 1);
+
+        AnalysisSettings settings = AnalysisSettings.fromOptions("roi=16,16,96,64");
+        Metrics.reset();
+        new FileNavigator(new Stepwise_Analyzer(settings), 1e-9, 1).processFolder(inFolder, outFolder, ".tif");
+
+        for (SyntheticDataset.Entry entry : dataset.getEntries()) {
+            String name = entry.path.getFileName().toString();
+            if (entry.type.equals("video")) {
+                ImagePlus video = ij.IJ.openImage(outFolder.resolve("videos/" + name + "_composite_Merge.avi").toString());
+                assertEquals(entry.frames, video.getStackSize());
+                assertEquals(64, video.getHeight());
+            }
+            else {
+                assertTrue(Files.isRegularFile(outFolder.resolve("stacks/Flat_" + name + "_composite_Merge.tif")));
+            }
+        }
+        try (Stream<Path> files = Files.list(scratch)) {
+            assertEquals("Scratch files are deleted after each file", 0, files.count());
+        }
+    }
+
+    /**
+     * Reads more planes than Linux lets a process map by default (vm.max_map_count is 65530), and checks that none
+     * of them stays mapped, so the scratch file can be deleted right away.
+     */
+    @Test
+    public void testReadPlanesAreNotMapped() throws Exception {
+        Path scratch = temporaryFolder.newFolder("scratch").toPath();
+        System.setProperty("wagner.scratchFolder", scratch.toString());
+        ImagePlus heap = SyntheticDataset.create("stack.tif", 256, 256, 8, 1, 6);
+
+        try (MappedStack.Scope scope = MappedStack.openScope()) {
+            ImageStack mapped = toMapped(heap).getStack();
+            for (int i = 0; i < 70000; i++) {
+                int n = i % mapped.getSize() + 1;
+                short[] pixels = (short[]) mapped.getPixels(n);
+                if (i < mapped.getSize()) {
+                    assertArrayEquals((short[]) heap.getStack().getPixels(n), pixels);
+                }
+            }
+
+            Path maps = java.nio.file.Paths.get("/proc/self/maps");
+            if (Files.isReadable(maps)) {
+                for (String line : Files.readAllLines(maps)) {
+                    assertFalse(line, line.contains(scratch.toString()));
+                }
+            }
+        }
+        try (Stream<Path> files = Files.list(scratch)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testPlanesAreReadConcurrently() throws Exception {
+        System.setProperty("wagner.scratchFolder", temporaryFolder.getRoot().toString());
+        ImagePlus heap = SyntheticDataset.create("stack.tif", 128, 128, 3, 1, 12);
+        ImagePlus heap8Bit = heap.duplicate();
+        new ij.process.StackConverter(heap8Bit).convertToGray8();
+
+        try (MappedStack.Scope scope = MappedStack.openScope()) {
+            for (ImagePlus image : new ImagePlus[]{heap, heap8Bit}) {
+                ImageStack mapped = toMapped(image).getStack();
+                ExecutorService executor = Executors.newFixedThreadPool(4);
+                try {
+                    List<Future<?>> reads = new ArrayList<>();
+                    for (int t = 0; t < 4; t++) {
+                        int offset = t;
+                        reads.add(executor.submit(() -> {
+                            for (int i = 0; i < 200; i++) {
+                                int n = (i + offset) % mapped.getSize() + 1;
+                                Object expected = image.getStack().getPixels(n);
+                                if (expected instanceof byte[]) {
+                                    assertArrayEquals((byte[]) expected, (byte[]) mapped.getPixels(n));
+                                }
+                                else {
+                                    assertArrayEquals((short[]) expected, (short[]) mapped.getPixels(n));
+                                }
+                            }
+                        }));
+                    }
+                    for (Future<?> read : reads) {
+                        read.get();
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import ij.IJ;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of z-stacks with several projections, which are computed from one load of the file.
+ */
+public class MultiProjectionTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    private static long stageCount(String stage) {
+        return Metrics.getSamples().stream().filter(sample -> sample.stage.equals(stage)).count();
+    }
+
+    private static Path run(Path inFolder, Path outFolder, String projection) throws Exception {
+        AnalysisSettings settings = AnalysisSettings.fromOptions("projection=[" + projection + "] zrange=2-4");
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(settings)).processFolder(inFolder, outFolder, ".tif").isEmpty());
+        return outFolder;
+    }
+
+    @Test
+    public void testAllProjectionsFromOneLoad() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        IJ.saveAsTiff(SyntheticDataset.create("s.tif", 80, 60, 6, 1, 7), inFolder.resolve("s.tif").toString());
+        String[] projections = AnalysisSettings.PROJECTION_TYPES;
+
+        Metrics.reset();
+        Path combined = run(inFolder, temporaryFolder.newFolder("combined").toPath(),
+                String.join(AnalysisSettings.PROJECTION_SEPARATOR, projections));
+        assertEquals(1, stageCount("open"));
+        assertEquals(1, stageCount("split"));
+        assertFalse("Stages of the projections are attributed to the file",
+                Metrics.getSamples().stream().anyMatch(sample -> sample.file.isEmpty()));
+
+        // Every projection gives the same files as on its own, only the merge of the substack is renamed
+        int files = 0;
+        for (String projection : projections) {
+            Path single = run(inFolder, temporaryFolder.newFolder(projection.replace(' ', '_')).toPath(), projection);
+            for (String name : TestSupport.outputNames(single)) {
+                String combinedName = projection.equals("Select Z-level") ? name.replace("_Merge.tif", "_Merge_z.tif") : name;
+                assertTrue("Missing " + combinedName, Files.isRegularFile(combined.resolve(combinedName)));
+                assertArrayEquals(name, Files.readAllBytes(single.resolve(name)), Files.readAllBytes(combined.resolve(combinedName)));
+                files++;
+            }
+        }
+        assertEquals(files, TestSupport.outputNames(combined).size());
+    }
+
+    @Test
+    public void testProjectionTypesAreValidated() {
+        assertTrue(AnalysisSettings.isProjectionType("3D Project+Z Project"));
+        assertEquals(Arrays.asList("3D Project", "Z Project"), Arrays.asList(AnalysisSettings.projections("3D Project + Z Project")));
+        assertFalse(AnalysisSettings.isProjectionType("Z Project+Z Project"));
+        assertFalse(AnalysisSettings.isProjectionType("Z Project+Mean"));
+        try {
+            AnalysisSettings.fromOptions("projection=[Z Project+Mean]");
+            throw new AssertionError("Unknown projection types are rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Mean"));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import ij.IJ;
+import ij.ImagePlus;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of files with several series, whose series are processed as items of their own in folder runs.
+ */
+public class MultiSeriesTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    @After
+    public void clearMetadata() {
+        ReaderPool.clearMetadata();
+    }
+
+    /**
+     * Records the titles and dimensions of the images it was given.
+     */
+    private static class RecordingAnalyzer implements ImageAnalyzer {
+        final List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        final List<int[]> dimensions = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void processImage(ImagePlus image, Path outFolder) {
+        }
+
+        @Override
+        public void processImage(ImagePlus image, Path inFile, Path outFolder) {
+            processed.add(inFile.getFileName().toString());
+            dimensions.add(image.getDimensions());
+        }
+
+        @Override
+        public void processSeries(ImagePlus image, Path inFile, int series, Path outFolder) {
+            processed.add(image.getTitle());
+            dimensions.add(image.getDimensions());
+        }
+    }
+
+    /**
+     * Bio-Formats generates the planes of ".fake" files from their names, e.g. several series.
+     */
+    private static void assumeFakeReader() {
+        try {
+            Class.forName("loci.formats.in.FakeReader");
+        } catch (ClassNotFoundException | LinkageError e) {
+            Assume.assumeNoException("Bio-Formats is not available", e);
+        }
+    }
+
+    @Test
+    public void testSeriesHaveTheirOwnDeadline() throws Exception {
+        assumeFakeReader();
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        String name = "plate&series=3&sizeX=64&sizeY=48.fake";
+        Files.createFile(inFolder.resolve(name));
+
+        // The second series hangs in its first attempt
+        CountDownLatch never = new CountDownLatch(1);
+        AtomicBoolean hung = new AtomicBoolean();
+        RecordingAnalyzer analyzer = new RecordingAnalyzer() {
+            @Override
+            public void processSeries(ImagePlus image, Path inFile, int series, Path outFolder) {
+                if (series == 1 && !hung.getAndSet(true)) {
+                    try {
+                        never.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException("Aborted");
+                    }
+                }
+                super.processSeries(image, inFile, series, outFolder);
+            }
+        };
+        FileNavigator navigator = new FileNavigator(analyzer);
+        navigator.setFaultTolerance(1, 1);
+
+        assertTrue(navigator.processFolder(inFolder, outFolder, ".fake").isEmpty());
+        assertEquals(Arrays.asList(ReaderPool.seriesTitle(name, 0), ReaderPool.seriesTitle(name, 2),
+                ReaderPool.seriesTitle(name, 1)), analyzer.processed);
+    }
+
+    @Test
+    public void testSeriesAreReadFromOneReader() throws Exception {
+        assumeFakeReader();
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        String name = "plate&series=3&sizeX=64&sizeY=48&sizeC=2&sizeZ=3.fake";
+        Path file = Files.createFile(inFolder.resolve(name));
+
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        assertTrue(new FileNavigator(analyzer).processFolder(inFolder, outFolder, ".fake").isEmpty());
+        assertEquals(Arrays.asList(ReaderPool.seriesTitle(name, 0), ReaderPool.seriesTitle(name, 1),
+                ReaderPool.seriesTitle(name, 2)), analyzer.processed);
+        for (int[] dimensions : analyzer.dimensions) {
+            assertArrayEquals(new int[]{64, 48, 2, 3, 1}, dimensions);
+        }
+        assertEquals(3, ReaderPool.getCachedMetadata(file).seriesCount);
+
+        try (ReaderPool.SeriesReader reader = ReaderPool.openSeries(file)) {
+            assertEquals(3, reader.getSeriesCount());
+            for (int s = 2; s >= 0; s--) {
+                ImagePlus image = reader.read(s, false, null);
+                assertEquals(ReaderPool.seriesTitle(name, s), image.getTitle());
+                assertEquals(2 * 3, image.getStackSize());
+            }
+        }
+    }
+
+    @Test
+    public void testScanDoesNotReadFiles() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        Files.write(inFolder.resolve("a.nd2"), new byte[]{1, 2, 3, 4});
+        Files.write(inFolder.resolve("b.nd2"), new byte[]{5, 6, 7, 8});
+
+        List<FileNavigator.FileIO> fileIOs = new FileNavigator(new RecordingAnalyzer())
+                .collectFilePaths(inFolder, outFolder, ".nd2");
+        assertEquals(2, fileIOs.size());
+        for (FileNavigator.FileIO fileIO : fileIOs) {
+            assertNull(ReaderPool.getCachedMetadata(fileIO.inPath));
+        }
+    }
+
+    @Test
+    public void testCorruptFilesDoNotStopTheRun() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        Files.write(inFolder.resolve("a_corrupt.tif"), new byte[]{'I', 'I', 42, 0, 1, 2, 3});
+        IJ.saveAsTiff(SyntheticDataset.create("b.tif", 64, 48, 1, 1, 2), inFolder.resolve("b.tif").toString());
+        IJ.saveAsTiff(SyntheticDataset.create("c.tif", 64, 48, 1, 1, 2), inFolder.resolve("c.tif").toString());
+
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        FileNavigator fileNavigator = new FileNavigator(analyzer);
+        List<FileNavigator.Failure> failures = new ArrayList<>();
+        for (int shard = 0; shard < 2; shard++) {
+            failures.addAll( fileNavigator.processFolder(inFolder, outFolder, ".tif", shard, 2) );
+        }
+
+        assertEquals(1, failures.size());
+        assertEquals(inFolder.resolve("a_corrupt.tif"), failures.get(0).fileIO.inPath);
+        assertTrue(analyzer.processed.containsAll(Arrays.asList("b.tif", "c.tif")));
+        assertEquals(Collections.singletonList("a_corrupt.tif"), fileNavigator.mergeShards(inFolder, outFolder, ".tif", 2));
+    }
+
+    @Test
+    public void testOnlyFailedSeriesAreRetried() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        IJ.saveAsTiff(SyntheticDataset.create("multi.tif", 64, 48, 1, 1, 2), inFolder.resolve("multi.tif").toString());
+        IJ.saveAsTiff(SyntheticDataset.create("single.tif", 64, 48, 1, 1, 2), inFolder.resolve("single.tif").toString());
+
+        // Make the cached metadata describe three series, which the TIFF does not have
+        ReaderPool.Metadata metadata = ReaderPool.getMetadata(inFolder.resolve("multi.tif"));
+        metadata.seriesCount = 3;
+        metadata.series = new ReaderPool.Metadata[]{metadata, metadata, metadata};
+
+        RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        FileNavigator navigator = new FileNavigator(analyzer);
+        navigator.setFaultTolerance(0, 1);
+        List<FileNavigator.Failure> failures = navigator.processFolder(inFolder, outFolder, ".tif");
+
+        // The first series and the other file are processed once, the series that can not be read fail on their own
+        assertEquals(Arrays.asList("multi.tif_series001", "single.tif"), analyzer.processed);
+        assertEquals(2, failures.size());
+        for (int i = 0; i < failures.size(); i++) {
+            assertEquals(inFolder.resolve("multi.tif"), failures.get(i).fileIO.inPath);
+            assertEquals(i + 1, failures.get(i).fileIO.series);
+            assertEquals(2, failures.get(i).attempts);
+        }
+
+        List<String> report = Files.readAllLines(outFolder.resolve("failures.csv"), StandardCharsets.UTF_8);
+        assertEquals(3, report.size());
+        assertTrue(report.get(1).contains("multi.tif,2,2,"));
+        assertTrue(report.get(2).contains("multi.tif,3,2,"));
+    }
+}
@@ -0,0 +1,71 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of single channels saved in their own bit depth, against the flattened output.
+ */
+public class NativeOutputTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    @Test
+    public void testChannelsKeepBitDepthRangeLutAndOverlay() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path flattenedFolder = temporaryFolder.newFolder("flattened").toPath();
+        Path nativeFolder = temporaryFolder.newFolder("native").toPath();
+        ImagePlus input = SyntheticDataset.create("a", 160, 120, 1, 1, 5);
+        IJ.saveAsTiff(input, inFolder.resolve("a.tif").toString());
+
+        new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions("")))
+                .processFolder(inFolder, flattenedFolder, ".tif");
+        new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions("output=native")))
+                .processFolder(inFolder, nativeFolder, ".tif");
+
+        // Merge and one file per channel, without gray copies
+        try (Stream<Path> files = Files.list(nativeFolder)) {
+            assertEquals(4, files.count());
+        }
+        ImagePlus merge = IJ.openImage(nativeFolder.resolve("Flat_a.tif_composite_Merge.tif").toString());
+        assertEquals(24, merge.getBitDepth());
+
+        ImageStack channels = input.getStack();
+        ImagePlus contrasted = ImageChanger.autoContrast(input.duplicate(), 0.35);
+        String[] names = {"C1-a.tif_DAPI.tif", "C2-a.tif_RR.tif", "C3-a.tif_AF.tif"};
+        for (int c = 0; c < names.length; c++) {
+            Path nativeFile = nativeFolder.resolve(names[c]);
+            ImagePlus channel = IJ.openImage(nativeFile.toString());
+            assertNotNull(names[c], channel);
+            assertEquals(16, channel.getBitDepth());
+            assertArrayEquals((short[]) channels.getPixels(c + 1), (short[]) channel.getProcessor().getPixels());
+
+            contrasted.setC(c + 1);
+            assertEquals(contrasted.getDisplayRangeMin(), channel.getDisplayRangeMin(), 0);
+            assertEquals(contrasted.getDisplayRangeMax(), channel.getDisplayRangeMax(), 0);
+            assertEquals(SyntheticDataset.CHANNEL_COLORS[c].getRGB(), channel.getProcessor().getLut().getRGB(255));
+            assertNotNull("Scale bar overlay", channel.getOverlay());
+            assertEquals(2, channel.getOverlay().size());
+
+            Path flattenedFile = flattenedFolder.resolve("Flat_" + names[c]);
+            assertTrue(Files.size(nativeFile) < Files.size(flattenedFile));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import ij.IJ;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the container output mode, against the products written as separate files.
+ */
+public class OutputContainerTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Files of an output folder, without the metrics and failure reports.
+     */
+    private static final Predicate<Path> PRODUCTS = file -> Files.isRegularFile(file) && !file.toString().endsWith(".csv");
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    @Test
+    public void testContainerHoldsTheProductsOfEachInput() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Files.createDirectories(inFolder.resolve("sub"));
+        Files.createDirectories(inFolder.resolve("empty"));
+        IJ.saveAsTiff(SyntheticDataset.create("a", 160, 120, 1, 1, 1), inFolder.resolve("a.tif").toString());
+        IJ.saveAsTiff(SyntheticDataset.create("v", 96, 64, 1, 4, 2), inFolder.resolve("sub").resolve("v.tif").toString());
+
+        Path filesFolder = temporaryFolder.newFolder("files").toPath();
+        Path containerFolder = temporaryFolder.newFolder("containers").toPath();
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions("")))
+                .processFolder(inFolder, filesFolder, ".tif").isEmpty());
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions("container=true")))
+                .processFolder(inFolder, containerFolder, ".tif").isEmpty());
+
+        // Output folders are only created for inputs
+        assertFalse(Files.exists(filesFolder.resolve("empty")));
+        assertFalse(Files.exists(containerFolder.resolve("empty")));
+
+        // One container per input, in the mirrored folder
+        assertEquals(Collections.singletonList("a.tif.zip"), TestSupport.fileNames(containerFolder, PRODUCTS));
+        assertEquals(Collections.singletonList("v.tif.zip"), TestSupport.fileNames(containerFolder.resolve("sub"), PRODUCTS));
+
+        String[][] inputs = {{"", "a.tif"}, {"sub", "v.tif"}};
+        for (String[] input : inputs) {
+            Path products = filesFolder.resolve(input[0]);
+            Path container = containerFolder.resolve(input[0]).resolve(input[1] + OutputSink.CONTAINER_SUFFIX);
+            List<String> names = OutputSink.list(container);
+            assertEquals(TestSupport.fileNames(products, PRODUCTS), names.stream().sorted().collect(Collectors.toList()));
+
+            Path extracted = temporaryFolder.newFolder().toPath();
+            OutputSink.extract(container, extracted, Collections.emptyList());
+            for (String name : names) {
+                assertArrayEquals(name, Files.readAllBytes(products.resolve(name)), Files.readAllBytes(extracted.resolve(name)));
+            }
+
+            // Single products
+            Path single = temporaryFolder.newFolder().toPath();
+            OutputSink.extract(container, single, Collections.singletonList(names.get(1)));
+            assertEquals(Collections.singletonList(names.get(1)), TestSupport.fileNames(single, PRODUCTS));
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import ij.IJ;
+import ij.ImagePlus;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Headless end-to-end tests of FileNavigator and Stepwise_Analyzer on a synthetic dataset.
+ * The throughput of the folder run is measured relative to a fixed calibration workload timed in the same JVM, so it
+ * can be compared with the baseline in src/test/resources/throughput-baseline.csv on any machine. Runs are appended to
+ * target/throughput.csv, or -Dwagner.throughputReport, which is a report only and never read back.
+ * Fixed limits can be added with -Dwagner.minFilesPerSecond and -Dwagner.minMegabytesPerSecond.
+ */
+public class PipelineThroughputTests {
+    private static final String[] COLORS = {"red", "green", "blue"};
+    private static final int CROP_WIDTH = 96;
+    private static final int CROP_HEIGHT = 64;
+
+    /**
+     * Number of timed runs of the folder and of the calibration workload. The fastest run is compared, as noise of
+     * the machine only ever slows runs down.
+     */
+    private static final int TIMED_RUNS = 5;
+
+    /**
+     * Standard deviations of the baseline measurements that a run may be slower by. With the measured deviation of
+     * 18%, runs fail when they are about half as fast as the baseline, and by chance about one run in 700.
+     */
+    private static final double TOLERANCE_DEVIATIONS = 3;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    private static AnalysisSettings settings(String options) {
+        return AnalysisSettings.fromOptions("roi=16,16," + CROP_WIDTH + "," + CROP_HEIGHT + " " + options);
+    }
+
+    @Test
+    public void testFolderOutputsAndThroughput() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        SyntheticDataset dataset = new SyntheticDataset(42);
+        long inputBytes = dataset.generate(inFolder, 3, 2, 2);
+
+        // Untimed run, so the timed ones measure the pipeline rather than class loading and compilation
+        new FileNavigator(new Stepwise_Analyzer(settings(""))).processFolder(inFolder,
+                temporaryFolder.newFolder("warm-up").toPath(), ".tif");
+        double calibrationSeconds = calibrationSeconds(temporaryFolder.newFolder("calibration").toPath());
+        double seconds = Double.POSITIVE_INFINITY;
+        for (int run = 0; run < TIMED_RUNS; run++) {
+            Path runFolder = run == 0 ? outFolder : temporaryFolder.newFolder("out" + run).toPath();
+            long start = System.nanoTime();
+            new FileNavigator(new Stepwise_Analyzer(settings(""))).processFolder(inFolder, runFolder, ".tif");
+            seconds = Math.min(seconds, (System.nanoTime() - start) / 1e9);
+        }
+
+        for (SyntheticDataset.Entry entry : dataset.getEntries()) {
+            Path entryOutFolder = outFolder.resolve(inFolder.relativize(entry.path.getParent()));
+            String name = entry.path.getFileName().toString();
+            switch (entry.type) {
+                case "image":
+                    assertTif(entryOutFolder.resolve("Flat_" + name + "_composite_Merge.tif"), null);
+                    assertChannelTifs(entryOutFolder, "Flat_", name, new String[]{"RR", "AF", "DAPI"}, true);
+                    break;
+                case "video":
+                    assertAvi(entryOutFolder.resolve(name + "_composite_Merge.avi"), entry.frames);
+                    String[] videoNames = {"TMR", "GFP", "Hoechst"};
+                    for (int i = 0; i < COLORS.length; i++) {
+                        assertAvi(entryOutFolder.resolve(channelPrefix(COLORS[i]) + name + "_" + videoNames[i] + ".avi"),
+                                entry.frames);
+                    }
+                    break;
+                case "z-stack":
+                    assertTif(entryOutFolder.resolve("Flat_" + name + "_composite_Merge.tif"), null);
+                    assertChannelTifs(entryOutFolder, "Flat_MAX_", name, new String[]{"TMR", "GFP", "Hoechst"}, false);
+                    break;
+            }
+        }
+
+        int files = dataset.getEntries().size();
+        double filesPerSecond = files / seconds;
+        double megabytesPerSecond = inputBytes / 1e6 / seconds;
+        // Files per second of the pipeline per run per second of the calibration workload
+        double relativeThroughput = filesPerSecond * calibrationSeconds;
+        recordThroughput("folder", files, inputBytes, seconds, relativeThroughput);
+
+        String[] baseline = readBaseline("folder");
+        assertEquals("The dataset changed, measure the baseline again", baseline[1] + "," + baseline[2],
+                files + "," + inputBytes);
+        double minRelativeThroughput = Double.parseDouble(baseline[3])
+                - TOLERANCE_DEVIATIONS * Double.parseDouble(baseline[4]);
+        assertTrue(String.format(Locale.ROOT, "Relative throughput of %.4f is below %.4f (%.1f files/s)",
+                relativeThroughput, minRelativeThroughput, filesPerSecond),
+                relativeThroughput >= minRelativeThroughput);
+
+        double minFilesPerSecond = Double.parseDouble(System.getProperty("wagner.minFilesPerSecond", "0"));
+        double minMegabytesPerSecond = Double.parseDouble(System.getProperty("wagner.minMegabytesPerSecond", "0"));
+        assertTrue("Throughput of " + filesPerSecond + " files/s is below " + minFilesPerSecond,
+                filesPerSecond >= minFilesPerSecond);
+        assertTrue("Throughput of " + megabytesPerSecond + " MB/s is below " + minMegabytesPerSecond,
+                megabytesPerSecond >= minMegabytesPerSecond);
+    }
+
+    @Test
+    public void testThreeDProjection() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in3d").toPath();
+        Path outFolder = temporaryFolder.newFolder("out3d").toPath();
+        SyntheticDataset dataset = new SyntheticDataset(7);
+        dataset.generate(inFolder, 0, 0, 1);
+        SyntheticDataset.Entry entry = dataset.getEntries().get(0);
+
+        new FileNavigator(new Stepwise_Analyzer(settings("projection=[3D Project] fps=6")))
+                .processFile(entry.path, outFolder, null);
+
+        // One frame per 10 degrees
+        String name = entry.path.getFileName().toString();
+        assertAvi(outFolder.resolve(name + "_composite_Merge.avi"), 36);
+    }
+
+    @Test
+    public void testSelectZLevel() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("inz").toPath();
+        Path outFolder = temporaryFolder.newFolder("outz").toPath();
+        SyntheticDataset dataset = new SyntheticDataset(11);
+        dataset.generate(inFolder, 0, 0, 1);
+        SyntheticDataset.Entry entry = dataset.getEntries().get(0);
+
+        new FileNavigator(new Stepwise_Analyzer(settings("projection=[Select Z-level] zrange=5-5")))
+                .processFile(entry.path, outFolder, null);
+
+        String name = entry.path.getFileName().toString();
+        assertTif(outFolder.resolve("Flat_" + name + "_composite_Merge.tif"), null);
+        assertChannelTifs(outFolder, "Flat_", name, new String[]{"RR", "AF", "DAPI"}, true);
+    }
+
+    //
+    // Helpers
+    //
+
+    /**
+     * Prefix of the title of a split channel, e.g. "C2-" for the second channel of the input.
+     */
+    private static String channelPrefix(String color) {
+        Color[] rgb = {Color.red, Color.green, Color.blue};
+        Color channelColor = rgb[Arrays.asList(COLORS).indexOf(color)];
+        return "C" + (Arrays.asList(SyntheticDataset.CHANNEL_COLORS).indexOf(channelColor) + 1) + "-";
+    }
+
+    private static void assertChannelTifs(Path folder, String prefix, String name, String[] names, boolean withGray) {
+        for (int i = 0; i < COLORS.length; i++) {
+            String base = prefix + channelPrefix(COLORS[i]) + name + "_" + names[i];
+            assertTif(folder.resolve(base + ".tif"), COLORS[i]);
+            if (withGray) {
+                assertTif(folder.resolve(base + "_gray.tif"), "unknown");
+            }
+        }
+    }
+
+    private static void assertTif(Path path, String expectedColor) {
+        assertTrue("Missing output " + path, Files.isRegularFile(path));
+        ImagePlus image = IJ.openImage(path.toString());
+        assertEquals(path + " width", CROP_WIDTH, image.getWidth());
+        assertEquals(path + " height", CROP_HEIGHT, image.getHeight());
+        if (expectedColor != null) {
+            assertEquals(path + " color", expectedColor, ImageChanger.whichColor(image));
+        }
+        image.close();
+    }
+
+    private static void assertAvi(Path path, int frames) {
+        assertTrue("Missing output " + path, Files.isRegularFile(path));
+        ImagePlus video = IJ.openImage(path.toString());
+        assertEquals(path + " frames", frames, video.getStackSize());
+        video.close();
+    }
+
+    /**
+     * Time of a fixed workload with the steps the pipeline spends its time in, blurring planes and writing a TIFF.
+     *
+     * @return Seconds of the fastest of TIMED_RUNS runs.
+     */
+    private static double calibrationSeconds(Path folder) {
+        ImagePlus image = SyntheticDataset.create("calibration.tif", 512, 512, 8, 1, 1);
+        double seconds = Double.POSITIVE_INFINITY;
+        for (int run = 0; run <= TIMED_RUNS; run++) {
+            long start = System.nanoTime();
+            ImagePlus copy = image.duplicate();
+            for (int n = 1; n <= copy.getStackSize(); n++) {
+                copy.getStack().getProcessor(n).blurGaussian(2);
+            }
+            IJ.saveAsTiff(copy, folder.resolve("calibration.tif").toString());
+            // The first run warms up
+            if (run > 0) {
+                seconds = Math.min(seconds, (System.nanoTime() - start) / 1e9);
+            }
+        }
+        return seconds;
+    }
+
+    /**
+     * @return Columns of the baseline of a test: test, files, bytes, relative throughput and its standard deviation.
+     */
+    private static String[] readBaseline(String name) throws Exception {
+        URL baseline = PipelineThroughputTests.class.getResource("/throughput-baseline.csv");
+        assertNotNull("throughput-baseline.csv is missing", baseline);
+        for (String line : Files.readAllLines(Paths.get(baseline.toURI()), StandardCharsets.UTF_8)) {
+            String[] columns = line.split(",");
+            if (columns[0].equals(name)) {
+                return columns;
+            }
+        }
+        throw new AssertionError("No baseline for " + name);
+    }
+
+    private static void recordThroughput(String name, int files, long bytes, double seconds, double relative)
+            throws IOException {
+        Path report = Paths.get(System.getProperty("wagner.throughputReport", "target/throughput.csv"));
+        Files.createDirectories(report.toAbsolutePath().getParent());
+        String header = Files.exists(report) ? "" : "test,files,bytes,seconds,files_per_s,mb_per_s,relative\n";
+        String line = String.format(Locale.ROOT, "%s,%d,%d,%.3f,%.3f,%.3f,%.4f\n",
+                name, files, bytes, seconds, files / seconds, bytes / 1e6 / seconds, relative);
+        Files.write(report, Arrays.asList((header + line).trim().split("\n")), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
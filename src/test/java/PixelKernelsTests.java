@@ -0,0 +1,152 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * Tests that the vectorized kernels equal the scalar ones, and that the kernels equal what ImageJ computes.
+ * The vectorized kernels are only tested on Java 17+ with the incubator module, see the jdk17 profile.
+ */
+public class PixelKernelsTests {
+    private static final int[] LENGTHS = {0, 1, 7, 64, 1001, 4099};
+
+    @Test
+    public void testVectorizedKernelsMatchScalarKernels() {
+        PixelKernels vectorized = PixelKernels.vectorized();
+        assumeNotNull(vectorized);
+        PixelKernels scalar = PixelKernels.scalar();
+        Random random = new Random(3);
+
+        for (int length : LENGTHS) {
+            int[] rgb = new int[length];
+            short[] shorts = new short[length];
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                // Many ties between components, and the full unsigned ranges
+                rgb[i] = random.nextInt(4) * 0x400000 | random.nextInt(4) * 0x4000 | random.nextInt(4) * 0x40;
+                shorts[i] = (short) (i % 5 == 0 ? 0xffff : random.nextInt(65536));
+                bytes[i] = (byte) random.nextInt(256);
+            }
+
+            long[] scalarCounts = new long[3];
+            long[] vectorCounts = new long[3];
+            scalar.countDominantColors(rgb, scalarCounts);
+            vectorized.countDominantColors(rgb, vectorCounts);
+            assertArrayEquals(scalarCounts, vectorCounts);
+
+            short[] nextShorts = new short[length];
+            byte[] nextBytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                nextShorts[i] = (short) random.nextInt(65536);
+                nextBytes[i] = (byte) random.nextInt(256);
+            }
+            short[] scalarShorts = shorts.clone();
+            short[] vectorShorts = shorts.clone();
+            scalar.maxInto(scalarShorts, nextShorts);
+            vectorized.maxInto(vectorShorts, nextShorts);
+            assertArrayEquals(scalarShorts, vectorShorts);
+
+            byte[] scalarBytes = bytes.clone();
+            byte[] vectorBytes = bytes.clone();
+            scalar.maxInto(scalarBytes, nextBytes);
+            vectorized.maxInto(vectorBytes, nextBytes);
+            assertArrayEquals(scalarBytes, vectorBytes);
+
+            for (int[] range : new int[][]{{0, 65535}, {100, 4095}, {5000, 5000}, {60000, 65535}, {0, 254}}) {
+                byte[] scalarIndices = new byte[length];
+                byte[] vectorIndices = new byte[length];
+                scalar.toIndices(shorts, range[0], range[1], scalarIndices);
+                vectorized.toIndices(shorts, range[0], range[1], vectorIndices);
+                assertArrayEquals(scalarIndices, vectorIndices);
+            }
+
+            int[] colors = new int[length];
+            for (int i = 0; i < length; i++) {
+                colors[i] = random.nextInt(0x1000000);
+            }
+            int[] scalarSum = rgb.clone();
+            int[] vectorSum = rgb.clone();
+            scalar.addSaturated(scalarSum, colors);
+            vectorized.addSaturated(vectorSum, colors);
+            assertArrayEquals(scalarSum, vectorSum);
+
+            // Gains and offsets that clamp at both ends of the 16-bit range
+            float[] dark = new float[length];
+            float[] gain = new float[length];
+            for (int i = 0; i < length; i++) {
+                dark[i] = random.nextFloat() * 200;
+                gain[i] = random.nextFloat() * 3;
+            }
+            short[] scalarCorrected = shorts.clone();
+            short[] vectorCorrected = shorts.clone();
+            scalar.correctFlatField(scalarCorrected, dark, gain);
+            vectorized.correctFlatField(vectorCorrected, dark, gain);
+            assertArrayEquals(scalarCorrected, vectorCorrected);
+        }
+    }
+
+    @Test
+    public void testScalingMatchesImageJ() {
+        ShortProcessor processor = new ShortProcessor(256, 256);
+        for (int i = 0; i < 65536; i++) {
+            processor.set(i, i);
+        }
+        processor.setMinAndMax(1200, 33000);
+        byte[] indices = new byte[65536];
+        PixelKernels.get().toIndices((short[]) processor.getPixels(), 1200, 33000, indices);
+        byte[] expected = (byte[]) processor.convertToByte(true).getPixels();
+        assertArrayEquals(expected, indices);
+
+        // Short arrays are computed pixel by pixel instead of through the table
+        byte[] partial = new byte[65536];
+        ScalarKernels.toIndices((short[]) processor.getPixels(), 1200, 33000, partial, 0, 40000);
+        assertArrayEquals(Arrays.copyOf(expected, 40000), Arrays.copyOf(partial, 40000));
+    }
+
+    @Test
+    public void testMaxProjectionMatchesZProjector() {
+        for (int bitDepth : new int[]{8, 16}) {
+            Random random = new Random(bitDepth);
+            ImageStack stack = new ImageStack(33, 17);
+            for (int z = 0; z < 5; z++) {
+                ImageProcessor plane = bitDepth == 8 ? new ByteProcessor(33, 17) : new ShortProcessor(33, 17);
+                for (int i = 0; i < 33 * 17; i++) {
+                    plane.set(i, random.nextInt(bitDepth == 8 ? 256 : 65536));
+                }
+                stack.addSlice(plane);
+            }
+            ImagePlus image = new ImagePlus("C1-stack.tif", stack);
+            image.setLut(LUT.createLutFromColor(Color.green));
+            image.setDisplayRange(10, 200);
+            image.getCalibration().pixelWidth = 0.25;
+            image.setOverlay(new Overlay(new Roi(1, 2, 3, 4)));
+
+            ImagePlus expected = ZProjector.run(image, "max");
+            ImagePlus actual = ImageChanger.maxProject(image);
+            assertEquals(expected.getTitle(), actual.getTitle());
+            assertEquals(expected.getBitDepth(), actual.getBitDepth());
+            assertEquals(expected.getDisplayRangeMin(), actual.getDisplayRangeMin(), 0);
+            assertEquals(expected.getDisplayRangeMax(), actual.getDisplayRangeMax(), 0);
+            assertEquals(expected.getCalibration().pixelWidth, actual.getCalibration().pixelWidth, 0);
+            assertEquals(expected.getProcessor().getLut().getGreen(255), actual.getProcessor().getLut().getGreen(255));
+            assertEquals(expected.getOverlay().size(), actual.getOverlay().size());
+            for (int i = 0; i < 33 * 17; i++) {
+                assertEquals(expected.getProcessor().get(i), actual.getProcessor().get(i));
+            }
+        }
+    }
+}
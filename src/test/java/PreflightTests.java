@@ -0,0 +1,123 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Rectangle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the pre-flight previews and of the choices made on the contact sheet.
+ */
+public class PreflightTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    private static List<Path> outputs(Path folder, String inputName) throws Exception {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(file -> file.getFileName().toString().contains("_" + inputName + "_")
+                                        && file.getFileName().toString().endsWith(".tif"))
+                        .sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testThumbnailsAndContactSheet() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        IJ.saveAsTiff(SyntheticDataset.create("wide.tif", 300, 120, 1, 1, 1), inFolder.resolve("wide.tif").toString());
+        IJ.saveAsTiff(SyntheticDataset.create("stack.tif", 90, 70, 5, 1, 2), inFolder.resolve("stack.tif").toString());
+        Path broken = inFolder.resolve("broken.tif");
+        Files.write(broken, new byte[]{1, 2, 3});
+
+        List<Preflight.Thumbnail> thumbnails = Preflight.thumbnails(
+                Arrays.asList(inFolder.resolve("wide.tif"), broken, inFolder.resolve("stack.tif")), 64, 2);
+        assertEquals("Files that can not be read are left out", 2, thumbnails.size());
+
+        Preflight.Thumbnail wide = thumbnails.get(0);
+        int binning = ReaderPool.thumbnailBinning(300, 120, 64);
+        assertEquals(5, binning);
+        assertEquals(300 / binning, wide.image.getWidth());
+        assertEquals(120 / binning, wide.image.getHeight());
+        assertEquals(3, wide.image.getNChannels());
+        assertEquals(300, wide.width);
+        assertEquals(binning, wide.scale(), 1e-9);
+
+        Preflight.Thumbnail stack = thumbnails.get(1);
+        assertEquals(5, stack.slices);
+        assertEquals(1, stack.image.getNSlices());
+        assertEquals(90 / ReaderPool.thumbnailBinning(90, 70, 64), stack.image.getWidth());
+
+        Preflight.ContactSheet sheet = Preflight.contactSheet(thumbnails, 2, 0.35);
+        Rectangle bounds = sheet.bounds(1);
+        assertEquals(1, sheet.indexAt(bounds.x + 1, bounds.y + 1));
+        assertEquals(-1, sheet.indexAt(0, 0));
+        Rectangle region = sheet.toFile(1, new Rectangle(bounds.x + 2, bounds.y + 3, 10, 10)).getBounds();
+        assertEquals(new Rectangle(2 * (int) stack.scale(), 3 * (int) stack.scale(), 10 * (int) stack.scale(),
+                10 * (int) stack.scale()), region);
+
+        Map<Path, Preflight.Choice> choices = Preflight.defaults(thumbnails, null, "Z Project");
+        Path choicesFile = Preflight.save(sheet, choices, temporaryFolder.newFolder("out").toPath());
+        assertTrue(Files.isRegularFile(choicesFile.resolveSibling(Preflight.SHEET_FILE)));
+        assertEquals(2, Preflight.readChoices(choicesFile).size());
+    }
+
+    @Test
+    public void testChoicesApplyPerFile() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        IJ.saveAsTiff(SyntheticDataset.create("a.tif", 120, 90, 1, 1, 3), inFolder.resolve("a.tif").toString());
+        IJ.saveAsTiff(SyntheticDataset.create("b.tif", 120, 90, 1, 1, 4), inFolder.resolve("b.tif").toString());
+
+        // An operator narrowed the region of one file, the other keeps the one of the run
+        Path choicesFile = temporaryFolder.getRoot().toPath().resolve("choices, edited.csv");
+        Map<Path, Preflight.Choice> choices = Preflight.defaults(
+                Preflight.thumbnails(Arrays.asList(inFolder.resolve("a.tif"), inFolder.resolve("b.tif")), 32, 2),
+                null, null);
+        choices.put(Preflight.key(inFolder.resolve("a.tif")), new Preflight.Choice(new Roi(10, 20, 60, 40), "Z Project"));
+        Preflight.writeChoices(choicesFile, choices);
+
+        Map<Path, Preflight.Choice> read = Preflight.readChoices(choicesFile);
+        assertEquals(new Rectangle(10, 20, 60, 40), read.get(Preflight.key(inFolder.resolve("a.tif"))).roi.getBounds());
+        assertEquals("Z Project", read.get(Preflight.key(inFolder.resolve("a.tif"))).projection);
+        assertNull(read.get(Preflight.key(inFolder.resolve("b.tif"))).roi);
+
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        AnalysisSettings settings = AnalysisSettings.fromOptions("preflight=[" + choicesFile + "]");
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(settings)).processFolder(inFolder, outFolder, ".tif").isEmpty());
+
+        List<Path> narrowed = outputs(outFolder, "a.tif");
+        List<Path> whole = outputs(outFolder, "b.tif");
+        assertFalse(narrowed.isEmpty());
+        assertEquals(narrowed.size(), whole.size());
+        for (Path file : narrowed) {
+            ImagePlus image = IJ.openImage(file.toString());
+            assertNotNull(file.toString(), image);
+            assertEquals(file.getFileName().toString(), 60, image.getWidth());
+            assertEquals(file.getFileName().toString(), 40, image.getHeight());
+        }
+        for (Path file : whole) {
+            ImagePlus image = IJ.openImage(file.toString());
+            assertEquals(file.getFileName().toString(), 120, image.getWidth());
+            assertEquals(file.getFileName().toString(), 90, image.getHeight());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import ij.IJ;
+import ij.ImagePlus;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the progress estimate and of the files and stages passed to listeners of the metrics.
+ */
+public class ProgressTests {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MEGABYTE = 1000000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    @Test
+    public void testEstimateFollowsFileSizes() {
+        // Two files of 5 MB are left after files of 1 MB in 2 s and 3 MB in 4 s, so 1 s per file and 1 s per MB
+        Progress progress = new Progress(Arrays.asList(Paths.get("a"), Paths.get("b"), Paths.get("c"), Paths.get("d")),
+                14 * MEGABYTE, 0);
+        assertTrue(Double.isNaN(progress.estimate(SECOND).secondsLeft));
+        progress.fileDone(MEGABYTE, 2 * SECOND, true);
+        progress.fileDone(3 * MEGABYTE, 4 * SECOND, true);
+
+        Progress.Estimate sequential = progress.estimate(6 * SECOND);
+        assertEquals(2, sequential.completedFiles);
+        assertEquals(12, sequential.secondsLeft, 1e-6);
+        assertEquals(4 * MEGABYTE / 6.0, sequential.bytesPerSecond, 1e-3);
+        assertTrue(sequential.toString(), sequential.toString().startsWith("2/4 files, 0.7 MB/s, ETA 12 s"));
+
+        // Files that overlapped took half the wall time, so the rest will too
+        assertEquals(6, progress.estimate(3 * SECOND).secondsLeft, 1e-6);
+
+        // Failed files are done, but do not change the model
+        progress.fileDone(5 * MEGABYTE, SECOND, false);
+        Progress.Estimate failed = progress.estimate(6 * SECOND);
+        assertEquals(1, failed.failedFiles);
+        assertEquals(6, failed.secondsLeft, 1e-6);
+    }
+
+    @Test
+    public void testListenersReceiveFilesAndStages() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        IJ.saveAsTiff(SyntheticDataset.create("image.tif", 64, 48, 1, 1, 1), inFolder.resolve("image.tif").toString());
+        IJ.saveAsTiff(SyntheticDataset.create("video.tif", 64, 48, 1, 4, 2), inFolder.resolve("video.tif").toString());
+
+        List<Metrics.FileInfo> files = new ArrayList<>();
+        List<String> stages = new ArrayList<>();
+        Metrics.Listener listener = new Metrics.Listener() {
+            @Override
+            public synchronized void stageFinished(Metrics.Sample sample) {
+                stages.add(sample.stage);
+            }
+
+            @Override
+            public synchronized void fileFinished(Metrics.FileInfo file, long wallNanos, boolean completed) {
+                assertTrue(completed);
+                files.add(file);
+            }
+        };
+        Metrics.addListener(listener);
+        try {
+            assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions("")))
+                    .processFolder(inFolder, temporaryFolder.newFolder("out").toPath(), ".tif").isEmpty());
+        } finally {
+            Metrics.removeListener(listener);
+        }
+
+        assertEquals(2, files.size());
+        assertEquals(inFolder.resolve("image.tif").toString(), files.get(0).file);
+        assertTrue(files.get(0).sizeBytes > 0);
+        assertEquals("64x48x3x1x1", files.get(0).getDimensions());
+        assertEquals("image", files.get(0).getAnalysisType());
+        assertEquals("64x48x3x1x4", files.get(1).getDimensions());
+        assertEquals("video", files.get(1).getAnalysisType());
+        assertTrue(stages.contains("open"));
+        assertTrue(stages.contains("save"));
+        assertFalse(stages.contains(""));
+    }
+
+    @Test
+    public void testRunCountsEachFileOnce() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        IJ.saveAsTiff(SyntheticDataset.create("a.tif", 64, 48, 1, 1, 1), inFolder.resolve("a.tif").toString());
+        IJ.saveAsTiff(SyntheticDataset.create("b.tif", 64, 48, 1, 1, 1), inFolder.resolve("b.tif").toString());
+        Files.write(inFolder.resolve("c_corrupt.tif"), new byte[]{'I', 'I', 42, 0, 1, 2, 3});
+
+        // a.tif fails its first attempt, and each file that is analyzed runs alongside a file of another run
+        Set<Path> failedOnce = ConcurrentHashMap.newKeySet();
+        ImageAnalyzer analyzer = new ImageAnalyzer() {
+            @Override
+            public void processImage(ImagePlus image, Path outFolder) {
+            }
+
+            @Override
+            public void processImage(ImagePlus image, Path inFile, Path outFolder) {
+                Thread otherRun = new Thread(() -> {
+                    try (Metrics.FileScope file = Metrics.startFile(Paths.get("other.tif"))) {
+                        file.completed();
+                    }
+                });
+                otherRun.start();
+                try {
+                    otherRun.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                if (inFile.endsWith("a.tif") && failedOnce.add(inFile)) {
+                    throw new IllegalStateException("First attempt");
+                }
+            }
+        };
+        FileNavigator fileNavigator = new FileNavigator(analyzer);
+        fileNavigator.setFaultTolerance(0, 1);
+        assertEquals(1, fileNavigator.processFolder(inFolder, temporaryFolder.newFolder("out").toPath(), ".tif").size());
+
+        Progress.Estimate estimate = fileNavigator.getProgress().estimate(System.nanoTime());
+        assertEquals(3, estimate.totalFiles);
+        assertEquals(2, estimate.completedFiles);
+        assertEquals(1, estimate.failedFiles);
+        assertEquals(0, estimate.secondsLeft, 0);
+    }
+}
@@ -0,0 +1,137 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ome.xml.model.primitives.PositiveFloat;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Color;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReaderPoolTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testMetadataIsCachedByPathAndModificationTime() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("stack.tif");
+        IJ.saveAsTiff(SyntheticDataset.create("stack.tif", 80, 60, 4, 1, 1), file.toString());
+        ReaderPool.clearMetadata();
+        assertNull(ReaderPool.getCachedMetadata(file));
+
+        ImagePlus image = ReaderPool.openImage(file);
+        assertEquals(4, image.getNSlices());
+
+        ReaderPool.Metadata metadata = ReaderPool.getCachedMetadata(file);
+        assertNotNull(metadata);
+        assertEquals(80, metadata.width);
+        assertEquals(60, metadata.height);
+        assertEquals(3, metadata.channels);
+        assertEquals(4, metadata.slices);
+        assertEquals(2, metadata.bytesPerPixel);
+        assertArrayEquals(SyntheticDataset.CHANNEL_COLORS, metadata.channelColors);
+        assertEquals(metadata.estimateBytes(), MemoryScheduler.estimateBytes(file));
+        assertSame(metadata, ReaderPool.getMetadata(file));
+
+        // A changed file is read again
+        Files.setLastModifiedTime(file, FileTime.fromMillis(metadata.lastModified + 2000));
+        assertNull(ReaderPool.getCachedMetadata(file));
+        assertEquals(new Color(255, 0, 0), ReaderPool.getMetadata(file).channelColors[1]);
+    }
+
+    @Test
+    public void testMetadataIsCachedWhenTheFileIsNotLoaded() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("stack.tif");
+        IJ.saveAsTiff(SyntheticDataset.create("stack.tif", 80, 60, 4, 1, 1), file.toString());
+        ReaderPool.clearMetadata();
+
+        List<ReaderPool.Metadata> tested = new ArrayList<>();
+        assertNull(ReaderPool.openImage(file, false, null, metadata -> !tested.add(metadata)));
+        assertEquals(1, tested.size());
+        assertEquals(4, tested.get(0).slices);
+        assertSame(tested.get(0), ReaderPool.getCachedMetadata(file));
+
+        assertEquals(4, ReaderPool.openImage(file, false, null, metadata -> tested.add(metadata)).getNSlices());
+        assertSame("The cached metadata is tested", tested.get(0), tested.get(1));
+    }
+
+    @Test
+    public void testBioFormatsDecidesOnTheMetadataOfItsOwnInitialization() throws Exception {
+        assumeBioFormats("FakeReader");
+        ReaderPool.clearMetadata();
+        Path file = Files.createFile(temporaryFolder.getRoot().toPath().resolve("load&sizeX=32&sizeY=24&sizeZ=5.fake"));
+
+        List<ReaderPool.Metadata> tested = new ArrayList<>();
+        assertNull(ReaderPool.openImage(file, false, null, metadata -> !tested.add(metadata)));
+        assertEquals(1, tested.size());
+        assertEquals(5, tested.get(0).slices);
+        assertSame(tested.get(0), ReaderPool.getCachedMetadata(file));
+    }
+
+    private static void assumeBioFormats(String reader) {
+        try {
+            Class.forName("loci.formats.in." + reader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            Assume.assumeNoException("Bio-Formats is not available", e);
+        }
+    }
+
+    @Test
+    public void testNd2IsReadByThePooledReader() throws Exception {
+        assumeBioFormats("NativeND2Reader");
+        ReaderPool.clearMetadata();
+        Path file = Paths.get(ReaderPoolTests.class.getResource("/FluorescentCells.nd2").toURI());
+        ImagePlus expected = IJ.openImage(file.toString());
+
+        // Reading the series does not fall back to ImageJ, but fails if Bio-Formats can not read the file
+        try (ReaderPool.SeriesReader reader = ReaderPool.openSeries(file)) {
+            ReaderPool.Metadata metadata = reader.getMetadata(0);
+            assertEquals(expected.getBytesPerPixel(), metadata.bytesPerPixel);
+            assertEquals(expected.getCalibration().pixelWidth, metadata.pixelWidth, 1e-9);
+
+            ImagePlus image = reader.read(0, false, null);
+            assertArrayEquals(expected.getDimensions(), image.getDimensions());
+            assertEquals(expected.getCalibration().pixelWidth, image.getCalibration().pixelWidth, 1e-9);
+            assertEquals(expected.getCalibration().pixelHeight, image.getCalibration().pixelHeight, 1e-9);
+            assertArrayEquals((byte[]) expected.getStack().getPixels(2), (byte[]) image.getStack().getPixels(2));
+        }
+    }
+
+    @Test
+    public void testPhysicalSizesAreReadFromBioFormats() throws Exception {
+        assumeBioFormats("FakeReader");
+        ReaderPool.clearMetadata();
+        Path file = Files.createFile(temporaryFolder.getRoot().toPath().resolve(
+                "cal&sizeX=32&sizeY=24&sizeZ=3&physicalSizeX=0.25&physicalSizeY=0.5&physicalSizeZ=2.fake"));
+
+        ReaderPool.Metadata metadata = ReaderPool.getMetadata(file);
+        assertEquals(0.25, metadata.pixelWidth, 1e-9);
+        assertEquals(0.5, metadata.pixelHeight, 1e-9);
+        assertEquals(2, metadata.pixelDepth, 1e-9);
+        assertEquals("micron", metadata.unit);
+        ImagePlus image = ReaderPool.openImage(file);
+        assertEquals(0.25, image.getCalibration().pixelWidth, 1e-9);
+        assertEquals(3, image.getNSlices());
+    }
+
+    @Test
+    public void testQuantitiesOfBioFormats4() throws Exception {
+        String[] micrometer = {"MICROMETER"};
+        assertTrue(Double.isNaN(ReaderPool.quantityValue(null, micrometer)));
+        assertEquals(0.5, ReaderPool.quantityValue(new PositiveFloat(0.5), micrometer), 1e-9);
+        assertEquals(0.1, ReaderPool.quantityValue(0.1, micrometer), 1e-9);
+    }
+}
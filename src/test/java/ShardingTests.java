@@ -0,0 +1,128 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardingTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static Map<String, Long> randomTree(int files, long seed) {
+        Random random = new Random(seed);
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (int i = 0; i < files; i++) {
+            sizes.put("plate_" + (i % 7) + "/well_" + i + ".nd2", 1_000_000L + random.nextInt(500_000_000));
+        }
+        return sizes;
+    }
+
+    @Test
+    public void testAssignmentIsDeterministicAndBalanced() {
+        Map<String, Long> sizes = randomTree(200, 1);
+
+        // Shuffled insertion order and Windows separators must not change the assignment
+        List<String> paths = new ArrayList<>(sizes.keySet());
+        Collections.shuffle(paths, new Random(2));
+        Map<String, Long> shuffled = new LinkedHashMap<>();
+        for (String path : paths) {
+            shuffled.put(path.replace('/', '\\'), sizes.get(path));
+        }
+
+        int shardCount = 4;
+        Map<String, Integer> assignment = Sharding.assign(sizes.keySet(), shardCount);
+        assertEquals(new HashMap<>(assignment), new HashMap<>(Sharding.assign(shuffled.keySet(), shardCount)));
+
+        for (int count = 1; count <= 5; count++) {
+            for (String path : paths) {
+                int shard = Sharding.shardOf(path, count);
+                assertTrue(shard >= 0 && shard < count);
+            }
+        }
+    }
+
+    @Test
+    public void testAssignmentIsBalanced() {
+        Map<String, Long> sizes = randomTree(4000, 4);
+        int shardCount = 4;
+        Map<String, Integer> assignment = Sharding.assign(sizes.keySet(), shardCount);
+
+        long[] shardBytes = new long[shardCount];
+        long totalBytes = 0;
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            shardBytes[assignment.get(entry.getKey())] += entry.getValue();
+            totalBytes += entry.getValue();
+        }
+        // With 1000 files per shard, the bytes of a shard vary by about 3% of the mean
+        for (long bytes : shardBytes) {
+            assertEquals((double) totalBytes / shardCount, bytes, 0.1 * totalBytes / shardCount);
+        }
+    }
+
+    @Test
+    public void testChangesOfOneFileMoveNoOtherFile() {
+        Map<String, Long> sizes = randomTree(500, 5);
+        Map<String, Integer> assignment = Sharding.assign(sizes.keySet(), 4);
+
+        Map<String, Long> changed = new LinkedHashMap<>(sizes);
+        changed.put("plate_0/added.nd2", 900_000_000L);
+        changed.put("plate_1/well_1.nd2", 1L);
+        changed.remove("plate_2/well_2.nd2");
+        Map<String, Integer> changedAssignment = Sharding.assign(changed.keySet(), 4);
+        for (String path : changed.keySet()) {
+            if (sizes.containsKey(path)) {
+                assertEquals(path, assignment.get(path), changedAssignment.get(path));
+            }
+        }
+
+        // An additional shard only takes files from the others
+        int moved = 0;
+        for (Map.Entry<String, Integer> entry : Sharding.assign(sizes.keySet(), 5).entrySet()) {
+            if (!entry.getValue().equals(assignment.get(entry.getKey()))) {
+                assertEquals(4, (int) entry.getValue());
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved + " files", moved > 0 && moved < sizes.size() / 3);
+    }
+
+    @Test
+    public void testMergeReportsMissingFiles() throws Exception {
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        Map<String, Long> sizes = randomTree(20, 3);
+        Map<String, Integer> assignment = Sharding.assign(sizes.keySet(), 3);
+
+        // Shard 2 crashes after its first file
+        String skipped = null;
+        for (int shard = 0; shard < 3; shard++) {
+            try (Sharding.Manifest manifest = new Sharding.Manifest(outFolder, shard, 3, 0)) {
+                boolean first = true;
+                for (Map.Entry<String, Integer> entry : assignment.entrySet()) {
+                    if (entry.getValue() != shard) {
+                        continue;
+                    }
+                    if (shard == 2 && !first && skipped == null) {
+                        skipped = entry.getKey();
+                        break;
+                    }
+                    manifest.completed(entry.getKey(), sizes.get(entry.getKey()));
+                    first = false;
+                }
+            }
+        }
+
+        List<String> missing = Sharding.merge(new ArrayList<>(sizes.keySet()), outFolder, 3);
+        assertTrue(missing.contains(skipped));
+        assertTrue(Sharding.merge(new ArrayList<>(sizes.keySet()).subList(0, 0), outFolder, 3).isEmpty());
+    }
+}
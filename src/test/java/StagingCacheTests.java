@@ -0,0 +1,246 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StagingCacheTests {
+    private static final int MB = 1 << 20;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    /**
+     * A stand-in for network storage: every read call waits for a fixed latency and returns at most one block.
+     */
+    private static class ThrottledChannel implements SeekableByteChannel {
+        static final int BLOCK_BYTES = MB;
+
+        private final FileChannel channel;
+        private final long latencyMillis;
+        private final AtomicInteger calls;
+
+        ThrottledChannel(Path file, long latencyMillis, AtomicInteger calls) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.latencyMillis = latencyMillis;
+            this.calls = calls;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (destination.remaining() <= BLOCK_BYTES) {
+                return channel.read(destination);
+            }
+            ByteBuffer block = destination.duplicate();
+            block.limit(block.position() + BLOCK_BYTES);
+            int read = channel.read(block);
+            if (read > 0) {
+                destination.position(destination.position() + read);
+            }
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private Path randomFile(Path folder, String name, int bytes) throws IOException {
+        byte[] data = new byte[bytes];
+        new Random(name.hashCode()).nextBytes(data);
+        return Files.write(folder.resolve(name), data);
+    }
+
+    @Test
+    public void testCopiesAreIdenticalAndBounded() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path a = randomFile(inFolder, "a.nd2", 3 * MB);
+        Path b = randomFile(inFolder, "b.nd2", 3 * MB + 17);
+        Path c = randomFile(inFolder, "c.nd2", 3 * MB);
+
+        try (StagingCache cache = new StagingCache(temporaryFolder.newFolder("ssd").toPath(), 8 * MB)) {
+            assertTrue(cache.prefetch(a));
+            assertTrue(cache.prefetch(b));
+            // Upcoming files do not evict each other
+            assertFalse(cache.prefetch(c));
+
+            Path stagedA = cache.acquire(a);
+            assertNotEquals(a, stagedA);
+            assertEquals("a.nd2", stagedA.getFileName().toString());
+            assertArrayEquals(Files.readAllBytes(a), Files.readAllBytes(stagedA));
+            assertEquals(Files.getLastModifiedTime(a), Files.getLastModifiedTime(stagedA));
+
+            // Copies in use are not evicted, used and released ones are
+            assertFalse(cache.prefetch(c));
+            cache.release(a);
+            assertTrue(cache.prefetch(c));
+            assertFalse(Files.exists(stagedA));
+            assertTrue(cache.getStagedBytes() <= 8 * MB);
+            assertArrayEquals(Files.readAllBytes(b), Files.readAllBytes(cache.acquire(b)));
+            assertArrayEquals(Files.readAllBytes(c), Files.readAllBytes(cache.acquire(c)));
+        }
+    }
+
+    /**
+     * Staging reads a file with a few large calls, where small reads like those of stream based readers pay
+     * the latency of the storage for every call.
+     */
+    @Test
+    public void testStagingBeatsSmallReadsOnThrottledStorage() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path file = randomFile(inFolder, "large.nd2", 24 * MB);
+        long latencyMillis = 2;
+
+        AtomicInteger smallCalls = new AtomicInteger();
+        long start = System.nanoTime();
+        try (SeekableByteChannel channel = new ThrottledChannel(file, latencyMillis, smallCalls)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+            while (channel.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        }
+        long smallNanos = System.nanoTime() - start;
+
+        AtomicInteger stagingCalls = new AtomicInteger();
+        start = System.nanoTime();
+        try (StagingCache cache = new StagingCache(temporaryFolder.newFolder("ssd").toPath(), 64 * MB,
+                source -> new ThrottledChannel(source, latencyMillis, stagingCalls))) {
+            Path staged = cache.acquire(file);
+            long stagingNanos = System.nanoTime() - start;
+
+            assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(staged));
+            assertTrue("Staging used " + stagingCalls + " calls", stagingCalls.get() <= 24 * MB / ThrottledChannel.BLOCK_BYTES + 1);
+            assertTrue("Small reads took " + smallNanos / 1e6 + " ms, staging " + stagingNanos / 1e6 + " ms",
+                    stagingNanos * 4 < smallNanos);
+        }
+    }
+
+    @Test
+    public void testNavigatorReadsStagedCopies() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path outFolder = temporaryFolder.newFolder("out").toPath();
+        Path stagingFolder = temporaryFolder.newFolder("ssd").toPath();
+        for (String name : new String[]{"a", "b", "c"}) {
+            IJ.saveAsTiff(SyntheticDataset.create(name, 48, 32, 3, 1, name.hashCode()), inFolder.resolve(name + ".tif").toString());
+        }
+
+        List<String> titles = Collections.synchronizedList(new ArrayList<>());
+        List<String> directories = Collections.synchronizedList(new ArrayList<>());
+        ImageAnalyzer analyzer = (image, out) -> {
+            FileInfo info = image.getOriginalFileInfo();
+            titles.add(image.getTitle());
+            directories.add(info.directory);
+            image.close();
+        };
+
+        try (StagingCache cache = new StagingCache(stagingFolder, 64 * MB)) {
+            FileNavigator navigator = new FileNavigator(analyzer);
+            navigator.setStagingCache(cache);
+            assertTrue(navigator.processFolder(inFolder, outFolder, ".tif").isEmpty());
+        }
+
+        assertEquals(3, titles.size());
+        assertEquals("a.tif", titles.get(0));
+        for (String directory : directories) {
+            assertTrue(directory, directory.startsWith(stagingFolder.toString()));
+        }
+        // Closing the cache deletes the copies
+        try (java.util.stream.Stream<Path> staged = Files.walk(stagingFolder.resolve("staged-inputs"))) {
+            assertEquals(1, staged.count());
+        }
+    }
+
+    @Test
+    public void testStagedCopiesUseTheMetadataOfTheirSource() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path a = inFolder.resolve("a.tif");
+        Path b = inFolder.resolve("b.tif");
+        IJ.saveAsTiff(SyntheticDataset.create("a", 48, 32, 3, 1, 1), a.toString());
+        IJ.saveAsTiff(SyntheticDataset.create("b", 48, 32, 3, 1, 2), b.toString());
+        ReaderPool.clearMetadata();
+
+        try (StagingCache cache = new StagingCache(temporaryFolder.newFolder("ssd").toPath(), 64 * MB)) {
+            // Metadata read before the file was staged describes the copy
+            ReaderPool.Metadata metadata = ReaderPool.getMetadata(a);
+            Path stagedA = cache.acquire(a);
+            assertSame(metadata, ReaderPool.getCachedMetadata(stagedA));
+
+            // Metadata read from the copy describes the source
+            Path stagedB = cache.acquire(b);
+            assertNull(ReaderPool.getCachedMetadata(b));
+            assertSame(ReaderPool.getMetadata(stagedB), ReaderPool.getCachedMetadata(b));
+
+            cache.release(a);
+            cache.release(b);
+        } finally {
+            ReaderPool.clearMetadata();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic generator of single images, time-lapses and z-stacks with known channel colors and sizes.
+ */
+public class SyntheticDataset {
+    /**
+     * Channel colors in file order. Deliberately not in RGB order, so the color detection is exercised.
+     */
+    public static final Color[] CHANNEL_COLORS = {Color.blue, Color.red, Color.green};
+
+    /**
+     * A generated file with its expected dimensions.
+     */
+    public static class Entry {
+        public final Path path;
+        public final String type;
+        public final int width, height, channels, slices, frames;
+
+        Entry(Path path, String type, int width, int height, int channels, int slices, int frames) {
+            this.path = path;
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.slices = slices;
+            this.frames = frames;
+        }
+    }
+
+    private final long seed;
+    private final List<Entry> entries = new ArrayList<>();
+
+    SyntheticDataset(long seed) {
+        this.seed = seed;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Write a tree with the given number of images, videos and z-stacks into subfolders of root.
+     *
+     * @return Total bytes of the written files.
+     */
+    public long generate(Path root, int images, int videos, int stacks) throws IOException {
+        long bytes = 0;
+        for (int i = 0; i < images; i++) {
+            bytes += write(root.resolve("images"), String.format("img_%03d", i), "image", 256, 192, 1, 1);
+        }
+        for (int i = 0; i < videos; i++) {
+            bytes += write(root.resolve("videos"), String.format("vid_%03d", i), "video", 128, 96, 1, 20);
+        }
+        for (int i = 0; i < stacks; i++) {
+            bytes += write(root.resolve("stacks"), String.format("stack_%03d", i), "z-stack", 160, 120, 12, 1);
+        }
+        return bytes;
+    }
+
+    private long write(Path folder, String name, String type, int width, int height, int slices, int frames)
+            throws IOException {
+        Files.createDirectories(folder);
+        ImagePlus image = create(name + ".tif", width, height, slices, frames, seed + entries.size());
+        Path path = folder.resolve(name + ".tif");
+        IJ.saveAsTiff(image, path.toString());
+        entries.add(new Entry(path, type, width, height, CHANNEL_COLORS.length, slices, frames));
+        return Files.size(path);
+    }
+
+    /**
+     * Create a 16-bit composite with one colored LUT per channel. Every channel contains a bright disc on noise.
+     */
+    public static ImagePlus create(String title, int width, int height, int slices, int frames, long seed) {
+        Random random = new Random(seed);
+        int channels = CHANNEL_COLORS.length;
+        ImageStack stack = new ImageStack(width, height);
+
+        for (int t = 0; t < frames; t++) {
+            for (int z = 0; z < slices; z++) {
+                for (int c = 0; c < channels; c++) {
+                    ShortProcessor processor = new ShortProcessor(width, height);
+                    double centerX = width * (0.3 + 0.4 * random.nextDouble());
+                    double centerY = height * (0.3 + 0.4 * random.nextDouble());
+                    double radius = Math.min(width, height) / 6.0;
+                    for (int y = 0; y < height; y++) {
+                        for (int x = 0; x < width; x++) {
+                            double distance = Math.hypot(x - centerX, y - centerY);
+                            int value = 100 + random.nextInt(50) + (distance < radius ? 3000 : 0);
+                            processor.set(x, y, value);
+                        }
+                    }
+                    stack.addSlice(null, processor);
+                }
+            }
+        }
+
+        ImagePlus plain = new ImagePlus(title, stack);
+        plain.setDimensions(channels, slices, frames);
+        plain.setOpenAsHyperStack(true);
+
+        Calibration calibration = plain.getCalibration();
+        calibration.pixelWidth = 0.5;
+        calibration.pixelHeight = 0.5;
+        calibration.pixelDepth = 2.0;
+        calibration.setUnit("micron");
+        calibration.fps = 10;
+
+        CompositeImage image = new CompositeImage(plain, IJ.COMPOSITE);
+        for (int c = 0; c < channels; c++) {
+            LUT lut = LUT.createLutFromColor(CHANNEL_COLORS[c]);
+            lut.min = 0;
+            lut.max = 4095;
+            image.setChannelLut(lut, c + 1);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,97 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.ChannelSplitter;
+import ij.plugin.ZProjector;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the temporal statistics of videos, against projections of the frames by ZProjector.
+ */
+public class TemporalStatisticsTests {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    private static void assertStatistics(ImagePlus input, Path folder) throws Exception {
+        ImagePlus[] channels = ChannelSplitter.split(input);
+        int[] methods = {ZProjector.MAX_METHOD, ZProjector.AVG_METHOD, ZProjector.SD_METHOD};
+        for (int j = 0; j < TemporalStatistics.PROJECTIONS.length; j++) {
+            List<String> names = TestSupport.fileNames(folder, "_" + TemporalStatistics.PROJECTIONS[j] + ".tif");
+            assertEquals(channels.length, names.size());
+            for (String name : names) {
+                int channel = Integer.parseInt(name.substring(1, name.indexOf('-'))) - 1;
+                // A plain 32-bit stack, so the frames are projected like slices and the mean is not rounded
+                ZProjector projector = new ZProjector(new ImagePlus("", channels[channel].getStack().convertToFloat()));
+                projector.setMethod(methods[j]);
+                projector.doProjection();
+                ImagePlus expected = projector.getProjection();
+                ImagePlus actual = IJ.openImage(folder.resolve(name).toString());
+                assertNotNull(name, actual);
+                assertEquals(name, 32, actual.getBitDepth());
+                float[] expectedPixels = (float[]) expected.getProcessor().convertToFloat().getPixels();
+                float[] actualPixels = (float[]) actual.getProcessor().getPixels();
+                for (int p = 0; p < expectedPixels.length; p++) {
+                    assertEquals(name + " pixel " + p, expectedPixels[p], actualPixels[p], 1e-3);
+                }
+            }
+        }
+
+        // One row per frame with the mean of every channel
+        List<String> traces = TestSupport.fileNames(folder, "_trace.csv");
+        assertEquals(1, traces.size());
+        List<String> rows = Files.readAllLines(folder.resolve(traces.get(0)), StandardCharsets.UTF_8);
+        assertEquals(1 + input.getNFrames(), rows.size());
+        for (int t = 1; t <= input.getNFrames(); t++) {
+            String[] fields = rows.get(t).split(",");
+            assertEquals(2 + channels.length, fields.length);
+            assertEquals(String.valueOf(t), fields[0]);
+            double sum = 0;
+            for (ImagePlus channel : channels) {
+                sum += channel.getStack().getProcessor(t).getStatistics().mean;
+            }
+            double traced = 0;
+            for (int c = 2; c < fields.length; c++) {
+                traced += Double.parseDouble(fields[c]);
+            }
+            assertEquals("frame " + t, sum, traced, 1e-2);
+        }
+    }
+
+    @Test
+    public void testStatisticsMatchProjections() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        ImagePlus input = SyntheticDataset.create("v", 64, 48, 1, 11, 5);
+        IJ.saveAsTiff(input, inFolder.resolve("v.tif").toString());
+
+        String[] modes = {"chunkframes=0", "chunkframes=3"};
+        for (String mode : modes) {
+            Path outFolder = temporaryFolder.newFolder(mode.replace('=', '_')).toPath();
+            assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions("statistics=true " + mode)))
+                    .processFolder(inFolder, outFolder, ".tif").isEmpty());
+            assertStatistics(IJ.openImage(inFolder.resolve("v.tif").toString()), outFolder);
+        }
+
+        // Without the option, only the videos are saved
+        Path plainFolder = temporaryFolder.newFolder("plain").toPath();
+        assertTrue(new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions("")))
+                .processFolder(inFolder, plainFolder, ".tif").isEmpty());
+        assertTrue(TestSupport.fileNames(plainFolder, "_trace.csv").isEmpty());
+        assertTrue(TestSupport.fileNames(plainFolder, "_std.tif").isEmpty());
+    }
+}
@@ -0,0 +1,50 @@
+import ij.macro.Interpreter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Setup and helpers shared by the tests.
+ */
+public class TestSupport {
+    private TestSupport() {
+    }
+
+    /**
+     * Run ImageJ without windows and log only warnings and errors, for the BeforeClass method of a test.
+     */
+    public static void setUpHeadless() {
+        Interpreter.batchMode = true;
+        Logger.setLevel(Logger.Level.WARN);
+    }
+
+    /**
+     * @param folder Folder to list, e.g. the output folder of a run.
+     * @param include Whether an entry of the folder is listed.
+     * @return Sorted names of the listed entries.
+     */
+    public static List<String> fileNames(Path folder, Predicate<Path> include) throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(include).map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return Sorted names of the entries of a folder that end with the suffix.
+     */
+    public static List<String> fileNames(Path folder, String suffix) throws IOException {
+        return fileNames(folder, file -> file.getFileName().toString().endsWith(suffix));
+    }
+
+    /**
+     * @return Sorted names of the outputs of a run, without its failure report.
+     */
+    public static List<String> outputNames(Path folder) throws IOException {
+        return fileNames(folder, file -> !file.getFileName().toString().startsWith("failures"));
+    }
+}
@@ -0,0 +1,161 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of single images that are processed tile by tile, against the same images processed as a whole.
+ */
+public class TiledProcessingTests {
+    private static final String OPTIONS = "roi=30,20,600,450 saturated=1 ";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpHeadless() {
+        TestSupport.setUpHeadless();
+    }
+
+    @Test
+    public void testTiledOutputMatchesFlattenedOutput() throws Exception {
+        Path inFolder = temporaryFolder.newFolder("in").toPath();
+        Path wholeFolder = temporaryFolder.newFolder("whole").toPath();
+        Path tiledFolder = temporaryFolder.newFolder("tiled").toPath();
+        String name = "mosaic.tif";
+        IJ.saveAsTiff(SyntheticDataset.create(name, 700, 500, 1, 1, 11), inFolder.resolve(name).toString());
+
+        new FileNavigator(new Stepwise_Analyzer(AnalysisSettings.fromOptions(OPTIONS)))
+                .processFolder(inFolder, wholeFolder, ".tif");
+
+        Metrics.reset();
+        Stepwise_Analyzer tiledAnalyzer = new Stepwise_Analyzer(AnalysisSettings.fromOptions(OPTIONS + "tiled=0.1 tilesize=128"));
+        assertTrue(tiledAnalyzer.isTiled(inFolder.resolve(name)));
+        new FileNavigator(tiledAnalyzer).processFolder(inFolder, tiledFolder, ".tif");
+        assertFalse("Tiled images are not loaded as a whole",
+                Metrics.getSamples().stream().anyMatch(sample -> sample.stage.equals("open")));
+
+        try (Stream<Path> files = Files.list(wholeFolder)) {
+            assertEquals(7, files.count());
+        }
+        // The scale bar is rendered by different code paths, so only the rest of the image is compared
+        Rectangle scaleBar = new Rectangle();
+        ImagePlus input = IJ.openImage(inFolder.resolve(name).toString());
+        for (Roi roi : ImageChanger.scaleBarOverlay(600, 450, input.getCalibration(), 0).toArray()) {
+            scaleBar = scaleBar.isEmpty() ? roi.getBounds() : scaleBar.union(roi.getBounds());
+        }
+        scaleBar.grow(2, 2);
+        for (Path wholeFile : Files.list(wholeFolder).toArray(Path[]::new)) {
+            Path tiledFile = tiledFolder.resolve(wholeFile.getFileName());
+            assertTrue("Missing " + tiledFile.getFileName(), Files.isRegularFile(tiledFile));
+            ColorProcessor whole = (ColorProcessor) IJ.openImage(wholeFile.toString()).getProcessor();
+            int[] tiled = readTiledTiff(tiledFile, whole.getWidth(), whole.getHeight());
+            boolean gray = wholeFile.getFileName().toString().endsWith("_gray.tif");
+
+            for (int y = 0; y < whole.getHeight(); y++) {
+                for (int x = 0; x < whole.getWidth(); x++) {
+                    int expected = whole.get(x, y) & 0xffffff;
+                    int actual = gray ? (tiled[y * whole.getWidth() + x] & 0xff) * 0x010101 : tiled[y * whole.getWidth() + x];
+                    if (scaleBar.contains(x, y)) {
+                        continue;
+                    }
+                    assertEquals(wholeFile.getFileName() + " at " + x + "," + y, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTilesAreWrittenInAnyOrder() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("tiles.tif");
+        try (TiledTiffWriter writer = new TiledTiffWriter(file, 40, 20, true, 16, new ij.measure.Calibration())) {
+            for (int column = 2; column >= 0; column--) {
+                for (int row = 1; row >= 0; row--) {
+                    int width = Math.min(16, 40 - column * 16);
+                    int height = Math.min(16, 20 - row * 16);
+                    ColorProcessor tile = new ColorProcessor(width, height);
+                    tile.setColor((column << 16) | (row << 8) | 0x80);
+                    tile.fill();
+                    writer.writeTile(column, row, tile);
+                }
+            }
+            writer.finish();
+        }
+
+        int[] pixels = readTiledTiff(file, 40, 20);
+        assertEquals(0x000080, pixels[0]);
+        assertEquals(0x020180, pixels[19 * 40 + 39]);
+        assertEquals(0x010080, pixels[15 * 40 + 16]);
+        assertFalse(Files.exists(temporaryFolder.getRoot().toPath().resolve("tiles.tif.part")));
+    }
+
+    /**
+     * Read an uncompressed tiled TIFF or BigTIFF as written by TiledTiffWriter.
+     *
+     * @return RGB pixels, or gray values for single sample files.
+     */
+    private static int[] readTiledTiff(Path file, int width, int height) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        boolean bigTiff = buffer.getShort(2) == 43;
+        long ifdOffset = bigTiff ? buffer.getLong(8) : buffer.getInt(4) & 0xffffffffL;
+        long entryCount = bigTiff ? buffer.getLong((int) ifdOffset) : buffer.getShort((int) ifdOffset);
+        int position = (int) ifdOffset + (bigTiff ? 8 : 2);
+
+        Map<Integer, long[]> tags = new HashMap<>();
+        for (int e = 0; e < entryCount; e++, position += bigTiff ? 20 : 12) {
+            int tag = buffer.getShort(position) & 0xffff;
+            int type = buffer.getShort(position + 2);
+            int count = (int) (bigTiff ? buffer.getLong(position + 4) : buffer.getInt(position + 4));
+            int size = type == 3 ? 2 : type == 4 ? 4 : type == 16 ? 8 : 1;
+            int valuePosition = position + (bigTiff ? 12 : 8);
+            if (count * size > (bigTiff ? 8 : 4)) {
+                valuePosition = (int) (bigTiff ? buffer.getLong(valuePosition) : buffer.getInt(valuePosition));
+            }
+            long[] values = new long[count];
+            for (int i = 0; i < count; i++) {
+                int at = valuePosition + i * size;
+                values[i] = size == 2 ? buffer.getShort(at) & 0xffff : size == 4 ? buffer.getInt(at) & 0xffffffffL
+                        : size == 8 ? buffer.getLong(at) : buffer.get(at);
+            }
+            tags.put(tag, values);
+        }
+        assertEquals(width, tags.get(256)[0]);
+        assertEquals(height, tags.get(257)[0]);
+        assertEquals(1, tags.get(259)[0]);
+
+        int samples = (int) tags.get(277)[0];
+        int tileSize = (int) tags.get(322)[0];
+        int columns = (width + tileSize - 1) / tileSize;
+        long[] offsets = tags.get(324);
+        int[] pixels = new int[width * height];
+        for (int t = 0; t < offsets.length; t++) {
+            int x0 = (t % columns) * tileSize;
+            int y0 = (t / columns) * tileSize;
+            for (int y = y0; y < Math.min(y0 + tileSize, height); y++) {
+                for (int x = x0; x < Math.min(x0 + tileSize, width); x++) {
+                    int at = (int) offsets[t] + ((y - y0) * tileSize + (x - x0)) * samples;
+                    pixels[y * width + x] = samples == 1 ? buffer.get(at) & 0xff
+                            : ((buffer.get(at) & 0xff) << 16) | ((buffer.get(at + 1) & 0xff) << 8) | (buffer.get(at + 2) & 0xff);
+                }
+            }
+        }
+        return pixels;
+    }
+}